@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.actions;
+
+import java.awt.event.ActionEvent;
+import javax.swing.AbstractAction;
+import javax.swing.Action;
+import org.openide.awt.ActionID;
+import org.openide.awt.ActionReference;
+import org.openide.awt.ActionRegistration;
+import org.openide.util.ContextAwareAction;
+import org.openide.util.Lookup;
+
+/**
+ * Rebuilds the core library like {@link RebuildCoreLibraryAction}, but without Ninja runs make once per object
+ * file, so that the cost of every step is recorded in the profile next to the Makefile.
+ */
+@ActionID(
+    category = "Project",
+    id = "com.microchip.mplab.nbide.embedded.arduino.ProfileCoreLibraryBuildAction"
+)
+@ActionRegistration(
+    iconBase = "com/microchip/mplab/nbide/embedded/arduino/actions/arduino_16.png",        
+    displayName = "#CTL_ProfileCoreLibraryBuildAction",
+    lazy = false
+)
+@ActionReference(path="Projects/Actions", position = 101)
+public class ProfileCoreLibraryBuildAction extends AbstractAction implements ContextAwareAction {
+
+    @Override
+    public void actionPerformed(ActionEvent e) {assert false;}
+    
+    @Override
+    public Action createContextAwareInstance(Lookup context) {
+        return new RebuildCoreLibraryAction.ContextAction(context, "CTL_ProfileCoreLibraryBuildAction", true);
+    }
+    
+}
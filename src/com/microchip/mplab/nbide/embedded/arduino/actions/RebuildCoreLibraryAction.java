@@ -17,9 +17,12 @@ package com.microchip.mplab.nbide.embedded.arduino.actions;
 
 import com.microchip.mplab.nbide.embedded.api.LanguageToolchain;
 import com.microchip.mplab.nbide.embedded.arduino.importer.ProjectImporter;
+import com.microchip.mplab.nbide.embedded.arduino.importer.BuildProfile;
 import static com.microchip.mplab.nbide.embedded.arduino.importer.ProjectImporter.CORE_DIRECTORY_NAME;
 import com.microchip.mplab.nbide.embedded.arduino.importer.GCCToolFinder;
 import com.microchip.mplab.nbide.embedded.arduino.importer.LibCoreBuilder;
+import com.microchip.mplab.nbide.embedded.arduino.importer.LibraryBuilder;
+import com.microchip.mplab.nbide.embedded.arduino.importer.NativeProcessExecutor;
 import com.microchip.mplab.nbide.embedded.makeproject.MakeOptions;
 import com.microchip.mplab.nbide.embedded.makeproject.MakeProject;
 import java.awt.event.ActionEvent;
@@ -65,16 +68,19 @@ public class RebuildCoreLibraryAction extends AbstractAction implements ContextA
     
     @Override
     public Action createContextAwareInstance(Lookup context) {
-        return new ContextAction(context);
+        return new ContextAction(context, "CTL_RebuildCoreLibraryAction", false);
     }
     
-    private static final class ContextAction extends AbstractAction {
+    // Also used by ProfileCoreLibraryBuildAction, which profiles the make steps one by one:
+    static final class ContextAction extends AbstractAction {
         
         private final MakeProject project;
+        private final boolean profilingMakeSteps;
         
-        public ContextAction(Lookup context) {
+        public ContextAction(Lookup context, String nameKey, boolean profilingMakeSteps) {
+            this.profilingMakeSteps = profilingMakeSteps;
             putValue(DynamicMenuContent.HIDE_WHEN_DISABLED, true);
-            putValue(NAME, NbBundle.getMessage(RebuildCoreLibraryAction.class, "CTL_RebuildCoreLibraryAction"));
+            putValue(NAME, NbBundle.getMessage(RebuildCoreLibraryAction.class, nameKey));
             project = context.lookup(MakeProject.class);
             if ( project != null ) {
                 FileObject importedCoreDir = project.getProjectDirectory().getFileObject( CORE_DIRECTORY_NAME );
@@ -98,14 +104,33 @@ public class RebuildCoreLibraryAction extends AbstractAction implements ContextA
                 try {                    
                     LanguageToolchain toolchain = project.getActiveConfiguration().getLanguageToolchain().findToolchain();
                     GCCToolFinder toolFinder = new GCCToolFinder(toolchain);
-                    Path coreDirPath = Paths.get(project.getProjectDirectory().getFileObject(ProjectImporter.CORE_DIRECTORY_NAME ).getPath() );            
+                    Path coreDirPath = findCoreDirectoryPath( libCoreBuilder.getMakefileName() );
                     Path makefilePath = coreDirPath.resolve( libCoreBuilder.getMakefileName() );
+                    // Ninja builds are profiled from the Ninja log, make builds only on request:
+                    BuildProfile profile = new BuildProfile();
+                    libCoreBuilder.setProfile( profile );
+                    libCoreBuilder.setProfilingMakeSteps( profilingMakeSteps );
                     libCoreBuilder.build( makefilePath, toolFinder, (m) -> {
                         io.getOut().println(m);
                     } );
+                    if ( !profile.getSteps().isEmpty() ) {
+                        profile.formatSummary().forEach( io.getOut()::println );
+                        profile.write( coreDirPath, libCoreBuilder.getMakefileName() ).forEach( p -> io.getOut().println( "Wrote " + p ) );
+                    }
                     // TODO: Move message strings to Bundle
                     io.getOut().println("Copying Core Library file...");
                     Files.copy( libCoreBuilder.getLibCorePath(), coreDirPath.resolve( LibCoreBuilder.LIB_CORE_FILENAME ), StandardCopyOption.REPLACE_EXISTING );
+                    libCoreBuilder.cleanup();
+                    // The archives of the imported libraries are compiled against the core:
+                    for ( String libraryName : LibraryBuilder.findLibraryNames( coreDirPath ) ) {
+                        LibraryBuilder libraryBuilder = new LibraryBuilder( libraryName );
+                        libraryBuilder.build( coreDirPath.resolve( libraryBuilder.getMakefileName() ), toolFinder, (m) -> {
+                            io.getOut().println(m);
+                        } );
+                        io.getOut().println("Copying " + libraryBuilder.getTargetName() + " file...");
+                        Files.copy( libraryBuilder.getLibCorePath(), coreDirPath.resolve( libraryBuilder.getTargetName() ), StandardCopyOption.REPLACE_EXISTING );
+                    }
+                    io.getOut().println( NativeProcessExecutor.getInstance() );
                     io.getOut().println("Done");
                 } catch (Exception ex) {
                     libCoreBuilder.cleanup();
@@ -115,6 +140,20 @@ public class RebuildCoreLibraryAction extends AbstractAction implements ContextA
                 }
             });
         }
+        
+        // Projects importing several board configurations keep one core directory per configuration:
+        private Path findCoreDirectoryPath( String makefileName ) {
+            Path coreDirPath = Paths.get(project.getProjectDirectory().getFileObject(ProjectImporter.CORE_DIRECTORY_NAME ).getPath() );
+            String confName = project.getActiveConfiguration().getName();
+            String debugSuffix = "_debug";
+            for ( String name : new String[] { confName, confName.endsWith(debugSuffix) ? confName.substring(0, confName.length() - debugSuffix.length()) : confName } ) {
+                Path confCoreDirPath = coreDirPath.resolve( name );
+                if ( Files.exists( confCoreDirPath.resolve( makefileName ) ) ) {
+                    return confCoreDirPath;
+                }
+            }
+            return coreDirPath;
+        }
             
     }
     
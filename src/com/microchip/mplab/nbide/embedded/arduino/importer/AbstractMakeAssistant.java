@@ -18,13 +18,19 @@ package com.microchip.mplab.nbide.embedded.arduino.importer;
 import com.microchip.mplab.nbide.embedded.api.LanguageTool;
 import com.microchip.mplab.nbide.embedded.arduino.utils.DeletingFileVisitor;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -34,10 +40,31 @@ public abstract class AbstractMakeAssistant {
 
     
     private static final Logger LOGGER = Logger.getLogger(AbstractMakeAssistant.class.getName());
+    
+    /**
+     * The Makefile variable holding the toolchain directory, so that a generated Makefile can be pointed
+     * to another toolchain without being generated again.
+     */
+    public static final String TOOLS_DIR_VARIABLE = "TOOLS_DIR";
+    protected static final String TOOLS_DIR_REFERENCE = "$(" + TOOLS_DIR_VARIABLE + ")";
+    protected static final String UNITY_OBJECT_PREFIX = "unity-";
+    
+    // GNU time reports the peak resident set size of the step (make and the tool it runs):
+    private static final Path TIME_TOOL_PATH = Paths.get("/usr/bin/time");
+    private static final String PEAK_RSS_MARKER = "@PEAK_RSS_KB@";
+    private static Boolean peakRssAvailable;
 
     private List<String> compilationCommands;
     private List <String> makefileContents;
+    private List <String> ninjaFileContents;
     private List <String> objectFilenames;
+    private List <String> objectSourceFiles;
+    private String precompiledHeaderSourceFile;
+    private String precompiledHeaderFilename;
+    private String precompiledHeaderCommand;
+    private ObjectCache objectCache;
+    private BuildProfile profile;
+    private boolean profilingMakeSteps;
     
     
     
@@ -49,18 +76,79 @@ public abstract class AbstractMakeAssistant {
         return makefileContents;
     }
 
+    public List<String> getNinjaFileContents() {
+        return ninjaFileContents;
+    }
+
     public List<String> getObjectFilenames() {
         return objectFilenames;
     }
 
+    /**
+     * Returns the precompiled header made by the build as seen from the build directory (e.g.
+     * "../imported-core/Arduino.h.gch"), or null if there is none. Available once the Makefile has been generated.
+     */
+    public String getPrecompiledHeaderFilename() {
+        return precompiledHeaderFilename;
+    }
+
     public Path getMakefilePath() {
         return getBuildDirPath().resolve( getMakefileName() );
     }    
     
+    /**
+     * Returns the name of the Ninja file generated next to the Makefile.
+     */
+    public String getNinjaFileName() {
+        return "build.ninja";
+    }
+
+    public Path getNinjaFilePath() {
+        return getBuildDirPath().resolve( getNinjaFileName() );
+    }
+    
     public Path getToolchainPath() {
         return getToolFinder().findTool( LanguageTool.CCCompiler ).getParent().getParent();
     }
 
+    public ObjectCache getObjectCache() {
+        return objectCache;
+    }
+
+    /**
+     * Sets the cache compiled object files are taken from instead of being compiled, and added to after
+     * a build. Only used for the object files of a generated Makefile.
+     */
+    public void setObjectCache(ObjectCache objectCache) {
+        this.objectCache = objectCache;
+    }
+
+    public BuildProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Sets the profile the cost of every compile and archive step is recorded in (none by default).
+     * Ninja builds take the steps from the Ninja log, make builds only record them with
+     * {@link #setProfilingMakeSteps profiled make steps}.
+     */
+    public void setProfile(BuildProfile profile) {
+        this.profile = profile;
+    }
+
+    public boolean isProfilingMakeSteps() {
+        return profilingMakeSteps;
+    }
+
+    /**
+     * Makes a profiled build without Ninja run make once per object file that is out of date, so that the steps
+     * can be told apart, and once more for the target (off by default, since it takes about two processes per
+     * object file instead of a single "make -j"). Makefiles without a rule per object file are built as usual.
+     */
+    public void setProfilingMakeSteps(boolean profilingMakeSteps) {
+        this.profilingMakeSteps = profilingMakeSteps;
+    }
+
     public abstract Path getBuildDirPath();
 
     public abstract BoardConfiguration getBoardConfiguration();
@@ -84,10 +172,19 @@ public abstract class AbstractMakeAssistant {
     }
     
     protected void build( Consumer<String> messageConsumer, Consumer<String> errorConsumer ) throws IOException, InterruptedException {        
+        NativeProcessRunner.waitFor( buildAsync( messageConsumer, errorConsumer ) );
+    }
+    
+    /**
+     * Generates the Makefile and the Ninja file and starts the build without waiting for it to finish.
+     */
+    protected CompletableFuture<Void> buildAsync( Consumer<String> messageConsumer, Consumer<String> errorConsumer ) throws IOException {        
         checkPrerequisites();        
         generateMakefile();
         writeMakefile();
-        invokeMakeTool( messageConsumer, errorConsumer );
+        generateNinjaFile();
+        writeNinjaFile();
+        return invokeMakeToolAsync( messageConsumer, errorConsumer );
     }
     
     protected void checkPrerequisites() {
@@ -98,39 +195,150 @@ public abstract class AbstractMakeAssistant {
         if ( getTargetName() == null ) throw new IllegalStateException("Target Name cannot be null!");        
     }
     
+    /**
+     * Generates one rule per object file and a rule for the target that depends on all of them,
+     * so that make can compile the sources in parallel. The compiler writes a dependency file for every
+     * object file which the Makefile includes, so running make again only recompiles what has changed.
+     */
     protected void generateMakefile() throws IOException {
-        BoardConfiguration boardConfiguration = getBoardConfiguration();
+        expandRecipes();
         
-        makefileContents = new ArrayList<>();
-        objectFilenames = new ArrayList<>();
-        makefileContents.add( getTargetName() + ":" );
-        
-        // Add variant and core source file paths:
-        List <Path> allSourceFiles = getSourceFilePaths(boardConfiguration);
+        List <String> objectRules = new ArrayList<>();
+        String precompiledHeaderPrerequisite = precompiledHeaderFilename != null ? " | " + escapeMakePath(precompiledHeaderFilename) : "";
+        if ( precompiledHeaderFilename != null ) {
+            // Also made again whenever the flags or the toolchain in the Makefile change. The Makefile is the one make
+            // reads, since the pre-build step of the project makes the header with the copy in the core directory:
+            objectRules.add( "" );
+            objectRules.add( escapeMakePath(precompiledHeaderFilename) + ": " + escapeMakePath(precompiledHeaderSourceFile) + " $(lastword $(MAKEFILE_LIST))" );
+            objectRules.add( "\t" + precompiledHeaderCommand + " -MMD -MP -MF \"" + getPrecompiledHeaderDependencyFilename() + "\"" );
+        }
+        for ( int i=0; i<objectFilenames.size(); i++ ) {
+            objectRules.add( "" );
+            objectRules.add( escapeMakePath( objectFilenames.get(i) ) + ": " + escapeMakePath( objectSourceFiles.get(i) ) + ( usesPrecompiledHeader(i) ? precompiledHeaderPrerequisite : "" ) );
+            objectRules.add( "\t" + compilationCommands.get(i) + " -MMD -MP" );
+        }
         
-        Map <String,String> runtimeData = new HashMap<>();
-        runtimeData.put( getToolsPathKey(), getToolchainPath().toString() );
+        makefileContents = new ArrayList<>();
+        makefileContents.add( TOOLS_DIR_VARIABLE + "=" + getToolchainPath() );
+        makefileContents.add( ".DELETE_ON_ERROR:" );
+        makefileContents.add( "" );
+        makefileContents.add( getTargetName() + ":" + objectFilenames.stream().map( n -> " " + escapeMakePath(n) ).collect( Collectors.joining() ) + precompiledHeaderPrerequisite );
+        makefileContents.addAll( generateTargetCommands() );
+        makefileContents.addAll( objectRules );
         
-        // Generete compilation commands:
-        allSourceFiles.forEach(sourceFilePath -> {                
-            String sourceFileName = sourceFilePath.getFileName().toString();
-            String targetFileName = sourceFileName + ".o";
-            objectFilenames.add( targetFileName );
-            StringBuilder command = new StringBuilder("\t");
-            
-            runtimeData.put("source_file", mapSourceFilePath(sourceFilePath));
-            runtimeData.put("object_file", targetFileName);
-            runtimeData.put("includes", buildIncludesSection(boardConfiguration) );
-            
-            if (sourceFileName.endsWith(".S")) {
-                command.append( boardConfiguration.getValue("recipe.S.o.pattern", runtimeData).get() );
-            } else if (sourceFileName.endsWith(".c")) {
-                command.append( boardConfiguration.getValue("recipe.c.o.pattern", runtimeData).get() );
-            } else if (sourceFileName.endsWith(".cpp")) {
-                command.append( boardConfiguration.getValue("recipe.cpp.o.pattern", runtimeData).get() );
-            }
-            makefileContents.add( command.toString() );
-        });                
+        // Dependency files written by -MMD (e.g. "main.cpp.d" for "main.cpp.o"):
+        makefileContents.add( "" );
+        objectFilenames.forEach( n -> makefileContents.add( "-include " + escapeMakePath( n.substring( 0, n.length() - 2 ) + ".d" ) ) );
+        if ( precompiledHeaderFilename != null ) {
+            makefileContents.add( "-include " + escapeMakePath( getPrecompiledHeaderDependencyFilename() ) );
+        }
+    }
+    
+    /**
+     * Generates the Ninja equivalent of the Makefile (see {@link #generateMakefile()}) from the same compile
+     * recipes. Ninja reads the dependency files written by the compiler itself and archives with a response
+     * file, so the command line length is not an issue.
+     */
+    protected void generateNinjaFile() throws IOException {
+        if ( objectFilenames == null ) {
+            expandRecipes();
+        }
+        ninjaFileContents = new ArrayList<>();
+        ninjaFileContents.add( "ninja_required_version = 1.3" );
+        ninjaFileContents.add( TOOLS_DIR_VARIABLE + "=" + getToolchainPath().toString().replace("$", "$$") );
+        ninjaFileContents.add( "" );
+        ninjaFileContents.add( "rule compile" );
+        ninjaFileContents.add( "  command = $cmd" );
+        ninjaFileContents.add( "  depfile = $depfile" );
+        ninjaFileContents.add( "" );
+        ninjaFileContents.add( "rule archive" );
+        ninjaFileContents.add( "  command = $cmd" );
+        ninjaFileContents.add( "  rspfile = $out.rsp" );
+        ninjaFileContents.add( "  rspfile_content = $in_newline" );
+        String precompiledHeaderDependency = precompiledHeaderFilename != null ? " || " + escapeNinjaPath(precompiledHeaderFilename) : "";
+        if ( precompiledHeaderFilename != null ) {
+            ninjaFileContents.add( "" );
+            ninjaFileContents.add( "build " + escapeNinjaPath(precompiledHeaderFilename) + ": compile " + escapeNinjaPath(precompiledHeaderSourceFile) + " | " + escapeNinjaPath( getNinjaFileName() ) );
+            ninjaFileContents.add( "  cmd = " + toNinjaCommand( precompiledHeaderCommand ) + " -MMD -MF \"" + getPrecompiledHeaderDependencyFilename().replace("$", "$$") + "\"" );
+            ninjaFileContents.add( "  depfile = " + getPrecompiledHeaderDependencyFilename().replace("$", "$$") );
+        }
+        for ( int i=0; i<objectFilenames.size(); i++ ) {
+            String objectFilename = objectFilenames.get(i);
+            ninjaFileContents.add( "" );
+            ninjaFileContents.add( "build " + escapeNinjaPath(objectFilename) + ": compile " + escapeNinjaPath( objectSourceFiles.get(i) ) + ( usesPrecompiledHeader(i) ? precompiledHeaderDependency : "" ) );
+            // Without -MP, since Ninja before 1.10 only takes dependency files with a single rule:
+            ninjaFileContents.add( "  cmd = " + toNinjaCommand( compilationCommands.get(i) ) + " -MMD" );
+            ninjaFileContents.add( "  depfile = " + objectFilename.substring( 0, objectFilename.length() - 2 ).replace("$", "$$") + ".d" );
+        }
+        String objects = objectFilenames.stream().map( n -> " " + escapeNinjaPath(n) ).collect( Collectors.joining() );
+        String targetCommand = generateNinjaTargetCommand( getTargetName() + ".rsp" );
+        ninjaFileContents.add( "" );
+        if ( targetCommand != null ) {
+            ninjaFileContents.add( "build " + escapeNinjaPath( getTargetName() ) + ": archive" + objects + precompiledHeaderDependency );
+            ninjaFileContents.add( "  cmd = " + toNinjaCommand( targetCommand ) );
+        } else {
+            ninjaFileContents.add( "build " + escapeNinjaPath( getTargetName() ) + ": phony" + objects + precompiledHeaderDependency );
+        }
+        ninjaFileContents.add( "" );
+        ninjaFileContents.add( "default " + escapeNinjaPath( getTargetName() ) );
+    }
+    
+    /**
+     * Returns the recipe of the target rule, which runs once all object files are up to date.
+     */
+    protected List<String> generateTargetCommands() {
+        return new ArrayList<>();
+    }
+    
+    /**
+     * Returns the command that builds the target in the Ninja file, or null if the target only groups the
+     * object files. The names of the object files are in the given response file (one per line).
+     */
+    protected String generateNinjaTargetCommand( String responseFileName ) {
+        return null;
+    }
+    
+    /**
+     * Returns the number of jobs make may run in parallel, the concurrency budget of the
+     * {@link NativeProcessExecutor} by default.
+     */
+    protected int getMakeJobCount() {
+        return NativeProcessExecutor.getInstance().getConcurrencyBudget();
+    }
+    
+    /**
+     * Returns the name of the object file compiled from the source file (e.g. "main.cpp.o").
+     */
+    protected String getObjectFilename( Path sourceFilePath ) {
+        return sourceFilePath.getFileName().toString() + ".o";
+    }
+    
+    /**
+     * Returns the name of the object file compiled from the sources of a translation unit, the name of the 
+     * object file of its first source with a "unity-" prefix if there are several (e.g. "unity-main.cpp.o").
+     */
+    protected String getObjectFilename( List<Path> unitSourceFilePaths ) {
+        String ret = getObjectFilename( unitSourceFilePaths.get(0) );
+        return unitSourceFilePaths.size() > 1 ? UNITY_OBJECT_PREFIX + ret : ret;
+    }
+    
+    /**
+     * Returns the header that is precompiled before the C++ sources are compiled and included at the top of
+     * each of them (with "-include"), or null if there is none (the default). The precompiled header is made
+     * with the recipe of the C++ sources and written next to the header (e.g. "Arduino.h.gch"), where the
+     * compiler looks for it. The compiler falls back to the header if the flags of a source do not match.
+     */
+    protected Path getPrecompiledHeaderPath() {
+        return null;
+    }
+    
+    /**
+     * Groups the source files into the translation units that are compiled, one per source file by default.
+     * The sources of a unit share a language and are compiled with one invocation of the compiler: all but
+     * the last are passed with "-include", so the headers they have in common are only parsed once.
+     */
+    protected List<List<Path>> groupSourceFiles( List<Path> sourceFilePaths ) throws IOException {
+        return sourceFilePaths.stream().map( Collections::singletonList ).collect( Collectors.toList() );
     }
     
     protected String mapSourceFilePath( Path sourceFilePath ) {
@@ -163,19 +371,396 @@ public abstract class AbstractMakeAssistant {
         Files.write( getMakefilePath(), getMakefileContents() );
     }
     
+    protected void writeNinjaFile() throws IOException {
+        Files.write( getNinjaFilePath(), getNinjaFileContents() );
+    }
+    
     protected void invokeMakeTool( Consumer<String> messageConsumer, Consumer<String> errorConsumer ) throws IOException, InterruptedException {
+        NativeProcessRunner.waitFor( invokeMakeToolAsync( messageConsumer, errorConsumer ) );
+    }
+    
+    /**
+     * Builds the target with Ninja if there is a Ninja file and a ninja binary on the path, otherwise with make.
+     * Profiled Ninja builds take the wall times of the steps from the Ninja log.
+     */
+    protected CompletableFuture<Void> invokeMakeToolAsync( Consumer<String> messageConsumer, Consumer<String> errorConsumer ) throws IOException {
         Path makeToolPath = getToolFinder().findTool( LanguageTool.MakeTool );
-        NativeProcessRunner nativeProcessRunner = new NativeProcessRunner(messageConsumer, errorConsumer);
-        int result = nativeProcessRunner.runNativeProcess( getBuildDirPath(), makeToolPath.toString(), "V=1", "-f", getMakefilePath().getFileName().toString() );
-        if ( result != 0 ) throw new NativeProcessFailureException( "Compilation failed!" );
+        int objectCount = countMissingObjects();
+        Map <String,String> missedObjectKeys = restoreCachedObjects( messageConsumer );
+        // Ninja would compile the restored object files again, since they are not in its log:
+        boolean objectsRestored = missedObjectKeys.size() < objectCount;
+        Optional <Path> ninjaToolPath = !objectsRestored && Files.exists( getNinjaFilePath() ) ? getToolFinder().findNinja() : Optional.empty();
+        List <String> profiledPrerequisites = profile != null && profilingMakeSteps && !ninjaToolPath.isPresent() ? parseTargetPrerequisites() : null;
+        CompletableFuture<Void> make;
+        if ( ninjaToolPath.isPresent() ) {
+            if ( profile != null ) {
+                profile.setToolchainIdentity( getToolchainIdentity() );
+            }
+            Map <String,String> previousLogEntries = profile != null ? readNinjaLog() : null;
+            NativeProcessRunner nativeProcessRunner = new NativeProcessRunner(messageConsumer, errorConsumer);
+            make = nativeProcessRunner.runParallelNativeProcessAsync( getBuildDirPath(), jobCount -> Arrays.asList( ninjaToolPath.get().toString(), "-v", "-j" + jobCount, "-f", getNinjaFileName() ), getMakeJobCount() )
+                .thenAccept( result -> {
+                    if ( result != 0 ) throw new NativeProcessFailureException( "Compilation failed!" );
+                    if ( profile != null ) {
+                        recordNinjaLog( previousLogEntries );
+                    }
+                });
+        } else if ( profiledPrerequisites != null ) {
+            make = invokeProfiledMakeToolAsync( makeToolPath, profiledPrerequisites, messageConsumer, errorConsumer );
+        } else {
+            NativeProcessRunner nativeProcessRunner = new NativeProcessRunner(messageConsumer, errorConsumer);
+            make = nativeProcessRunner.runParallelNativeProcessAsync( getBuildDirPath(), jobCount -> Arrays.asList( makeToolPath.toString(), "V=1", "-j" + jobCount, "-f", getMakefilePath().getFileName().toString() ), getMakeJobCount() )
+                .thenAccept( result -> {
+                    if ( result != 0 ) throw new NativeProcessFailureException( "Compilation failed!" );
+                });
+        }
+        return make.thenRun( () -> publishCompiledObjects( missedObjectKeys ) );
+    }
+    
+    /**
+     * Makes only the precompiled header (if there is one), e.g. when the target has been taken from a cache.
+     */
+    protected CompletableFuture<Void> invokeMakeToolForPrecompiledHeaderAsync( Consumer<String> messageConsumer, Consumer<String> errorConsumer ) throws IOException {
+        if ( precompiledHeaderFilename == null ) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Optional <Path> ninjaToolPath = Files.exists( getNinjaFilePath() ) ? getToolFinder().findNinja() : Optional.empty();
+        List <String> command = ninjaToolPath.isPresent()
+            ? Arrays.asList( ninjaToolPath.get().toString(), "-v", "-f", getNinjaFileName(), precompiledHeaderFilename )
+            : Arrays.asList( getToolFinder().findTool( LanguageTool.MakeTool ).toString(), "V=1", "-f", getMakefilePath().getFileName().toString(), precompiledHeaderFilename );
+        return new NativeProcessRunner(messageConsumer, errorConsumer).runNativeProcessAsync( getBuildDirPath(), command, 0, TimeUnit.MILLISECONDS )
+            .thenAccept( result -> {
+                if ( result != 0 ) throw new NativeProcessFailureException( "Compilation failed!" );
+            });
+    }
+    
+    /**
+     * Identifies the compiler beyond its path, so that a reinstalled toolchain is not mistaken for the old one.
+     */
+    protected String getToolchainIdentity() throws IOException {
+        Path compilerPath = getToolFinder().findTool( LanguageTool.CCCompiler );
+        return compilerPath + ":" + Files.size(compilerPath) + ":" + Files.getLastModifiedTime(compilerPath).toMillis();
     }
         
     protected List<Path> getSourceFilePaths( BoardConfiguration boardConfiguration ) throws IOException {
         return boardConfiguration.getCoreFilePaths();
     }
 
+    protected static String escapeMakePath( String path ) {
+        return path.replace(" ", "\\ ");
+    }
+
+    protected static String escapeNinjaPath( String path ) {
+        return path.replace("$", "$$").replace(" ", "$ ").replace(":", "$:");
+    }
+
     protected List<String> parseCompilerMacros(String macros) {
         return Arrays.asList(macros.split(";")).stream().map(m -> "-D" + m).collect(Collectors.toList());
     }
 
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    // Expands the compile recipe of every translation unit that has one, with the paths the build directory sees:
+    private void expandRecipes() throws IOException {
+        BoardConfiguration boardConfiguration = getBoardConfiguration();
+        
+        objectFilenames = new ArrayList<>();
+        compilationCommands = new ArrayList<>();
+        objectSourceFiles = new ArrayList<>();
+        
+        // Add variant and core source file paths:
+        List <Path> allSourceFiles = getSourceFilePaths(boardConfiguration);
+        
+        Map <String,String> runtimeData = new HashMap<>();
+        runtimeData.put( getToolsPathKey(), TOOLS_DIR_REFERENCE );
+        
+        precompiledHeaderSourceFile = null;
+        precompiledHeaderFilename = null;
+        precompiledHeaderCommand = null;
+        Path precompiledHeaderPath = getPrecompiledHeaderPath();
+        if ( precompiledHeaderPath != null ) {
+            String mappedHeaderPath = mapSourceFilePath(precompiledHeaderPath);
+            runtimeData.put("source_file", mappedHeaderPath);
+            runtimeData.put("object_file", mappedHeaderPath + ".gch");
+            runtimeData.put("includes", buildIncludesSection(boardConfiguration) );
+            Optional <String> command = boardConfiguration.getValue("recipe.cpp.o.pattern", runtimeData);
+            if ( command.isPresent() ) {
+                precompiledHeaderSourceFile = mappedHeaderPath;
+                precompiledHeaderFilename = mappedHeaderPath + ".gch";
+                // Made with debugging information, since such a header can be used with and without it:
+                precompiledHeaderCommand = command.get() + " -g";
+            }
+        }
+        
+        // Generete compilation commands:
+        for ( List<Path> unitSourceFilePaths : groupSourceFiles(allSourceFiles) ) {
+            if ( !expandRecipe( unitSourceFilePaths, runtimeData ) ) {
+                // The recipe has no includes to add the other sources to, so they are compiled one by one:
+                unitSourceFilePaths.forEach( p -> expandRecipe( Collections.singletonList(p), runtimeData ) );
+            }
+        }
+    }
+    
+    // The other sources of a unit are compiled as if they were included at the top of the last one:
+    private boolean expandRecipe( List<Path> unitSourceFilePaths, Map<String,String> runtimeData ) {
+        BoardConfiguration boardConfiguration = getBoardConfiguration();
+        Path sourceFilePath = unitSourceFilePaths.get( unitSourceFilePaths.size()-1 );
+        String sourceFileName = sourceFilePath.getFileName().toString();
+        String targetFileName = getObjectFilename(unitSourceFilePaths);
+        String mappedSourceFilePath = mapSourceFilePath(sourceFilePath);
+        StringBuilder includes = new StringBuilder( buildIncludesSection(boardConfiguration) );
+        if ( precompiledHeaderSourceFile != null && sourceFileName.endsWith(".cpp") ) {
+            includes.append(" -include \"").append(precompiledHeaderSourceFile).append("\"");
+        }
+        unitSourceFilePaths.subList( 0, unitSourceFilePaths.size()-1 ).forEach( p -> includes.append(" -include \"").append( mapSourceFilePath(p) ).append("\"") );
+
+        runtimeData.put("source_file", mappedSourceFilePath);
+        runtimeData.put("object_file", targetFileName);
+        runtimeData.put("includes", includes.toString() );
+
+        Optional<String> command = Optional.empty();
+        if (sourceFileName.endsWith(".S")) {
+            command = boardConfiguration.getValue("recipe.S.o.pattern", runtimeData);
+        } else if (sourceFileName.endsWith(".c")) {
+            command = boardConfiguration.getValue("recipe.c.o.pattern", runtimeData);
+        } else if (sourceFileName.endsWith(".cpp")) {
+            command = boardConfiguration.getValue("recipe.cpp.o.pattern", runtimeData);
+        }
+        if ( command.isPresent() ) {
+            if ( unitSourceFilePaths.size() > 1 && !command.get().contains(includes) ) return false;
+            objectFilenames.add( targetFileName );
+            compilationCommands.add( command.get() );
+            objectSourceFiles.add( mappedSourceFilePath );
+        }
+        return true;
+    }
+    
+    private boolean usesPrecompiledHeader( int objectIndex ) {
+        return precompiledHeaderFilename != null && objectSourceFiles.get(objectIndex).endsWith(".cpp");
+    }
+    
+    // Written with -MF, since the compiler would put it next to the precompiled header (e.g. "Arduino.h.gch.d"):
+    private String getPrecompiledHeaderDependencyFilename() {
+        return Paths.get(precompiledHeaderFilename).getFileName() + ".d";
+    }
+    
+    // The tools directory is a Ninja variable as well:
+    private static String toNinjaCommand( String command ) {
+        return command.replace("$", "$$").replace( TOOLS_DIR_REFERENCE.replace("$", "$$"), "${" + TOOLS_DIR_VARIABLE + "}" );
+    }
+    
+    // Records the steps run by Ninja, i.e. the outputs whose last entry in the log has changed during the build:
+    private void recordNinjaLog( Map<String,String> previousLogEntries ) {
+        for ( Map.Entry<String,String> e : readNinjaLog().entrySet() ) {
+            if ( e.getValue().equals( previousLogEntries.get( e.getKey() ) ) ) continue;
+            String[] fields = e.getValue().split("\t");
+            try {
+                Path outputPath = getBuildDirPath().resolve( e.getKey() );
+                BuildProfile.StepKind kind = e.getKey().equals( getTargetName() ) ? BuildProfile.StepKind.ARCHIVE : e.getKey().endsWith(".gch") ? BuildProfile.StepKind.PRECOMPILE : BuildProfile.StepKind.COMPILE;
+                BuildProfile.Step step = profile.addStep( e.getKey(), kind, null );
+                step.setWallMillis( Long.parseLong( fields[1] ) - Long.parseLong( fields[0] ) );
+                if ( Files.exists(outputPath) ) {
+                    step.setOutputSize( Files.size(outputPath) );
+                }
+            } catch (IOException | NumberFormatException ex) {
+                LOGGER.log( Level.WARNING, "Failed to record the Ninja step " + e.getKey(), ex );
+            }
+        }
+    }
+
+    // Returns the last entry of every output in the Ninja log ("start end mtime output hash", separated by tabs)
+    private Map<String,String> readNinjaLog() {
+        Map <String,String> ret = new HashMap<>();
+        Path logPath = getBuildDirPath().resolve(".ninja_log");
+        if ( !Files.exists(logPath) ) return ret;
+        try {
+            for ( String line : Files.readAllLines(logPath) ) {
+                String[] fields = line.split("\t");
+                if ( line.startsWith("#") || fields.length < 5 ) continue;
+                ret.put( fields[3], line );
+            }
+        } catch (IOException ex) {
+            LOGGER.log( Level.WARNING, "Failed to read the Ninja log " + logPath, ex );
+        }
+        return ret;
+    }
+    
+    private int countMissingObjects() {
+        if ( objectCache == null || objectFilenames == null ) return 0;
+        return (int) objectFilenames.stream().filter( n -> !Files.exists( getBuildDirPath().resolve(n) ) ).count();
+    }
+    
+    // Copies the cached object files that are missing in the build directory (make compiles the rest)
+    // and returns the cache keys of the ones that have to be compiled:
+    private Map<String,String> restoreCachedObjects( Consumer<String> messageConsumer ) throws IOException {
+        Map <String,String> missedObjectKeys = new HashMap<>();
+        if ( objectCache == null || objectFilenames == null ) return missedObjectKeys;
+        
+        String toolchainIdentity = getToolchainIdentity();
+        int hitCount = 0;
+        for ( int i=0; i<objectFilenames.size(); i++ ) {
+            String objectFilename = objectFilenames.get(i);
+            Path objectFilePath = getBuildDirPath().resolve( objectFilename );
+            if ( Files.exists(objectFilePath) ) continue;
+            String key = objectCache.computeKey( compilationCommands.get(i).replace( TOOLS_DIR_REFERENCE, toolchainIdentity ), getBuildDirPath().resolve( objectSourceFiles.get(i) ) );
+            if ( objectCache.restore( key, getBuildDirPath(), objectFilePath, getDependencyFilePath(objectFilename) ) ) {
+                hitCount++;
+            } else {
+                missedObjectKeys.put( objectFilename, key );
+            }
+        }
+        // TODO: Create message templates in Bundle
+        if ( messageConsumer != null ) {
+            messageConsumer.accept( "Object cache: " + hitCount + " hits, " + missedObjectKeys.size() + " misses" );
+        }
+        LOGGER.log( Level.INFO, "Object cache: {0} hits, {1} misses", new Object[] {hitCount, missedObjectKeys.size()} );
+        return missedObjectKeys;
+    }
+    
+    private void publishCompiledObjects( Map<String,String> objectKeys ) {
+        if ( objectKeys.isEmpty() ) return;
+        // A failure is not a reason to leave the remaining object files out of the cache:
+        for ( Map.Entry<String,String> e : objectKeys.entrySet() ) {
+            Path dependencyFilePath = getDependencyFilePath( e.getKey() );
+            if ( !Files.exists(dependencyFilePath) ) continue;
+            try {
+                objectCache.publish( e.getValue(), getBuildDirPath(), getBuildDirPath().resolve( e.getKey() ), dependencyFilePath );
+            } catch (IOException ex) {
+                LOGGER.log( Level.WARNING, "Failed to add " + e.getKey() + " to the object cache", ex );
+            }
+        }
+        try {
+            objectCache.evict();
+        } catch (IOException ex) {
+            LOGGER.log( Level.WARNING, "Failed to evict object files from the cache", ex );
+        }
+    }
+    
+    // The prerequisites of the target rule (with "|" before the order-only ones), or null for Makefiles without a rule
+    // per object file (imported before):
+    private List<String> parseTargetPrerequisites() throws IOException {
+        List <String> makefileLines = Files.readAllLines( getMakefilePath() );
+        if ( makefileLines.stream().noneMatch( l -> l.startsWith( TOOLS_DIR_VARIABLE + "=" ) ) ) return null;
+        String targetRulePrefix = escapeMakePath( getTargetName() ) + ":";
+        for ( String line : makefileLines ) {
+            if ( !line.startsWith(targetRulePrefix) ) continue;
+            List <String> ret = new ArrayList<>();
+            StringBuilder name = new StringBuilder();
+            for ( int i=targetRulePrefix.length(); i<=line.length(); i++ ) {
+                char c = i < line.length() ? line.charAt(i) : ' ';
+                if ( c == '\\' && i+1 < line.length() && line.charAt(i+1) == ' ' ) {
+                    name.append(' ');
+                    i++;
+                } else if ( c == ' ' ) {
+                    if ( name.length() > 0 ) ret.add( name.toString() );
+                    name.setLength(0);
+                } else {
+                    name.append(c);
+                }
+            }
+            return ret;
+        }
+        return null;
+    }
+    
+    // The order-only prerequisites (after "|", e.g. the precompiled header) are made before the object files:
+    private CompletableFuture<Void> invokeProfiledMakeToolAsync( Path makeToolPath, List<String> prerequisites, Consumer<String> messageConsumer, Consumer<String> errorConsumer ) throws IOException {
+        profile.setToolchainIdentity( getToolchainIdentity() );
+        NativeProcessRunner.addInvocationListener( profile );
+        int separatorIndex = prerequisites.indexOf("|");
+        List <String> objectFilenames = separatorIndex >= 0 ? prerequisites.subList( 0, separatorIndex ) : prerequisites;
+        List <String> orderOnlyPrerequisites = separatorIndex >= 0 ? prerequisites.subList( separatorIndex+1, prerequisites.size() ) : Collections.emptyList();
+        CompletableFuture<Void> precompileSteps = CompletableFuture.completedFuture(null);
+        for ( String prerequisite : orderOnlyPrerequisites ) {
+            precompileSteps = precompileSteps.thenCompose( v -> {
+                try {
+                    return runProfiledStepAsync( makeToolPath, prerequisite, BuildProfile.StepKind.PRECOMPILE, messageConsumer, errorConsumer );
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+        CompletableFuture<Void> ret = precompileSteps
+            .thenCompose( v -> {
+                List <CompletableFuture<Void>> compileSteps = new ArrayList<>();
+                for ( String objectFilename : objectFilenames ) {
+                    try {
+                        compileSteps.add( runProfiledStepAsync( makeToolPath, objectFilename, BuildProfile.StepKind.COMPILE, messageConsumer, errorConsumer ) );
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+                return CompletableFuture.allOf( compileSteps.toArray( new CompletableFuture<?>[0] ) );
+            })
+            .thenCompose( v -> {
+                try {
+                    return runProfiledStepAsync( makeToolPath, getTargetName(), BuildProfile.StepKind.ARCHIVE, messageConsumer, errorConsumer );
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        ret.whenComplete( (v, ex) -> NativeProcessRunner.removeInvocationListener( profile ) );
+        return ret;
+    }
+    
+    // Asks make whether the target is up to date first ("make -q"), so that only the steps that run are recorded:
+    private CompletableFuture<Void> runProfiledStepAsync( Path makeToolPath, String target, BuildProfile.StepKind kind, Consumer<String> messageConsumer, Consumer<String> errorConsumer ) throws IOException {
+        String makefileName = getMakefilePath().getFileName().toString();
+        return new NativeProcessRunner().runNativeProcessAsync( getBuildDirPath(), makeToolPath.toString(), "-q", "-f", makefileName, target )
+            .thenCompose( upToDate -> {
+                if ( upToDate == 0 ) return CompletableFuture.completedFuture(null);
+                List <String> command = new ArrayList<>();
+                if ( isPeakRssAvailable() ) {
+                    command.addAll( Arrays.asList( TIME_TOOL_PATH.toString(), "-f", PEAK_RSS_MARKER + "%M" ) );
+                }
+                command.addAll( Arrays.asList( makeToolPath.toString(), "V=1", "-f", makefileName, target ) );
+                BuildProfile.Step step = profile.addStep( target, kind, command );
+                Consumer<String> stepErrorConsumer = line -> {
+                    if ( line.startsWith(PEAK_RSS_MARKER) ) {
+                        step.setPeakRssKilobytes( Long.parseLong( line.substring( PEAK_RSS_MARKER.length() ).trim() ) );
+                    } else if ( errorConsumer != null ) {
+                        errorConsumer.accept(line);
+                    }
+                };
+                try {
+                    return new NativeProcessRunner( messageConsumer, stepErrorConsumer ).runNativeProcessAsync( getBuildDirPath(), command, 0, TimeUnit.MILLISECONDS )
+                        .thenAccept( result -> {
+                            if ( result != 0 ) throw new NativeProcessFailureException( "Compilation failed!" );
+                            Path outputPath = getBuildDirPath().resolve(target);
+                            try {
+                                step.setOutputSize( Files.size(outputPath) );
+                            } catch (IOException ex) {
+                                LOGGER.log( Level.FINE, "No output file: " + outputPath, ex );
+                            }
+                        });
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+    }
+    
+    private static synchronized boolean isPeakRssAvailable() {
+        if ( peakRssAvailable == null ) {
+            peakRssAvailable = false;
+            if ( Files.isExecutable(TIME_TOOL_PATH) ) {
+                try {
+                    // Only GNU time takes a format:
+                    peakRssAvailable = new NativeProcessRunner().runNativeProcess( TIME_TOOL_PATH.toString(), "-f", "%M", "true" ) == 0;
+                } catch (IOException ex) {
+                    LOGGER.log( Level.FINE, "Failed to run " + TIME_TOOL_PATH, ex );
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return peakRssAvailable;
+    }
+    
+    // e.g. "main.cpp.d" for "main.cpp.o" (see -MMD)
+    private Path getDependencyFilePath( String objectFilename ) {
+        return getBuildDirPath().resolve( objectFilename.substring( 0, objectFilename.length() - 2 ) + ".d" );
+    }
+
 }
@@ -22,20 +22,21 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.FileVisitResult;
-import static java.nio.file.FileVisitResult.CONTINUE;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
@@ -45,15 +46,18 @@ public class ArduinoBuilderRunner {
 
     
     private static final Logger LOGGER = Logger.getLogger(ArduinoBuilderRunner.class.getName());
+    private static final long DEPENDENCY_RESOLUTION_TIMEOUT_SECONDS = 60;
     
     private List<Path> mainLibraryPaths = new ArrayList<>();
     private List<Path> auxLibraryPaths = new ArrayList<>();
     private Path preprocessDirPath;
+    private DependencyGraph dependencyGraph = new DependencyGraph();
     
     private final GCCToolFinder toolFinder;
     private final ArduinoConfig arduinoConfig;
     private final Path arduinoInstallPath;
     private final NativeProcessRunner nativeProcessRunner;
+    private final Consumer<String> nativeProcessMessageConsumer;
     
 
     public ArduinoBuilderRunner( GCCToolFinder toolFinder, ArduinoConfig arduinoConfig, Path arduinoInstallPath, Consumer<String> nativeProcessMessageConsumer ) {
@@ -61,6 +65,15 @@ public class ArduinoBuilderRunner {
         this.arduinoConfig = arduinoConfig;
         this.arduinoInstallPath = arduinoInstallPath;
         this.nativeProcessRunner = new NativeProcessRunner(nativeProcessMessageConsumer);
+        this.nativeProcessMessageConsumer = nativeProcessMessageConsumer;
+    }
+
+    /**
+     * Returns the consumer the output of arduino-builder goes to. Other native processes run
+     * as part of the same import should use it as well.
+     */
+    public Consumer<String> getNativeProcessMessageConsumer() {
+        return nativeProcessMessageConsumer;
     }
 
     public Path getArduinoInstallPath() {
@@ -75,6 +88,14 @@ public class ArduinoBuilderRunner {
         return toolFinder;
     }
 
+    /**
+     * Returns a new runner with the same tools, Arduino installation and output consumer, to preprocess
+     * the sketch for another board without overwriting the results of this one.
+     */
+    public ArduinoBuilderRunner createSibling() {
+        return new ArduinoBuilderRunner( toolFinder, arduinoConfig, arduinoInstallPath, nativeProcessMessageConsumer );
+    }
+
     public void preprocess(BoardConfiguration boardConfiguration, Path inoFilePath) {
         Path tempDirPath = null;
         try {
@@ -88,6 +109,7 @@ public class ArduinoBuilderRunner {
     public void preprocess(BoardConfiguration boardConfiguration, Path inoFilePath, Path preprocessDirPath) {
         try {
             this.preprocessDirPath = preprocessDirPath;
+            this.dependencyGraph = new DependencyGraph();
             if ( !Files.exists(preprocessDirPath) ) {
                 Files.createDirectories(preprocessDirPath);
             }
@@ -125,6 +147,76 @@ public class ArduinoBuilderRunner {
         return ret;
     }
 
+    /**
+     * Returns the per-file include dependencies recorded while looking for library dependencies.
+     * The graph is not complete until {@link #resolveDependencyGraph(BoardConfiguration)} is called.
+     */
+    public DependencyGraph getDependencyGraph() {
+        return dependencyGraph;
+    }
+
+    /**
+     * Completes the dependency graph with the preprocessed sketch sources and with all library translation
+     * units whose dependencies could not be resolved during preprocessing, this time with the include
+     * directories of all found libraries.
+     */
+    public DependencyGraph resolveDependencyGraph( BoardConfiguration boardConfiguration ) throws IOException, InterruptedException {
+        LOGGER.info("Resolving file dependencies");
+        final Path gccPath = toolFinder.findTool( LanguageTool.CCCompiler );
+        final String[] includeArguments = createIncludeArguments( boardConfiguration.getCoreDirPaths(), getAllLibraryPaths() );
+        final LibraryCatalog libraryCatalog = LibraryCatalog.getInstance();
+
+        List <Path> files = new ArrayList<>();
+        try (Stream<Path> s = Files.walk( getPreprocessedSketchDirPath() )) {
+            s.filter( ReachableLibraryFileSelector::isDependencyResolved ).forEach( files::add );
+        }
+        getAllLibraryPaths().forEach( libDir -> libraryCatalog.getSourceFilePaths(libDir).forEach( file -> {
+            if ( ReachableLibraryFileSelector.isDependencyResolved(file) && !dependencyGraph.contains(file) ) {
+                files.add(file);
+            }
+        }));
+
+        resolveFileDependencies( gccPath, includeArguments, files );
+        return dependencyGraph;
+    }
+
+    /**
+     * Returns the files included (directly or indirectly) by the given source file, resolved against the given
+     * core and library directories. Unlike the dependency resolution of the import, a missing header does not
+     * stop the resolution: it is returned as a relative path, exactly as written in the #include directive.
+     * Nothing is recorded in the dependency graph so this method can be called from several threads at once.
+     * 
+     * @throws NativeProcessFailureException if the compiler fails for another reason (e.g. an #error directive)
+     */
+    public List<Path> resolveIncludedFiles( Path file, List<Path> coreDirPaths, List<Path> libraryPaths ) throws IOException, InterruptedException {
+        final Path gccPath = toolFinder.findTool( LanguageTool.CCCompiler );
+        final String[] includeArguments = createIncludeArguments( coreDirPaths, libraryPaths );
+        final StringBuilder output = new StringBuilder();
+        List <String> command = new ArrayList<>( Arrays.asList( createDependencyResolutionCommand( gccPath, includeArguments, file ) ) );
+        // "-MM" would leave out missing <...> headers since they are taken for system headers:
+        command.set( command.indexOf("-MM"), "-M" );
+        command.add( command.size()-1, "-MG" );
+        String filename = file.getFileName().toString();
+        if ( filename.endsWith(".ino") || filename.endsWith(".pde") ) {
+            command.add( command.size()-1, "-x" );
+            command.add( command.size()-1, "c++" );
+        }
+        NativeProcessRunner includeResolutionRunner = new NativeProcessRunner( (String m) -> {
+            if ( !m.startsWith("--") ) output.append(m).append('\n');
+        });
+        // Only used by sketchbook scans which must not hold up builds and imports:
+        includeResolutionRunner.setPriority( NativeProcessExecutor.Priority.BACKGROUND );
+        int errorCode = NativeProcessRunner.waitFor( includeResolutionRunner.runNativeProcessAsync( null, command, DEPENDENCY_RESOLUTION_TIMEOUT_SECONDS, TimeUnit.SECONDS ) );
+        
+        // The compiler messages (if any) come before the rule:
+        String targetName = filename.substring( 0, filename.lastIndexOf('.') < 0 ? filename.length() : filename.lastIndexOf('.') ) + ".o:";
+        int ruleIndex = output.indexOf( targetName );
+        if ( errorCode != NO_ERROR_CODE || ruleIndex < 0 ) {
+            throw new NativeProcessFailureException( "Failed to resolve the includes of " + file + ":\n" + output );
+        }
+        return DependencyGraph.parseMakeRule( output.substring(ruleIndex), null );
+    }
+
     public String getCommand() {
         return nativeProcessRunner.getNativeProcessCommandString();
     }
@@ -230,65 +322,43 @@ public class ArduinoBuilderRunner {
         return libraryPaths;
     }
 
-    private List <Path> findAuxLibraryPaths(BoardConfiguration boardConfiguration, GCCToolFinder toolFinder, List<Path> mainLibraries) throws IOException {
+    private List <Path> findAuxLibraryPaths(BoardConfiguration boardConfiguration, GCCToolFinder toolFinder, List<Path> mainLibraries) throws IOException, InterruptedException {
         LOGGER.info("Looking for additional library paths");
         
-        // TODO: Consider expanding the list of valid library source file extensions
-        final PathMatcher librarySourceMatcher = FileSystems.getDefault().getPathMatcher("glob:*.{c,cpp}");
         final Path gccPath = toolFinder.findTool( LanguageTool.CCCompiler );
         final List <Path> coreDirPaths = boardConfiguration.getCoreDirPaths();
         
         final List <Path> allLibraries = new ArrayList<>(mainLibraries);
         final List <Path> ret = new ArrayList<>();
+        final LibraryCatalog libraryCatalog = LibraryCatalog.getInstance();
+        final String[] includeArguments = createIncludeArguments( coreDirPaths, mainLibraries );
 
         for (int i = 0; i < allLibraries.size(); i++) {
             Path libDir = allLibraries.get(i);
             final Path librariesDir = libDir.getParent();
-            Files.walkFileTree(libDir, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                    if (Files.isDirectory(file)) {
-                        return CONTINUE;
-                    }
-                    if (!librarySourceMatcher.matches(file.getFileName())) {
-                        return CONTINUE;
-                    }
-
-                    try {
-                        new NativeProcessRunner( (String m) -> {
-                            if ( m.startsWith("--") ) {
-                                LOGGER.info(m);
-                            } else if (m.startsWith(" ")) {
-                                String path = m.trim();
-                                if ( path.endsWith("\\") ) {
-                                    path = path.substring(0, path.length()-2).trim();
-                                }
-                                Path dependencyFilePath = Paths.get( path );
-                                // TODO: If the "path" string does not represent a path then it probably contains error information. Find a way to handle it.
-                                if ( Files.exists( dependencyFilePath ) ) {
-                                    LOGGER.log(Level.INFO, "Dependency path: {0}", dependencyFilePath);
-                                    if ( dependencyFilePath.startsWith( librariesDir ) ) {
-                                        Path relativeDependencyPath = librariesDir.relativize(dependencyFilePath.normalize());
-                                        String libraryName = relativeDependencyPath.getName(0).toString();
-                                        Path libraryPath = librariesDir.resolve(libraryName);
-                                        if ( !allLibraries.contains(libraryPath) ) {
-                                            LOGGER.log(Level.INFO, "Found library path: {0}", libraryPath);
-                                            allLibraries.add(libraryPath);
-                                            ret.add(libraryPath);
-                                        }
-                                    } else {
-                                        LOGGER.log(Level.INFO, "Ignoring dependency file path:{0}", dependencyFilePath);
-                                    }
-                                }
+            List <Path> files = libraryCatalog.getSourceFilePaths(libDir).stream()
+                .filter( ReachableLibraryFileSelector::isDependencyResolved )
+                .collect( Collectors.toList() );
+            
+            for ( List<Path> dependencyFilePaths : resolveFileDependencies( gccPath, includeArguments, files ) ) {
+                for ( Path dependencyFilePath : dependencyFilePaths ) {
+                    if ( Files.exists( dependencyFilePath ) ) {
+                        LOGGER.log(Level.INFO, "Dependency path: {0}", dependencyFilePath);
+                        if ( dependencyFilePath.startsWith( librariesDir ) ) {
+                            Path relativeDependencyPath = librariesDir.relativize(dependencyFilePath.normalize());
+                            String libraryName = relativeDependencyPath.getName(0).toString();
+                            Path libraryPath = librariesDir.resolve(libraryName);
+                            if ( !allLibraries.contains(libraryPath) ) {
+                                LOGGER.log(Level.INFO, "Found library path: {0}", libraryPath);
+                                allLibraries.add(libraryPath);
+                                ret.add(libraryPath);
                             }
-                        }).runNativeProcess( createDependencyResolutionCommand( gccPath, coreDirPaths, mainLibraries, file ) );
-                    } catch ( IOException | InterruptedException ex ) {
-                        LOGGER.log( Level.SEVERE, "Failed to resolve additional dependencies for " + file.toAbsolutePath().toString(), ex );
+                        } else {
+                            LOGGER.log(Level.INFO, "Ignoring dependency file path:{0}", dependencyFilePath);
+                        }
                     }
-
-                    return CONTINUE;
                 }
-            });
+            }
         }
         
         if ( ret.isEmpty() ) {
@@ -298,22 +368,78 @@ public class ArduinoBuilderRunner {
         return ret;
     }
     
-    private String[] createDependencyResolutionCommand( Path gccPath, List<Path> coreDirPaths, List<Path> libraryPaths, Path file ) {
-        List <String> commandElements = new ArrayList<>();
-        commandElements.add( gccPath.toString() );
+    // Runs the dependency resolution of several files at once (as many as the NativeProcessExecutor budget allows)
+    // and returns the results in the order of the files:
+    private List<List<Path>> resolveFileDependencies( Path gccPath, String[] includeArguments, List<Path> files ) throws InterruptedException {
+        final List <CompletableFuture<List<Path>>> futures = new ArrayList<>();
+        try {
+            for ( Path file : files ) {
+                futures.add( resolveFileDependenciesAsync( gccPath, includeArguments, file ) );
+            }
+            List <List<Path>> ret = new ArrayList<>();
+            for ( CompletableFuture<List<Path>> future : futures ) {
+                ret.add( future.get() );
+            }
+            return ret;
+        } catch (InterruptedException ex) {
+            futures.forEach( f -> f.cancel(true) );
+            throw ex;
+        } catch (ExecutionException ex) {
+            // Failures are handled in resolveFileDependenciesAsync
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private CompletableFuture<List<Path>> resolveFileDependenciesAsync( Path gccPath, String[] includeArguments, Path file ) {
+        final StringBuilder output = new StringBuilder();
+        try {
+            return new NativeProcessRunner( (String m) -> {
+                if ( m.startsWith("--") ) {
+                    LOGGER.info(m);
+                } else {
+                    output.append(m).append('\n');
+                }
+            }).runNativeProcessAsync( null, Arrays.asList( createDependencyResolutionCommand( gccPath, includeArguments, file ) ), DEPENDENCY_RESOLUTION_TIMEOUT_SECONDS, TimeUnit.SECONDS )
+            .handle( (errorCode, ex) -> {
+                if ( ex != null ) {
+                    LOGGER.log( Level.SEVERE, "Failed to resolve additional dependencies for " + file.toAbsolutePath().toString(), ex );
+                    return Collections.emptyList();
+                } else if ( errorCode == NO_ERROR_CODE ) {
+                    List <Path> dependencyFilePaths = DependencyGraph.parseMakeRule( output.toString(), null );
+                    dependencyGraph.put( file, dependencyFilePaths );
+                    return dependencyFilePaths;
+                } else {
+                    // TODO: The output probably contains error information. Find a way to handle it.
+                    LOGGER.log( Level.INFO, "Failed to resolve dependencies for {0}:\n{1}", new Object[] {file, output} );
+                    return Collections.emptyList();
+                }
+            });
+        } catch ( IOException ex ) {
+            LOGGER.log( Level.SEVERE, "Failed to resolve additional dependencies for " + file.toAbsolutePath().toString(), ex );
+            return CompletableFuture.completedFuture( Collections.emptyList() );
+        }
+    }
+    
+    private String[] createIncludeArguments( List<Path> coreDirPaths, List<Path> libraryPaths ) {
+        List <String> includeArguments = new ArrayList<>();
         for ( Path coreDirPath : coreDirPaths ) {
-            commandElements.add( "-I" );
-            commandElements.add( coreDirPath.toString() );
+            includeArguments.add( "-I" );
+            includeArguments.add( coreDirPath.toString() );
         }
+        LibraryCatalog libraryCatalog = LibraryCatalog.getInstance();
         for ( Path libPath : libraryPaths ) {
-            commandElements.add( "-I" );
-            commandElements.add( libPath.toAbsolutePath().toString() );
-            Path utilityPath = libPath.resolve("utility");
-            if ( Files.exists(utilityPath) ) {
-                commandElements.add( "-I" );
-                commandElements.add( utilityPath.toAbsolutePath().toString() );
+            for ( Path includePath : libraryCatalog.getIncludeDirectoryPaths(libPath) ) {
+                includeArguments.add( "-I" );
+                includeArguments.add( includePath.toAbsolutePath().toString() );
             }
-        }        
+        }
+        return includeArguments.toArray( new String[includeArguments.size()] );
+    }
+    
+    private String[] createDependencyResolutionCommand( Path gccPath, String[] includeArguments, Path file ) {
+        List <String> commandElements = new ArrayList<>();
+        commandElements.add( gccPath.toString() );
+        commandElements.addAll( Arrays.asList(includeArguments) );
         commandElements.add( "-MM" );
         commandElements.add( file.toAbsolutePath().toString() );
         return commandElements.toArray( new String[commandElements.size()] );
@@ -7,7 +7,10 @@ import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -151,4 +154,30 @@ public final class Board extends ArduinoDataSource {
         return !options.isEmpty();
     }
     
+    /**
+     * Enumerates all valid combinations of the board menu options (every option value that has a label).
+     * A board without options has exactly one (empty) combination.
+     */
+    public List<Map<BoardOption,String>> getOptionCombinations() {
+        List <Map<BoardOption,String>> ret = new ArrayList<>();
+        ret.add( new LinkedHashMap<>() );
+        List <BoardOption> sortedOptions = new ArrayList<>( options.keySet() );
+        sortedOptions.sort( Comparator.comparing( BoardOption::getId ) );
+        for ( BoardOption option : sortedOptions ) {
+            List <String> values = new ArrayList<>( getAvailableOptionValuesAndLabels(option).keySet() );
+            if ( values.isEmpty() ) continue;
+            Collections.sort( values );
+            List <Map<BoardOption,String>> expanded = new ArrayList<>();
+            for ( Map<BoardOption,String> combination : ret ) {
+                for ( String value : values ) {
+                    Map <BoardOption,String> c = new LinkedHashMap<>( combination );
+                    c.put( option, value );
+                    expanded.add( c );
+                }
+            }
+            ret = expanded;
+        }
+        return ret;
+    }
+    
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import static com.microchip.mplab.nbide.embedded.arduino.utils.JsonStrings.quote;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The cost of every compile and archive step of a profiled build (see {@link AbstractMakeAssistant#setProfile}):
+ * the wall time and, where the platform reports them, the CPU time and the peak resident set size of the step,
+ * and the size of its output file. The times are taken from the {@link NativeProcessInvocation}s of the steps,
+ * so the time a step waited for a slot of the {@link NativeProcessExecutor} is not included, or from the log
+ * of a Ninja build.
+ */
+public final class BuildProfile implements NativeProcessInvocationListener {
+
+
+    public static final String CSV_EXTENSION = ".profile.csv";
+    public static final String JSON_EXTENSION = ".profile.json";
+    
+    private static final int SUMMARY_STEP_COUNT = 15;
+
+    public enum StepKind { PRECOMPILE, COMPILE, ARCHIVE }
+
+    private final Map <List<String>,Step> stepsByCommand = new HashMap<>();
+    private final List <Step> steps = new ArrayList<>();
+    private final long startTimeMillis = System.currentTimeMillis();
+    private String toolchainIdentity;
+
+
+    public synchronized String getToolchainIdentity() {
+        return toolchainIdentity;
+    }
+
+    public synchronized void setToolchainIdentity(String toolchainIdentity) {
+        this.toolchainIdentity = toolchainIdentity;
+    }
+
+    /**
+     * Returns the recorded steps, the most expensive first.
+     */
+    public synchronized List<Step> getSteps() {
+        List <Step> ret = new ArrayList<>(steps);
+        ret.sort( Comparator.comparingLong( Step::getWallMillis ).reversed() );
+        return ret;
+    }
+
+    /**
+     * Adds a step that is about to be run with the given command, or one that has run already if the command
+     * is null.
+     */
+    public synchronized Step addStep( String target, StepKind kind, List<String> command ) {
+        Step step = new Step( target, kind );
+        steps.add( step );
+        if ( command != null ) {
+            stepsByCommand.put( new ArrayList<>(command), step );
+        }
+        return step;
+    }
+
+    @Override
+    public synchronized void invocationFinished( NativeProcessInvocation invocation ) {
+        Step step = stepsByCommand.remove( invocation.getCommand() );
+        if ( step != null ) {
+            step.wallMillis = invocation.getDurationNanos() / 1_000_000;
+            step.cpuMillis = invocation.getCpuTimeNanos() >= 0 ? invocation.getCpuTimeNanos() / 1_000_000 : -1;
+        }
+    }
+
+    /**
+     * Returns the most expensive steps and the totals, one line per entry.
+     */
+    public List<String> formatSummary() {
+        List <Step> sorted = getSteps();
+        List <String> ret = new ArrayList<>();
+        // TODO: Create message templates in Bundle
+        ret.add( String.format( Locale.ROOT, "Build profile: %d steps, %d ms in total", sorted.size(), sorted.stream().mapToLong( Step::getWallMillis ).sum() ) );
+        ret.add( String.format( Locale.ROOT, "%10s %10s %14s %12s  %-8s %s", "wall [ms]", "cpu [ms]", "peak RSS [kB]", "size [B]", "step", "target" ) );
+        for ( int i=0; i<sorted.size() && i<SUMMARY_STEP_COUNT; i++ ) {
+            Step s = sorted.get(i);
+            ret.add( String.format( Locale.ROOT, "%10d %10s %14s %12s  %-8s %s", s.wallMillis, orNone( s.cpuMillis ), orNone( s.peakRssKilobytes ), orNone( s.outputSize ), s.kind.name().toLowerCase(Locale.ROOT), s.target ) );
+        }
+        if ( sorted.size() > SUMMARY_STEP_COUNT ) {
+            ret.add( "... and " + (sorted.size() - SUMMARY_STEP_COUNT) + " more steps" );
+        }
+        return ret;
+    }
+
+    /**
+     * Writes the CSV and the JSON report into the given directory, e.g. "Makefile-Core.profile.csv" and
+     * "Makefile-Core.profile.json" for the base name "Makefile-Core".
+     *
+     * @return the paths of the written reports
+     */
+    public List<Path> write( Path directoryPath, String baseName ) throws IOException {
+        Path csvPath = directoryPath.resolve( baseName + CSV_EXTENSION );
+        Path jsonPath = directoryPath.resolve( baseName + JSON_EXTENSION );
+        Files.write( csvPath, toCsv().getBytes( StandardCharsets.UTF_8 ) );
+        Files.write( jsonPath, toJson().getBytes( StandardCharsets.UTF_8 ) );
+        List <Path> ret = new ArrayList<>();
+        ret.add( csvPath );
+        ret.add( jsonPath );
+        return ret;
+    }
+
+    public String toCsv() {
+        StringBuilder csv = new StringBuilder("target,kind,wall_ms,cpu_ms,peak_rss_kb,output_bytes\n");
+        for ( Step s : getSteps() ) {
+            csv.append( s.target.contains(",") || s.target.contains("\"") ? "\"" + s.target.replace("\"", "\"\"") + "\"" : s.target )
+                .append(',').append( s.kind.name().toLowerCase(Locale.ROOT) )
+                .append(',').append( s.wallMillis )
+                .append(',').append( s.cpuMillis >= 0 ? s.cpuMillis : "" )
+                .append(',').append( s.peakRssKilobytes >= 0 ? s.peakRssKilobytes : "" )
+                .append(',').append( s.outputSize >= 0 ? s.outputSize : "" )
+                .append('\n');
+        }
+        return csv.toString();
+    }
+
+    public String toJson() {
+        List <Step> sorted = getSteps();
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"startTimeMillis\": ").append( startTimeMillis ).append(",\n");
+        json.append("  \"toolchain\": ").append( quote( getToolchainIdentity() ) ).append(",\n");
+        json.append("  \"totalWallMillis\": ").append( sorted.stream().mapToLong( Step::getWallMillis ).sum() ).append(",\n");
+        json.append("  \"steps\": [");
+        for ( int i=0; i<sorted.size(); i++ ) {
+            Step s = sorted.get(i);
+            json.append( i > 0 ? ",\n" : "\n" );
+            json.append("    { \"target\": ").append( quote( s.target ) )
+                .append(", \"kind\": ").append( quote( s.kind.name().toLowerCase(Locale.ROOT) ) )
+                .append(", \"wallMillis\": ").append( s.wallMillis )
+                .append(", \"cpuMillis\": ").append( orNull( s.cpuMillis ) )
+                .append(", \"peakRssKilobytes\": ").append( orNull( s.peakRssKilobytes ) )
+                .append(", \"outputBytes\": ").append( orNull( s.outputSize ) )
+                .append(" }");
+        }
+        json.append( sorted.isEmpty() ? "]\n" : "\n  ]\n" );
+        json.append("}\n");
+        return json.toString();
+    }
+    
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private static String orNone( long value ) {
+        return value >= 0 ? Long.toString(value) : "-";
+    }
+
+    private static String orNull( long value ) {
+        return value >= 0 ? Long.toString(value) : "null";
+    }
+
+    /**
+     * A compile or archive step. Unknown values are -1.
+     */
+    public static final class Step {
+
+        private final String target;
+        private final StepKind kind;
+        private volatile long wallMillis;
+        private volatile long cpuMillis = -1;
+        private volatile long peakRssKilobytes = -1;
+        private volatile long outputSize = -1;
+
+        Step(String target, StepKind kind) {
+            this.target = target;
+            this.kind = kind;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public StepKind getKind() {
+            return kind;
+        }
+
+        public long getWallMillis() {
+            return wallMillis;
+        }
+
+        void setWallMillis(long wallMillis) {
+            this.wallMillis = wallMillis;
+        }
+
+        public long getCpuMillis() {
+            return cpuMillis;
+        }
+
+        public long getPeakRssKilobytes() {
+            return peakRssKilobytes;
+        }
+
+        void setPeakRssKilobytes(long peakRssKilobytes) {
+            this.peakRssKilobytes = peakRssKilobytes;
+        }
+
+        public long getOutputSize() {
+            return outputSize;
+        }
+
+        void setOutputSize(long outputSize) {
+            this.outputSize = outputSize;
+        }
+
+    }
+
+}
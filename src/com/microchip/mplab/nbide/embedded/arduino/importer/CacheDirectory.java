@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import com.microchip.mplab.nbide.embedded.arduino.utils.DeletingFileVisitor;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A directory of cache entries shared by concurrent imports (also from different IDE instances). Every entry
+ * is a subdirectory named after its key. Entries are written to a temporary directory and renamed into place,
+ * so nobody sees a partial entry, and are removed least recently used first once the directory grows beyond
+ * its maximum size.
+ * <p>
+ * Finding that out takes the size of every entry, so the directory keeps its size as of the last eviction
+ * in a stamp file. Every instance adds the size of what it has published to it and only looks at the entries
+ * once that may exceed the maximum size. Entries published by other instances since are only counted by
+ * them, so the directory may outgrow its maximum size until they evict as well.
+ */
+final class CacheDirectory {
+
+
+    private static final Logger LOGGER = Logger.getLogger(CacheDirectory.class.getName());
+
+    private static final String TEMP_PREFIX = ".tmp-";
+    private static final String SIZE_STAMP_FILENAME = ".size";
+    // An eviction makes room for more than one entry, so that the next publish does not evict again:
+    private static final double EVICTION_TARGET_RATIO = 0.9;
+
+    private final Path rootPath;
+    private long maxSize;
+    // Since the last eviction of this instance:
+    private long publishedSize;
+
+
+    CacheDirectory( Path rootPath, long maxSize ) {
+        this.rootPath = rootPath;
+        this.maxSize = maxSize;
+    }
+
+    Path getRootPath() {
+        return rootPath;
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the entry with the given key and marks it as used.
+     */
+    Optional<Path> find( String key ) throws IOException {
+        Path entryPath = rootPath.resolve( key );
+        try {
+            Files.setLastModifiedTime( entryPath, FileTime.fromMillis( System.currentTimeMillis() ) );
+            return Optional.of( entryPath );
+        } catch (NoSuchFileException ex) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Adds an entry made of copies of the given files (by their names in the entry).
+     * An existing entry with the same key is kept, unless replacing.
+     *
+     * @return false if the entry has not been added
+     */
+    boolean publish( String key, Map<String,Path> files, boolean replacing ) throws IOException {
+        Files.createDirectories( rootPath );
+        Path entryPath = rootPath.resolve( key );
+        if ( !replacing && Files.exists(entryPath) ) return false;
+
+        Path tempEntryPath = createTempPath();
+        Files.createDirectory( tempEntryPath );
+        long entrySize = 0;
+        try {
+            for ( Map.Entry<String,Path> e : files.entrySet() ) {
+                Path filePath = tempEntryPath.resolve( e.getKey() );
+                Files.copy( e.getValue(), filePath );
+                entrySize += Files.size( filePath );
+            }
+            if ( replacing ) {
+                remove( entryPath );
+            }
+        } catch (IOException ex) {
+            delete( tempEntryPath );
+            throw ex;
+        }
+        try {
+            Files.move( tempEntryPath, entryPath, StandardCopyOption.ATOMIC_MOVE );
+        } catch (FileSystemException ex) {
+            // Published by another import in the meantime, which shows as a FileAlreadyExistsException or (for a
+            // rename onto a directory on Linux) a DirectoryNotEmptyException, or a file system without atomic renames:
+            LOGGER.log( Level.FINE, "Cache entry not added: {0}", ex.toString() );
+            delete( tempEntryPath );
+            return false;
+        }
+        synchronized (this) {
+            publishedSize += entrySize;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the least recently used entries if the directory may have grown beyond its maximum size, until
+     * it fits into 90 % of it.
+     *
+     * @return the number of removed entries
+     */
+    int evict() throws IOException {
+        if ( !Files.isDirectory(rootPath) ) return 0;
+        long stampedSize = readSizeStamp();
+        synchronized (this) {
+            if ( stampedSize >= 0 && stampedSize + publishedSize <= maxSize ) return 0;
+            publishedSize = 0;
+        }
+        List <Path> entryPaths;
+        try (Stream<Path> s = Files.list(rootPath)) {
+            entryPaths = s.filter( p -> Files.isDirectory(p) && !p.getFileName().toString().startsWith(TEMP_PREFIX) ).collect( Collectors.toList() );
+        }
+        List <Entry> entries = new ArrayList<>();
+        long totalSize = 0;
+        for ( Path p : entryPaths ) {
+            try {
+                Entry entry = new Entry( p, Files.getLastModifiedTime(p).toMillis(), size(p) );
+                entries.add( entry );
+                totalSize += entry.size;
+            } catch (NoSuchFileException ex) {
+                // Removed by another import
+            }
+        }
+        entries.sort( Comparator.comparingLong( e -> e.lastUsedMillis ) );
+        long targetSize = totalSize > maxSize ? (long) (maxSize * EVICTION_TARGET_RATIO) : maxSize;
+        int removedCount = 0;
+        for ( int i=0; i<entries.size() && totalSize > targetSize; i++ ) {
+            Entry entry = entries.get(i);
+            if ( remove( entry.path ) ) {
+                totalSize -= entry.size;
+                removedCount++;
+                LOGGER.log( Level.FINE, "Evicted cache entry: {0}", entry.path );
+            }
+        }
+        writeSizeStamp( totalSize );
+        return removedCount;
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private Path createTempPath() {
+        return rootPath.resolve( TEMP_PREFIX + UUID.randomUUID() );
+    }
+
+    // Renamed first so that nobody uses a partially deleted entry:
+    private boolean remove( Path entryPath ) throws IOException {
+        Path tempEntryPath = createTempPath();
+        try {
+            Files.move( entryPath, tempEntryPath, StandardCopyOption.ATOMIC_MOVE );
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+        delete( tempEntryPath );
+        return true;
+    }
+
+    // -1 if there is no (readable) stamp yet
+    private long readSizeStamp() {
+        try {
+            return Long.parseLong( new String( Files.readAllBytes( rootPath.resolve(SIZE_STAMP_FILENAME) ), StandardCharsets.UTF_8 ).trim() );
+        } catch (IOException | NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private void writeSizeStamp( long size ) {
+        Path tempPath = createTempPath();
+        try {
+            Files.write( tempPath, Long.toString(size).getBytes(StandardCharsets.UTF_8) );
+            Files.move( tempPath, rootPath.resolve(SIZE_STAMP_FILENAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        } catch (IOException ex) {
+            LOGGER.log( Level.FINE, "Failed to write the size of " + rootPath, ex );
+            try {
+                Files.deleteIfExists( tempPath );
+            } catch (IOException ex1) {
+                LOGGER.log( Level.FINE, "Failed to delete " + tempPath, ex1 );
+            }
+        }
+    }
+
+    private static long size( Path entryPath ) throws IOException {
+        long size = 0;
+        try (Stream<Path> s = Files.list(entryPath)) {
+            for ( Path p : (Iterable<Path>) s::iterator ) {
+                size += Files.size(p);
+            }
+        }
+        return size;
+    }
+
+    private static void delete( Path path ) {
+        try {
+            Files.walkFileTree( path, new DeletingFileVisitor() );
+        } catch (IOException ex) {
+            LOGGER.log( Level.WARNING, "Failed to delete " + path, ex );
+        }
+    }
+
+    private static final class Entry {
+
+        private final Path path;
+        private final long lastUsedMillis;
+        private final long size;
+
+        Entry(Path path, long lastUsedMillis, long size) {
+            this.path = path;
+            this.lastUsedMillis = lastUsedMillis;
+            this.size = size;
+        }
+
+    }
+
+}
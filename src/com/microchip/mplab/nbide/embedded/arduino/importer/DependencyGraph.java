@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-file include dependencies, as reported by the compiler ("-MM" output or ".d" files).
+ * All paths are stored absolute and normalized.
+ */
+public final class DependencyGraph {
+
+
+    private static final Logger LOGGER = Logger.getLogger(DependencyGraph.class.getName());
+
+    private final Map <Path,List<Path>> dependencies = new ConcurrentHashMap<>();
+
+
+    public void put( Path file, Collection<Path> fileDependencies ) {
+        Path key = normalize(file);
+        List <Path> values = new ArrayList<>();
+        fileDependencies.forEach( d -> {
+            Path p = normalize(d);
+            if ( !p.equals(key) && !values.contains(p) ) {
+                values.add(p);
+            }
+        });
+        dependencies.put( key, Collections.unmodifiableList(values) );
+    }
+
+    public boolean contains( Path file ) {
+        return dependencies.containsKey( normalize(file) );
+    }
+
+    /**
+     * Returns the direct dependencies of the given file or an empty list if the file is unknown.
+     */
+    public List<Path> getDependencies( Path file ) {
+        return dependencies.getOrDefault( normalize(file), Collections.emptyList() );
+    }
+
+    public Set<Path> getFiles() {
+        return Collections.unmodifiableSet( dependencies.keySet() );
+    }
+
+    /**
+     * Returns the given files together with everything they (transitively) depend on.
+     */
+    public Set<Path> findReachableFiles( Collection<Path> rootFiles ) {
+        Set <Path> ret = new LinkedHashSet<>();
+        Deque <Path> queue = new ArrayDeque<>();
+        rootFiles.forEach( f -> queue.add( normalize(f) ) );
+        while ( !queue.isEmpty() ) {
+            Path file = queue.poll();
+            if ( ret.add(file) ) {
+                queue.addAll( getDependencies(file) );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Parses the first rule of a Makefile-style dependency listing (as produced by "gcc -M*")
+     * and returns its prerequisites. Line continuations and escaped spaces are handled.
+     * Relative prerequisites are resolved against the given directory (if not null).
+     * <p>
+     * The listing must be for a single source file: "gcc -MM" then writes one rule, and the only other rules
+     * it can write are the empty ones of "-MP", which have no prerequisites. The rules of other source files
+     * in the same listing are ignored.
+     */
+    public static List<Path> parseMakeRule( String text, Path baseDirPath ) {
+        String rule = findFirstRule(text);
+        int separatorIndex = findTargetSeparator(rule);
+        if ( separatorIndex < 0 ) return Collections.emptyList();
+
+        List <Path> ret = new ArrayList<>();
+        for ( String token : tokenize( rule.substring(separatorIndex + 1) ) ) {
+            try {
+                Path p = Paths.get(token);
+                ret.add( baseDirPath != null && !p.isAbsolute() ? baseDirPath.resolve(p) : p );
+            } catch (InvalidPathException ex) {
+                LOGGER.log( Level.FINE, "Ignoring invalid dependency: {0}", token );
+            }
+        }
+        return ret;
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private static Path normalize( Path path ) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    private static String findFirstRule( String text ) {
+        String joined = text.replace("\r", "").replace("\\\n", " ");
+        for ( String line : joined.split("\n") ) {
+            if ( !line.trim().isEmpty() && !line.startsWith("#") ) {
+                return line;
+            }
+        }
+        return "";
+    }
+
+    private static int findTargetSeparator( String rule ) {
+        for ( int i=0; i<rule.length(); i++ ) {
+            if ( rule.charAt(i) != ':' ) continue;
+            // Skip Windows drive letters (e.g. "C:\build\main.o: ...")
+            boolean driveLetter = i > 0 && Character.isLetter( rule.charAt(i-1) )
+                && (i == 1 || Character.isWhitespace( rule.charAt(i-2) ))
+                && i+1 < rule.length() && (rule.charAt(i+1) == '\\' || rule.charAt(i+1) == '/');
+            if ( !driveLetter ) return i;
+        }
+        return -1;
+    }
+
+    private static List<String> tokenize( String prerequisites ) {
+        List <String> ret = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for ( int i=0; i<prerequisites.length(); i++ ) {
+            char c = prerequisites.charAt(i);
+            char next = i+1 < prerequisites.length() ? prerequisites.charAt(i+1) : 0;
+            if ( c == '\\' && (next == ' ' || next == '#') ) {
+                token.append(next);
+                i++;
+            } else if ( c == '$' && next == '$' ) {
+                token.append('$');
+                i++;
+            } else if ( Character.isWhitespace(c) ) {
+                if ( token.length() > 0 ) {
+                    ret.add( token.toString() );
+                    token.setLength(0);
+                }
+            } else {
+                token.append(c);
+            }
+        }
+        if ( token.length() > 0 ) {
+            ret.add( token.toString() );
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import com.microchip.mplab.nbide.embedded.arduino.utils.FileCopyStrategy;
+import java.io.IOException;
+import java.nio.file.CopyOption;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openide.util.Utilities;
+
+/**
+ * How the importer puts the core, variant and library files in place in copy mode (see
+ * {@link ProjectImporter#setFileCopyMode}). Every mode falls back to copying the bytes of a file it cannot
+ * link or clone. Files the importer rewrites (dereferenced variant headers, preprocessed sketches) are
+ * unlinked before they are written.
+ */
+public enum FileCopyMode {
+
+    /** Copies the bytes */
+    COPY,
+    /**
+     * Creates hard links. The imported files then share their content with the Arduino installation,
+     * so editing one of them in the project also edits the installation.
+     */
+    HARDLINK,
+    /** Creates copy-on-write clones ("cp --reflink" on Linux, "cp -c" on macOS), where the file system supports them */
+    REFLINK,
+    /** Clones where the file system supports it, otherwise creates hard links (with the caveat of {@link #HARDLINK}) */
+    AUTO;
+
+    private static final Logger LOGGER = Logger.getLogger(FileCopyMode.class.getName());
+
+    /**
+     * @return a new strategy for one import; the strategies of {@link #REFLINK} and {@link #AUTO} remember
+     * which pairs of file stores support clones
+     */
+    public FileCopyStrategy createFileCopyStrategy() {
+        switch (this) {
+            case HARDLINK:
+                return FileCopyStrategy.HARDLINK;
+            case REFLINK:
+                return new ReflinkStrategy( FileCopyStrategy.COPY );
+            case AUTO:
+                return new ReflinkStrategy( FileCopyStrategy.HARDLINK );
+            default:
+                return FileCopyStrategy.COPY;
+        }
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE CLASSES *****************
+    //*************************************************
+    // A clone waits for a "cp" of its target directory. The clones queued for a directory while its process waits
+    // for a slot of the NativeProcessExecutor budget are all made by that process, instead of one process per file:
+    private static final class ReflinkStrategy implements FileCopyStrategy {
+
+        private static final int MAX_COMMAND_LENGTH = 8000;
+
+        private final FileCopyStrategy fallback;
+        // By source and target file store. Probing spawns a process that fails, so it is done once per pair:
+        private final Map <List<FileStore>,Boolean> reflinkSupport = new ConcurrentHashMap<>();
+        // Files are copied on the threads of a pool, for the work of the thread that created the strategy:
+        private final Object invocationTag = NativeProcessRunner.getInvocationTag();
+        // By target directory, guarded by the map itself:
+        private final Map <Path,List<Clone>> pendingClones = new HashMap<>();
+
+        ReflinkStrategy( FileCopyStrategy fallback ) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public void copyFile( Path source, Path target, CopyOption... options ) throws IOException {
+            if ( getCloneCommand().isEmpty() ) {
+                fallback.copyFile( source, target, options );
+                return;
+            }
+            List <FileStore> fileStores = Arrays.asList( Files.getFileStore(source), Files.getFileStore( target.toAbsolutePath().getParent() ) );
+            if ( Boolean.FALSE.equals( reflinkSupport.get(fileStores) ) ) {
+                fallback.copyFile( source, target, options );
+                return;
+            }
+            if ( Files.exists(target) ) {
+                if ( !Arrays.asList(options).contains(REPLACE_EXISTING) ) throw new FileAlreadyExistsException( target.toString() );
+                // cp would write into the existing file, and so into every file it is linked to:
+                FileCopyStrategy.breakLink(target);
+            }
+            // Several files can only be cloned into a directory under their own names:
+            if ( source.getFileName().equals( target.getFileName() ) ) {
+                if ( cloneInBatch( source, target ) ) {
+                    reflinkSupport.putIfAbsent( fileStores, Boolean.TRUE );
+                    return;
+                }
+                // Cloned one by one to find out which file failed:
+                Files.deleteIfExists(target);
+            }
+            List <String> command = getCloneCommand();
+            command.add( source.toString() );
+            command.add( target.toString() );
+            int result;
+            try {
+                result = NativeProcessRunner.waitFor( runWithInvocationTag( () -> new NativeProcessRunner( LOGGER::fine ).runNativeProcessAsync( null, command, 0, TimeUnit.MILLISECONDS ) ) );
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while cloning " + source, ex);
+            }
+            if ( result == NativeProcessRunner.NO_ERROR_CODE ) {
+                reflinkSupport.putIfAbsent( fileStores, Boolean.TRUE );
+            } else {
+                if ( reflinkSupport.putIfAbsent( fileStores, Boolean.FALSE ) == null ) {
+                    LOGGER.log( Level.INFO, "Unable to clone files from {0} to {1}, falling back", new Object[] { fileStores.get(0), fileStores.get(1) } );
+                }
+                Files.deleteIfExists(target);
+                fallback.copyFile( source, target, options );
+            }
+        }
+
+        // Queues the clone and starts a process for its directory unless one is waiting for its slot already:
+        private boolean cloneInBatch( Path source, Path target ) throws IOException {
+            Path targetDirPath = target.toAbsolutePath().getParent();
+            Clone clone = new Clone( source, target );
+            boolean starting;
+            synchronized (pendingClones) {
+                List <Clone> clones = pendingClones.get( targetDirPath );
+                starting = clones == null;
+                if ( starting ) {
+                    clones = new ArrayList<>();
+                    pendingClones.put( targetDirPath, clones );
+                }
+                clones.add( clone );
+            }
+            if ( starting ) {
+                startBatch( targetDirPath );
+            }
+            try {
+                return NativeProcessRunner.waitFor( clone.cloned );
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while cloning " + source, ex);
+            }
+        }
+
+        private void startBatch( Path targetDirPath ) {
+            Batch batch = new Batch();
+            CompletableFuture<Integer> process;
+            try {
+                process = runWithInvocationTag( () -> new NativeProcessRunner( LOGGER::fine ).runDeferredNativeProcessAsync( null, () -> {
+                    takeBatch( targetDirPath, batch );
+                    List <String> command = getCloneCommand();
+                    batch.clones.forEach( c -> command.add( c.source.toString() ) );
+                    command.add( targetDirPath.toString() );
+                    return command;
+                }));
+            } catch (IOException ex) {
+                process = new CompletableFuture<>();
+                process.completeExceptionally(ex);
+            }
+            process.whenComplete( (result, ex) -> {
+                if ( !batch.taken ) {
+                    // The process did not start, so the queued files are cloned one by one by their threads:
+                    LOGGER.log( Level.FINE, "Unable to start cloning into " + targetDirPath, ex );
+                    synchronized (pendingClones) {
+                        batch.clones.addAll( pendingClones.remove( targetDirPath ) );
+                    }
+                }
+                boolean cloned = ex == null && result == NativeProcessRunner.NO_ERROR_CODE;
+                batch.clones.forEach( c -> c.cloned.complete(cloned) );
+                if ( batch.remainderQueued ) {
+                    startBatch( targetDirPath );
+                }
+            });
+        }
+
+        // As many clones as fit into a command line, each name once. The others stay queued for the next process,
+        // which nobody else starts while they are queued:
+        private void takeBatch( Path targetDirPath, Batch batch ) {
+            synchronized (pendingClones) {
+                List <Clone> clones = pendingClones.remove( targetDirPath );
+                List <Clone> remainder = new ArrayList<>();
+                Set <Path> names = new HashSet<>();
+                int commandLength = targetDirPath.toString().length();
+                for ( Clone c : clones ) {
+                    int argumentLength = c.source.toString().length() + 1;
+                    boolean fitting = batch.clones.isEmpty() || commandLength + argumentLength < MAX_COMMAND_LENGTH;
+                    if ( fitting && names.add( c.target.getFileName() ) ) {
+                        batch.clones.add(c);
+                        commandLength += argumentLength;
+                    } else {
+                        remainder.add(c);
+                    }
+                }
+                if ( !remainder.isEmpty() ) {
+                    pendingClones.put( targetDirPath, remainder );
+                }
+                batch.taken = true;
+                batch.remainderQueued = !remainder.isEmpty();
+            }
+        }
+
+        private <T> T runWithInvocationTag( ProcessStarter<T> starter ) throws IOException {
+            Object threadInvocationTag = NativeProcessRunner.getInvocationTag();
+            NativeProcessRunner.setInvocationTag( invocationTag );
+            try {
+                return starter.start();
+            } finally {
+                NativeProcessRunner.setInvocationTag( threadInvocationTag );
+            }
+        }
+
+        private static List<String> getCloneCommand() {
+            List <String> command = new ArrayList<>();
+            if ( Utilities.isMac() ) {
+                command.addAll( Arrays.asList( "cp", "-c", "-p" ) );
+            } else if ( Utilities.isUnix() ) {
+                command.addAll( Arrays.asList( "cp", "--reflink=always", "--preserve=mode,timestamps" ) );
+            }
+            return command;
+        }
+
+    }
+
+    @FunctionalInterface
+    private interface ProcessStarter<T> {
+        T start() throws IOException;
+    }
+
+    private static final class Batch {
+
+        private final List <Clone> clones = new ArrayList<>();
+        private volatile boolean taken;
+        private volatile boolean remainderQueued;
+
+    }
+
+    private static final class Clone {
+
+        private final Path source;
+        private final Path target;
+        private final CompletableFuture<Boolean> cloned = new CompletableFuture<>();
+
+        Clone( Path source, Path target ) {
+            this.source = source;
+            this.target = target;
+        }
+
+    }
+
+}
@@ -17,10 +17,13 @@ package com.microchip.mplab.nbide.embedded.arduino.importer;
 
 import com.microchip.mplab.nbide.embedded.api.LanguageTool;
 import com.microchip.mplab.nbide.embedded.api.LanguageToolchain;
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Optional;
 import org.openide.util.Utilities;
 
 public class GCCToolFinder {
@@ -82,4 +85,24 @@ public class GCCToolFinder {
             }
         }
     }
+    
+    /**
+     * Returns the ninja binary on the path, if there is one.
+     */
+    public Optional<Path> findNinja() {
+        String path = System.getenv("PATH");
+        if ( path == null ) return Optional.empty();
+        String executableName = Utilities.isWindows() ? "ninja.exe" : "ninja";
+        for ( String dir : path.split( File.pathSeparator ) ) {
+            try {
+                Path ninjaPath = Paths.get( dir.replace("\"", ""), executableName );
+                if ( !dir.isEmpty() && Files.isExecutable(ninjaPath) ) {
+                    return Optional.of( ninjaPath );
+                }
+            } catch (InvalidPathException ex) {
+                // Not a directory
+            }
+        }
+        return Optional.empty();
+    }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import com.microchip.mplab.nbide.embedded.arduino.utils.FileCopyStrategy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * The files a copy-mode import has put into the project, with the size, the modification time and (when comparing
+ * contents) the hash of the source each of them was copied from, plus a digest of the inputs of the core library.
+ * {@link ProjectImporter#setSyncing Syncing} an existing project compares the new import against the manifest of
+ * the previous one: unchanged files are not copied again, files that are no longer imported are removed and the
+ * core library is only rebuilt if its inputs changed.
+ */
+final class ImportManifest {
+
+
+    private static final Logger LOGGER = Logger.getLogger(ImportManifest.class.getName());
+
+    static final String FILENAME = "imported-files.txt";
+
+    private static final String HEADER = "# chipKIT importer manifest v1";
+    private static final String CORE_INPUTS_PREFIX = "core-inputs=";
+    private static final String NO_HASH = "-";
+
+    private final Path projectDirPath;
+    private final boolean comparingContents;
+    // By target path relative to the project directory:
+    private final Map <String,Entry> previousEntries = new ConcurrentHashMap<>();
+    private final Map <String,Entry> entries = new ConcurrentHashMap<>();
+    private final Set <String> writtenTargets = ConcurrentHashMap.newKeySet();
+    private String previousCoreInputsDigest;
+    private String coreInputsDigest;
+    private final AtomicInteger copiedCount = new AtomicInteger();
+    private final AtomicInteger unchangedCount = new AtomicInteger();
+    private int removedCount;
+
+
+    ImportManifest( Path projectDirPath, boolean comparingContents ) {
+        this.projectDirPath = projectDirPath;
+        this.comparingContents = comparingContents;
+    }
+
+    /**
+     * Reads the manifest of the previous import. A missing manifest is treated as an empty one.
+     */
+    void load( Path manifestPath ) throws IOException {
+        List <String> lines;
+        try {
+            lines = Files.readAllLines( manifestPath, StandardCharsets.UTF_8 );
+        } catch (NoSuchFileException ex) {
+            return;
+        }
+        if ( lines.isEmpty() || !lines.get(0).equals(HEADER) ) {
+            LOGGER.log( Level.WARNING, "Ignoring a manifest in an unknown format: {0}", manifestPath );
+            return;
+        }
+        for ( String line : lines.subList( 1, lines.size() ) ) {
+            if ( line.startsWith(CORE_INPUTS_PREFIX) ) {
+                previousCoreInputsDigest = line.substring( CORE_INPUTS_PREFIX.length() );
+            } else if ( !line.isEmpty() ) {
+                String[] tokens = line.split("\t", 5);
+                if ( tokens.length == 5 ) {
+                    previousEntries.put( tokens[0], new Entry( tokens[4], Long.parseLong(tokens[1]), Long.parseLong(tokens[2]), tokens[3] ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a strategy that skips the files whose source is unchanged since the previous import (and whose
+     * target still exists) and copies the others with the given strategy.
+     */
+    FileCopyStrategy createFileCopyStrategy( FileCopyStrategy copyStrategy ) {
+        return (source, target, options) -> {
+            String key = toKey(target);
+            Entry previousEntry = previousEntries.get(key);
+            long size = Files.size(source);
+            long modified = Files.getLastModifiedTime(source).toMillis();
+            String hash = NO_HASH;
+            boolean unchanged = false;
+            if ( previousEntry != null && previousEntry.sourcePath.equals( source.toString() ) && previousEntry.size == size && Files.exists(target) ) {
+                if ( previousEntry.modified == modified ) {
+                    unchanged = true;
+                    hash = previousEntry.hash;
+                } else if ( comparingContents && !NO_HASH.equals(previousEntry.hash) ) {
+                    hash = hash(source);
+                    unchanged = hash.equals( previousEntry.hash );
+                }
+            }
+            if ( unchanged ) {
+                unchangedCount.incrementAndGet();
+            } else {
+                copyStrategy.copyFile( source, target, options );
+                copiedCount.incrementAndGet();
+                if ( comparingContents && NO_HASH.equals(hash) ) {
+                    hash = hash(source);
+                }
+            }
+            entries.put( key, new Entry( source.toString(), size, modified, hash ) );
+        };
+    }
+
+    /**
+     * Adds files the import has written without going through a {@link #createFileCopyStrategy strategy} of
+     * this manifest (e.g. rewritten headers), so that they are not considered stale.
+     */
+    void addWrittenTargets( Collection<Path> targetPaths ) {
+        targetPaths.forEach( p -> writtenTargets.add( toKey(p) ) );
+    }
+
+    /**
+     * Sets the inputs of the core library by its fingerprint (see {@link LibCoreBuilder#computeFingerprint(BoardConfiguration, GCCToolFinder)}),
+     * which covers the board, the toolchain, the resolved recipes and flags and the core and variant files.
+     */
+    void setCoreInputs( String coreLibraryFingerprint ) {
+        coreInputsDigest = coreLibraryFingerprint;
+    }
+
+    /**
+     * @return true if the previous import built the core library from different inputs (or if there is no previous import)
+     */
+    boolean haveCoreInputsChanged() {
+        return coreInputsDigest == null || !coreInputsDigest.equals( previousCoreInputsDigest );
+    }
+
+    /**
+     * Removes the files of the previous import in the given directory this import has not put into the project,
+     * then the directories that became empty.
+     */
+    void removeStaleFiles( Path dirPath ) throws IOException {
+        List <String> staleKeys = new ArrayList<>( previousEntries.keySet() );
+        staleKeys.removeAll( entries.keySet() );
+        staleKeys.removeAll( writtenTargets );
+        for ( String key : staleKeys ) {
+            Path stalePath = projectDirPath.resolve(key).normalize();
+            if ( !stalePath.startsWith( dirPath.toAbsolutePath().normalize() ) ) continue;
+            if ( Files.deleteIfExists(stalePath) ) {
+                removedCount++;
+                LOGGER.log( Level.FINE, "Removed stale file: {0}", stalePath );
+            }
+            for ( Path dir = stalePath.getParent(); dir != null && dir.startsWith(projectDirPath) && !dir.equals(projectDirPath); dir = dir.getParent() ) {
+                if ( !isEmptyDirectory(dir) ) break;
+                Files.delete(dir);
+            }
+        }
+    }
+
+    void write( Path manifestPath ) throws IOException {
+        List <String> lines = new ArrayList<>();
+        lines.add( HEADER );
+        if ( coreInputsDigest != null ) {
+            lines.add( CORE_INPUTS_PREFIX + coreInputsDigest );
+        }
+        new TreeMap<>(entries).forEach( (key, e) -> lines.add( key + "\t" + e.size + "\t" + e.modified + "\t" + e.hash + "\t" + e.sourcePath ) );
+        Files.createDirectories( manifestPath.getParent() );
+        Files.write( manifestPath, lines, StandardCharsets.UTF_8 );
+    }
+
+    int getCopiedCount() {
+        return copiedCount.get();
+    }
+
+    int getUnchangedCount() {
+        return unchangedCount.get();
+    }
+
+    int getRemovedCount() {
+        return removedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ImportManifest{" + "copied=" + getCopiedCount() + ", unchanged=" + getUnchangedCount() + ", removed=" + getRemovedCount() + '}';
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private String toKey( Path targetPath ) {
+        return projectDirPath.relativize( targetPath.toAbsolutePath().normalize() ).toString().replace('\\', '/');
+    }
+
+    private static boolean isEmptyDirectory( Path dirPath ) throws IOException {
+        if ( !Files.isDirectory(dirPath) ) return false;
+        try (Stream<Path> s = Files.list(dirPath)) {
+            return !s.findAny().isPresent();
+        }
+    }
+
+    private static String hash( Path filePath ) throws IOException {
+        MessageDigest digest = createDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(filePath)) {
+            for ( int n; (n = in.read(buffer)) > 0; ) {
+                digest.update( buffer, 0, n );
+            }
+        }
+        return toHex( digest.digest() );
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex( byte[] bytes ) {
+        StringBuilder ret = new StringBuilder();
+        for ( byte b : bytes ) {
+            ret.append( String.format( "%02x", b ) );
+        }
+        return ret.toString();
+    }
+
+    private static final class Entry {
+
+        private final String sourcePath;
+        private final long size;
+        private final long modified;
+        private final String hash;
+
+        Entry(String sourcePath, long size, long modified, String hash) {
+            this.sourcePath = sourcePath;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+
+    }
+
+}
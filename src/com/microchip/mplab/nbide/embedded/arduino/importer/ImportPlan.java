@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import static com.microchip.mplab.nbide.embedded.arduino.utils.JsonStrings.quote;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The result of {@link ProjectImporter#plan()}: what an import would read, copy and compile,
+ * without anything having been written to the target directory.
+ */
+public final class ImportPlan {
+
+
+    private static final Logger LOGGER = Logger.getLogger(ImportPlan.class.getName());
+
+    public enum FileCategory {
+        SKETCH,
+        CORE,
+        VARIANT,
+        LIBRARY,
+        LINKER_SCRIPT,
+        BOOTLOADER
+    }
+
+    public enum CompileCommandCategory {
+        /** Sketch sources, compiled by the MPLAB X project */
+        SKETCH,
+        /** Library sources, compiled by the MPLAB X project */
+        LIBRARY,
+        /** Core and variant sources, compiled into the core library during the import */
+        CORE
+    }
+
+    private final String boardId;
+    private final String fqbn;
+    private final boolean copyingFiles;
+    private final Path targetProjectDirectoryPath;
+    private final Path targetCoreDirectoryPath;
+    private final Map <FileCategory,List<Path>> files = new EnumMap<>(FileCategory.class);
+    private final Map <Path,Long> fileSizes = new LinkedHashMap<>();
+    private final Map <Path,Boolean> libraries = new LinkedHashMap<>();
+    private final Map <CompileCommandCategory,Integer> compileCommandCounts = new EnumMap<>(CompileCommandCategory.class);
+
+
+    ImportPlan( BoardConfiguration boardConfiguration, boolean copyingFiles, Path targetProjectDirectoryPath, Path targetCoreDirectoryPath ) {
+        this.boardId = boardConfiguration.getBoardId();
+        this.fqbn = boardConfiguration.getFqbn();
+        this.copyingFiles = copyingFiles;
+        this.targetProjectDirectoryPath = targetProjectDirectoryPath;
+        this.targetCoreDirectoryPath = targetCoreDirectoryPath;
+        for ( FileCategory c : FileCategory.values() ) {
+            files.put( c, new ArrayList<>() );
+        }
+        for ( CompileCommandCategory c : CompileCommandCategory.values() ) {
+            compileCommandCounts.put( c, 0 );
+        }
+    }
+
+    public String getBoardId() {
+        return boardId;
+    }
+
+    public String getFqbn() {
+        return fqbn;
+    }
+
+    public boolean isCopyingFiles() {
+        return copyingFiles;
+    }
+
+    public Path getTargetProjectDirectoryPath() {
+        return targetProjectDirectoryPath;
+    }
+
+    public Path getTargetCoreDirectoryPath() {
+        return targetCoreDirectoryPath;
+    }
+
+    public List<Path> getFiles( FileCategory category ) {
+        return Collections.unmodifiableList( files.get(category) );
+    }
+
+    public int getFileCount( FileCategory category ) {
+        return files.get(category).size();
+    }
+
+    public long getByteCount( FileCategory category ) {
+        return files.get(category).stream().mapToLong( fileSizes::get ).sum();
+    }
+
+    public int getTotalFileCount() {
+        return fileSizes.size();
+    }
+
+    public long getTotalByteCount() {
+        return fileSizes.values().stream().mapToLong( Long::longValue ).sum();
+    }
+
+    /**
+     * Returns the library directories with a flag telling whether the library is used directly by the sketch.
+     */
+    public Map<Path,Boolean> getLibraries() {
+        return Collections.unmodifiableMap( libraries );
+    }
+
+    public int getCompileCommandCount( CompileCommandCategory category ) {
+        return compileCommandCounts.get(category);
+    }
+
+    public int getTotalCompileCommandCount() {
+        return compileCommandCounts.values().stream().mapToInt( Integer::intValue ).sum();
+    }
+
+    /**
+     * Returns a JSON manifest of the plan. Paths are absolute; the file lists are grouped by category.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"boardId\": ").append( quote(boardId) ).append(",\n");
+        json.append("  \"fqbn\": ").append( quote(fqbn) ).append(",\n");
+        json.append("  \"copyingFiles\": ").append( copyingFiles ).append(",\n");
+        json.append("  \"targetProjectDirectory\": ").append( quote(targetProjectDirectoryPath) ).append(",\n");
+        json.append("  \"targetCoreDirectory\": ").append( quote(targetCoreDirectoryPath) ).append(",\n");
+        json.append("  \"totalFileCount\": ").append( getTotalFileCount() ).append(",\n");
+        json.append("  \"totalByteCount\": ").append( getTotalByteCount() ).append(",\n");
+
+        json.append("  \"compileCommands\": {");
+        for ( CompileCommandCategory c : CompileCommandCategory.values() ) {
+            json.append(" ").append( quote( c.name().toLowerCase() ) ).append(": ").append( compileCommandCounts.get(c) ).append(",");
+        }
+        json.append(" \"total\": ").append( getTotalCompileCommandCount() ).append(" },\n");
+
+        json.append("  \"libraries\": [");
+        List <Path> libraryPaths = new ArrayList<>( libraries.keySet() );
+        for ( int i=0; i<libraryPaths.size(); i++ ) {
+            Path p = libraryPaths.get(i);
+            json.append( i > 0 ? ",\n" : "\n" );
+            json.append("    { \"name\": ").append( quote( p.getFileName() ) )
+                .append(", \"path\": ").append( quote(p) )
+                .append(", \"main\": ").append( libraries.get(p) ).append(" }");
+        }
+        json.append( libraryPaths.isEmpty() ? "],\n" : "\n  ],\n" );
+
+        json.append("  \"files\": {");
+        FileCategory[] categories = FileCategory.values();
+        for ( int i=0; i<categories.length; i++ ) {
+            FileCategory c = categories[i];
+            List <Path> categoryFiles = files.get(c);
+            json.append( i > 0 ? ",\n" : "\n" );
+            json.append("    ").append( quote( c.name().toLowerCase() ) ).append(": {\n");
+            json.append("      \"fileCount\": ").append( categoryFiles.size() ).append(",\n");
+            json.append("      \"byteCount\": ").append( getByteCount(c) ).append(",\n");
+            json.append("      \"paths\": [");
+            for ( int j=0; j<categoryFiles.size(); j++ ) {
+                json.append( j > 0 ? ",\n" : "\n" ).append("        ").append( quote( categoryFiles.get(j) ) );
+            }
+            json.append( categoryFiles.isEmpty() ? "]\n" : "\n      ]\n" );
+            json.append("    }");
+        }
+        json.append("\n  }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    public void writeManifest( Path manifestPath ) throws IOException {
+        Files.write( manifestPath, toJson().getBytes(StandardCharsets.UTF_8) );
+    }
+
+    @Override
+    public String toString() {
+        return "ImportPlan{" + "boardId=" + boardId + ", files=" + getTotalFileCount() + ", bytes=" + getTotalByteCount() + ", compileCommands=" + getTotalCompileCommandCount() + '}';
+    }
+
+
+    //*************************************************
+    //*********** PACKAGE PRIVATE METHODS *************
+    //*************************************************
+    void addFile( FileCategory category, Path file ) {
+        Path p = file.toAbsolutePath().normalize();
+        if ( fileSizes.containsKey(p) ) return;
+        long size = 0;
+        try {
+            size = Files.size(p);
+        } catch (IOException ex) {
+            LOGGER.log( Level.WARNING, "Failed to read the size of file: {0}", p );
+        }
+        fileSizes.put( p, size );
+        files.get(category).add(p);
+    }
+
+    void addFiles( FileCategory category, Collection<Path> files ) {
+        files.forEach( f -> addFile(category, f) );
+    }
+
+    void addLibrary( Path libraryPath, boolean main ) {
+        libraries.put( libraryPath.toAbsolutePath().normalize(), main );
+    }
+
+    void addCompileCommands( CompileCommandCategory category, int count ) {
+        compileCommandCounts.merge( category, count, Integer::sum );
+    }
+
+}
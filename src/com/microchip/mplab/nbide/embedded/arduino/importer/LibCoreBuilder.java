@@ -16,19 +16,49 @@
 package com.microchip.mplab.nbide.embedded.arduino.importer;
 
 import com.microchip.mplab.nbide.embedded.arduino.utils.CopyingFileVisitor;
+import com.microchip.mplab.nbide.embedded.arduino.utils.DeletingFileVisitor;
+import com.microchip.mplab.nbide.embedded.arduino.utils.FileTreeWalker;
+import com.microchip.mplab.nbide.embedded.arduino.utils.ParallelFileCopier;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 public class LibCoreBuilder extends AbstractMakeAssistant {
 
     
+    private static final Logger LOGGER = Logger.getLogger(LibCoreBuilder.class.getName());
+    
     public static final String LIB_CORE_NAME = "Core";
     public static final String LIB_CORE_FILENAME = "lib" + LIB_CORE_NAME + ".a";
+    public static final String BUILD_DIRECTORY_SUFFIX = "-build";
+    public static final long DEFAULT_UNITY_SIZE_LIMIT = 64 * 1024;
+    public static final String PRECOMPILED_HEADER_NAME = "Arduino.h";
+    
+    // Stays below the 8191 character limit of the Windows command processor:
+    private static final int MAX_COMMAND_LENGTH = 8000;
+    private static final String OBJECT_FILES_PLACEHOLDER = "@OBJECT_FILES@";
+    private static final PathMatcher FINGERPRINT_FILE_MATCHER = FileSystems.getDefault().getPathMatcher("glob:*.{c,C,cpp,CPP,s,S,h,H,hh,hpp,inc}");
+    // Changes whenever the way the library is built changes, so that older cache entries are not used:
+    private static final String FINGERPRINT_VERSION = "1";
+    private static final List<String> UNITY_EXTENSIONS = Arrays.asList( "c", "cpp" );
     
     private final Path sourceDir;
     private Path buildDirPath;
@@ -36,6 +66,12 @@ public class LibCoreBuilder extends AbstractMakeAssistant {
     private GCCToolFinder toolFinder;
     private Path libCorePath;
     private String archiveCommand;
+    private boolean temporaryBuildDir;
+    private LibCoreCache cache;
+    private boolean unityBuild;
+    private List <String> unityExclusions = new ArrayList<>();
+    private long unitySizeLimit = DEFAULT_UNITY_SIZE_LIMIT;
+    private boolean precompilingHeader;
     
 
     public LibCoreBuilder() {
@@ -48,7 +84,19 @@ public class LibCoreBuilder extends AbstractMakeAssistant {
 
     @Override
     public String getMakefileName() {
-        return "Makefile-" + LIB_CORE_NAME;
+        return "Makefile-" + getLibraryName();
+    }
+
+    @Override
+    public String getNinjaFileName() {
+        return "build-" + getLibraryName() + ".ninja";
+    }
+
+    /**
+     * Returns the name of the library, which is linked with "-l" followed by the name.
+     */
+    public String getLibraryName() {
+        return LIB_CORE_NAME;
     }
 
     public String getArchiveCommand() {
@@ -59,6 +107,68 @@ public class LibCoreBuilder extends AbstractMakeAssistant {
         return libCorePath;
     }
 
+    public LibCoreCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sets the cache the core library is taken from instead of being built, and added to after a build.
+     * Only used by {@link #buildAsync(BoardConfiguration, GCCToolFinder, Consumer)}.
+     */
+    public void setCache(LibCoreCache cache) {
+        this.cache = cache;
+    }
+
+    public boolean isUnityBuild() {
+        return unityBuild;
+    }
+
+    /**
+     * Compiles the C and the C++ sources of the library in a few translation units each instead of one per
+     * source, so that the headers they share are parsed once per unit (see {@link #groupSourceFiles(List)}).
+     * Off by default.
+     */
+    public void setUnityBuild(boolean unityBuild) {
+        this.unityBuild = unityBuild;
+    }
+
+    public List<String> getUnityExclusions() {
+        return unityExclusions;
+    }
+
+    /**
+     * Sets the glob patterns of the sources that are compiled on their own in a unity build, e.g. because
+     * they define static functions or variables with the same names as other sources.
+     */
+    public void setUnityExclusions(List<String> unityExclusions) {
+        this.unityExclusions = new ArrayList<>(unityExclusions);
+    }
+
+    public long getUnitySizeLimit() {
+        return unitySizeLimit;
+    }
+
+    /**
+     * Sets the size of the sources (in bytes) a translation unit of a unity build grows up to. Larger units
+     * mean fewer compiler invocations but fewer units to compile in parallel.
+     */
+    public void setUnitySizeLimit(long unitySizeLimit) {
+        this.unitySizeLimit = unitySizeLimit;
+    }
+
+    public boolean isPrecompilingHeader() {
+        return precompilingHeader;
+    }
+
+    /**
+     * Precompiles the {@link #PRECOMPILED_HEADER_NAME core header} of the source directory next to it (e.g.
+     * "imported-core/Arduino.h.gch") and includes it in every C++ source of the library. The Makefile makes it 
+     * again whenever one of the headers it includes, the flags or the toolchain change. Off by default.
+     */
+    public void setPrecompilingHeader(boolean precompilingHeader) {
+        this.precompilingHeader = precompilingHeader;
+    }
+
     @Override
     public Path getBuildDirPath() {
         return buildDirPath;
@@ -71,7 +181,7 @@ public class LibCoreBuilder extends AbstractMakeAssistant {
     
     @Override
     public String getTargetName() {
-        return LIB_CORE_FILENAME;
+        return "lib" + getLibraryName() + ".a";
     }
 
     @Override
@@ -79,48 +189,266 @@ public class LibCoreBuilder extends AbstractMakeAssistant {
         return toolFinder;
     }
 
+    /**
+     * Returns the directory that keeps the objects, dependency files and Makefile of the core library
+     * in the given core directory, so that it can be rebuilt incrementally.
+     */
+    public static Path getBuildDirectoryPath( Path coreDirPath ) {
+        return coreDirPath.resolveSibling( coreDirPath.getFileName() + BUILD_DIRECTORY_SUFFIX );
+    }
+    
     public void build( Path makefilePath, GCCToolFinder toolFinder ) throws IOException, InterruptedException {
         build(makefilePath, toolFinder, null);
     }
     
-    // TODO: Cleanup temp directories even after failed import
+    /**
+     * Rebuilds the core library of the core directory containing the Makefile. Only the sources that changed 
+     * since the last build are compiled again. Projects imported before the build directory was introduced are
+     * rebuilt from scratch in a temporary copy of the core directory. The Ninja file next to the Makefile is
+     * used instead if there is a ninja binary on the path.
+     */
     public void build( Path makefilePath, GCCToolFinder toolFinder, Consumer<String> messageConsumer ) throws IOException, InterruptedException {
-        this.buildDirPath = Files.createTempDirectory("build");
+        Path coreDirPath = makefilePath.getParent();
         this.toolFinder = toolFinder;
-        this.libCorePath = buildDirPath.resolve(LIB_CORE_FILENAME);
-        updateMakefile( makefilePath, toolFinder );
+        this.buildDirPath = resolveBuildDirPath( coreDirPath );
+        Path buildMakefilePath = buildDirPath.resolve( getMakefileName() );
+        this.temporaryBuildDir = false;
+        if ( !Files.exists(buildMakefilePath) ) {
+            if ( Files.readAllLines(makefilePath).stream().anyMatch( l -> l.startsWith( TOOLS_DIR_VARIABLE + "=" ) ) ) {
+                // The build directory was removed (or not checked in). The Makefile of the core directory works there as well:
+                Files.createDirectories(buildDirPath);
+                Files.copy(makefilePath, buildMakefilePath);
+                Path ninjaFilePath = coreDirPath.resolve( getNinjaFileName() );
+                if ( Files.exists(ninjaFilePath) ) {
+                    Files.copy( ninjaFilePath, buildDirPath.resolve( getNinjaFileName() ) );
+                }
+            } else {
+                this.temporaryBuildDir = true;
+                buildDirPath = Files.createTempDirectory("build");
+                ParallelFileCopier fileCopier = new ParallelFileCopier();
+                fileCopier.addTree( coreDirPath, new CopyingFileVisitor(coreDirPath, buildDirPath) );
+                fileCopier.copy();
+                // The old Makefiles have no prerequisites, so make would consider the library up to date:
+                Files.deleteIfExists( buildDirPath.resolve( getTargetName() ) );
+            }
+        }
+        this.libCorePath = buildDirPath.resolve( getTargetName() );
+        updateMakefile( buildDirPath.resolve( getMakefileName() ) );
+        if ( Files.exists( getNinjaFilePath() ) ) {
+            updateMakefile( getNinjaFilePath() );
+        }
         invokeMakeTool(messageConsumer, messageConsumer);
     }
     
     public void build( BoardConfiguration boardConfiguration, GCCToolFinder toolFinder, Consumer<String> messageConsumer ) throws IOException, InterruptedException {
-        this.buildDirPath = Files.createTempDirectory("build");
+        NativeProcessRunner.waitFor( buildAsync( boardConfiguration, toolFinder, messageConsumer ) );
+    }
+    
+    /**
+     * Generates the Makefile and starts the build. With a source directory the objects are built in its 
+     * build directory (see {@link #getBuildDirectoryPath(Path)}), which is cleared first, otherwise in a 
+     * temporary directory.
+     */
+    public CompletableFuture<Void> buildAsync( BoardConfiguration boardConfiguration, GCCToolFinder toolFinder, Consumer<String> messageConsumer ) throws IOException {
         this.boardConfiguration = boardConfiguration;
         this.toolFinder = toolFinder;
-        this.libCorePath = buildDirPath.resolve(LIB_CORE_FILENAME);
-        if ( sourceDir != null ) {
-            copySourceFiles();
+        this.temporaryBuildDir = sourceDir == null;
+        if ( temporaryBuildDir ) {
+            this.buildDirPath = Files.createTempDirectory("build");
+        } else {
+            this.buildDirPath = resolveBuildDirPath( sourceDir );
+            if ( Files.exists(buildDirPath) ) {
+                Files.walkFileTree(buildDirPath, new DeletingFileVisitor());
+            }
+            Files.createDirectories(buildDirPath);
         }
-        build( messageConsumer, messageConsumer );
+        this.libCorePath = buildDirPath.resolve( getTargetName() );
+        return buildAsync( messageConsumer, messageConsumer );
     }
     
-    @Override
-    protected void generateMakefile() throws IOException {
-        super.generateMakefile();
+    /**
+     * Generates the Makefile without writing it or touching the build directory and returns the 
+     * {@link #computeFingerprint() fingerprint} of the library a build would make, so that an earlier build
+     * can be kept when nothing it depends on has changed. Needs a source directory.
+     */
+    public String computeFingerprint( BoardConfiguration boardConfiguration, GCCToolFinder toolFinder ) throws IOException {
+        if ( sourceDir == null ) throw new IllegalStateException("Source Directory cannot be null!");
+        this.boardConfiguration = boardConfiguration;
+        this.toolFinder = toolFinder;
+        this.buildDirPath = resolveBuildDirPath( sourceDir );
+        checkPrerequisites();
+        generateMakefile();
+        return computeFingerprint();
+    }
+    
+    /**
+     * Returns a hash of everything the core library depends on: the platform and its version, the toolchain,
+     * the generated Makefile (with the fully resolved compile recipes and flags) and the contents of the core 
+     * and variant sources. Available once the Makefile has been generated.
+     */
+    public String computeFingerprint() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        update( digest, FINGERPRINT_VERSION );
+        
+        Platform platform = boardConfiguration.getPlatform();
+        update( digest, platform.getRootPath().toString() );
+        update( digest, platform.getValue("version").orElse("") );
+        
+        update( digest, getToolchainIdentity() );
+        
+        getMakefileContents().forEach( line -> update( digest, line ) );
+        
+        for ( Path sourceDirPath : getFingerprintSourceDirPaths() ) {
+            List <Path> filePaths;
+            try (Stream<Path> s = FileTreeWalker.walk(sourceDirPath)) {
+                filePaths = s.filter( p -> FINGERPRINT_FILE_MATCHER.matches( p.getFileName() ) && Files.isRegularFile(p) ).sorted().collect( Collectors.toList() );
+            }
+            for ( Path filePath : filePaths ) {
+                update( digest, sourceDirPath.relativize(filePath).toString() );
+                digest.update( Files.readAllBytes(filePath) );
+            }
+        }
         
+        StringBuilder ret = new StringBuilder();
+        for ( byte b : digest.digest() ) {
+            ret.append( String.format( "%02x", b ) );
+        }
+        return ret.toString();
+    }
+    
+    /**
+     * Removes the build directory if it is a temporary one.
+     */
+    @Override
+    public void cleanup() {
+        if ( temporaryBuildDir ) {
+            super.cleanup();
+        }
+    }
+    
+    /**
+     * Archives all object files with as few invocations of recipe.ar.pattern as the command line length
+     * allows, instead of one invocation (and one rewrite of the archive) per object file.
+     */
+    @Override
+    protected List<String> generateTargetCommands() {
         // Generate archiver command:
-        Map <String,String> runtimeData = new HashMap<>();
-        runtimeData.put( getToolsPathKey(), getToolchainPath().toString() );
-        runtimeData.put( "archive_file_path", LIB_CORE_FILENAME );
-        getObjectFilenames().forEach( n -> {
-            runtimeData.put("object_file", n);
-            getMakefileContents().add( "\t" + boardConfiguration.getValue("recipe.ar.pattern", runtimeData).get() );
-        });
+        List <String> commands = new ArrayList<>();
+        String pattern = expandArchivePattern( OBJECT_FILES_PLACEHOLDER );
+        if ( !pattern.contains( OBJECT_FILES_PLACEHOLDER ) ) {
+            commands.add( "\t" + pattern );
+            return commands;
+        }
+        
+        // The pattern usually quotes the object file, e.g. "{object_file}", so each file is quoted the same way:
+        String quotedPlaceholder = "\"" + OBJECT_FILES_PLACEHOLDER + "\"";
+        boolean quoted = pattern.contains( quotedPlaceholder );
+        String prefix = pattern.substring( 0, pattern.indexOf( quoted ? quotedPlaceholder : OBJECT_FILES_PLACEHOLDER ) );
+        String suffix = pattern.substring( prefix.length() + (quoted ? quotedPlaceholder : OBJECT_FILES_PLACEHOLDER).length() );
+        
+        StringBuilder objectFiles = new StringBuilder();
+        for ( String n : getObjectFilenames() ) {
+            String objectFile = quoted ? "\"" + n + "\"" : escapeMakePath(n);
+            if ( objectFiles.length() > 0 && prefix.length() + objectFiles.length() + objectFile.length() + suffix.length() >= MAX_COMMAND_LENGTH ) {
+                commands.add( "\t" + prefix + objectFiles + suffix );
+                objectFiles.setLength(0);
+            }
+            objectFiles.append( objectFiles.length() > 0 ? " " : "" ).append( objectFile );
+        }
+        if ( objectFiles.length() > 0 ) {
+            commands.add( "\t" + prefix + objectFiles + suffix );
+        }
+        return commands;
     } 
 
+    /**
+     * Archives all object files with one invocation of recipe.ar.pattern, which reads the names of the object
+     * files from the response file (e.g. "@libCore.a.rsp").
+     */
+    @Override
+    protected String generateNinjaTargetCommand( String responseFileName ) {
+        return expandArchivePattern( "@" + responseFileName );
+    }
+    
+    /**
+     * Groups the C and the C++ sources that are not excluded into units of up to {@link #getUnitySizeLimit()}
+     * bytes in a unity build. Assembler sources and excluded sources are units of their own.
+     */
+    @Override
+    protected List<List<Path>> groupSourceFiles( List<Path> sourceFilePaths ) throws IOException {
+        if ( !unityBuild ) {
+            return super.groupSourceFiles(sourceFilePaths);
+        }
+        List <PathMatcher> exclusionMatchers = unityExclusions.stream().map( e -> FileSystems.getDefault().getPathMatcher("glob:" + e) ).collect( Collectors.toList() );
+        List <List<Path>> ret = new ArrayList<>();
+        Map <String,List<Path>> openUnits = new HashMap<>();
+        Map <String,Long> openUnitSizes = new HashMap<>();
+        // Sorted, so that the units (and the cached objects) do not depend on the order the sources are listed in:
+        for ( Path sourceFilePath : sourceFilePaths.stream().sorted().collect( Collectors.toList() ) ) {
+            String sourceFileName = sourceFilePath.getFileName().toString();
+            String extension = sourceFileName.substring( sourceFileName.lastIndexOf('.') + 1 );
+            if ( !UNITY_EXTENSIONS.contains(extension) || exclusionMatchers.stream().anyMatch( m -> m.matches( sourceFilePath.getFileName() ) ) ) {
+                ret.add( Collections.singletonList(sourceFilePath) );
+                continue;
+            }
+            long size = Files.size(sourceFilePath);
+            List <Path> unit = openUnits.get(extension);
+            if ( unit == null || openUnitSizes.get(extension) + size > unitySizeLimit ) {
+                unit = new ArrayList<>();
+                ret.add(unit);
+                openUnits.put( extension, unit );
+                openUnitSizes.put( extension, 0L );
+            }
+            unit.add(sourceFilePath);
+            openUnitSizes.put( extension, openUnitSizes.get(extension) + size );
+        }
+        return ret;
+    }
+    
+    @Override
+    protected Path getPrecompiledHeaderPath() {
+        if ( !precompilingHeader || sourceDir == null ) return null;
+        Path headerPath = sourceDir.resolve( PRECOMPILED_HEADER_NAME );
+        return Files.exists(headerPath) ? headerPath : null;
+    }
+    
+    /**
+     * Returns the directories whose sources (and headers) go into {@link #computeFingerprint()}.
+     */
+    protected List<Path> getFingerprintSourceDirPaths() {
+        List <Path> ret = new ArrayList<>();
+        if ( sourceDir != null ) {
+            ret.add( sourceDir );
+        } else {
+            ret.add( boardConfiguration.getCoreDirectoryPath() );
+            if ( boardConfiguration.getVariantPath() != null ) {
+                ret.add( boardConfiguration.getVariantPath() );
+            }
+        }
+        return ret;
+    }
+    
+    /**
+     * Returns the build directory used for the library of the given core directory.
+     */
+    protected Path resolveBuildDirPath( Path coreDirPath ) {
+        return getBuildDirectoryPath( coreDirPath );
+    }
+    
+    protected static String toMakePath( Path path ) {
+        return path.toString().replace('\\', '/');
+    }
+    
+    // The copies in the source directory are built. Relative paths keep the build directory usable when the project is moved:
     @Override
     protected String mapSourceFilePath(Path sourceFilePath) {
         if ( sourceDir != null ) {
-            return sourceFilePath.getFileName().toString();
+            return toMakePath( buildDirPath.relativize( sourceDir.resolve( sourceFilePath.getFileName() ) ) );
         } else {
             return super.mapSourceFilePath(sourceFilePath);
         }
@@ -129,35 +457,63 @@ public class LibCoreBuilder extends AbstractMakeAssistant {
     @Override
     protected String buildIncludesSection( BoardConfiguration boardConfiguration ) {
         if ( sourceDir != null ) {
-//            StringBuilder ret = new StringBuilder();            
-//            ret.append(" \"-I").append(sourceDir.toString()).append("\"");
-//            return ret.toString();
-            return "-I.";
+            return " \"-I" + toMakePath( buildDirPath.relativize( sourceDir ) ) + "\"";
         } else {
             return super.buildIncludesSection(boardConfiguration);
         }
     }
     
 
+    // A cache hit replaces the build with a copy of the cached library (the precompiled header is not cached):
+    @Override
+    protected CompletableFuture<Void> invokeMakeToolAsync( Consumer<String> messageConsumer, Consumer<String> errorConsumer ) throws IOException {
+        if ( cache == null || boardConfiguration == null ) {
+            return super.invokeMakeToolAsync( messageConsumer, errorConsumer );
+        }
+        String fingerprint = computeFingerprint();
+        if ( cache.restore( fingerprint, libCorePath ) ) {
+            return invokeMakeToolForPrecompiledHeaderAsync( messageConsumer, errorConsumer );
+        }
+        return super.invokeMakeToolAsync( messageConsumer, errorConsumer ).thenRun( () -> {
+            try {
+                cache.publish( fingerprint, libCorePath, getMakefilePath() );
+            } catch (IOException ex) {
+                LOGGER.log( Level.WARNING, "Failed to add the core library to the cache", ex );
+            }
+        });
+    }
+    
+
     //*************************************************
     //*************** PRIVATE METHODS *****************
     //*************************************************
-    private void copySourceFiles() throws IOException {
-        Files.walkFileTree(sourceDir, new CopyingFileVisitor(sourceDir, buildDirPath));
+    private static void update( MessageDigest digest, String value ) {
+        digest.update( value.getBytes( StandardCharsets.UTF_8 ) );
+        digest.update( (byte) 0 );
     }
     
-    private static void updateMakefile(Path makefilePath, GCCToolFinder toolFinder) throws IOException {
-        throw new UnsupportedOperationException("Updating a Makefile is not supported yet!");
-//        Path compilerPath = toolFinder.findTool( LanguageTool.CCCompiler );
-//        List<String> makefileLines = Files.readAllLines(makefilePath);
-//        for ( int i=0; i<makefileLines.size(); i++ ) {
-//            String line = makefileLines.get(i).trim();
-//            if ( line.startsWith( TOOLS_DIR ) ) {
-//                makefileLines.set( i, TOOLS_DIR + "=" + compilerPath.getParent().toString() );
-//                break;
-//            }
-//        }
-//        Files.write(makefilePath, makefileLines);
+    private String expandArchivePattern( String objectFile ) {
+        Map <String,String> runtimeData = new HashMap<>();
+        runtimeData.put( getToolsPathKey(), TOOLS_DIR_REFERENCE );
+        runtimeData.put( "archive_file_path", getTargetName() );
+        runtimeData.put( "object_file", objectFile );
+        return boardConfiguration.getValue("recipe.ar.pattern", runtimeData).get();
+    }
+    
+    // Points the Makefile (or the Ninja file) to the current toolchain. Makefiles without the tools variable are left as they are.
+    private void updateMakefile( Path makefilePath ) throws IOException {
+        String toolsDirLine = TOOLS_DIR_VARIABLE + "=" + getToolchainPath();
+        List<String> makefileLines = Files.readAllLines(makefilePath);
+        for ( int i=0; i<makefileLines.size(); i++ ) {
+            String line = makefileLines.get(i);
+            if ( line.startsWith( TOOLS_DIR_VARIABLE + "=" ) ) {
+                if ( !line.equals(toolsDirLine) ) {
+                    makefileLines.set( i, toolsDirLine );
+                    Files.write(makefilePath, makefileLines);
+                }
+                break;
+            }
+        }
     }
 
-}
\ No newline at end of file
+}
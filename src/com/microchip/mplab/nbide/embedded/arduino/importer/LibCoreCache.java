@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of built core libraries (and library archives, see {@link LibraryBuilder}) shared by all projects
+ * of a user. Every entry is a directory named after the fingerprint of the build (see
+ * {@link LibCoreBuilder#computeFingerprint()}) containing the archive and the Makefile it was built with.
+ * <p>
+ * Entries are written to a temporary directory and renamed into place, so concurrent imports (also from
+ * different IDE instances) never see a partial entry. The least recently used entries are removed once the
+ * cache grows beyond its maximum size.
+ */
+public final class LibCoreCache {
+
+
+    private static final Logger LOGGER = Logger.getLogger(LibCoreCache.class.getName());
+
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+    private final CacheDirectory directory;
+    private int hitCount;
+    private int missCount;
+
+
+    public LibCoreCache( Path rootPath ) {
+        this.directory = new CacheDirectory( rootPath, DEFAULT_MAX_SIZE );
+    }
+
+    public Path getRootPath() {
+        return directory.getRootPath();
+    }
+
+    public long getMaxSize() {
+        return directory.getMaxSize();
+    }
+
+    public void setMaxSize(long maxSize) {
+        directory.setMaxSize(maxSize);
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Copies the cached archive with the given fingerprint to the target path.
+     *
+     * @return false if there is no such entry
+     */
+    public boolean restore( String fingerprint, Path libCoreTargetPath ) throws IOException {
+        Optional <Path> entryPath = directory.find( fingerprint );
+        try {
+            if ( entryPath.isPresent() ) {
+                Files.copy( entryPath.get().resolve( LibCoreBuilder.LIB_CORE_FILENAME ), libCoreTargetPath, StandardCopyOption.REPLACE_EXISTING );
+                LOGGER.log( Level.INFO, "Using cached core library: {0}", entryPath.get() );
+                countLookup(true);
+                return true;
+            }
+        } catch (NoSuchFileException ex) {
+            // Evicted in the meantime
+        }
+        countLookup(false);
+        return false;
+    }
+
+    /**
+     * Adds the archive and the Makefile it was built with to the cache unless an entry with the same
+     * fingerprint exists already, then evicts the least recently used entries if needed.
+     */
+    public void publish( String fingerprint, Path libCorePath, Path makefilePath ) throws IOException {
+        Map <String,Path> files = new LinkedHashMap<>();
+        files.put( LibCoreBuilder.LIB_CORE_FILENAME, libCorePath );
+        files.put( makefilePath.getFileName().toString(), makefilePath );
+        if ( directory.publish( fingerprint, files, false ) ) {
+            LOGGER.log( Level.INFO, "Cached core library: {0}", getRootPath().resolve( fingerprint ) );
+            evict();
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits into its maximum size.
+     */
+    public void evict() throws IOException {
+        directory.evict();
+    }
+
+    @Override
+    public String toString() {
+        return "LibCoreCache{" + "rootPath=" + getRootPath() + ", maxSize=" + getMaxSize() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + '}';
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private synchronized void countLookup( boolean hit ) {
+        if ( hit ) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+    }
+
+}
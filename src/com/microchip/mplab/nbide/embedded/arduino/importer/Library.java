@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An immutable snapshot of a single Arduino library directory, as seen by the {@link LibraryCatalog}.
+ */
+public final class Library {
+
+
+    public static final String PROPERTIES_FILENAME = "library.properties";
+    public static final String SOURCE_DIR_NAME = "src";
+    public static final String UTILITY_DIR_NAME = "utility";
+
+    public enum Layout {
+
+        /** Pre 1.5 library: sources in the root directory and, optionally, in the "utility" subdirectory */
+        LEGACY("1.0"),
+        /** 1.5 library: all sources (recursively) in the "src" subdirectory */
+        RECURSIVE("1.5");
+
+        private final String specificationVersion;
+
+        private Layout(String specificationVersion) {
+            this.specificationVersion = specificationVersion;
+        }
+
+        public String getSpecificationVersion() {
+            return specificationVersion;
+        }
+
+    }
+
+    private final Path rootPath;
+    private final String name;
+    private final String version;
+    private final List<String> architectures;
+    private final boolean precompiled;
+    private final boolean dotALinkage;
+    private final Layout layout;
+    private final List<Path> includeDirectoryPaths;
+    private final List<Path> sourceFilePaths;
+    private final long stamp;
+
+
+    Library( Path rootPath, String name, String version, List<String> architectures, boolean precompiled, boolean dotALinkage,
+            Layout layout, List<Path> includeDirectoryPaths, List<Path> sourceFilePaths, long stamp ) {
+        this.rootPath = rootPath;
+        this.name = name;
+        this.version = version;
+        this.architectures = Collections.unmodifiableList( new ArrayList<>(architectures) );
+        this.precompiled = precompiled;
+        this.dotALinkage = dotALinkage;
+        this.layout = layout;
+        this.includeDirectoryPaths = Collections.unmodifiableList( new ArrayList<>(includeDirectoryPaths) );
+        this.sourceFilePaths = Collections.unmodifiableList( new ArrayList<>(sourceFilePaths) );
+        this.stamp = stamp;
+    }
+
+    public Path getRootPath() {
+        return rootPath;
+    }
+
+    public String getDirectoryName() {
+        return rootPath.getFileName().toString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public List<String> getArchitectures() {
+        return architectures;
+    }
+
+    public boolean isArchitectureSupported( String architecture ) {
+        if ( architectures.isEmpty() ) return true;
+        return architectures.stream().anyMatch( a -> a.equals("*") || a.equalsIgnoreCase(architecture) );
+    }
+
+    public boolean isPrecompiled() {
+        return precompiled;
+    }
+
+    public boolean isDotALinkage() {
+        return dotALinkage;
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    public List<Path> getIncludeDirectoryPaths() {
+        return includeDirectoryPaths;
+    }
+
+    public List<Path> getSourceFilePaths() {
+        return sourceFilePaths;
+    }
+
+    long getStamp() {
+        return stamp;
+    }
+
+    @Override
+    public String toString() {
+        return "Library{ name=" + name + ", version=" + version + ", layout=" + layout + ", rootPath=" + rootPath + '}';
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 59 * hash + Objects.hashCode(this.rootPath);
+        hash = 59 * hash + (int) (this.stamp ^ (this.stamp >>> 32));
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final Library other = (Library) obj;
+        if (this.stamp != other.stamp) {
+            return false;
+        }
+        return Objects.equals(this.rootPath, other.rootPath);
+    }
+
+}
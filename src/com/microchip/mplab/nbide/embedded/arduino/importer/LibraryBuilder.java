@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import com.microchip.mplab.nbide.embedded.arduino.utils.DeletingFileVisitor;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds an imported library into its own static archive (e.g. "libServo.a" for "imported-libraries/Servo")
+ * in the core directory, next to the core library, so that the project only compiles the sketch. The objects
+ * are built in a directory of their own (see {@link #getBuildDirectoryPath(Path, String)}) and the Makefile is
+ * kept in the core directory, so the archive can be rebuilt incrementally like the core library.
+ */
+public class LibraryBuilder extends LibCoreBuilder {
+
+    
+    public static final String LIBRARIES_BUILD_DIRECTORY_SUFFIX = "-libraries-build";
+    
+    private static final String MAKEFILE_PREFIX = "Makefile-";
+    
+    private final String libraryName;
+    private final Path libraryDirPath;
+    private final List<Path> includeDirPaths;
+    private final List<Path> fingerprintSourceDirPaths;
+    
+
+    /**
+     * Creates a builder that rebuilds the archive of an earlier import (see {@link #build(Path, GCCToolFinder, java.util.function.Consumer)}).
+     */
+    public LibraryBuilder( String libraryName ) {
+        this.libraryName = libraryName;
+        this.libraryDirPath = null;
+        this.includeDirPaths = new ArrayList<>();
+        this.fingerprintSourceDirPaths = new ArrayList<>();
+    }
+    
+    /**
+     * @param libraryDirPath the imported library
+     * @param coreDirPath the imported core directory the archive is built for
+     * @param includeDirPaths the include directories of all libraries of the project
+     * @param libraryDirPaths all libraries of the project (their headers go into the fingerprint)
+     */
+    public LibraryBuilder( Path libraryDirPath, Path coreDirPath, List<Path> includeDirPaths, List<Path> libraryDirPaths ) {
+        super( coreDirPath.toAbsolutePath().normalize() );
+        this.libraryName = toLibraryName( libraryDirPath );
+        this.libraryDirPath = libraryDirPath.toAbsolutePath().normalize();
+        this.includeDirPaths = includeDirPaths.stream().map( p -> p.toAbsolutePath().normalize() ).collect( Collectors.toList() );
+        this.fingerprintSourceDirPaths = new ArrayList<>();
+        this.fingerprintSourceDirPaths.add( coreDirPath.toAbsolutePath().normalize() );
+        libraryDirPaths.forEach( p -> fingerprintSourceDirPaths.add( p.toAbsolutePath().normalize() ) );
+    }
+
+    @Override
+    public String getLibraryName() {
+        return libraryName;
+    }
+    
+    /**
+     * Returns the name of the archive built from the library directory. Characters the linker command line
+     * does not take are replaced and the name of the core library is not used.
+     */
+    public static String toLibraryName( Path libraryDirPath ) {
+        String name = libraryDirPath.getFileName().toString().trim().replaceAll( "[^A-Za-z0-9_.+-]", "_" );
+        return name.equals( LIB_CORE_NAME ) ? name + "_" : name;
+    }
+    
+    /**
+     * Returns the directory that keeps the objects, dependency files and Makefile of a library built
+     * for the given core directory.
+     */
+    public static Path getBuildDirectoryPath( Path coreDirPath, String libraryName ) {
+        return coreDirPath.resolveSibling( coreDirPath.getFileName() + LIBRARIES_BUILD_DIRECTORY_SUFFIX ).resolve( libraryName );
+    }
+    
+    /**
+     * Returns the names of the libraries built into the core directory, found by their Makefiles.
+     */
+    public static List<String> findLibraryNames( Path coreDirPath ) throws IOException {
+        if ( !Files.isDirectory(coreDirPath) ) return new ArrayList<>();
+        String coreMakefileName = MAKEFILE_PREFIX + LIB_CORE_NAME;
+        try (Stream<Path> s = Files.list(coreDirPath)) {
+            return s.map( p -> p.getFileName().toString() )
+                .filter( n -> n.startsWith(MAKEFILE_PREFIX) && !n.equals(coreMakefileName) )
+                .map( n -> n.substring( MAKEFILE_PREFIX.length() ) )
+                .sorted()
+                .collect( Collectors.toList() );
+        }
+    }
+    
+    /**
+     * Removes the archive, the Makefile and the Ninja file of a library from the core directory, together
+     * with its build directory, e.g. when the project no longer uses the library.
+     */
+    public static void removeLibrary( Path coreDirPath, String libraryName ) throws IOException {
+        LibraryBuilder libraryBuilder = new LibraryBuilder( libraryName );
+        Files.deleteIfExists( coreDirPath.resolve( libraryBuilder.getTargetName() ) );
+        Files.deleteIfExists( coreDirPath.resolve( libraryBuilder.getMakefileName() ) );
+        Files.deleteIfExists( coreDirPath.resolve( libraryBuilder.getNinjaFileName() ) );
+        Path buildDirPath = getBuildDirectoryPath( coreDirPath, libraryName );
+        if ( Files.exists(buildDirPath) ) {
+            Files.walkFileTree( buildDirPath, new DeletingFileVisitor() );
+        }
+    }
+    
+    @Override
+    protected Path resolveBuildDirPath( Path coreDirPath ) {
+        return getBuildDirectoryPath( coreDirPath, libraryName );
+    }
+    
+    @Override
+    protected List<Path> getFingerprintSourceDirPaths() {
+        return fingerprintSourceDirPaths;
+    }
+    
+    @Override
+    protected List<Path> getSourceFilePaths( BoardConfiguration boardConfiguration ) throws IOException {
+        return LibraryCatalog.getInstance().getSourceFilePaths( libraryDirPath ).stream()
+            .map( p -> p.toAbsolutePath().normalize() )
+            .sorted()
+            .collect( Collectors.toList() );
+    }
+    
+    // Libraries may keep sources in subdirectories (e.g. "src/utility/twi.c" becomes "src_utility_twi.c.o"):
+    @Override
+    protected String getObjectFilename( Path sourceFilePath ) {
+        return libraryDirPath.relativize( sourceFilePath ).toString().replace('\\', '_').replace('/', '_') + ".o";
+    }
+    
+    @Override
+    protected String mapSourceFilePath( Path sourceFilePath ) {
+        return toMakePath( getBuildDirPath().relativize( sourceFilePath ) );
+    }
+    
+    // Same include directories as the project: the core and all libraries (which may include each other)
+    @Override
+    protected String buildIncludesSection( BoardConfiguration boardConfiguration ) {
+        StringBuilder ret = new StringBuilder( super.buildIncludesSection(boardConfiguration) );
+        includeDirPaths.forEach( p -> ret.append(" \"-I").append( toMakePath( getBuildDirPath().relativize(p) ) ).append("\"") );
+        return ret.toString();
+    }
+    
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import static com.microchip.mplab.nbide.embedded.arduino.importer.ProjectImporter.LIBRARY_SOURCE_FILE_MATCHER;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import static java.nio.file.FileVisitResult.CONTINUE;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Scans Arduino library directories once and keeps the results (parsed "library.properties", layout,
+ * include directories and source files) so that the importer components do not have to rediscover them.
+ * A cached entry is rescanned only when the modification time of the library directory, its "utility" subdirectory,
+ * its "library.properties" file or any directory under "src" changes.
+ */
+public final class LibraryCatalog {
+
+
+    private static final Logger LOGGER = Logger.getLogger(LibraryCatalog.class.getName());
+    private static LibraryCatalog INSTANCE;
+
+    public static synchronized LibraryCatalog getInstance() {
+        if ( INSTANCE == null ) {
+            INSTANCE = new LibraryCatalog();
+        }
+        return INSTANCE;
+    }
+
+    private final Map <Path,Library> libraries = new ConcurrentHashMap<>();
+
+
+    LibraryCatalog() {}
+
+    /**
+     * Returns all libraries found directly under the given libraries root (e.g. the "libraries" directory of a sketchbook).
+     * Only the libraries that changed since the last call are rescanned.
+     */
+    public List<Library> getLibraries( Path librariesRootPath ) throws IOException {
+        if ( librariesRootPath == null || !Files.isDirectory(librariesRootPath) ) return Collections.emptyList();
+        final Path rootPath = normalize(librariesRootPath);
+
+        List <Path> libraryPaths;
+        try (Stream<Path> s = Files.list(rootPath)) {
+            libraryPaths = s.filter( Files::isDirectory ).sorted().collect( Collectors.toList() );
+        }
+
+        // Forget the libraries that have been removed from the root since the last scan:
+        libraries.keySet().removeIf( p -> rootPath.equals( p.getParent() ) && !libraryPaths.contains(p) );
+
+        List <Library> ret = new ArrayList<>();
+        libraryPaths.forEach( p -> findLibrary(p).ifPresent( ret::add ) );
+        return ret;
+    }
+
+    public Optional<Library> findLibrary( Path libraryPath ) {
+        if ( libraryPath == null ) return Optional.empty();
+        final Path path = normalize(libraryPath);
+        if ( !Files.isDirectory(path) ) {
+            libraries.remove(path);
+            return Optional.empty();
+        }
+        // Scanned outside of the map, so that the disk I/O does not block the other libraries of the same bin:
+        Library cached = libraries.get(path);
+        long stamp = computeStamp(path);
+        if ( cached != null && cached.getStamp() == stamp ) {
+            return Optional.of(cached);
+        }
+        Library scanned;
+        try {
+            scanned = scanLibrary( path, stamp );
+        } catch (IOException ex) {
+            LOGGER.log( Level.WARNING, "Failed to scan library: " + path, ex );
+            if ( cached != null ) {
+                libraries.remove( path, cached );
+            }
+            return Optional.empty();
+        }
+        if ( cached == null ) {
+            libraries.putIfAbsent( path, scanned );
+        } else {
+            libraries.replace( path, cached, scanned );
+        }
+        return Optional.of(scanned);
+    }
+
+    public List<Path> getIncludeDirectoryPaths( Path libraryPath ) {
+        return findLibrary(libraryPath).map( Library::getIncludeDirectoryPaths ).orElse( Collections.emptyList() );
+    }
+
+    public List<Path> getSourceFilePaths( Path libraryPath ) {
+        return findLibrary(libraryPath).map( Library::getSourceFilePaths ).orElse( Collections.emptyList() );
+    }
+
+    /**
+     * Drops all cached libraries located at or under the given path so that they are rescanned on next access.
+     */
+    public void invalidate( Path path ) {
+        if ( path == null ) return;
+        final Path p = normalize(path);
+        libraries.keySet().removeIf( libraryPath -> libraryPath.startsWith(p) );
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private static Path normalize( Path path ) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    private static long computeStamp( Path libraryPath ) {
+        long stamp = lastModified( libraryPath );
+        stamp = Math.max( stamp, lastModified( libraryPath.resolve(Library.PROPERTIES_FILENAME) ) );
+        stamp = Math.max( stamp, lastModified( libraryPath.resolve(Library.UTILITY_DIR_NAME) ) );
+        Path srcPath = libraryPath.resolve(Library.SOURCE_DIR_NAME);
+        if ( Files.isDirectory(srcPath) ) {
+            // A file added to or removed from any directory of a recursive library changes the modification time of that directory:
+            stamp = Math.max( stamp, lastModifiedDirectory( srcPath ) );
+        }
+        return stamp;
+    }
+
+    private static long lastModifiedDirectory( Path dirPath ) {
+        long[] ret = { 0 };
+        try {
+            Files.walkFileTree( dirPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    ret[0] = Math.max( ret[0], attrs.lastModifiedTime().toMillis() );
+                    return CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    return CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            LOGGER.log( Level.FINE, "Unable to walk: " + dirPath, ex );
+        }
+        return ret[0];
+    }
+
+    private static long lastModified( Path path ) {
+        try {
+            return Files.exists(path) ? Files.getLastModifiedTime(path).toMillis() : 0;
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    private static Library scanLibrary( Path libraryPath, long stamp ) throws IOException {
+        LOGGER.log( Level.FINE, "Scanning library: {0}", libraryPath );
+        Map <String,String> properties = parsePropertiesFile( libraryPath.resolve(Library.PROPERTIES_FILENAME) );
+
+        String name = properties.getOrDefault( "name", libraryPath.getFileName().toString() ).trim();
+        String version = properties.getOrDefault( "version", "" ).trim();
+        List <String> architectures = Arrays.asList( properties.getOrDefault( "architectures", "" ).split(",") )
+            .stream()
+            .map( String::trim )
+            .filter( a -> !a.isEmpty() )
+            .collect( Collectors.toList() );
+        String precompiledValue = properties.getOrDefault( "precompiled", "false" ).trim();
+        boolean precompiled = !precompiledValue.isEmpty() && !precompiledValue.equalsIgnoreCase("false");
+        boolean dotALinkage = properties.getOrDefault( "dot_a_linkage", "false" ).trim().equalsIgnoreCase("true");
+
+        Path srcPath = libraryPath.resolve(Library.SOURCE_DIR_NAME);
+        Library.Layout layout = LibrarySourceEnumerator.detectLayout(libraryPath);
+
+        List <Path> includeDirectoryPaths = new ArrayList<>();
+        includeDirectoryPaths.add( layout == Library.Layout.RECURSIVE ? srcPath : libraryPath );
+        Path utilityPath = libraryPath.resolve(Library.UTILITY_DIR_NAME);
+        if ( Files.isDirectory(utilityPath) ) {
+            includeDirectoryPaths.add( utilityPath );
+        }
+
+        return new Library( libraryPath, name, version, architectures, precompiled, dotALinkage, layout,
+            includeDirectoryPaths, LibrarySourceEnumerator.enumerate( libraryPath, layout, LIBRARY_SOURCE_FILE_MATCHER ), stamp );
+    }
+
+    private static Map<String,String> parsePropertiesFile( Path propertiesFilePath ) {
+        Map <String,String> ret = new HashMap<>();
+        if ( !Files.exists(propertiesFilePath) ) return ret;
+        try (Stream<String> lines = Files.lines(propertiesFilePath, StandardCharsets.UTF_8)) {
+            lines
+                .map( line -> line.trim() )
+                .filter( line -> !line.isEmpty() && !line.startsWith("#") && line.contains("=") )
+                .forEach( line -> {
+                    int splitIndex = line.indexOf("=");
+                    ret.put( line.substring(0, splitIndex).trim(), line.substring(splitIndex + 1) );
+                });
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log( Level.WARNING, "Failed to parse: " + propertiesFilePath, ex );
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import static com.microchip.mplab.nbide.embedded.arduino.importer.ProjectImporter.LIBRARY_SOURCE_FILE_MATCHER;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import static java.nio.file.FileVisitResult.CONTINUE;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Enumerates the source files of a library the way the Arduino library specification defines them:
+ * <ul>
+ * <li>1.5 libraries: everything under "src", recursively;</li>
+ * <li>legacy libraries: the library root directory and the "utility" subdirectory (not recursively).</li>
+ * </ul>
+ * Directories like "examples", "extras" or "test" are therefore never visited.
+ */
+public final class LibrarySourceEnumerator {
+
+
+    private static final Logger LOGGER = Logger.getLogger(LibrarySourceEnumerator.class.getName());
+
+    private LibrarySourceEnumerator() {}
+
+    public static Library.Layout detectLayout( Path libraryPath ) {
+        return Files.isDirectory( libraryPath.resolve(Library.SOURCE_DIR_NAME) ) ? Library.Layout.RECURSIVE : Library.Layout.LEGACY;
+    }
+
+    public static List<Path> enumerate( Path libraryPath ) throws IOException {
+        return enumerate( libraryPath, detectLayout(libraryPath), LIBRARY_SOURCE_FILE_MATCHER );
+    }
+
+    public static List<Path> enumerate( Path libraryPath, Library.Layout layout, PathMatcher fileMatcher ) throws IOException {
+        List <Path> ret = new ArrayList<>();
+        if ( layout == Library.Layout.RECURSIVE ) {
+            Files.walkFileTree( libraryPath.resolve(Library.SOURCE_DIR_NAME), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if ( attrs.isRegularFile() && fileMatcher.matches(file.getFileName()) ) {
+                        ret.add( file );
+                    }
+                    return CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    LOGGER.log( Level.WARNING, "Unable to visit: " + file, exc );
+                    return CONTINUE;
+                }
+            });
+        } else {
+            ret.addAll( listFiles( libraryPath, fileMatcher ) );
+            Path utilityPath = libraryPath.resolve(Library.UTILITY_DIR_NAME);
+            if ( Files.isDirectory(utilityPath) ) {
+                ret.addAll( listFiles( utilityPath, fileMatcher ) );
+            }
+        }
+        return ret;
+    }
+
+    private static List<Path> listFiles( Path dirPath, PathMatcher fileMatcher ) throws IOException {
+        try (Stream<Path> s = Files.list(dirPath)) {
+            return s
+                .filter( p -> Files.isRegularFile(p) && fileMatcher.matches(p.getFileName()) )
+                .sorted()
+                .collect( Collectors.toList() );
+        }
+    }
+
+}
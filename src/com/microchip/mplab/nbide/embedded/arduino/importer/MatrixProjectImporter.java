@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Imports one sketch for several board configurations into a single project. The board independent part
+ * of the import (preprocessing, dependency resolution, copying the sketch and the libraries) runs only once,
+ * the board specific part (core files, linker scripts, bootloader, core library) runs in parallel, each
+ * configuration getting its own core directory: "imported-core/&lt;configuration name&gt;".
+ * <p>
+ * Every board still preprocesses the sketch to resolve its libraries: the import is refused if the boards do not
+ * use the same libraries. Each importer keeps the preprocessing command of its own board.
+ */
+public class MatrixProjectImporter {
+
+
+    private static final Logger LOGGER = Logger.getLogger(MatrixProjectImporter.class.getName());
+
+    private final Supplier<ProjectImporter> importerFactory;
+    private final Map <String,BoardConfiguration> boardConfigurations = new LinkedHashMap<>();
+    private final Map <String,ProjectImporter> importers = new LinkedHashMap<>();
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+
+    /**
+     * @param importerFactory creates importers that have all properties set except the board configuration
+     */
+    public MatrixProjectImporter( Supplier<ProjectImporter> importerFactory ) {
+        this.importerFactory = importerFactory;
+    }
+
+    public void addBoardConfiguration( String configurationName, BoardConfiguration boardConfiguration ) {
+        if ( boardConfigurations.containsKey(configurationName) ) {
+            throw new IllegalArgumentException("Duplicate configuration name: " + configurationName);
+        }
+        boardConfigurations.put( configurationName, boardConfiguration );
+    }
+
+    public Map<String,BoardConfiguration> getBoardConfigurations() {
+        return Collections.unmodifiableMap( boardConfigurations );
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max( 1, parallelism );
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Returns the importers (one per configuration name) in the order the configurations were added.
+     * Available after {@link #execute()}.
+     */
+    public Map<String,ProjectImporter> getImporters() {
+        return Collections.unmodifiableMap( importers );
+    }
+
+    /**
+     * Returns the importer of the first configuration, the one that ran the shared part of the import.
+     */
+    public ProjectImporter getPrimaryImporter() {
+        return importers.values().iterator().next();
+    }
+
+    public void execute() throws IOException, InterruptedException {
+        if ( boardConfigurations.isEmpty() ) {
+            throw new IllegalStateException("No board configurations to import");
+        }
+        Platform platform = boardConfigurations.values().iterator().next().getPlatform();
+        boardConfigurations.values().forEach( c -> {
+            if ( !c.getPlatform().getRootPath().equals( platform.getRootPath() ) ) {
+                throw new IllegalArgumentException("All board configurations must belong to the same platform: " + c);
+            }
+        });
+
+        importers.clear();
+        boardConfigurations.forEach( (name, boardConfiguration) -> {
+            ProjectImporter importer = importerFactory.get();
+            importer.setBoardConfiguration( boardConfiguration );
+            Path projectCoreDirPath = importer.getTargetProjectDirectoryPath().resolve( ProjectImporter.CORE_DIRECTORY_NAME );
+            importer.setTargetCoreDirectoryPath( projectCoreDirPath.resolve(name) );
+            importers.put( name, importer );
+        });
+
+        ProjectImporter primaryImporter = getPrimaryImporter();
+        String primaryName = importers.keySet().iterator().next();
+        LOGGER.log(Level.INFO, "Importing {0} board configurations: {1}", new Object[] {importers.size(), importers.keySet()} );
+
+        // The native processes of the pool threads belong to the same work as those of the calling thread:
+        final Object invocationTag = NativeProcessRunner.getInvocationTag();
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min( parallelism, importers.size() ), r -> new Thread( () -> {
+            NativeProcessRunner.setInvocationTag(invocationTag);
+            r.run();
+        }, "MatrixProjectImporter" ));
+        try {
+            // The defines and the architecture of a board decide which libraries the sketch uses, so the other boards
+            // preprocess the sketch as well (in parallel to the shared import) and must end up with the same libraries:
+            Map <String,Future<List<Path>>> libraryResolutions = new LinkedHashMap<>();
+            importers.forEach( (name, importer) -> {
+                if ( importer != primaryImporter ) {
+                    libraryResolutions.put( name, executor.submit( importer::resolveLibraryPaths ) );
+                }
+            });
+            primaryImporter.importSharedFiles();
+            Set <Path> primaryLibraryPaths = normalize( primaryImporter.getSourceLibraryPaths() );
+            for ( Map.Entry<String,Future<List<Path>>> e : libraryResolutions.entrySet() ) {
+                Set <Path> libraryPaths = normalize( get( e.getValue() ) );
+                if ( !libraryPaths.equals(primaryLibraryPaths) ) {
+                    throw new IllegalArgumentException("The sketch uses different libraries for " + e.getKey() + " " + libraryPaths
+                        + " than for " + primaryName + " " + primaryLibraryPaths + ". Import these boards into separate projects.");
+                }
+            }
+            importers.values().stream().filter( i -> i != primaryImporter ).forEach( i -> i.useSharedFilesOf(primaryImporter) );
+
+            List <Future<Void>> futures = new ArrayList<>();
+            importers.values().forEach( importer -> futures.add( executor.submit( () -> {
+                importer.importBoardFiles();
+                return null;
+            })));
+            for ( Future<Void> future : futures ) {
+                get( future );
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if ( primaryImporter.isCopyingFiles() ) {
+            primaryImporter.getArduinoBuilderRunner().cleanup();  // Removes the "temp" directory
+        }
+    }
+
+    /**
+     * Creates a configuration name out of the board ID and the selected option values, e.g. "chipkit_mx3"
+     * or "pro_cpu_8MHzatmega328". Only letters, digits, '_' and '-' are used.
+     */
+    public static String createConfigurationName( BoardConfiguration boardConfiguration ) {
+        StringBuilder nameBuilder = new StringBuilder( boardConfiguration.getBoardId() );
+        List <BoardOption> options = new ArrayList<>( boardConfiguration.getBoard().getOptions() );
+        options.sort( (o1, o2) -> o1.getId().compareTo( o2.getId() ) );
+        for ( BoardOption option : options ) {
+            boardConfiguration.getOptionValue( option.getId() ).ifPresent( value -> nameBuilder.append('_').append( option.getId() ).append('_').append( value ) );
+        }
+        return nameBuilder.toString().chars()
+            .mapToObj( c -> Character.isLetterOrDigit(c) || c == '_' || c == '-' ? String.valueOf( (char) c ) : "_" )
+            .collect( Collectors.joining() );
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private static Set<Path> normalize( List<Path> paths ) {
+        return paths.stream().map( p -> p.toAbsolutePath().normalize() ).collect( Collectors.toCollection( TreeSet::new ) );
+    }
+
+    private static <T> T get( Future<T> future ) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if ( cause instanceof IOException ) throw (IOException) cause;
+            if ( cause instanceof InterruptedException ) throw (InterruptedException) cause;
+            if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of native processes run at the same time by all {@link NativeProcessRunner}s of the IDE
+ * (importer, core library rebuilds, pic32prog) to a global concurrency budget. Processes that do not fit into
+ * the budget are queued and started by priority, then in submission order.
+ * {@link Priority#INTERACTIVE} work may use one slot above the budget so that e.g. flashing a board never
+ * waits for a full set of compilers to finish.
+ * <p>
+ * The budget is the number of processors unless the system property {@value #CONCURRENCY_BUDGET_PROPERTY} sets
+ * it, e.g. with "-J-D{@value #CONCURRENCY_BUDGET_PROPERTY}=4" in the netbeans.conf of the IDE on a machine it shares.
+ */
+public final class NativeProcessExecutor {
+
+
+    private static final Logger LOGGER = Logger.getLogger(NativeProcessExecutor.class.getName());
+
+    public static final String CONCURRENCY_BUDGET_PROPERTY = "com.microchip.mplab.nbide.embedded.arduino.concurrencyBudget";
+
+    public enum Priority {
+        /** Work the user waits for in front of the screen, e.g. flashing a board */
+        INTERACTIVE,
+        /** Builds and imports started by the user */
+        BUILD,
+        /** Work nobody waits for, e.g. scans and speculative builds */
+        BACKGROUND
+    }
+
+    /**
+     * Starts a native process. The concurrency slot is held until the returned future completes.
+     */
+    @FunctionalInterface
+    public interface Task<T> {
+        CompletableFuture<T> start() throws IOException;
+    }
+
+    /**
+     * Starts a native process that runs several jobs of its own (e.g. "make -j"), with the number of slots
+     * it has been given. The slots are held until the returned future completes.
+     */
+    @FunctionalInterface
+    public interface ParallelTask<T> {
+        CompletableFuture<T> start( int slotCount ) throws IOException;
+    }
+
+    private static NativeProcessExecutor instance;
+
+    public static synchronized NativeProcessExecutor getInstance() {
+        if ( instance == null ) {
+            instance = new NativeProcessExecutor();
+            String budget = System.getProperty( CONCURRENCY_BUDGET_PROPERTY );
+            if ( budget != null ) {
+                try {
+                    instance.setConcurrencyBudget( Integer.parseInt( budget.trim() ) );
+                    LOGGER.log( Level.INFO, "Native process concurrency budget: {0}", instance.getConcurrencyBudget() );
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.log( Level.WARNING, "Invalid " + CONCURRENCY_BUDGET_PROPERTY + " \"" + budget + "\", using " + instance.getConcurrencyBudget(), ex );
+                }
+            }
+        }
+        return instance;
+    }
+
+    private final PriorityQueue<QueuedTask<?>> queue = new PriorityQueue<>(
+        Comparator.<QueuedTask<?>,Priority>comparing( t -> t.priority ).thenComparingLong( t -> t.sequenceNumber )
+    );
+    private int concurrencyBudget = Runtime.getRuntime().availableProcessors();
+    private int runningCount;
+    private long sequenceNumber;
+    private int peakQueueDepth;
+    private long startedCount;
+    private long totalQueueWaitNanos;
+
+
+    private NativeProcessExecutor() {
+    }
+
+    public synchronized int getConcurrencyBudget() {
+        return concurrencyBudget;
+    }
+
+    /**
+     * Sets the number of native processes that may run at the same time (the number of processors by default).
+     * Processes that are already running are not affected by a lower budget.
+     */
+    public void setConcurrencyBudget( int concurrencyBudget ) {
+        if ( concurrencyBudget < 1 ) {
+            throw new IllegalArgumentException( "The concurrency budget must be at least 1" );
+        }
+        synchronized (this) {
+            this.concurrencyBudget = concurrencyBudget;
+        }
+        dispatch();
+    }
+
+    /**
+     * Queues the task and starts it as soon as the budget allows, possibly right away on the calling thread.
+     * The returned future completes with the future returned by the task, or exceptionally if the task fails
+     * to start. Cancelling it removes the task from the queue, or cancels the future of the started task.
+     */
+    public <T> CompletableFuture<T> submit( Priority priority, Task<T> task ) {
+        return submit( priority, 1, slotCount -> task.start() );
+    }
+
+    /**
+     * Like {@link #submit(Priority, Task)}, for a task that can use up to the given number of slots. The task
+     * starts as soon as one slot is free and gets all free slots up to that number, so that e.g. "make -j" never
+     * runs more jobs than the budget leaves room for.
+     */
+    public <T> CompletableFuture<T> submit( Priority priority, int maxSlotCount, ParallelTask<T> task ) {
+        QueuedTask<T> queuedTask;
+        synchronized (this) {
+            queuedTask = new QueuedTask<>( priority, sequenceNumber++, Math.max( 1, maxSlotCount ), task );
+            queue.add( queuedTask );
+            peakQueueDepth = Math.max( peakQueueDepth, queue.size() );
+        }
+        queuedTask.result.whenComplete( (r, ex) -> {
+            if ( queuedTask.result.isCancelled() ) {
+                cancel( queuedTask );
+            }
+        });
+        dispatch();
+        return queuedTask.result;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized Map<Priority,Integer> getQueueDepthByPriority() {
+        Map <Priority,Integer> ret = new EnumMap<>(Priority.class);
+        for ( Priority p : Priority.values() ) {
+            ret.put( p, 0 );
+        }
+        queue.forEach( t -> ret.merge( t.priority, 1, Integer::sum ) );
+        return ret;
+    }
+
+    public synchronized int getRunningCount() {
+        return runningCount;
+    }
+
+    /**
+     * Returns the largest number of tasks that were waiting at the same time.
+     */
+    public synchronized int getPeakQueueDepth() {
+        return peakQueueDepth;
+    }
+
+    public synchronized long getStartedCount() {
+        return startedCount;
+    }
+
+    /**
+     * Returns how long the started tasks have been waiting in the queue on average.
+     */
+    public synchronized double getAverageQueueWaitMillis() {
+        return startedCount > 0 ? totalQueueWaitNanos / 1_000_000.0 / startedCount : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "NativeProcessExecutor{" + "budget=" + concurrencyBudget + ", running=" + runningCount + ", queued=" + queue.size() + ", peakQueued=" + peakQueueDepth
+            + ", started=" + startedCount + ", averageQueueWait=" + String.format( Locale.ROOT, "%.1f", getAverageQueueWaitMillis() ) + " ms" + '}';
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    // Tasks are started outside of the lock since starting a process can take a while:
+    private void dispatch() {
+        while (true) {
+            QueuedTask<?> next;
+            synchronized (this) {
+                next = queue.peek();
+                if ( next == null ) return;
+                int limit = next.priority == Priority.INTERACTIVE ? concurrencyBudget + 1 : concurrencyBudget;
+                if ( runningCount >= limit ) return;
+                queue.poll();
+                next.slotCount = Math.min( next.maxSlotCount, limit - runningCount );
+                runningCount += next.slotCount;
+                startedCount++;
+                totalQueueWaitNanos += System.nanoTime() - next.submitNanos;
+                if ( !queue.isEmpty() ) {
+                    LOGGER.log( Level.FINE, "{0}", this );
+                }
+            }
+            next.start();
+        }
+    }
+
+    private void release( int slotCount ) {
+        synchronized (this) {
+            runningCount -= slotCount;
+        }
+        dispatch();
+    }
+
+    private void cancel( QueuedTask<?> task ) {
+        boolean removed;
+        synchronized (this) {
+            removed = queue.remove(task);
+        }
+        if ( !removed && task.started != null ) {
+            task.started.cancel(true);
+        }
+    }
+
+    private final class QueuedTask<T> {
+
+        private final Priority priority;
+        private final long sequenceNumber;
+        private final long submitNanos = System.nanoTime();
+        private final int maxSlotCount;
+        private final ParallelTask<T> task;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private volatile CompletableFuture<T> started;
+        // Set when the task is taken from the queue:
+        private volatile int slotCount;
+
+        QueuedTask(Priority priority, long sequenceNumber, int maxSlotCount, ParallelTask<T> task) {
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+            this.maxSlotCount = maxSlotCount;
+            this.task = task;
+        }
+
+        void start() {
+            if ( result.isDone() ) {  // Cancelled after being taken from the queue
+                release( slotCount );
+                return;
+            }
+            try {
+                started = task.start( slotCount );
+            } catch (IOException | RuntimeException ex) {
+                release( slotCount );
+                result.completeExceptionally(ex);
+                return;
+            }
+            started.whenComplete( (r, ex) -> {
+                release( slotCount );
+                if ( ex != null ) {
+                    result.completeExceptionally( ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex );
+                } else {
+                    result.complete(r);
+                }
+            });
+            if ( result.isCancelled() ) {
+                started.cancel(true);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A finished (or timed out) native process run by {@link NativeProcessRunner}.
+ */
+public final class NativeProcessInvocation {
+
+
+    private final List<String> command;
+    private final Path workingDirectoryPath;
+    private final String threadName;
+    private final long startTimeMillis;
+    private final long startNanos;
+    private final long endNanos;
+    private final Integer exitCode;
+    private final boolean timedOut;
+    private final long stdoutCharCount;
+    private final long stdoutLineCount;
+    private final long stderrCharCount;
+    private final long stderrLineCount;
+    private final long cpuTimeNanos;
+    private final Object tag;
+
+
+    NativeProcessInvocation(Object tag, List<String> command, Path workingDirectoryPath, String threadName, long startTimeMillis, long startNanos, long endNanos, Integer exitCode, boolean timedOut, long stdoutCharCount, long stdoutLineCount, long stderrCharCount, long stderrLineCount, long cpuTimeNanos) {
+        this.command = Collections.unmodifiableList(command);
+        this.workingDirectoryPath = workingDirectoryPath;
+        this.threadName = threadName;
+        this.startTimeMillis = startTimeMillis;
+        this.startNanos = startNanos;
+        this.endNanos = endNanos;
+        this.exitCode = exitCode;
+        this.timedOut = timedOut;
+        this.stdoutCharCount = stdoutCharCount;
+        this.stdoutLineCount = stdoutLineCount;
+        this.stderrCharCount = stderrCharCount;
+        this.stderrLineCount = stderrLineCount;
+        this.cpuTimeNanos = cpuTimeNanos;
+        this.tag = tag;
+    }
+
+    /**
+     * Returns the {@link NativeProcessRunner#setInvocationTag tag} the process was started with, or null.
+     */
+    public Object getTag() {
+        return tag;
+    }
+
+    public List<String> getCommand() {
+        return command;
+    }
+
+    /**
+     * Returns the file name of the executable, e.g. "arduino-builder" or "pic32-g++".
+     */
+    public String getExecutableName() {
+        if ( command.isEmpty() ) return "";
+        String executable = command.get(0).replace('\\', '/');
+        return executable.substring( executable.lastIndexOf('/') + 1 );
+    }
+
+    /**
+     * Returns the working directory or null if the process ran in the default directory.
+     */
+    public Path getWorkingDirectoryPath() {
+        return workingDirectoryPath;
+    }
+
+    /**
+     * Returns the name of the thread that started the process.
+     */
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * Returns the wall-clock time the process was started at (milliseconds since the epoch).
+     */
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} the process was started at. Only useful to compare invocations.
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getEndNanos() {
+        return endNanos;
+    }
+
+    public long getDurationNanos() {
+        return endNanos - startNanos;
+    }
+
+    /**
+     * Returns the exit code, or null if the process timed out or could not be waited for.
+     */
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    public long getStdoutCharCount() {
+        return stdoutCharCount;
+    }
+
+    public long getStdoutLineCount() {
+        return stdoutLineCount;
+    }
+
+    public long getStderrCharCount() {
+        return stderrCharCount;
+    }
+
+    public long getStderrLineCount() {
+        return stderrLineCount;
+    }
+
+    /**
+     * Returns the CPU time of the process as last observed while it was running, or -1 if unknown
+     * (Java 8, or a process too short to be sampled).
+     */
+    public long getCpuTimeNanos() {
+        return cpuTimeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "NativeProcessInvocation{" + getExecutableName() + ", durationMs=" + getDurationNanos() / 1_000_000 + ", exitCode=" + exitCode + '}';
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A message consumer for {@link NativeProcessRunner} that decouples the process pipes from slow consumers.
+ * Lines are put into a bounded ring buffer and returned from immediately. A single background thread writes
+ * every line to a log file and forwards only the lines at or above the forwarding level, at most
+ * a given number per second, to the forward consumer (e.g. the IDE log or an output window).
+ * Errors are always forwarded. The number of lines that were held back is reported instead.
+ */
+public class NativeProcessOutputCapture implements Consumer<String>, Closeable {
+
+
+    private static final Logger LOGGER = Logger.getLogger(NativeProcessOutputCapture.class.getName());
+
+    public static final String LOG_FILENAME = "import-output.log";
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final int DEFAULT_MAX_FORWARDED_LINES_PER_SECOND = 20;
+
+    private final Path logFilePath;
+    private final Consumer<String> forwardConsumer;
+    private final String[] ring;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Thread drainThread;
+    private int head;
+    private int size;
+    private boolean closed;
+    private IOException writeFailure;
+
+    private volatile Level forwardingLevel = Level.INFO;
+    private volatile int maxForwardedLinesPerSecond = DEFAULT_MAX_FORWARDED_LINES_PER_SECOND;
+    // Accessed only by the drain thread:
+    private long rateWindowStartNanos;
+    private int forwardedInRateWindow;
+    private long suppressedLineCount;
+    private long totalSuppressedLineCount;
+    private long totalLineCount;
+
+
+    public NativeProcessOutputCapture( Path logFilePath, Consumer<String> forwardConsumer ) throws IOException {
+        this( logFilePath, forwardConsumer, DEFAULT_CAPACITY );
+    }
+
+    public NativeProcessOutputCapture( Path logFilePath, Consumer<String> forwardConsumer, int capacity ) throws IOException {
+        this.logFilePath = logFilePath;
+        this.forwardConsumer = forwardConsumer;
+        this.ring = new String[capacity];
+        BufferedWriter writer = Files.newBufferedWriter( logFilePath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE );
+        this.drainThread = new Thread( () -> drain(writer), "NativeProcessOutputCapture" );
+        this.drainThread.setDaemon(true);
+        this.drainThread.start();
+    }
+
+    public Path getLogFilePath() {
+        return logFilePath;
+    }
+
+    public Level getForwardingLevel() {
+        return forwardingLevel;
+    }
+
+    /**
+     * Sets the lowest level of the lines passed to the forward consumer (see {@link #getLevel(String)}).
+     */
+    public void setForwardingLevel( Level forwardingLevel ) {
+        this.forwardingLevel = forwardingLevel;
+    }
+
+    public int getMaxForwardedLinesPerSecond() {
+        return maxForwardedLinesPerSecond;
+    }
+
+    public void setMaxForwardedLinesPerSecond( int maxForwardedLinesPerSecond ) {
+        this.maxForwardedLinesPerSecond = maxForwardedLinesPerSecond;
+    }
+
+    /**
+     * Queues the line. Blocks only if the ring buffer is full, i.e. if writing the log file cannot keep up.
+     */
+    @Override
+    public void accept( String line ) {
+        lock.lock();
+        try {
+            while ( size == ring.length && !closed ) {
+                notFull.awaitUninterruptibly();
+            }
+            if ( closed ) {
+                LOGGER.log( Level.FINE, "Output captured after close: {0}", line );
+                return;
+            }
+            ring[ (head + size) % ring.length ] = line;
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes out the remaining lines and closes the log file.
+     * Throws the first exception that occurred while writing the log file, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            drainThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if ( writeFailure != null ) {
+            throw writeFailure;
+        }
+    }
+
+    /**
+     * Returns the level of a line of compiler, make or arduino-builder output.
+     * The messages {@link NativeProcessRunner} adds about the processes it starts are INFO,
+     * compiler diagnostics are WARNING or SEVERE, and everything else is FINE.
+     */
+    public static Level getLevel( String line ) {
+        if ( line.startsWith("-- ") ) {
+            return Level.INFO;
+        } else if ( line.contains("error:") || line.startsWith("make: ***") ) {
+            return Level.SEVERE;
+        } else if ( line.contains("warning:") ) {
+            return Level.WARNING;
+        } else {
+            return Level.FINE;
+        }
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private void drain( BufferedWriter writer ) {
+        String[] batch = new String[ring.length];
+        try (BufferedWriter w = writer) {
+            while (true) {
+                int count;
+                lock.lock();
+                try {
+                    while ( size == 0 && !closed ) {
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    if ( size == 0 ) {
+                        break;
+                    }
+                    // Take everything that is queued at once to keep the time spent under the lock short:
+                    count = size;
+                    for ( int i=0; i<count; i++ ) {
+                        int index = (head + i) % ring.length;
+                        batch[i] = ring[index];
+                        ring[index] = null;
+                    }
+                    head = (head + count) % ring.length;
+                    size = 0;
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                for ( int i=0; i<count; i++ ) {
+                    String line = batch[i];
+                    batch[i] = null;
+                    totalLineCount++;
+                    if ( writeFailure == null ) {
+                        try {
+                            w.write(line);
+                            w.newLine();
+                        } catch (IOException ex) {
+                            writeFailure = ex;
+                            LOGGER.log( Level.WARNING, "Failed to write native process output to " + logFilePath, ex );
+                        }
+                    }
+                    forward(line);
+                }
+                if ( writeFailure == null ) {
+                    try {
+                        w.flush();
+                    } catch (IOException ex) {
+                        writeFailure = ex;
+                    }
+                }
+            }
+            reportSuppressedLines();
+            LOGGER.log( Level.FINE, "Captured {0} lines of native process output, {1} not forwarded", new Object[] {totalLineCount, totalSuppressedLineCount} );
+        } catch (IOException ex) {
+            if ( writeFailure == null ) writeFailure = ex;
+        } catch (RuntimeException ex) {
+            LOGGER.log( Level.WARNING, "Native process output capture failed", ex );
+            lock.lock();
+            try {
+                // Don't leave the producers blocked on a full ring buffer:
+                closed = true;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void forward( String line ) {
+        if ( forwardConsumer == null ) return;
+        Level level = getLevel(line);
+        if ( level.intValue() < forwardingLevel.intValue() ) return;
+        if ( level != Level.SEVERE ) {
+            long now = System.nanoTime();
+            if ( now - rateWindowStartNanos >= TimeUnit.SECONDS.toNanos(1) ) {
+                rateWindowStartNanos = now;
+                forwardedInRateWindow = 0;
+                reportSuppressedLines();
+            }
+            if ( forwardedInRateWindow >= maxForwardedLinesPerSecond ) {
+                suppressedLineCount++;
+                totalSuppressedLineCount++;
+                return;
+            }
+            forwardedInRateWindow++;
+        }
+        forwardConsumer.accept(line);
+    }
+
+    private void reportSuppressedLines() {
+        if ( suppressedLineCount > 0 && forwardConsumer != null ) {
+            // TODO: Create message templates in Bundle and use them here:
+            forwardConsumer.accept( "-- " + suppressedLineCount + " more lines of output in " + logFilePath + " --" );
+            suppressedLineCount = 0;
+        }
+    }
+
+}
@@ -16,20 +16,76 @@
 package com.microchip.mplab.nbide.embedded.arduino.importer;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 public class NativeProcessRunner {
 
     
+    private static final Logger LOGGER = Logger.getLogger(NativeProcessRunner.class.getName());
+    
     public static final int NO_ERROR_CODE = 0;
+    
+    // Stream pumps and exit waiters. Daemon threads so that a hanging process never keeps the IDE alive:
+    private static final ExecutorService IO_EXECUTOR = Executors.newCachedThreadPool( r -> {
+        Thread t = new Thread(r, "NativeProcessRunner");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final List<NativeProcessInvocationListener> INVOCATION_LISTENERS = new CopyOnWriteArrayList<>();
+    // What the processes started by the current thread are run for (see setInvocationTag):
+    private static final ThreadLocal<Object> INVOCATION_TAG = new ThreadLocal<>();
+    private static final long CPU_TIME_SAMPLING_INTERVAL_MILLIS = 50;
+    private static final Method TO_HANDLE_METHOD;
+    private static final Method INFO_METHOD;
+    private static final Method TOTAL_CPU_DURATION_METHOD;
+    private static final ThreadLocal<char[]> READ_BUFFER = ThreadLocal.withInitial( () -> new char[8192] );
+    private static final ThreadLocal<StringBuilder> LINE_BUFFER = ThreadLocal.withInitial( () -> new StringBuilder(256) );
+
+    // ProcessHandle is only available since Java 9:
+    static {
+        Method toHandleMethod = null;
+        Method infoMethod = null;
+        Method totalCpuDurationMethod = null;
+        try {
+            toHandleMethod = Process.class.getMethod("toHandle");
+            infoMethod = Class.forName("java.lang.ProcessHandle").getMethod("info");
+            totalCpuDurationMethod = Class.forName("java.lang.ProcessHandle$Info").getMethod("totalCpuDuration");
+        } catch (ReflectiveOperationException ex) {
+            LOGGER.log( Level.FINE, "Process CPU time is not available on this JVM" );
+        }
+        TO_HANDLE_METHOD = toHandleMethod;
+        INFO_METHOD = infoMethod;
+        TOTAL_CPU_DURATION_METHOD = totalCpuDurationMethod;
+    }
 
-    private ProcessBuilder processBuilder;
+    // Only for getNativeProcessCommandString(), since several processes of a runner may start at the same time:
+    private volatile List<String> lastCommand;
+    private NativeProcessExecutor.Priority priority = NativeProcessExecutor.Priority.BUILD;
     private final Consumer<String> messageConsumer;
-    private final Consumer<String> errorConsumer;  // TODO: Either remove the errorConsumer or find a way to stream errors to this consumer
+    private final Consumer<String> errorConsumer;
 
     
     public NativeProcessRunner() {
@@ -46,16 +102,54 @@ public class NativeProcessRunner {
         this.errorConsumer = errorConsumer;
     }
     
+    /**
+     * Registers a listener that gets notified about every native process run by any runner, until removed.
+     */
+    public static void addInvocationListener( NativeProcessInvocationListener listener ) {
+        INVOCATION_LISTENERS.add(listener);
+    }
+    
+    public static void removeInvocationListener( NativeProcessInvocationListener listener ) {
+        INVOCATION_LISTENERS.remove(listener);
+    }
+    
+    /**
+     * Tags the native processes started by the current thread (null removes the tag), so that listeners can tell
+     * the processes of e.g. one import from those of other imports and builds running at the same time.
+     * The tag is recorded in the {@link NativeProcessInvocation} and is also set while the future of a tagged
+     * process completes, so work chained to a process keeps the tag. Thread pools that start processes for
+     * tagged work have to pass the tag on to their threads.
+     */
+    public static void setInvocationTag( Object tag ) {
+        if ( tag != null ) {
+            INVOCATION_TAG.set(tag);
+        } else {
+            INVOCATION_TAG.remove();
+        }
+    }
+    
+    public static Object getInvocationTag() {
+        return INVOCATION_TAG.get();
+    }
+    
+    public NativeProcessExecutor.Priority getPriority() {
+        return priority;
+    }
+    
+    /**
+     * Sets the priority the processes of this runner are started with when the global concurrency budget
+     * of the {@link NativeProcessExecutor} is exhausted.
+     */
+    public void setPriority( NativeProcessExecutor.Priority priority ) {
+        this.priority = priority;
+    }
+    
+    /**
+     * @return the command of the process this runner started last, or null if it has not started one
+     */
     public String getNativeProcessCommandString() {
-        final StringBuilder commandBuilder = new StringBuilder();
-        processBuilder.command().forEach( entry -> {
-            if ( entry.startsWith("-") ) {
-                commandBuilder.append(entry).append(' ');
-            } else {
-                commandBuilder.append('\"').append(entry).append('\"').append(' ');
-            }
-        });
-        return commandBuilder.toString().trim();
+        List <String> command = lastCommand;
+        return command != null ? toCommandString( command ) : null;
     }
     
     public int runNativeProcess( String... args ) throws IOException, InterruptedException {
@@ -67,27 +161,252 @@ public class NativeProcessRunner {
     }
     
     public int runNativeProcess( Path workingDir, List <String> args ) throws IOException, InterruptedException {
-        processBuilder = new ProcessBuilder( args )
-            .redirectError(ProcessBuilder.Redirect.INHERIT)
-            .redirectErrorStream(true)
+        return waitFor( runNativeProcessAsync( workingDir, args, 0, TimeUnit.MILLISECONDS ) );
+    }
+    
+    public CompletableFuture<Integer> runNativeProcessAsync( Path workingDir, String... args ) throws IOException {
+        return runNativeProcessAsync( workingDir, Arrays.asList(args), 0, TimeUnit.MILLISECONDS );
+    }
+    
+    /**
+     * Starts the native process and returns without waiting for it. The standard output and the standard error
+     * are read on separate daemon threads and passed, line by line, to the message and the error consumer.
+     * The returned future completes with the exit code once the process has exited and both streams have been
+     * read to the end. 
+     * If the process does not exit within the given timeout (a timeout &lt;= 0 means no timeout), the process
+     * and all its descendants are destroyed and the future completes exceptionally with a
+     * {@link NativeProcessTimeoutException}. Cancelling the future destroys the process tree as well.
+     * The process is started through the {@link NativeProcessExecutor} and may have to wait for a slot of the
+     * global concurrency budget first. The timeout only starts to run once the process has been started.
+     */
+    public CompletableFuture<Integer> runNativeProcessAsync( Path workingDir, List <String> args, long timeout, TimeUnit unit ) throws IOException {
+        final Object tag = INVOCATION_TAG.get();
+        return NativeProcessExecutor.getInstance().submit( priority, () -> startNativeProcess( tag, workingDir, args, timeout, unit ) );
+    }
+    
+    /**
+     * Like {@link #runNativeProcessAsync(Path, List, long, TimeUnit)}, with a command that is only created once the
+     * process gets its slot of the {@link NativeProcessExecutor} budget, e.g. to take in work queued in the meantime.
+     */
+    public CompletableFuture<Integer> runDeferredNativeProcessAsync( Path workingDir, Supplier<List<String>> commandSupplier ) throws IOException {
+        final Object tag = INVOCATION_TAG.get();
+        return NativeProcessExecutor.getInstance().submit( priority, () -> startNativeProcess( tag, workingDir, commandSupplier.get(), 0, TimeUnit.MILLISECONDS ) );
+    }
+    
+    /**
+     * Like {@link #runNativeProcessAsync(Path, List, long, TimeUnit)}, for a process that runs up to the given number
+     * of jobs of its own (e.g. "make -j"): the process takes as many slots of the {@link NativeProcessExecutor}
+     * budget as are free when it starts (at least one) and its command is created for that number of jobs.
+     */
+    public CompletableFuture<Integer> runParallelNativeProcessAsync( Path workingDir, IntFunction<List<String>> commandFactory, int maxJobCount ) throws IOException {
+        final Object tag = INVOCATION_TAG.get();
+        return NativeProcessExecutor.getInstance().submit( priority, maxJobCount, jobCount -> startNativeProcess( tag, workingDir, commandFactory.apply(jobCount), 0, TimeUnit.MILLISECONDS ) );
+    }
+    
+    /**
+     * Waits for a future returned by {@link #runNativeProcessAsync} and unwraps its failure.
+     * If the waiting thread gets interrupted, the future is cancelled (which destroys the process tree).
+     */
+    public static <T> T waitFor( CompletableFuture<T> future ) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            throw ex;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if ( cause instanceof IOException ) throw (IOException) cause;
+            if ( cause instanceof InterruptedException ) throw (InterruptedException) cause;
+            if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+    
+    
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private CompletableFuture<Integer> startNativeProcess( Object tag, Path workingDir, List <String> args, long timeout, TimeUnit unit ) throws IOException {
+        final ProcessBuilder processBuilder = new ProcessBuilder( args )
             .directory( workingDir != null ? workingDir.toFile() : null );
+        final List <String> command = new ArrayList<>( processBuilder.command() );
+        final String commandString = toCommandString( command );
+        lastCommand = command;
         
         if ( messageConsumer != null ) {
             if ( workingDir != null ) {
                 // TODO: Create message templates in Bundle and use them here:
-                messageConsumer.accept( "-- Running native process in " + workingDir + ": " + getNativeProcessCommandString() + " --" );
+                messageConsumer.accept( "-- Running native process in " + workingDir + ": " + commandString + " --" );
             } else {
-                messageConsumer.accept( "-- Running native process in default directory: " + getNativeProcessCommandString() + " --" );
+                messageConsumer.accept( "-- Running native process in default directory: " + commandString + " --" );
             }
         }
         
-        Process process = processBuilder.start();
-        if ( messageConsumer != null ) {
-            Scanner s = new Scanner( process.getInputStream() ).useDelimiter("\n");
-            while (s.hasNext()) messageConsumer.accept(s.next());
+        final String threadName = Thread.currentThread().getName();
+        final long startTimeMillis = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        final Process process = processBuilder.start();
+        // Characters and lines read from stdout (0, 1) and stderr (2, 3):
+        final AtomicLongArray outputCounts = new AtomicLongArray(4);
+        // The two streams share a lock so that a consumer used for both never gets called concurrently:
+        final Object consumerLock = new Object();
+        final CompletableFuture<Void> stdoutPump = CompletableFuture.runAsync( () -> pump( process.getInputStream(), messageConsumer, consumerLock, outputCounts, 0 ), IO_EXECUTOR );
+        final CompletableFuture<Void> stderrPump = CompletableFuture.runAsync( () -> pump( process.getErrorStream(), errorConsumer, consumerLock, outputCounts, 2 ), IO_EXECUTOR );
+        
+        final CompletableFuture<Integer> ret = new CompletableFuture<>();
+        IO_EXECUTOR.execute( () -> {
+            // The CPU time can only be read while the process is alive so it is sampled while waiting:
+            final boolean samplingCpuTime = !INVOCATION_LISTENERS.isEmpty() && TO_HANDLE_METHOD != null;
+            final long deadlineNanos = timeout > 0 ? startNanos + unit.toNanos(timeout) : Long.MAX_VALUE;
+            long cpuTimeNanos = -1;
+            Integer exitCode = null;
+            boolean timedOut = false;
+            Throwable failure = null;
+            try {
+                boolean exited = false;
+                if ( !samplingCpuTime && timeout <= 0 ) {
+                    process.waitFor();
+                    exited = true;
+                } else if ( !samplingCpuTime ) {
+                    exited = process.waitFor( timeout, unit );
+                } else {
+                    while ( !exited && System.nanoTime() < deadlineNanos ) {
+                        cpuTimeNanos = Math.max( cpuTimeNanos, readCpuTimeNanos(process) );
+                        long waitMillis = Math.min( CPU_TIME_SAMPLING_INTERVAL_MILLIS, Math.max( 1, TimeUnit.NANOSECONDS.toMillis( deadlineNanos - System.nanoTime() ) ) );
+                        exited = process.waitFor( waitMillis, TimeUnit.MILLISECONDS );
+                    }
+                }
+                if ( !exited ) {
+                    timedOut = true;
+                    destroyProcessTree( process );
+                    failure = new NativeProcessTimeoutException( "Native process timed out after " + unit.toMillis(timeout) + " ms: " + commandString );
+                } else {
+                    CompletableFuture.allOf( stdoutPump, stderrPump ).join();
+                    exitCode = process.exitValue();
+                }
+            } catch (InterruptedException ex) {
+                destroyProcessTree( process );
+                failure = ex;
+            } catch (RuntimeException ex) {
+                failure = ex;
+            }
+            // The listeners are notified before the future completes, so that they know about the process by then:
+            if ( !INVOCATION_LISTENERS.isEmpty() ) {
+                long endNanos = System.nanoTime();
+                NativeProcessInvocation invocation = new NativeProcessInvocation(
+                    tag, command, workingDir, threadName, startTimeMillis, startNanos, endNanos, exitCode, timedOut,
+                    outputCounts.get(0), outputCounts.get(1), outputCounts.get(2), outputCounts.get(3), cpuTimeNanos
+                );
+                INVOCATION_LISTENERS.forEach( l -> {
+                    try {
+                        l.invocationFinished(invocation);
+                    } catch (RuntimeException ex) {
+                        LOGGER.log( Level.WARNING, "Native process invocation listener failed", ex );
+                    }
+                });
+            }
+            // Dependent stages run on this (pooled) thread, as part of the work the process was tagged for:
+            setInvocationTag(tag);
+            try {
+                if ( failure != null ) {
+                    ret.completeExceptionally( failure );
+                } else {
+                    ret.complete( exitCode );
+                }
+            } finally {
+                setInvocationTag(null);
+            }
+        });
+        ret.whenComplete( (exitCode, ex) -> {
+            if ( ret.isCancelled() ) {
+                destroyProcessTree( process );
+            }
+        });
+        return ret;
+    }
+    
+    private static String toCommandString( List<String> command ) {
+        final StringBuilder commandBuilder = new StringBuilder();
+        command.forEach( entry -> {
+            if ( entry.startsWith("-") ) {
+                commandBuilder.append(entry).append(' ');
+            } else {
+                commandBuilder.append('\"').append(entry).append('\"').append(' ');
+            }
+        });
+        return commandBuilder.toString().trim();
+    }
+    
+    private static void pump( InputStream stream, Consumer<String> consumer, Object consumerLock, AtomicLongArray outputCounts, int countIndex ) {
+        char[] buffer = READ_BUFFER.get();
+        StringBuilder line = LINE_BUFFER.get();
+        line.setLength(0);
+        try (Reader reader = new InputStreamReader( stream, Charset.defaultCharset() )) {
+            int count;
+            while ( (count = reader.read(buffer)) != -1 ) {
+                outputCounts.addAndGet( countIndex, count );
+                for ( int i=0; i<count; i++ ) {
+                    if ( buffer[i] == '\n' ) outputCounts.incrementAndGet( countIndex+1 );
+                }
+                if ( consumer == null ) continue;  // Drain the stream so that the process never blocks on a full pipe
+                for ( int i=0; i<count; i++ ) {
+                    char c = buffer[i];
+                    if ( c == '\n' ) {
+                        deliver( line, consumer, consumerLock );
+                    } else if ( c != '\r' ) {
+                        line.append(c);
+                    }
+                }
+            }
+            if ( consumer != null && line.length() > 0 ) {
+                deliver( line, consumer, consumerLock );
+            }
+        } catch (IOException ex) {
+            LOGGER.log( Level.FINE, "Native process stream closed", ex );
+        } finally {
+            if ( line.capacity() > 8192 ) {
+                LINE_BUFFER.remove();  // Don't keep a huge buffer around after a very long line
+            }
+        }
+    }
+    
+    private static void deliver( StringBuilder line, Consumer<String> consumer, Object consumerLock ) {
+        String message = line.toString();
+        line.setLength(0);
+        synchronized (consumerLock) {
+            consumer.accept(message);
+        }
+    }
+    
+    private static long readCpuTimeNanos( Process process ) {
+        try {
+            Object info = INFO_METHOD.invoke( TO_HANDLE_METHOD.invoke(process) );
+            Optional<?> duration = (Optional<?>) TOTAL_CPU_DURATION_METHOD.invoke(info);
+            return duration.isPresent() ? ((Duration) duration.get()).toNanos() : -1;
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return -1;
+        }
+    }
+    
+    // Process.descendants() is only available since Java 9, hence the reflection:
+    private static void destroyProcessTree( Process process ) {
+        try {
+            Method descendantsMethod = Process.class.getMethod("descendants");
+            Method destroyMethod = Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly");
+            Stream<?> descendants = (Stream<?>) descendantsMethod.invoke(process);
+            descendants.forEach( handle -> {
+                try {
+                    destroyMethod.invoke(handle);
+                } catch (ReflectiveOperationException | RuntimeException ex) {
+                    LOGGER.log( Level.FINE, "Failed to destroy a descendant process", ex );
+                }
+            });
+        } catch (NoSuchMethodException | ClassNotFoundException ex) {
+            LOGGER.log( Level.FINE, "Descendant processes cannot be enumerated on this JVM, destroying only the main process" );
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            LOGGER.log( Level.WARNING, "Failed to destroy the descendants of a native process", ex );
         }
-        process.waitFor();
-        return process.exitValue();
+        process.destroyForcibly();
     }
     
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import static com.microchip.mplab.nbide.embedded.arduino.utils.JsonStrings.quote;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Records the native processes run while it is registered with
+ * {@link NativeProcessRunner#addInvocationListener} and writes them out as a timeline: a JSON report
+ * with a per-executable summary and a Chrome trace-event file (chrome://tracing, Perfetto).
+ * The runner notifies about all processes of the IDE: a timeline created with a tag only records the processes
+ * started with that {@link NativeProcessRunner#setInvocationTag tag}, e.g. those of one import.
+ */
+public class NativeProcessTimeline implements NativeProcessInvocationListener {
+
+
+    public static final String TIMELINE_FILENAME = "import-timeline.json";
+    public static final String TRACE_FILENAME = "import-timeline.trace.json";
+
+    private final List<NativeProcessInvocation> invocations = new ArrayList<>();
+    private final long originNanos = System.nanoTime();
+    private final long originTimeMillis = System.currentTimeMillis();
+    private final Object tag;
+
+
+    /**
+     * Creates a timeline of all native processes.
+     */
+    public NativeProcessTimeline() {
+        this( null );
+    }
+
+    /**
+     * Creates a timeline of the native processes started with the given tag (all of them if the tag is null).
+     */
+    public NativeProcessTimeline( Object tag ) {
+        this.tag = tag;
+    }
+
+    @Override
+    public synchronized void invocationFinished( NativeProcessInvocation invocation ) {
+        if ( tag != null && tag != invocation.getTag() ) return;
+        invocations.add(invocation);
+    }
+
+    public synchronized List<NativeProcessInvocation> getInvocations() {
+        List <NativeProcessInvocation> ret = new ArrayList<>(invocations);
+        ret.sort( Comparator.comparingLong( NativeProcessInvocation::getStartNanos ) );
+        return ret;
+    }
+
+    /**
+     * Writes the JSON timeline and the Chrome trace into the given directory (usually "nbproject").
+     */
+    public void write( Path directoryPath ) throws IOException {
+        Files.write( directoryPath.resolve(TIMELINE_FILENAME), toJson().getBytes(StandardCharsets.UTF_8) );
+        Files.write( directoryPath.resolve(TRACE_FILENAME), toChromeTrace().getBytes(StandardCharsets.UTF_8) );
+    }
+
+    public String toJson() {
+        List <NativeProcessInvocation> sorted = getInvocations();
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"startTimeMillis\": ").append( originTimeMillis ).append(",\n");
+        json.append("  \"invocationCount\": ").append( sorted.size() ).append(",\n");
+
+        // Summary per executable, most expensive first:
+        Map <String,List<NativeProcessInvocation>> byExecutable = sorted.stream().collect( Collectors.groupingBy( NativeProcessInvocation::getExecutableName, LinkedHashMap::new, Collectors.toList() ) );
+        List <String> executables = new ArrayList<>( byExecutable.keySet() );
+        executables.sort( Comparator.comparingLong( (String e) -> byExecutable.get(e).stream().mapToLong( NativeProcessInvocation::getDurationNanos ).sum() ).reversed() );
+        json.append("  \"summary\": [");
+        for ( int i=0; i<executables.size(); i++ ) {
+            List <NativeProcessInvocation> group = byExecutable.get( executables.get(i) );
+            json.append( i > 0 ? ",\n" : "\n" );
+            json.append("    { \"executable\": ").append( quote( executables.get(i) ) )
+                .append(", \"count\": ").append( group.size() )
+                .append(", \"totalWallMillis\": ").append( millis( group.stream().mapToLong( NativeProcessInvocation::getDurationNanos ).sum() ) )
+                .append(", \"totalCpuMillis\": ").append( millis( group.stream().mapToLong( v -> Math.max( 0, v.getCpuTimeNanos() ) ).sum() ) )
+                .append(", \"failed\": ").append( group.stream().filter( v -> v.getExitCode() == null || v.getExitCode() != 0 ).count() )
+                .append(" }");
+        }
+        json.append( executables.isEmpty() ? "],\n" : "\n  ],\n" );
+
+        json.append("  \"invocations\": [");
+        for ( int i=0; i<sorted.size(); i++ ) {
+            NativeProcessInvocation v = sorted.get(i);
+            json.append( i > 0 ? ",\n" : "\n" );
+            json.append("    {\n");
+            json.append("      \"executable\": ").append( quote( v.getExecutableName() ) ).append(",\n");
+            json.append("      \"command\": [").append( v.getCommand().stream().map( c -> quote(c) ).collect( Collectors.joining(", ") ) ).append("],\n");
+            json.append("      \"workingDirectory\": ").append( quote( v.getWorkingDirectoryPath() ) ).append(",\n");
+            json.append("      \"thread\": ").append( quote( v.getThreadName() ) ).append(",\n");
+            json.append("      \"startTimeMillis\": ").append( v.getStartTimeMillis() ).append(",\n");
+            json.append("      \"startOffsetMillis\": ").append( millis( v.getStartNanos() - originNanos ) ).append(",\n");
+            json.append("      \"endOffsetMillis\": ").append( millis( v.getEndNanos() - originNanos ) ).append(",\n");
+            json.append("      \"durationMillis\": ").append( millis( v.getDurationNanos() ) ).append(",\n");
+            json.append("      \"cpuMillis\": ").append( v.getCpuTimeNanos() >= 0 ? millis( v.getCpuTimeNanos() ) : "null" ).append(",\n");
+            json.append("      \"exitCode\": ").append( v.getExitCode() ).append(",\n");
+            json.append("      \"timedOut\": ").append( v.isTimedOut() ).append(",\n");
+            json.append("      \"stdout\": { \"chars\": ").append( v.getStdoutCharCount() ).append(", \"lines\": ").append( v.getStdoutLineCount() ).append(" },\n");
+            json.append("      \"stderr\": { \"chars\": ").append( v.getStderrCharCount() ).append(", \"lines\": ").append( v.getStderrLineCount() ).append(" }\n");
+            json.append("    }");
+        }
+        json.append( sorted.isEmpty() ? "]\n" : "\n  ]\n" );
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Returns the invocations as "complete" trace events. Overlapping invocations are put into separate
+     * rows so that the parallelism is visible.
+     */
+    public String toChromeTrace() {
+        List <NativeProcessInvocation> sorted = getInvocations();
+        List <Long> laneEnds = new ArrayList<>();
+        StringBuilder json = new StringBuilder();
+        json.append("{ \"displayTimeUnit\": \"ms\", \"traceEvents\": [");
+        for ( int i=0; i<sorted.size(); i++ ) {
+            NativeProcessInvocation v = sorted.get(i);
+            int lane = 0;
+            while ( lane < laneEnds.size() && laneEnds.get(lane) > v.getStartNanos() ) lane++;
+            if ( lane == laneEnds.size() ) {
+                laneEnds.add( v.getEndNanos() );
+            } else {
+                laneEnds.set( lane, v.getEndNanos() );
+            }
+            json.append( i > 0 ? ",\n" : "\n" );
+            json.append("  { \"name\": ").append( quote( v.getExecutableName() ) )
+                .append(", \"cat\": \"process\", \"ph\": \"X\", \"pid\": 1, \"tid\": ").append( lane + 1 )
+                .append(", \"ts\": ").append( (v.getStartNanos() - originNanos) / 1000 )
+                .append(", \"dur\": ").append( v.getDurationNanos() / 1000 )
+                .append(", \"args\": { \"command\": ").append( quote( String.join(" ", v.getCommand()) ) )
+                .append(", \"exitCode\": ").append( v.getExitCode() )
+                .append(", \"cpuMillis\": ").append( v.getCpuTimeNanos() >= 0 ? millis( v.getCpuTimeNanos() ) : "null" )
+                .append(", \"outputChars\": ").append( v.getStdoutCharCount() + v.getStderrCharCount() )
+                .append(" } }");
+        }
+        json.append("\n] }\n");
+        return json.toString();
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private static String millis( long nanos ) {
+        return String.format( Locale.ROOT, "%.3f", nanos / 1_000_000.0 );
+    }
+
+}
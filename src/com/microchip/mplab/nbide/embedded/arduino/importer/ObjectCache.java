@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of compiled object files shared by all projects of a user, in the spirit of ccache's direct mode.
+ * An entry is keyed by a hash of the normalized compile command and the contents of the source file and holds
+ * the object file, the dependency file written by the compiler and a manifest with the hashes of the headers
+ * listed in the dependency file. An entry is only used if all these headers still have the same contents.
+ */
+public final class ObjectCache {
+
+
+    private static final Logger LOGGER = Logger.getLogger(ObjectCache.class.getName());
+
+    public static final long DEFAULT_MAX_SIZE = 512L * 1024 * 1024;
+
+    private static final String OBJECT_FILENAME = "object.o";
+    private static final String DEPENDENCY_FILENAME = "object.d";
+    private static final String MANIFEST_FILENAME = "manifest";
+    // Changes whenever the key or the entries change, so that older entries are not used:
+    private static final String KEY_VERSION = "1";
+
+    private final CacheDirectory directory;
+    private final Map <String,String> fileHashes = new ConcurrentHashMap<>();
+    private int hitCount;
+    private int missCount;
+
+
+    public ObjectCache( Path rootPath ) {
+        this.directory = new CacheDirectory( rootPath, DEFAULT_MAX_SIZE );
+    }
+
+    public Path getRootPath() {
+        return directory.getRootPath();
+    }
+
+    public long getMaxSize() {
+        return directory.getMaxSize();
+    }
+
+    public void setMaxSize(long maxSize) {
+        directory.setMaxSize(maxSize);
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Computes the key of an object file from its compile command (with all variables resolved and the paths
+     * relative to the build directory) and the contents of its source file.
+     */
+    public String computeKey( String compileCommand, Path sourceFilePath ) throws IOException {
+        MessageDigest digest = createDigest();
+        digest.update( (KEY_VERSION + "\0" + compileCommand + "\0").getBytes( StandardCharsets.UTF_8 ) );
+        digest.update( Files.readAllBytes(sourceFilePath) );
+        return toHex( digest.digest() );
+    }
+
+    /**
+     * Copies the cached object file and its dependency file to the given paths if the headers the object
+     * was compiled with are unchanged. Relative header paths are resolved against the build directory.
+     *
+     * @return false if there is no such entry or a header has changed
+     */
+    public boolean restore( String key, Path buildDirPath, Path objectFilePath, Path dependencyFilePath ) throws IOException {
+        Optional <Path> entryPath = directory.find( key );
+        try {
+            if ( entryPath.isPresent() && headersMatch( entryPath.get().resolve(MANIFEST_FILENAME), buildDirPath ) ) {
+                Files.copy( entryPath.get().resolve(OBJECT_FILENAME), objectFilePath, StandardCopyOption.REPLACE_EXISTING );
+                Files.copy( entryPath.get().resolve(DEPENDENCY_FILENAME), dependencyFilePath, StandardCopyOption.REPLACE_EXISTING );
+                countLookup(true);
+                return true;
+            }
+        } catch (NoSuchFileException ex) {
+            // Evicted in the meantime
+        }
+        countLookup(false);
+        return false;
+    }
+
+    /**
+     * Adds a compiled object file and its dependency file to the cache, replacing an entry with the same key
+     * (which has been compiled with different headers).
+     */
+    public void publish( String key, Path buildDirPath, Path objectFilePath, Path dependencyFilePath ) throws IOException {
+        List <String> manifest = new ArrayList<>();
+        for ( String dependency : parseDependencies( dependencyFilePath ) ) {
+            manifest.add( hash( buildDirPath.resolve(dependency) ) + " " + dependency );
+        }
+        Path manifestPath = Files.createTempFile( "manifest", null );
+        try {
+            Files.write( manifestPath, manifest );
+            Map <String,Path> files = new LinkedHashMap<>();
+            files.put( OBJECT_FILENAME, objectFilePath );
+            files.put( DEPENDENCY_FILENAME, dependencyFilePath );
+            files.put( MANIFEST_FILENAME, manifestPath );
+            directory.publish( key, files, true );
+        } finally {
+            Files.deleteIfExists( manifestPath );
+        }
+    }
+
+    /**
+     * Removes the least recently used entries if the cache may have grown beyond its maximum size.
+     */
+    public void evict() throws IOException {
+        int removedCount = directory.evict();
+        if ( removedCount > 0 ) {
+            LOGGER.log( Level.INFO, "Evicted {0} cached object files", removedCount );
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectCache{" + "rootPath=" + getRootPath() + ", maxSize=" + getMaxSize() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + '}';
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private boolean headersMatch( Path manifestPath, Path buildDirPath ) throws IOException {
+        for ( String line : Files.readAllLines(manifestPath) ) {
+            int separatorIndex = line.indexOf(' ');
+            Path headerPath = buildDirPath.resolve( line.substring( separatorIndex + 1 ) );
+            if ( !Files.isRegularFile(headerPath) || !hash(headerPath).equals( line.substring( 0, separatorIndex ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The hashes of the headers shared by many sources are computed once per modification:
+    private String hash( Path filePath ) throws IOException {
+        String stamp = filePath.toAbsolutePath().normalize() + "|" + Files.size(filePath) + "|" + Files.getLastModifiedTime(filePath).toMillis();
+        String hash = fileHashes.get(stamp);
+        if ( hash == null ) {
+            hash = toHex( createDigest().digest( Files.readAllBytes(filePath) ) );
+            fileHashes.put( stamp, hash );
+        }
+        return hash;
+    }
+
+    private synchronized void countLookup( boolean hit ) {
+        if ( hit ) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+    }
+
+    // Parses the prerequisites of the first rule of a dependency file written with -MMD (e.g. "a.o: a.c a.h \", " b.h")
+    private static List<String> parseDependencies( Path dependencyFilePath ) throws IOException {
+        List <String> ret = new ArrayList<>();
+        boolean targetSeen = false;
+        for ( String line : Files.readAllLines(dependencyFilePath) ) {
+            boolean continued = line.endsWith("\\");
+            if ( continued ) {
+                line = line.substring( 0, line.length()-1 );
+            }
+            StringBuilder token = new StringBuilder();
+            for ( int i=0; i<=line.length(); i++ ) {
+                char c = i < line.length() ? line.charAt(i) : ' ';
+                if ( c == '\\' && i+1 < line.length() && line.charAt(i+1) == ' ' ) {
+                    token.append(' ');
+                    i++;
+                } else if ( Character.isWhitespace(c) ) {
+                    if ( token.length() > 0 ) {
+                        if ( targetSeen ) {
+                            ret.add( token.toString() );
+                        } else if ( token.charAt( token.length()-1 ) == ':' ) {
+                            targetSeen = true;
+                        }
+                        token.setLength(0);
+                    }
+                } else {
+                    token.append(c);
+                }
+            }
+            if ( !continued && targetSeen ) break;
+        }
+        return ret;
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex( byte[] bytes ) {
+        StringBuilder ret = new StringBuilder();
+        for ( byte b : bytes ) {
+            ret.append( String.format( "%02x", b ) );
+        }
+        return ret.toString();
+    }
+
+}
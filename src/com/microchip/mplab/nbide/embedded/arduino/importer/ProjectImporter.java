@@ -15,10 +15,11 @@
 
 package com.microchip.mplab.nbide.embedded.arduino.importer;
 
-
 import com.microchip.mplab.nbide.embedded.arduino.utils.CopyingFileVisitor;
 import com.microchip.mplab.nbide.embedded.arduino.utils.CopyingFileVisitorWithHeaderDereference;
+import com.microchip.mplab.nbide.embedded.arduino.utils.FileCopyStrategy;
 import com.microchip.mplab.nbide.embedded.arduino.utils.FileTreeWalker;
+import com.microchip.mplab.nbide.embedded.arduino.utils.ParallelFileCopier;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.FileSystems;
@@ -27,6 +28,8 @@ import static java.nio.file.FileVisitResult.CONTINUE;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
 import java.util.logging.Level;
@@ -35,7 +38,15 @@ import java.util.logging.Logger;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -58,6 +69,11 @@ public class ProjectImporter {
     public static final PathMatcher PROJECT_SOURCE_FILE_MATCHER = FileSystems.getDefault().getPathMatcher("glob:*.{c,C,cpp,CPP,s,S,H,h,X,x,INO,ino}");
     public static final PathMatcher LIBRARY_SOURCE_FILE_MATCHER = FileSystems.getDefault().getPathMatcher("glob:*.{c,C,cpp,CPP,s,S,H,h,X,x}");
     public static final PathMatcher LINKER_SCRIPT_MATCHER = FileSystems.getDefault().getPathMatcher("glob:*.ld");
+    /**
+     * @deprecated the importer enumerates library files with the {@link LibrarySourceEnumerator}, which never visits
+     * these directories; kept for existing callers
+     */
+    @Deprecated
     public static final PathMatcher LIBRARY_DIR_MATCHER = (Path path) -> {
         String filename = path.getFileName().toString();
         return !filename.equals( LIBRARY_EXAMPLES_DIR_NAME ) && !filename.equals( LIBRARY_TEST_DIR_NAME );
@@ -66,21 +82,39 @@ public class ProjectImporter {
     
     // R/W properties
     private boolean copyingFiles;
+    private boolean syncing;
+    private boolean syncComparingContents;
+    private boolean copyingReachableLibraryFilesOnly;
+    private FileCopyMode fileCopyMode = FileCopyMode.COPY;
+    private boolean buildingLibraryArchives;
+    private boolean unityBuildingCore;
+    private List <String> unityBuildExclusions = new ArrayList<>();
+    private boolean precompilingCoreHeader;
     private Path sourceProjectDirectoryPath;
     private Path targetProjectDirectoryPath;
+    private Path targetCoreDirectoryPath;
     private Path customLdScriptsPath;
     private BoardConfiguration boardConfiguration;
     private ArduinoBuilderRunner arduinoBuilderRunner;
+    private String preprocessingCommand;
     private BootloaderPathProvider bootloaderPathProvider;
+    private LibCoreCache libCoreCache;
+    private ObjectCache objectCache;
+    private SharedFileStore sharedFileStore;
 
     // RO properties set during "execute":
     private List <Path> sourceLibraryPaths;
     private Path sourceCoreDirPath;
     private Path sourceVariantDirPath;
     private boolean customLdScriptBoard;
+    private FileCopyStrategy fileCopyStrategy;
+    private FileCopyStrategy sharedFileCopyStrategy;
+    private ImportManifest importManifest;
     
     // Fixed properties:
     private final List <String> mainLibraryNames = new ArrayList<>();    
+    private final List <String> libraryArchiveNames = new ArrayList<>();
+    private final Set <String> dotALinkageArchiveNames = new HashSet<>();
     
 
     public void setCopyingFiles(boolean copyingFiles) {
@@ -91,6 +125,153 @@ public class ProjectImporter {
         return copyingFiles;
     }
 
+    /**
+     * Imports into an existing project without deleting it first. In copy mode, the import is compared with the
+     * manifest written by the previous import: only new and changed files are copied, the files that are no longer
+     * imported are removed and the core library is only rebuilt if the board, the toolchain or the core and variant
+     * files have changed. Files are compared by size and modification time (see {@link #setSyncComparingContents}).
+     */
+    public void setSyncing(boolean syncing) {
+        this.syncing = syncing;
+    }
+
+    public boolean isSyncing() {
+        return syncing;
+    }
+
+    /**
+     * When {@link #setSyncing syncing}, compares the contents of files whose modification time has changed
+     * but whose size has not, so that touched but unchanged files are not copied again.
+     */
+    public void setSyncComparingContents(boolean syncComparingContents) {
+        this.syncComparingContents = syncComparingContents;
+    }
+
+    public boolean isSyncComparingContents() {
+        return syncComparingContents;
+    }
+
+    /**
+     * In copy mode, copies only the library headers that are transitively reachable from the sketch,
+     * plus all translation units of the libraries that have reachable files.
+     */
+    public void setCopyingReachableLibraryFilesOnly(boolean copyingReachableLibraryFilesOnly) {
+        this.copyingReachableLibraryFilesOnly = copyingReachableLibraryFilesOnly;
+    }
+
+    public boolean isCopyingReachableLibraryFilesOnly() {
+        return copyingReachableLibraryFilesOnly;
+    }
+
+    /**
+     * Sets how the sketch, core, variant, library, linker script and bootloader files are put in place
+     * (see {@link FileCopyMode}). The default is {@link FileCopyMode#COPY}.
+     */
+    public void setFileCopyMode(FileCopyMode fileCopyMode) {
+        this.fileCopyMode = fileCopyMode;
+        this.fileCopyStrategy = null;
+        this.sharedFileCopyStrategy = null;
+    }
+
+    public FileCopyMode getFileCopyMode() {
+        return fileCopyMode;
+    }
+
+    /**
+     * In copy mode, builds every imported library with translation units into its own archive in the core
+     * directory (see {@link LibraryBuilder}), so that the project does not compile the library sources.
+     * Off by default.
+     */
+    public void setBuildingLibraryArchives(boolean buildingLibraryArchives) {
+        this.buildingLibraryArchives = buildingLibraryArchives;
+    }
+
+    public boolean isBuildingLibraryArchives() {
+        return buildingLibraryArchives;
+    }
+
+    /**
+     * Builds the core library in a few large translation units (see {@link LibCoreBuilder#setUnityBuild}).
+     */
+    public void setUnityBuildingCore(boolean unityBuildingCore) {
+        this.unityBuildingCore = unityBuildingCore;
+    }
+
+    public boolean isUnityBuildingCore() {
+        return unityBuildingCore;
+    }
+
+    /**
+     * Sets the glob patterns of the core sources that are compiled on their own when {@link #setUnityBuildingCore unity building the core}.
+     */
+    public void setUnityBuildExclusions(List<String> unityBuildExclusions) {
+        this.unityBuildExclusions = new ArrayList<>(unityBuildExclusions);
+    }
+
+    public List<String> getUnityBuildExclusions() {
+        return new ArrayList<>(unityBuildExclusions);
+    }
+
+    /**
+     * In copy mode, precompiles the core header of the board with the flags of the core library (see
+     * {@link LibCoreBuilder#setPrecompilingHeader}), so that the C++ sources of the core and the generated
+     * sketch sources of the project (whose first include it is) can include it without parsing it.
+     */
+    public void setPrecompilingCoreHeader(boolean precompilingCoreHeader) {
+        this.precompilingCoreHeader = precompilingCoreHeader;
+    }
+
+    public boolean isPrecompilingCoreHeader() {
+        return precompilingCoreHeader;
+    }
+
+    /**
+     * Returns the precompiled core header in the target core directory, if it has been made (see
+     * {@link #setPrecompilingCoreHeader}). The compiler takes it for the core header wherever that is the first
+     * include, as in the generated sketch sources, and the flags match.
+     */
+    public Optional<Path> getPrecompiledCoreHeaderPath() {
+        if ( !copyingFiles || !precompilingCoreHeader ) return Optional.empty();
+        Path precompiledHeaderPath = getTargetCoreDirectoryPath().resolve( LibCoreBuilder.PRECOMPILED_HEADER_NAME + ".gch" );
+        return Files.exists(precompiledHeaderPath) ? Optional.of(precompiledHeaderPath) : Optional.empty();
+    }
+
+    /**
+     * Returns the command that makes the precompiled core header again if one of the headers it includes has
+     * changed, to be run from the target project directory before every build of the project. The compiler
+     * only checks the flags of a precompiled header, so a stale one would be used without notice.
+     * Empty if there is no precompiled core header.
+     */
+    public Optional<String> getPrecompiledCoreHeaderUpdateCommand() {
+        return getPrecompiledCoreHeaderPath().map( precompiledHeaderPath -> {
+            // The rule of the Makefile in the core directory, run in the build directory like the core library build:
+            Path coreDirPath = getTargetCoreDirectoryPath();
+            Path buildDirPath = LibCoreBuilder.getBuildDirectoryPath( coreDirPath );
+            String buildDir = toCommandPath( getTargetProjectDirectoryPath().relativize( buildDirPath ) );
+            String makefile = toCommandPath( buildDirPath.relativize( coreDirPath.resolve( new LibCoreBuilder().getMakefileName() ) ) );
+            String target = toCommandPath( buildDirPath.relativize( precompiledHeaderPath ) );
+            return "${MKDIR} \"" + buildDir + "\" && ${MAKE} -C \"" + buildDir + "\" -f \"" + makefile + "\" \"" + target + "\"";
+        });
+    }
+
+    /**
+     * Returns the names of the library archives built by the import, to be linked with "-l" (empty unless
+     * {@link #setBuildingLibraryArchives building library archives}).
+     */
+    public List<String> getLibraryArchiveNames() {
+        return new ArrayList<>(libraryArchiveNames);
+    }
+
+    /**
+     * Tells whether the library of the given archive asks to be linked as an archive ("dot_a_linkage" in its
+     * library.properties), i.e. only with the objects that resolve a symbol. The objects of all other archives
+     * have to be linked in full, as if the library sources had been compiled by the project, since interrupt
+     * handlers and static constructors are not referenced by anything.
+     */
+    public boolean isDotALinkageArchive( String libraryArchiveName ) {
+        return dotALinkageArchiveNames.contains( libraryArchiveName );
+    }
+
     public void setSourceProjectDirectoryPath(Path sourceProjectDirectoryPath) {
         this.sourceProjectDirectoryPath = sourceProjectDirectoryPath;
     }
@@ -131,6 +312,42 @@ public class ProjectImporter {
         return customLdScriptsPath;
     }
 
+    /**
+     * Sets the cache of built core libraries shared with other imports (none by default).
+     */
+    public void setLibCoreCache(LibCoreCache libCoreCache) {
+        this.libCoreCache = libCoreCache;
+    }
+
+    public LibCoreCache getLibCoreCache() {
+        return libCoreCache;
+    }
+
+    /**
+     * Sets the cache of compiled object files shared with other imports (none by default).
+     */
+    public void setObjectCache(ObjectCache objectCache) {
+        this.objectCache = objectCache;
+    }
+
+    public ObjectCache getObjectCache() {
+        return objectCache;
+    }
+
+    /**
+     * In copy mode, puts the core, variant, library, linker script and bootloader files in place from the given
+     * store (see {@link SharedFileStore}) instead of using the {@link #setFileCopyMode file copy mode}.
+     * The sketch files are not shared.
+     */
+    public void setSharedFileStore(SharedFileStore sharedFileStore) {
+        this.sharedFileStore = sharedFileStore;
+        this.sharedFileCopyStrategy = null;
+    }
+
+    public SharedFileStore getSharedFileStore() {
+        return sharedFileStore;
+    }
+
     public void setBoardConfiguration(BoardConfiguration boardConfiguration) {
         this.boardConfiguration = boardConfiguration;
     }
@@ -140,52 +357,184 @@ public class ProjectImporter {
     }
     
     public void execute() throws IOException, InterruptedException {
-        // TODO: Add a property check
-        customLdScriptBoard = CUSTOM_LD_SCRIPT_BOARD_IDS.contains( boardConfiguration.getBoardId() );
+        importSharedFiles();
+        importBoardFiles();
         
+        if ( copyingFiles ) {
+            arduinoBuilderRunner.cleanup();  // Removes the "temp" directory
+        }
+    }
+    
+    /**
+     * Runs the part of the import that does not depend on the board: preprocessing, dependency resolution
+     * and (in copy mode) copying the sketch and library files.
+     */
+    public void importSharedFiles() throws IOException {
         if ( copyingFiles ) {
             LOGGER.log(Level.INFO, "Running in copy-all mode" );
         } else {
             LOGGER.log(Level.INFO, "Running in no-copy mode" );
         }
         
-        sourceCoreDirPath = boardConfiguration.getCoreDirectoryPath();
-        LOGGER.log(Level.INFO, "Using core directory: {0}", new Object[] {sourceCoreDirPath} );
-        sourceVariantDirPath = boardConfiguration.getVariantPath();
-        LOGGER.log(Level.INFO, "Using variant directory for board \"{0}\": {1}", new Object[] {boardConfiguration.getBoardId(), sourceVariantDirPath} );
-        
-        Path coreDirPath = copyingFiles ? getTargetCoreDirectoryPath() : sourceCoreDirPath;
-        Path variantDirPath = copyingFiles ? getTargetCoreDirectoryPath() : sourceVariantDirPath;
-        Path ldScriptDirPath = customLdScriptBoard ? getTargetCoreDirectoryPath() : null;
-        
-        boardConfiguration.getPlatform().putValue("runtime.ide.version", "10802");
-        boardConfiguration.putValue("build.path", "\""+targetProjectDirectoryPath.toString()+"\"" );
-        boardConfiguration.putValue("build.core.path", coreDirPath.toString() );
-        boardConfiguration.putValue("build.variant.path", variantDirPath != null ? variantDirPath.toString() : "" );
-        boardConfiguration.putValue("build.ldscript_dir.path", ldScriptDirPath != null ? ldScriptDirPath.toString() : "" );
-        
+        setupBoardConfiguration();
         createProjectDirectoryStructure();
-        Path tempSketchPath = preprocessSourceProject();
-        importSketchFiles( tempSketchPath );
+        Path tempSketchPath = preprocessSourceProject( copyingFiles );
         
         if ( copyingFiles ) {
-            copyCoreFiles();
-            copyLibraries();
-            copyLinkerScripts();
+            ParallelFileCopier fileCopier = createFileCopier();
+            addSketchFiles( tempSketchPath, fileCopier );
+            addLibraries( fileCopier );
+            fileCopier.copy();
+            getImportManifest().addWrittenTargets( fileCopier.getTargetPaths() );
+            if ( syncing ) {
+                // Before the library archives are built from the contents of the library directory:
+                getImportManifest().removeStaleFiles( getTargetLibraryDirectoryPath() );
+                getImportManifest().removeStaleFiles( getTargetSourceFilesDirectoryPath() );
+            }
+            LibraryCatalog.getInstance().invalidate( getTargetLibraryDirectoryPath() );
+        }
+    }
+    
+    /**
+     * Preprocesses the sketch for the board of this importer, on a runner of its own and in a temporary directory,
+     * and returns the libraries the sketch uses with that board. The preprocessing command of this board is kept
+     * (see {@link #getPreprocessingCommand()}) when the importer then {@link #useSharedFilesOf uses the shared files}
+     * of another one.
+     */
+    public List<Path> resolveLibraryPaths() throws IOException {
+        ArduinoBuilderRunner runner = arduinoBuilderRunner.createSibling();
+        runner.preprocess( boardConfiguration, findMainInoFilePath( sourceProjectDirectoryPath ) );
+        try {
+            preprocessingCommand = runner.getCommand();
+            return runner.getAllLibraryPaths();
+        } finally {
+            runner.cleanup();  // Removes the "temp" directory
+        }
+    }
+    
+    /**
+     * Makes this importer reuse the results of {@link #importSharedFiles()} run by another importer of the same
+     * project (and the same platform) instead of running them again. The libraries depend on the board (its
+     * defines and architecture), so the other importer must have resolved the same libraries
+     * (see {@link #resolveLibraryPaths()}).
+     */
+    public void useSharedFilesOf( ProjectImporter sharedImporter ) {
+        arduinoBuilderRunner = sharedImporter.arduinoBuilderRunner;
+        sourceLibraryPaths = new ArrayList<>( sharedImporter.sourceLibraryPaths );
+        mainLibraryNames.clear();
+        mainLibraryNames.addAll( sharedImporter.mainLibraryNames );
+        setupBoardConfiguration();
+    }
+    
+    /**
+     * Runs the board specific part of the import: core files, linker scripts, bootloader, the core library
+     * and the library archives.
+     */
+    public void importBoardFiles() throws IOException, InterruptedException {
+        Files.createDirectories( getTargetCoreDirectoryPath() );
+        
+        ParallelFileCopier fileCopier = createFileCopier();
+        if ( copyingFiles ) {
+            addCoreFiles( fileCopier );
+            addLinkerScripts( fileCopier );
         } else if ( customLdScriptBoard ) {
-            copyLinkerScripts();
+            addLinkerScripts( fileCopier );
         }
+        fileCopier.copy();
         
-        copyBootloaderFiles();
-        buildLibCore();
+        if ( copyingFiles ) {
+            ImportManifest manifest = getImportManifest();
+            manifest.addWrittenTargets( fileCopier.getTargetPaths() );
+            manifest.setCoreInputs( createLibCoreBuilder().computeFingerprint( boardConfiguration, arduinoBuilderRunner.getToolFinder() ) );
+        }
+        if ( syncing && copyingFiles && !getImportManifest().haveCoreInputsChanged() && Files.exists( getTargetCoreDirectoryPath().resolve( LibCoreBuilder.LIB_CORE_FILENAME ) ) ) {
+            LOGGER.log( Level.INFO, "The core library is up to date" );
+            copyBootloaderFiles();
+        } else {
+            buildLibCoreAndCopyBootloaderFiles();
+        }
+        
+        if ( copyingFiles && buildingLibraryArchives ) {
+            buildLibraryArchives();
+        }
         
         if ( copyingFiles ) {
-            arduinoBuilderRunner.cleanup();  // Removes the "temp" directory
+            ImportManifest manifest = getImportManifest();
+            if ( syncing ) {
+                removeStaleLibraryArchives();
+                manifest.removeStaleFiles( getTargetCoreDirectoryPath() );
+                LOGGER.log( Level.INFO, "Synchronized the project: {0}", manifest );
+            }
+            manifest.write( getTargetCoreDirectoryPath().resolve( ImportManifest.FILENAME ) );
         }
     }
     
+    /**
+     * Resolves what {@link #execute()} would do - the board configuration, the libraries and the files
+     * to import - and estimates the number of compile commands, without writing anything to the target
+     * directory. Only the (board independent) preprocessing runs, in a temporary directory. The importer can
+     * still {@link #execute()} afterwards.
+     */
+    public ImportPlan plan() throws IOException {
+        // On a runner of its own, so that the runner of the import (possibly shared with other importers) keeps its state:
+        ArduinoBuilderRunner importRunner = arduinoBuilderRunner;
+        arduinoBuilderRunner = importRunner.createSibling();
+        setupBoardConfiguration();
+        try {
+            preprocessSourceProject( true );
+            ImportPlan plan = new ImportPlan( boardConfiguration, copyingFiles, targetProjectDirectoryPath, getTargetCoreDirectoryPath() );
+            
+            // Sketch:
+            List <Path> sketchFilePaths;
+            try (Stream<Path> s = FileTreeWalker.walk( getPreprocessedSketchDirectoryPath() )) {
+                sketchFilePaths = s.filter( p -> !Files.isDirectory(p) && PROJECT_SOURCE_FILE_MATCHER.matches(p.getFileName()) ).collect( Collectors.toList() );
+            }
+            plan.addFiles( ImportPlan.FileCategory.SKETCH, sketchFilePaths );
+            plan.addCompileCommands( ImportPlan.CompileCommandCategory.SKETCH, countTranslationUnits(sketchFilePaths) );
+            
+            // Libraries:
+            sourceLibraryPaths.forEach( p -> plan.addLibrary( p, mainLibraryNames.contains( p.getFileName().toString() ) ) );
+            Map <Path,List<Path>> libraryFiles = copyingFiles ? findLibraryFilesToCopy() : findLibraryFiles( null );
+            libraryFiles.values().forEach( filePaths -> {
+                plan.addFiles( ImportPlan.FileCategory.LIBRARY, filePaths );
+                plan.addCompileCommands( ImportPlan.CompileCommandCategory.LIBRARY, countTranslationUnits(filePaths) );
+            });
+            
+            // Core, variant, linker scripts and bootloader:
+            try (Stream<Path> s = FileTreeWalker.walk( sourceCoreDirPath )) {
+                plan.addFiles( ImportPlan.FileCategory.CORE, s.filter( p -> !Files.isDirectory(p) && PROJECT_SOURCE_FILE_MATCHER.matches(p.getFileName()) ).collect( Collectors.toList() ) );
+            }
+            if ( sourceVariantDirPath != null ) {
+                try (Stream<Path> s = FileTreeWalker.walk( sourceVariantDirPath )) {
+                    plan.addFiles( ImportPlan.FileCategory.VARIANT, s.filter( p -> !Files.isDirectory(p) && LIBRARY_SOURCE_FILE_MATCHER.matches(p.getFileName()) ).collect( Collectors.toList() ) );
+                }
+            }
+            plan.addCompileCommands( ImportPlan.CompileCommandCategory.CORE, countTranslationUnits( boardConfiguration.getCoreFilePaths() ) );
+            plan.addFiles( ImportPlan.FileCategory.LINKER_SCRIPT, findLinkerScriptSourcePaths() );
+            plan.addFiles( ImportPlan.FileCategory.BOOTLOADER, findBootloaderSourcePaths() );
+            
+            LOGGER.log(Level.INFO, "Import plan: {0}", plan );
+            return plan;
+        } finally {
+            try {
+                if ( arduinoBuilderRunner.getPreprocessDirPath() != null ) {
+                    arduinoBuilderRunner.cleanup();  // Removes the "temp" directory of the plan
+                }
+            } finally {
+                arduinoBuilderRunner = importRunner;
+            }
+        }
+    }
+    
+    /**
+     * @return the arduino-builder command that preprocesses the sketch for the board of this importer
+     */
     public String getPreprocessingCommand() {
-        return arduinoBuilderRunner.getCommand();
+        return preprocessingCommand != null ? preprocessingCommand : arduinoBuilderRunner.getCommand();
+    }
+
+    List<Path> getSourceLibraryPaths() {
+        return sourceLibraryPaths != null ? new ArrayList<>(sourceLibraryPaths) : Collections.emptyList();
     }
 
     public Path getPreprocessedSketchDirectoryPath() {
@@ -196,8 +545,16 @@ public class ProjectImporter {
         return targetProjectDirectoryPath.resolve(SOURCE_FILES_DIRECTORY_NAME);
     }
 
+    /**
+     * Sets a custom directory for the imported core files and the core library (by default "imported-core"
+     * in the target project directory). Used when several boards are imported into one project.
+     */
+    public void setTargetCoreDirectoryPath(Path targetCoreDirectoryPath) {
+        this.targetCoreDirectoryPath = targetCoreDirectoryPath;
+    }
+
     public Path getTargetCoreDirectoryPath() {
-        return targetProjectDirectoryPath.resolve(CORE_DIRECTORY_NAME);
+        return targetCoreDirectoryPath != null ? targetCoreDirectoryPath : targetProjectDirectoryPath.resolve(CORE_DIRECTORY_NAME);
     }
     
     public Path getTargetLibraryDirectoryPath() {
@@ -292,9 +649,30 @@ public class ProjectImporter {
     /***************************************
      ********** PRIVATE METHODS ************
      ***************************************/        
-    private Path preprocessSourceProject() {
+    private void setupBoardConfiguration() {
+        // TODO: Add a property check
+        customLdScriptBoard = CUSTOM_LD_SCRIPT_BOARD_IDS.contains( boardConfiguration.getBoardId() );
+        
+        sourceCoreDirPath = boardConfiguration.getCoreDirectoryPath();
+        LOGGER.log(Level.INFO, "Using core directory: {0}", new Object[] {sourceCoreDirPath} );
+        sourceVariantDirPath = boardConfiguration.getVariantPath();
+        LOGGER.log(Level.INFO, "Using variant directory for board \"{0}\": {1}", new Object[] {boardConfiguration.getBoardId(), sourceVariantDirPath} );
+        
+        Path coreDirPath = copyingFiles ? getTargetCoreDirectoryPath() : sourceCoreDirPath;
+        Path variantDirPath = copyingFiles ? getTargetCoreDirectoryPath() : sourceVariantDirPath;
+        Path ldScriptDirPath = customLdScriptBoard ? getTargetCoreDirectoryPath() : null;
+        
+        boardConfiguration.getPlatform().putValue("runtime.ide.version", "10802");
+        boardConfiguration.putValue("build.path", "\""+targetProjectDirectoryPath.toString()+"\"" );
+        boardConfiguration.putValue("build.core.path", coreDirPath.toString() );
+        boardConfiguration.putValue("build.variant.path", variantDirPath != null ? variantDirPath.toString() : "" );
+        boardConfiguration.putValue("build.ldscript_dir.path", ldScriptDirPath != null ? ldScriptDirPath.toString() : "" );
+    }
+    
+    private Path preprocessSourceProject( boolean usingTempDir ) {
         Path inoFilePath = findMainInoFilePath( sourceProjectDirectoryPath );
-        if ( copyingFiles ) {
+        mainLibraryNames.clear();
+        if ( usingTempDir ) {
             arduinoBuilderRunner.preprocess(boardConfiguration, inoFilePath);
         } else {
             arduinoBuilderRunner.preprocess(boardConfiguration, inoFilePath, targetProjectDirectoryPath );
@@ -308,6 +686,14 @@ public class ProjectImporter {
     }
     
     private void createProjectDirectoryStructure() throws IOException {
+        if ( syncing ) {
+            if ( copyingFiles ) {
+                Files.createDirectories(targetProjectDirectoryPath.resolve(LIBRARIES_DIRECTORY_NAME));
+                Files.createDirectories(targetProjectDirectoryPath.resolve(SOURCE_FILES_DIRECTORY_NAME));
+            }
+            Files.createDirectories(targetProjectDirectoryPath.resolve(CORE_DIRECTORY_NAME));
+            return;
+        }
         if ( copyingFiles ) {
             Files.createDirectory(targetProjectDirectoryPath.resolve(LIBRARIES_DIRECTORY_NAME));
             Files.createDirectory(targetProjectDirectoryPath.resolve(SOURCE_FILES_DIRECTORY_NAME));
@@ -316,13 +702,8 @@ public class ProjectImporter {
     }
     
     private Stream<Path> getLibraryFilePaths( boolean main ) throws IOException {
-        return getLibraryDirPaths(main).flatMap( libDirPath -> {
-            try {            
-                return FileTreeWalker.walk(libDirPath).filter( p -> LIBRARY_SOURCE_FILE_MATCHER.matches(p.getFileName()) );
-            } catch (IOException ex) {
-                throw new UncheckedIOException(ex);
-            }
-        } );
+        LibraryCatalog libraryCatalog = LibraryCatalog.getInstance();
+        return getLibraryDirPaths(main).flatMap( libDirPath -> libraryCatalog.getSourceFilePaths(libDirPath).stream() );
     }
     
     private Stream<Path> getLibraryDirPaths( boolean main ) throws IOException {
@@ -336,55 +717,109 @@ public class ProjectImporter {
         return inoProjectPath.resolve(inoProjectPath.getFileName() + ".ino");
     }
             
-    private void copyCoreFiles() throws IOException {
-        if ( !copyingFiles ) return;
+    // The variant files are added last so that they replace core files of the same name:
+    private void addCoreFiles( ParallelFileCopier fileCopier ) throws IOException {
         Path targetCoreDirPath = getTargetCoreDirectoryPath();        
-        Files.walkFileTree(sourceCoreDirPath, new CopyingFileVisitor( sourceCoreDirPath, targetCoreDirPath, PROJECT_SOURCE_FILE_MATCHER ));
-        Files.walkFileTree(sourceVariantDirPath, new CopyingFileVisitorWithHeaderDereference( sourceVariantDirPath, targetCoreDirPath ));
+        fileCopier.addTree( sourceCoreDirPath, new CopyingFileVisitor( sourceCoreDirPath, targetCoreDirPath, PROJECT_SOURCE_FILE_MATCHER ) );
+        fileCopier.addTree( sourceVariantDirPath, new CopyingFileVisitorWithHeaderDereference( sourceVariantDirPath, targetCoreDirPath ) );
     }
     
-    private void copyLibraries() {
-        if ( !copyingFiles ) return;
+    private void addLibraries( ParallelFileCopier fileCopier ) throws IOException {
         Path targetLibrariesDirPath = getTargetLibraryDirectoryPath();
+        for ( Map.Entry<Path,List<Path>> e : findLibraryFilesToCopy().entrySet() ) {
+            // The library paths come from includes.cache as they are, the file paths from the catalog normalized:
+            Path libraryPath = e.getKey().toAbsolutePath().normalize();
+            Path targetLibraryPath = targetLibrariesDirPath.resolve( libraryPath.getFileName().toString().trim() );
+            Files.createDirectories( targetLibraryPath );
+            for ( Path filePath : e.getValue() ) {
+                Path relativeFilePath = libraryPath.relativize( filePath.toAbsolutePath().normalize() );
+                if ( relativeFilePath.startsWith("..") ) {
+                    LOGGER.log(Level.WARNING, "Skipping a file outside of its library: {0}", filePath );
+                    continue;
+                }
+                fileCopier.addFile( filePath, targetLibraryPath.resolve( relativeFilePath.toString() ), COPY_ATTRIBUTES, REPLACE_EXISTING );
+            }
+        }
+    }
+    
+    // Only the files the library specification considers part of the library are copied.
+    // The "library.properties" file goes along so that the copy keeps its layout and metadata:
+    private Map<Path,List<Path>> findLibraryFilesToCopy() {
+        Map <Path,List<Path>> ret = findLibraryFiles( copyingReachableLibraryFilesOnly ? findReachableLibraryFiles() : null );
+        ret.forEach( (libraryPath, filePaths) -> {
+            Path propertiesFilePath = libraryPath.resolve( Library.PROPERTIES_FILENAME );
+            if ( Files.exists(propertiesFilePath) ) {
+                filePaths.add( propertiesFilePath );
+            }
+        });
+        return ret;
+    }
+    
+    private Map<Path,List<Path>> findLibraryFiles( Map<Path,List<Path>> reachableLibraryFiles ) {
+        LibraryCatalog libraryCatalog = LibraryCatalog.getInstance();
+        Map <Path,List<Path>> ret = new LinkedHashMap<>();
         sourceLibraryPaths.forEach( libraryPath -> {
             String libName = libraryPath.getFileName().toString().trim();
             if ( libName.isEmpty() ) return;
-            try {
-                Files.walkFileTree(
-                    libraryPath, 
-                    new CopyingFileVisitor(
-                        libraryPath, 
-                        targetLibrariesDirPath.resolve( libName ), 
-                        LIBRARY_SOURCE_FILE_MATCHER, 
-                        LIBRARY_DIR_MATCHER
-                    )
-                );
-            } catch (IOException ex) {
-                LOGGER.log(Level.SEVERE, null, ex);
+            List <Path> filePaths;
+            if ( reachableLibraryFiles != null ) {
+                filePaths = new ArrayList<>( reachableLibraryFiles.getOrDefault( libraryPath.toAbsolutePath().normalize(), Collections.emptyList() ) );
+                if ( filePaths.isEmpty() ) {
+                    LOGGER.log(Level.INFO, "Skipping library not reachable from the sketch: {0}", libraryPath );
+                    return;
+                }
+            } else {
+                filePaths = new ArrayList<>( libraryCatalog.getSourceFilePaths(libraryPath) );
             }
+            ret.put( libraryPath, filePaths );
         });
+        return ret;
+    }
+    
+    private Map<Path,List<Path>> findReachableLibraryFiles() {
+        try {
+            DependencyGraph dependencyGraph = arduinoBuilderRunner.resolveDependencyGraph( boardConfiguration );
+            Map <Path,List<Path>> ret = new ReachableLibraryFileSelector( dependencyGraph )
+                .select( dependencyGraph.getFiles().stream().filter( p -> p.startsWith( getPreprocessedSketchDirectoryPath().toAbsolutePath().normalize() ) ).collect( Collectors.toList() ), sourceLibraryPaths );
+            long total = sourceLibraryPaths.stream().mapToLong( p -> LibraryCatalog.getInstance().getSourceFilePaths(p).size() ).sum();
+            long reachable = ret.values().stream().mapToLong( List::size ).sum();
+            LOGGER.log(Level.INFO, "Copying {0} of {1} library files reachable from the sketch", new Object[] {reachable, total} );
+            return ret;
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Failed to resolve the files reachable from the sketch, copying all library files", ex );
+            return null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
     }
     
-    private void copyLinkerScripts() throws IOException {
+    private void addLinkerScripts( ParallelFileCopier fileCopier ) throws IOException {
         Path targetDirectoryPath = getTargetCoreDirectoryPath();
+        for ( Path linkerScriptPath : findLinkerScriptSourcePaths() ) {
+            fileCopier.addFile( linkerScriptPath, targetDirectoryPath.resolve( linkerScriptPath.getFileName() ), COPY_ATTRIBUTES, REPLACE_EXISTING );
+        }
+    }
+    
+    private List<Path> findLinkerScriptSourcePaths() throws IOException {
+        List <Path> ret = new ArrayList<>();
         String commonLinkerScriptFilename = boardConfiguration.getCommonLinkerScriptFilename().orElse("");
         String deviceLinkerScriptFilename = boardConfiguration.getDeviceLinkerScriptFilename().orElse("");
         
         boolean commonLinkerScriptFilenameAvailable = !commonLinkerScriptFilename.isEmpty();
         boolean deviceLinkerScriptFilenameAvailable = !deviceLinkerScriptFilename.isEmpty();
         
-        if ( !commonLinkerScriptFilenameAvailable && !deviceLinkerScriptFilenameAvailable ) return;
+        if ( !commonLinkerScriptFilenameAvailable && !deviceLinkerScriptFilenameAvailable ) return ret;
         
         if ( copyingFiles && commonLinkerScriptFilenameAvailable ) {
-            Files.copy( sourceCoreDirPath.resolve( commonLinkerScriptFilename ), targetDirectoryPath.resolve( commonLinkerScriptFilename ) );
+            ret.add( sourceCoreDirPath.resolve( commonLinkerScriptFilename ) );
         }
         
         if ( customLdScriptBoard ) {
             Path boardCustomLdScriptDirPath = customLdScriptsPath.resolve( sourceVariantDirPath.getFileName() );
             Optional<Path> opt = Files.list(boardCustomLdScriptDirPath).findFirst();
             if ( opt.isPresent() ) {
-                Path boardCustomLdScriptPath = opt.get();
-                Files.copy( boardCustomLdScriptPath, targetDirectoryPath.resolve( boardCustomLdScriptPath.getFileName() ) );
+                ret.add( opt.get() );
             } else {
                 LOGGER.log(Level.WARNING, "No custom .ld script found for board: {0}", boardConfiguration);
             }
@@ -392,41 +827,52 @@ public class ProjectImporter {
         
         if ( deviceLinkerScriptFilenameAvailable ) {
             if ( copyingFiles && Files.exists( sourceVariantDirPath.resolve( deviceLinkerScriptFilename ) ) ) {
-                Files.copy( sourceVariantDirPath.resolve( deviceLinkerScriptFilename ), targetDirectoryPath.resolve( deviceLinkerScriptFilename ) );
+                ret.add( sourceVariantDirPath.resolve( deviceLinkerScriptFilename ) );
             } else if ( copyingFiles ) {
-                Files.copy( sourceCoreDirPath.resolve( deviceLinkerScriptFilename ), targetDirectoryPath.resolve( deviceLinkerScriptFilename ) );
+                ret.add( sourceCoreDirPath.resolve( deviceLinkerScriptFilename ) );
             }
         }
+        return ret;
     }
     
     private void copyBootloaderFiles() throws IOException {
+        ParallelFileCopier fileCopier = createFileCopier();
+        for ( Path bootloaderPath : findBootloaderSourcePaths() ) {
+            fileCopier.addFile( bootloaderPath, getTargetCoreDirectoryPath().resolve( bootloaderPath.getFileName() ), COPY_ATTRIBUTES, REPLACE_EXISTING );
+        }
+        fileCopier.copy();
+    }
+    
+    private List<Path> findBootloaderSourcePaths() {
+        List <Path> ret = new ArrayList<>();
+        
         // Don't copy bootloader files for boards with custom .ld scripts
-        if ( customLdScriptBoard ) return;
+        if ( customLdScriptBoard ) return ret;
         
         // Production bootloader
         Path srcProdBootloaderPath = bootloaderPathProvider.getBootloaderPath(boardConfiguration.getBoardId());        
         if ( srcProdBootloaderPath == null ) {
             LOGGER.log(Level.WARNING, "No bootloader .hex file found for board: {0}", boardConfiguration);
-            return;
+            return ret;
         }
-        Files.copy(srcProdBootloaderPath, getTargetCoreDirectoryPath().resolve( srcProdBootloaderPath.getFileName() ) );
+        ret.add( srcProdBootloaderPath );
         
         // Debug bootloader (if exists)
         String prodBootloaderFilename = srcProdBootloaderPath.getFileName().toString();
         String debugBootloaderFilename = convertProdToDebugBootloaderFileName( prodBootloaderFilename );
         Path srcDebugBootloaderPath = srcProdBootloaderPath.getParent().resolve( debugBootloaderFilename );
         if ( Files.exists(srcDebugBootloaderPath) ) {
-            Files.copy(srcDebugBootloaderPath, getTargetCoreDirectoryPath().resolve( srcDebugBootloaderPath.getFileName() ) );
+            ret.add( srcDebugBootloaderPath );
         }
+        return ret;
     }
     
     private String convertProdToDebugBootloaderFileName( String prodBootloaderFileName ) {
         return prodBootloaderFileName.substring(0, prodBootloaderFileName.length()-".hex".length()) + ".debug.hex";
     }
     
-    private void importSketchFiles( Path sketchDirPath ) throws IOException {
-        if ( !copyingFiles ) return;
-        Files.walkFileTree(sketchDirPath, new CopyingFileVisitor(sketchDirPath, getTargetSourceFilesDirectoryPath(), PROJECT_SOURCE_FILE_MATCHER) {
+    private void addSketchFiles( Path sketchDirPath, ParallelFileCopier fileCopier ) throws IOException {
+        fileCopier.addTree( sketchDirPath, new CopyingFileVisitor(sketchDirPath, getTargetSourceFilesDirectoryPath(), PROJECT_SOURCE_FILE_MATCHER) {
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
                 if ( file.toString().endsWith(".ino.cpp") ) {
@@ -444,23 +890,123 @@ public class ProjectImporter {
                 }
                 return CONTINUE;
             }            
-        });
+        }, copyingFiles ? getImportManifest().createFileCopyStrategy( getFileCopyStrategy() ) : getFileCopyStrategy() );
+    }
+    
+    // The files of the Arduino installation go through the shared store, if there is one, and in copy mode all files are recorded in the manifest:
+    private ParallelFileCopier createFileCopier() throws IOException {
+        if ( sharedFileCopyStrategy == null ) {
+            sharedFileCopyStrategy = (sharedFileStore != null) ? sharedFileStore.createFileCopyStrategy( targetProjectDirectoryPath ) : getFileCopyStrategy();
+            if ( copyingFiles ) {
+                sharedFileCopyStrategy = getImportManifest().createFileCopyStrategy( sharedFileCopyStrategy );
+            }
+        }
+        return new ParallelFileCopier( sharedFileCopyStrategy );
+    }
+    
+    // The manifest of the previous import is only read when syncing, otherwise every file is copied:
+    private ImportManifest getImportManifest() throws IOException {
+        if ( importManifest == null ) {
+            importManifest = new ImportManifest( targetProjectDirectoryPath.toAbsolutePath().normalize(), syncComparingContents );
+            if ( syncing ) {
+                importManifest.load( getTargetCoreDirectoryPath().resolve( ImportManifest.FILENAME ) );
+            }
+        }
+        return importManifest;
+    }
+    
+    private FileCopyStrategy getFileCopyStrategy() {
+        if ( fileCopyStrategy == null ) {
+            fileCopyStrategy = fileCopyMode.createFileCopyStrategy();
+        }
+        return fileCopyStrategy;
+    }
+    
+    private Consumer<String> getNativeProcessMessageConsumer() {
+        Consumer<String> consumer = arduinoBuilderRunner.getNativeProcessMessageConsumer();
+        return consumer != null ? consumer : LOGGER::info;
     }
     
     private void removeLineDirectives( Path sourceFile ) throws IOException {        
         List <String> filteredLines = Files.lines(sourceFile).filter( line -> !line.startsWith("#line ") ).collect( Collectors.toList() );
+        FileCopyStrategy.breakLink(sourceFile);
         Files.write(sourceFile, filteredLines);
     }
     
-    private void buildLibCore() throws IOException, InterruptedException {
-        Path coreDirPath = targetProjectDirectoryPath.resolve(CORE_DIRECTORY_NAME);
-        LibCoreBuilder libCoreBuilder = new LibCoreBuilder( coreDirPath );
-        libCoreBuilder.build( boardConfiguration, arduinoBuilderRunner.getToolFinder(), LOGGER::info );
-        Files.copy( libCoreBuilder.getLibCorePath(), coreDirPath.resolve( LibCoreBuilder.LIB_CORE_FILENAME ) );
-        Files.copy( libCoreBuilder.getMakefilePath(), coreDirPath.resolve( libCoreBuilder.getMakefileName() ) );        
+    private void buildLibCoreAndCopyBootloaderFiles() throws IOException, InterruptedException {
+        Path coreDirPath = getTargetCoreDirectoryPath();
+        LibCoreBuilder libCoreBuilder = createLibCoreBuilder();
+        CompletableFuture<Void> libCoreBuild = libCoreBuilder.buildAsync( boardConfiguration, arduinoBuilderRunner.getToolFinder(), getNativeProcessMessageConsumer() );
+        try {
+            // The bootloader files are copied while the core library compiles:
+            copyBootloaderFiles();
+            NativeProcessRunner.waitFor( libCoreBuild );
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            libCoreBuild.cancel(true);
+            libCoreBuilder.cleanup();
+            throw ex;
+        }
+        Files.copy( libCoreBuilder.getLibCorePath(), coreDirPath.resolve( LibCoreBuilder.LIB_CORE_FILENAME ), REPLACE_EXISTING );
+        Files.copy( libCoreBuilder.getMakefilePath(), coreDirPath.resolve( libCoreBuilder.getMakefileName() ), REPLACE_EXISTING );        
+        Files.copy( libCoreBuilder.getNinjaFilePath(), coreDirPath.resolve( libCoreBuilder.getNinjaFileName() ), REPLACE_EXISTING );
         libCoreBuilder.cleanup();
     }                        
     
+    // The same settings for the build and the fingerprint the manifest keeps of it:
+    private LibCoreBuilder createLibCoreBuilder() {
+        LibCoreBuilder libCoreBuilder = new LibCoreBuilder( getTargetCoreDirectoryPath() );
+        libCoreBuilder.setCache( libCoreCache );
+        libCoreBuilder.setObjectCache( objectCache );
+        libCoreBuilder.setUnityBuild( unityBuildingCore );
+        libCoreBuilder.setUnityExclusions( unityBuildExclusions );
+        libCoreBuilder.setPrecompilingHeader( copyingFiles && precompilingCoreHeader );
+        return libCoreBuilder;
+    }
+    
+    // One library after another, each of them compiled in parallel by make:
+    private void buildLibraryArchives() throws IOException, InterruptedException {
+        libraryArchiveNames.clear();
+        dotALinkageArchiveNames.clear();
+        Path coreDirPath = getTargetCoreDirectoryPath();
+        LibraryCatalog libraryCatalog = LibraryCatalog.getInstance();
+        List <Path> libraryDirPaths = getMainLibraryDirPaths().sorted().collect( Collectors.toList() );
+        List <Path> includeDirPaths = libraryDirPaths.stream().flatMap( p -> libraryCatalog.getIncludeDirectoryPaths(p).stream() ).collect( Collectors.toList() );
+        for ( Path libraryDirPath : libraryDirPaths ) {
+            if ( countTranslationUnits( libraryCatalog.getSourceFilePaths(libraryDirPath) ) == 0 ) continue;  // Header-only library
+            LibraryBuilder libraryBuilder = new LibraryBuilder( libraryDirPath, coreDirPath, includeDirPaths, libraryDirPaths );
+            libraryBuilder.setCache( libCoreCache );
+            libraryBuilder.setObjectCache( objectCache );
+            libraryBuilder.build( boardConfiguration, arduinoBuilderRunner.getToolFinder(), getNativeProcessMessageConsumer() );
+            Files.copy( libraryBuilder.getLibCorePath(), coreDirPath.resolve( libraryBuilder.getTargetName() ), REPLACE_EXISTING );
+            Files.copy( libraryBuilder.getMakefilePath(), coreDirPath.resolve( libraryBuilder.getMakefileName() ), REPLACE_EXISTING );
+            Files.copy( libraryBuilder.getNinjaFilePath(), coreDirPath.resolve( libraryBuilder.getNinjaFileName() ), REPLACE_EXISTING );
+            libraryArchiveNames.add( libraryBuilder.getLibraryName() );
+            if ( libraryCatalog.findLibrary( libraryDirPath ).map( Library::isDotALinkage ).orElse(false) ) {
+                dotALinkageArchiveNames.add( libraryBuilder.getLibraryName() );
+            }
+        }
+    }
+    
+    // Archives of libraries the project no longer uses (or of all libraries, when they are no longer built into archives).
+    // Otherwise RebuildCoreLibraryAction would find them by their Makefiles and rebuild them from missing sources:
+    private void removeStaleLibraryArchives() throws IOException {
+        Path coreDirPath = getTargetCoreDirectoryPath();
+        for ( String libraryName : LibraryBuilder.findLibraryNames( coreDirPath ) ) {
+            if ( libraryArchiveNames.contains(libraryName) ) continue;
+            LibraryBuilder.removeLibrary( coreDirPath, libraryName );
+            LOGGER.log( Level.INFO, "Removed the stale library archive: {0}", libraryName );
+        }
+    }
+    
+    private static String toCommandPath( Path path ) {
+        return path.toString().replace('\\', '/');
+    }
+    
+    // Same file name rules as the core library Makefile and MPLAB X ("*.s" files are not assembled):
+    private static int countTranslationUnits( Collection<Path> filePaths ) {
+        return (int) filePaths.stream().map( p -> p.getFileName().toString() ).filter( n -> n.endsWith(".c") || n.endsWith(".cpp") || n.endsWith(".S") ).count();
+    }
+    
     private Stream createSourceCoreFilesStream() {
         try {
             return Stream.concat(
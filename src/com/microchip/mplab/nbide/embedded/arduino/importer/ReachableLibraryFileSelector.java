@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Selects the library files that are transitively reachable from a set of root files (the sketch sources)
+ * according to a {@link DependencyGraph}.
+ */
+public final class ReachableLibraryFileSelector {
+
+
+    private static final Logger LOGGER = Logger.getLogger(ReachableLibraryFileSelector.class.getName());
+    private static final PathMatcher TRANSLATION_UNIT_MATCHER = FileSystems.getDefault().getPathMatcher("glob:*.{c,C,cpp,CPP,s,S}");
+    private static final PathMatcher ASSEMBLY_FILE_MATCHER = FileSystems.getDefault().getPathMatcher("glob:*.{s,S}");
+
+    private final DependencyGraph dependencyGraph;
+
+
+    public ReachableLibraryFileSelector( DependencyGraph dependencyGraph ) {
+        this.dependencyGraph = dependencyGraph;
+    }
+
+    /**
+     * @return true for the files whose dependencies have to be resolved for the selection: all translation units
+     * except assembly files, which are always kept
+     */
+    public static boolean isDependencyResolved( Path file ) {
+        return isTranslationUnit(file) && !isAssemblyFile(file);
+    }
+
+    /**
+     * Returns, for every library that has at least one reachable file, the list of its files to keep: the reachable
+     * headers and all of its translation units, since a translation unit that defines only interrupt handlers or
+     * static constructors is not reachable through any header but still has to be linked.
+     * The map is keyed by the (absolute, normalized) library root path.
+     */
+    public Map<Path,List<Path>> select( Collection<Path> rootFiles, Collection<Path> libraryPaths ) {
+        LibraryCatalog libraryCatalog = LibraryCatalog.getInstance();
+        Map <Path,List<Path>> libraryFiles = new LinkedHashMap<>();
+        Map <Path,Path> fileOwners = new HashMap<>();
+        libraryPaths.forEach( libraryPath -> libraryCatalog.findLibrary(libraryPath).ifPresent( library -> {
+            libraryFiles.put( library.getRootPath(), library.getSourceFilePaths() );
+            library.getSourceFilePaths().forEach( f -> fileOwners.put( f, library.getRootPath() ) );
+        }));
+
+        Set <Path> reachable = dependencyGraph.findReachableFiles(rootFiles);
+        Set <Path> usedLibraries = new HashSet<>();
+        boolean changed = true;
+        while ( changed ) {
+            changed = false;
+            for ( Path file : reachable ) {
+                Path owner = fileOwners.get(file);
+                if ( owner != null ) usedLibraries.add(owner);
+            }
+
+            List <Path> keptFiles = new ArrayList<>();
+            for ( Path libraryPath : usedLibraries ) {
+                List <Path> files = libraryFiles.get(libraryPath);
+                boolean incomplete = files.stream().anyMatch( f -> isDependencyResolved(f) && !dependencyGraph.contains(f) );
+                if ( incomplete ) {
+                    // Without the dependencies of every translation unit nothing can be safely left out:
+                    LOGGER.log( Level.INFO, "Incomplete dependency information, keeping all files of library: {0}", libraryPath );
+                    keptFiles.addAll( files );
+                    continue;
+                }
+                for ( Path file : files ) {
+                    if ( isTranslationUnit(file) && !reachable.contains(file) ) {
+                        keptFiles.add(file);
+                    }
+                }
+            }
+
+            Set <Path> newlyReachable = dependencyGraph.findReachableFiles(keptFiles);
+            newlyReachable.removeAll(reachable);
+            if ( !newlyReachable.isEmpty() ) {
+                reachable.addAll(newlyReachable);
+                changed = true;
+            }
+        }
+
+        Map <Path,List<Path>> ret = new LinkedHashMap<>();
+        libraryFiles.forEach( (libraryPath, files) -> {
+            if ( usedLibraries.contains(libraryPath) ) {
+                ret.put( libraryPath, files.stream().filter( reachable::contains ).collect( Collectors.toList() ) );
+            }
+        });
+        return ret;
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private static boolean isTranslationUnit( Path file ) {
+        return TRANSLATION_UNIT_MATCHER.matches( file.getFileName() );
+    }
+
+    private static boolean isAssemblyFile( Path file ) {
+        return ASSEMBLY_FILE_MATCHER.matches( file.getFileName() );
+    }
+
+}
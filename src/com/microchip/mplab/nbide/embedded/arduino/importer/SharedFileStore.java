@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import com.microchip.mplab.nbide.embedded.arduino.utils.FileCopyStrategy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.CopyOption;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A content-addressed store of the core, variant and library files of imported projects, shared by all projects
+ * of a user. Every unique file is held once, named after the hash of its contents, and the projects get clones
+ * or hard links of it (see {@link FileCopyMode#AUTO}), so the disk space and the write time of copy-mode imports
+ * grow with the number of different cores and libraries rather than with the number of projects.
+ * <p>
+ * Files are written to a temporary file and renamed into place, so concurrent imports (also from different
+ * IDE instances) never see a partial file. The stored files are read-only, which makes the hard links to them
+ * in the projects read-only as well: edited in place, they would change the file of every project. Only file
+ * systems with POSIX permissions can still remove or replace such links, so the store needs one
+ * (see {@link #isSupported(Path)}).
+ * <p>
+ * Every project the store has put files into has a list of the files it uses (see {@link #prune()}), since
+ * the number of links of a stored file does not count the clones.
+ */
+public final class SharedFileStore {
+
+
+    private static final Logger LOGGER = Logger.getLogger(SharedFileStore.class.getName());
+
+    private static final String TEMP_PREFIX = ".tmp-";
+    // Changes whenever the layout of the store changes, so that an older store is not used:
+    private static final String LAYOUT_VERSION = "v1";
+    private static final String REFERENCES_SUFFIX = "-references";
+
+    // By path, size and modification time, shared by all stores since the Arduino installation rarely changes:
+    private static final Map <String,String> FILE_HASHES = new ConcurrentHashMap<>();
+
+    private final Path rootPath;
+    // The stored files (by hash) this instance put into each project, by project and path in the project:
+    private final Map <Path,Map<String,String>> references = new ConcurrentHashMap<>();
+    private int storedCount;
+    private int reusedCount;
+
+
+    public SharedFileStore( Path rootPath ) {
+        this.rootPath = rootPath;
+    }
+
+    public Path getRootPath() {
+        return rootPath;
+    }
+
+    /**
+     * @return true if a store in the given directory can keep its files read-only and the projects can
+     * still remove the links to them, i.e. if the file system has POSIX permissions
+     */
+    public static boolean isSupported( Path rootPath ) {
+        for ( Path p = rootPath.toAbsolutePath(); p != null; p = p.getParent() ) {
+            if ( Files.exists(p) ) {
+                try {
+                    return Files.getFileStore(p).supportsFileAttributeView(PosixFileAttributeView.class);
+                } catch (IOException ex) {
+                    LOGGER.log( Level.FINE, "Unable to find the file store of " + p, ex );
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of files added to the store by this instance
+     */
+    public synchronized int getStoredCount() {
+        return storedCount;
+    }
+
+    /**
+     * @return the number of files this instance found in the store already
+     */
+    public synchronized int getReusedCount() {
+        return reusedCount;
+    }
+
+    /**
+     * Returns a strategy that adds every file to the store and puts a clone or a hard link of the stored file
+     * in place of the target. Targets that can be neither cloned nor linked get a writable copy. The targets
+     * are recorded as files of the given project.
+     */
+    public FileCopyStrategy createFileCopyStrategy( Path projectDirPath ) {
+        Path projectPath = projectDirPath.toAbsolutePath().normalize();
+        Map <String,String> projectReferences = references.computeIfAbsent( projectPath, p -> new ConcurrentHashMap<>() );
+        FileCopyStrategy linkStrategy = FileCopyMode.AUTO.createFileCopyStrategy();
+        return (source, target, options) -> {
+            Path storedPath = add(source);
+            try {
+                materialize( storedPath, target, linkStrategy, options );
+            } catch (NoSuchFileException ex) {
+                // Pruned by another import between adding and linking:
+                storedPath = add(source);
+                materialize( storedPath, target, linkStrategy, options );
+            }
+            projectReferences.put( toReferenceKey( projectPath, target ), storedPath.getParent().getFileName().toString() + storedPath.getFileName() );
+        };
+    }
+
+    /**
+     * Adds a copy of the file to the store unless a file with the same contents is there already.
+     *
+     * @return the path of the stored file
+     */
+    public Path add( Path sourcePath ) throws IOException {
+        String hash = hash( sourcePath );
+        Path storedPath = getObjectsPath().resolve( hash.substring(0, 2) ).resolve( hash.substring(2) );
+        if ( Files.isRegularFile(storedPath) ) {
+            countAdd(false);
+            return storedPath;
+        }
+        Files.createDirectories( storedPath.getParent() );
+        Path tempPath = storedPath.resolveSibling( TEMP_PREFIX + UUID.randomUUID() );
+        try {
+            Files.copy( sourcePath, tempPath, StandardCopyOption.COPY_ATTRIBUTES );
+            tempPath.toFile().setWritable(false, false);
+            Files.move( tempPath, storedPath, StandardCopyOption.ATOMIC_MOVE );
+            countAdd(true);
+        } catch (FileAlreadyExistsException ex) {
+            // Stored by another import in the meantime
+            countAdd(false);
+        } finally {
+            Files.deleteIfExists( tempPath );
+        }
+        return storedPath;
+    }
+
+    /**
+     * Writes the lists of the files this instance put into projects, merged with the ones of earlier imports
+     * of the same projects, and removes the stored files no list refers to anymore. Files the projects no longer
+     * have are dropped from their lists and the lists of deleted projects are removed.
+     * <p>
+     * A file another import has just added, but not yet written to its list, may be removed as well. The
+     * project keeps its link or clone of it and the file is stored again by the next import that uses it.
+     *
+     * @return the number of removed files
+     */
+    public int prune() throws IOException {
+        for ( Path projectPath : references.keySet() ) {
+            writeReferences( projectPath, references.remove(projectPath) );
+        }
+        Path objectsPath = getObjectsPath();
+        if ( !Files.isDirectory(objectsPath) ) return 0;
+        Set <String> referencedHashes = readReferencedHashes();
+        List <Path> storedPaths;
+        try (Stream<Path> s = Files.walk(objectsPath, 2)) {
+            storedPaths = s.filter( Files::isRegularFile ).collect( Collectors.toList() );
+        }
+        int removedCount = 0;
+        for ( Path p : storedPaths ) {
+            if ( p.getFileName().toString().startsWith(TEMP_PREFIX) ) continue;
+            if ( referencedHashes.contains( p.getParent().getFileName().toString() + p.getFileName() ) ) continue;
+            try {
+                Files.delete(p);
+                removedCount++;
+            } catch (NoSuchFileException ex) {
+                // Removed by another import
+            }
+        }
+        if ( removedCount > 0 ) {
+            LOGGER.log( Level.INFO, "Pruned {0} unused shared files", removedCount );
+        }
+        return removedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "SharedFileStore{" + "rootPath=" + rootPath + ", stored=" + getStoredCount() + ", reused=" + getReusedCount() + '}';
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private Path getObjectsPath() {
+        return rootPath.resolve( LAYOUT_VERSION );
+    }
+
+    private Path getReferencesPath() {
+        return rootPath.resolve( LAYOUT_VERSION + REFERENCES_SUFFIX );
+    }
+
+    // One file per project: the project directory in the first line, then the path and the hash of every stored file it uses
+    private void writeReferences( Path projectPath, Map<String,String> projectReferences ) throws IOException {
+        Path referencesFilePath = getReferencesPath().resolve( hash( projectPath.toString() ) );
+        Map <String,String> mergedReferences = new TreeMap<>();
+        if ( Files.exists(referencesFilePath) ) {
+            List <String> lines = Files.readAllLines( referencesFilePath, StandardCharsets.UTF_8 );
+            lines.stream().skip(1).map( l -> l.split("\t") ).filter( f -> f.length == 2 ).forEach( f -> mergedReferences.put( f[0], f[1] ) );
+        }
+        mergedReferences.putAll( projectReferences );
+        mergedReferences.keySet().removeIf( key -> !Files.exists( projectPath.resolve(key) ) );
+        
+        List <String> lines = new ArrayList<>();
+        lines.add( projectPath.toString() );
+        mergedReferences.forEach( (key, hash) -> lines.add( key + "\t" + hash ) );
+        Files.createDirectories( referencesFilePath.getParent() );
+        Path tempPath = referencesFilePath.resolveSibling( TEMP_PREFIX + UUID.randomUUID() );
+        try {
+            Files.write( tempPath, lines, StandardCharsets.UTF_8 );
+            Files.move( tempPath, referencesFilePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        } finally {
+            Files.deleteIfExists( tempPath );
+        }
+    }
+
+    private Set<String> readReferencedHashes() throws IOException {
+        Set <String> ret = new HashSet<>();
+        Path referencesPath = getReferencesPath();
+        if ( !Files.isDirectory(referencesPath) ) return ret;
+        List <Path> referencesFilePaths;
+        try (Stream<Path> s = Files.list(referencesPath)) {
+            referencesFilePaths = s.filter( p -> !p.getFileName().toString().startsWith(TEMP_PREFIX) ).collect( Collectors.toList() );
+        }
+        for ( Path referencesFilePath : referencesFilePaths ) {
+            List <String> lines;
+            try {
+                lines = Files.readAllLines( referencesFilePath, StandardCharsets.UTF_8 );
+            } catch (NoSuchFileException ex) {
+                continue;  // Removed by another import
+            }
+            if ( lines.isEmpty() || !Files.isDirectory( Paths.get( lines.get(0) ) ) ) {
+                // The project has been deleted:
+                Files.deleteIfExists( referencesFilePath );
+                continue;
+            }
+            lines.stream().skip(1).map( l -> l.split("\t") ).filter( f -> f.length == 2 ).forEach( f -> ret.add( f[1] ) );
+        }
+        return ret;
+    }
+
+    private static String toReferenceKey( Path projectPath, Path target ) {
+        Path targetPath = target.toAbsolutePath().normalize();
+        return ( targetPath.startsWith(projectPath) ? projectPath.relativize(targetPath) : targetPath ).toString().replace('\\', '/');
+    }
+
+    private static void materialize( Path storedPath, Path target, FileCopyStrategy linkStrategy, CopyOption... options ) throws IOException {
+        linkStrategy.copyFile( storedPath, target, options );
+        if ( !Files.isSameFile(storedPath, target) && !Files.isWritable(target) ) {
+            // A clone or a copy belongs to the project alone:
+            target.toFile().setWritable(true);
+        }
+    }
+
+    private synchronized void countAdd( boolean stored ) {
+        if ( stored ) {
+            storedCount++;
+        } else {
+            reusedCount++;
+        }
+    }
+
+    private static String hash( String value ) {
+        return toHex( createDigest().digest( value.getBytes(StandardCharsets.UTF_8) ) );
+    }
+
+    private static String hash( Path filePath ) throws IOException {
+        String stamp = filePath.toAbsolutePath().normalize() + "|" + Files.size(filePath) + "|" + Files.getLastModifiedTime(filePath).toMillis();
+        String hash = FILE_HASHES.get(stamp);
+        if ( hash == null ) {
+            MessageDigest digest = createDigest();
+            byte[] buffer = new byte[8192];
+            try (InputStream in = Files.newInputStream(filePath)) {
+                for ( int n; (n = in.read(buffer)) > 0; ) {
+                    digest.update( buffer, 0, n );
+                }
+            }
+            hash = toHex( digest.digest() );
+            FILE_HASHES.put( stamp, hash );
+        }
+        return hash;
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex( byte[] bytes ) {
+        StringBuilder ret = new StringBuilder();
+        for ( byte b : bytes ) {
+            ret.append( String.format( "%02x", b ) );
+        }
+        return ret.toString();
+    }
+
+}
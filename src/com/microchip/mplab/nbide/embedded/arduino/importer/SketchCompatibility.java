@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of resolving the includes of one sketch against one board configuration.
+ * A sketch is compatible with a board if all of its includes could be resolved.
+ */
+public final class SketchCompatibility {
+
+
+    public enum IssueType {
+        /** No core, variant or library header matches the include */
+        MISSING_HEADER,
+        /** The header is only provided by libraries that do not support the architecture of the board */
+        ARCHITECTURE_RESTRICTED_LIBRARY,
+        /** The compiler failed on the file for another reason than a missing header */
+        RESOLUTION_FAILED
+    }
+
+    public static final class Issue {
+
+        private final IssueType type;
+        private final Path filePath;
+        private final String detail;
+        private final List<Library> libraries;
+
+        Issue(IssueType type, Path filePath, String detail, List<Library> libraries) {
+            this.type = type;
+            this.filePath = filePath;
+            this.detail = detail;
+            this.libraries = libraries;
+        }
+
+        public IssueType getType() {
+            return type;
+        }
+
+        /**
+         * Returns the file in which the issue was found.
+         */
+        public Path getFilePath() {
+            return filePath;
+        }
+
+        /**
+         * Returns the header as written in the #include directive, or the compiler output for {@link IssueType#RESOLUTION_FAILED}.
+         */
+        public String getDetail() {
+            return detail;
+        }
+
+        /**
+         * Returns the libraries that would provide the header but do not support the board architecture.
+         */
+        public List<Library> getLibraries() {
+            return Collections.unmodifiableList(libraries);
+        }
+
+        @Override
+        public String toString() {
+            return type + ": " + detail + " (" + filePath.getFileName() + ")";
+        }
+
+    }
+
+    private final Path sketchPath;
+    private final BoardConfiguration boardConfiguration;
+    private final List<Library> libraries = new ArrayList<>();
+    private final List<Issue> issues = new ArrayList<>();
+
+
+    SketchCompatibility(Path sketchPath, BoardConfiguration boardConfiguration) {
+        this.sketchPath = sketchPath;
+        this.boardConfiguration = boardConfiguration;
+    }
+
+    public Path getSketchPath() {
+        return sketchPath;
+    }
+
+    public BoardConfiguration getBoardConfiguration() {
+        return boardConfiguration;
+    }
+
+    /**
+     * Returns the libraries the sketch would use on this board.
+     */
+    public List<Library> getLibraries() {
+        return Collections.unmodifiableList(libraries);
+    }
+
+    public List<Issue> getIssues() {
+        return Collections.unmodifiableList(issues);
+    }
+
+    public boolean isCompatible() {
+        return issues.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "SketchCompatibility{" + "sketch=" + sketchPath.getFileName() + ", board=" + boardConfiguration.getBoardId() + ", issues=" + issues + '}';
+    }
+
+
+    //*************************************************
+    //*********** PACKAGE PRIVATE METHODS *************
+    //*************************************************
+    void addLibrary( Library library ) {
+        libraries.add(library);
+    }
+
+    void addIssue( IssueType type, Path filePath, String detail, List<Library> libraries ) {
+        issues.add( new Issue(type, filePath, detail, libraries) );
+    }
+
+}
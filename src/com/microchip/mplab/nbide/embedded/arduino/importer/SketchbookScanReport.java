@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import static com.microchip.mplab.nbide.embedded.arduino.utils.JsonStrings.quote;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The compatibility of every scanned sketch with every scanned board configuration.
+ */
+public final class SketchbookScanReport {
+
+
+    private final Path sketchbookPath;
+    private final List<SketchCompatibility> results = new ArrayList<>();
+
+
+    SketchbookScanReport( Path sketchbookPath ) {
+        this.sketchbookPath = sketchbookPath;
+    }
+
+    public Path getSketchbookPath() {
+        return sketchbookPath;
+    }
+
+    public List<SketchCompatibility> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    public List<SketchCompatibility> getIncompatibleResults() {
+        return results.stream().filter( r -> !r.isCompatible() ).collect( Collectors.toList() );
+    }
+
+    /**
+     * Returns the sketches that resolved cleanly for the given board.
+     */
+    public List<Path> getCompatibleSketches( String boardId ) {
+        return results.stream()
+            .filter( r -> r.isCompatible() && r.getBoardConfiguration().getBoardId().equals(boardId) )
+            .map( SketchCompatibility::getSketchPath )
+            .collect( Collectors.toList() );
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"sketchbook\": ").append( quote(sketchbookPath) ).append(",\n");
+        json.append("  \"resultCount\": ").append( results.size() ).append(",\n");
+        json.append("  \"incompatibleCount\": ").append( getIncompatibleResults().size() ).append(",\n");
+        json.append("  \"results\": [");
+        for ( int i=0; i<results.size(); i++ ) {
+            SketchCompatibility r = results.get(i);
+            json.append( i > 0 ? ",\n" : "\n" );
+            json.append("    {\n");
+            json.append("      \"sketch\": ").append( quote( r.getSketchPath() ) ).append(",\n");
+            json.append("      \"board\": ").append( quote( r.getBoardConfiguration().getFqbn() ) ).append(",\n");
+            json.append("      \"compatible\": ").append( r.isCompatible() ).append(",\n");
+            json.append("      \"libraries\": [")
+                .append( r.getLibraries().stream().map( l -> quote( l.getName() ) ).collect( Collectors.joining(", ") ) )
+                .append("],\n");
+            json.append("      \"issues\": [");
+            List <SketchCompatibility.Issue> issues = r.getIssues();
+            for ( int j=0; j<issues.size(); j++ ) {
+                SketchCompatibility.Issue issue = issues.get(j);
+                json.append( j > 0 ? ",\n" : "\n" );
+                json.append("        { \"type\": ").append( quote( issue.getType() ) )
+                    .append(", \"file\": ").append( quote( issue.getFilePath() ) )
+                    .append(", \"detail\": ").append( quote( issue.getDetail() ) )
+                    .append(", \"libraries\": [")
+                    .append( issue.getLibraries().stream().map( l -> quote( l.getName() + " (" + String.join(",", l.getArchitectures()) + ")" ) ).collect( Collectors.joining(", ") ) )
+                    .append("] }");
+            }
+            json.append( issues.isEmpty() ? "]\n" : "\n      ]\n" );
+            json.append("    }");
+        }
+        json.append( results.isEmpty() ? "]\n" : "\n  ]\n" );
+        json.append("}\n");
+        return json.toString();
+    }
+
+    public void write( Path reportPath ) throws IOException {
+        Files.write( reportPath, toJson().getBytes(StandardCharsets.UTF_8) );
+    }
+
+    @Override
+    public String toString() {
+        return "SketchbookScanReport{" + "sketchbook=" + sketchbookPath + ", results=" + results.size() + ", incompatible=" + getIncompatibleResults().size() + '}';
+    }
+
+
+    //*************************************************
+    //*********** PACKAGE PRIVATE METHODS *************
+    //*************************************************
+    void addResult( SketchCompatibility result ) {
+        results.add(result);
+    }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.importer;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks which sketches of a sketchbook can be imported for which boards without running an import.
+ * The includes of every sketch are resolved against the core, variant and library headers of each board,
+ * adding libraries the same way Arduino Builder does (a library is added when it provides a missing header,
+ * then its own sources are resolved too) but using only "gcc -M -MG" runs.
+ * Sketches are scanned in parallel on a bounded thread pool.
+ */
+public class SketchbookScanner {
+
+
+    private static final Logger LOGGER = Logger.getLogger(SketchbookScanner.class.getName());
+    private static final PathMatcher SKETCH_SOURCE_FILE_MATCHER = FileSystems.getDefault().getPathMatcher("glob:*.{ino,pde,c,cpp,S}");
+    private static final PathMatcher LIBRARY_SOURCE_FILE_MATCHER = FileSystems.getDefault().getPathMatcher("glob:*.{c,cpp,S}");
+    private static final PathMatcher HEADER_FILE_MATCHER = FileSystems.getDefault().getPathMatcher("glob:*.{h,hh,hpp}");
+    private static final List<String> NON_SKETCH_DIRECTORY_NAMES = Arrays.asList("libraries", "hardware", "tools");
+
+    private final ArduinoBuilderRunner arduinoBuilderRunner;
+    private final Map <String,Map<String,List<Library>>> headerIndexes = new HashMap<>();
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+
+    public SketchbookScanner( ArduinoBuilderRunner arduinoBuilderRunner ) {
+        this.arduinoBuilderRunner = arduinoBuilderRunner;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max( 1, parallelism );
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Returns the sketch directories (directories containing a "&lt;directory name&gt;.ino" or ".pde" file)
+     * of the given sketchbook. The "libraries", "hardware" and "tools" directories are skipped.
+     */
+    public List<Path> findSketches( Path sketchbookPath ) throws IOException {
+        List <Path> ret = new ArrayList<>();
+        Files.walkFileTree( sketchbookPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                String dirName = dir.getFileName() != null ? dir.getFileName().toString() : "";
+                if ( dir.equals(sketchbookPath) ) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if ( dirName.startsWith(".") || (sketchbookPath.equals( dir.getParent() ) && NON_SKETCH_DIRECTORY_NAMES.contains(dirName)) ) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if ( Files.exists( dir.resolve(dirName + ".ino") ) || Files.exists( dir.resolve(dirName + ".pde") ) ) {
+                    ret.add(dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(ret);
+        return ret;
+    }
+
+    public SketchbookScanReport scan( Path sketchbookPath, List<BoardConfiguration> boardConfigurations ) throws IOException, InterruptedException {
+        return scan( sketchbookPath, findSketches(sketchbookPath), boardConfigurations );
+    }
+
+    public SketchbookScanReport scan( Path sketchbookPath, List<Path> sketchPaths, List<BoardConfiguration> boardConfigurations ) throws IOException, InterruptedException {
+        LOGGER.log(Level.INFO, "Scanning {0} sketches for {1} board configurations", new Object[] {sketchPaths.size(), boardConfigurations.size()} );
+        SketchbookScanReport report = new SketchbookScanReport( sketchbookPath );
+        if ( sketchPaths.isEmpty() ) return report;
+
+        // Index the library headers up front so that the workers only read the indexes:
+        for ( BoardConfiguration boardConfiguration : boardConfigurations ) {
+            getHeaderIndex( sketchbookPath, boardConfiguration.getPlatform() );
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min( parallelism, sketchPaths.size() ) );
+        try {
+            List <Future<List<SketchCompatibility>>> futures = new ArrayList<>();
+            sketchPaths.forEach( sketchPath -> futures.add( executor.submit( () -> {
+                List <SketchCompatibility> results = new ArrayList<>();
+                for ( BoardConfiguration boardConfiguration : boardConfigurations ) {
+                    results.add( scanSketch( sketchbookPath, sketchPath, boardConfiguration ) );
+                }
+                return results;
+            })));
+            for ( Future<List<SketchCompatibility>> future : futures ) {
+                try {
+                    future.get().forEach( report::addResult );
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if ( cause instanceof IOException ) throw (IOException) cause;
+                    if ( cause instanceof InterruptedException ) throw (InterruptedException) cause;
+                    if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        LOGGER.log(Level.INFO, "Sketchbook scan finished: {0}", report );
+        return report;
+    }
+
+    public SketchCompatibility scanSketch( Path sketchbookPath, Path sketchPath, BoardConfiguration boardConfiguration ) throws IOException, InterruptedException {
+        SketchCompatibility result = new SketchCompatibility( sketchPath, boardConfiguration );
+        String architecture = boardConfiguration.getPlatform().getArchitecture();
+        Map <String,List<Library>> headerIndex = getHeaderIndex( sketchbookPath, boardConfiguration.getPlatform() );
+
+        List <Path> coreDirPaths = new ArrayList<>();
+        coreDirPaths.add( boardConfiguration.getCoreDirectoryPath() );
+        Path variantPath = boardConfiguration.getVariantPath();
+        if ( variantPath != null && !variantPath.equals( boardConfiguration.getCoreDirectoryPath() ) ) {
+            coreDirPaths.add( variantPath );
+        }
+
+        List <Path> libraryPaths = new ArrayList<>();
+        Map <Path,Set<String>> missingHeaders = new LinkedHashMap<>();
+        Set <String> unresolvableHeaders = new HashSet<>();
+        Deque <Path> pendingFiles = new ArrayDeque<>( findSketchSourceFiles(sketchPath) );
+        while ( true ) {
+            while ( !pendingFiles.isEmpty() ) {
+                Path file = pendingFiles.poll();
+                try {
+                    Set <String> headers = new LinkedHashSet<>();
+                    for ( Path p : arduinoBuilderRunner.resolveIncludedFiles( file, coreDirPaths, libraryPaths ) ) {
+                        if ( !p.isAbsolute() || !Files.exists(p) ) {
+                            headers.add( p.toString().replace('\\', '/') );
+                        }
+                    }
+                    missingHeaders.put( file, headers );
+                } catch (NativeProcessFailureException ex) {
+                    result.addIssue( SketchCompatibility.IssueType.RESOLUTION_FAILED, file, ex.getMessage(), Collections.emptyList() );
+                }
+            }
+
+            // Add the libraries that provide the missing headers and resolve again:
+            boolean librariesAdded = false;
+            for ( Set<String> headers : missingHeaders.values() ) {
+                for ( String header : headers ) {
+                    if ( unresolvableHeaders.contains(header) ) continue;
+                    Optional <Library> library = findLibrary( headerIndex, header, architecture );
+                    if ( !library.isPresent() ) {
+                        unresolvableHeaders.add(header);
+                    } else if ( !libraryPaths.contains( library.get().getRootPath() ) ) {
+                        libraryPaths.add( library.get().getRootPath() );
+                        result.addLibrary( library.get() );
+                        library.get().getSourceFilePaths().stream().filter( p -> LIBRARY_SOURCE_FILE_MATCHER.matches(p.getFileName()) ).forEach( pendingFiles::add );
+                        librariesAdded = true;
+                    }
+                }
+            }
+            if ( !librariesAdded ) break;
+            missingHeaders.forEach( (file, headers) -> {
+                if ( !headers.isEmpty() ) pendingFiles.add(file);
+            });
+        }
+
+        missingHeaders.forEach( (file, headers) -> headers.forEach( header -> {
+            List <Library> candidates = headerIndex.getOrDefault( header, Collections.emptyList() );
+            if ( !candidates.isEmpty() && candidates.stream().noneMatch( l -> l.isArchitectureSupported(architecture) ) ) {
+                result.addIssue( SketchCompatibility.IssueType.ARCHITECTURE_RESTRICTED_LIBRARY, file, header, candidates );
+            } else {
+                result.addIssue( SketchCompatibility.IssueType.MISSING_HEADER, file, header, Collections.emptyList() );
+            }
+        }));
+        LOGGER.log(Level.FINE, "{0}", result );
+        return result;
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private synchronized Map<String,List<Library>> getHeaderIndex( Path sketchbookPath, Platform platform ) throws IOException {
+        String key = sketchbookPath.toAbsolutePath() + "|" + platform.getRootPath().toAbsolutePath();
+        Map <String,List<Library>> ret = headerIndexes.get(key);
+        if ( ret == null ) {
+            ret = createHeaderIndex( sketchbookPath, platform );
+            headerIndexes.put(key, ret);
+        }
+        return ret;
+    }
+
+    // Library roots in the order of precedence: sketchbook, platform, built-in
+    private Map<String,List<Library>> createHeaderIndex( Path sketchbookPath, Platform platform ) throws IOException {
+        List <Path> librariesRootPaths = Arrays.asList(
+            sketchbookPath.resolve("libraries"),
+            platform.getRootPath().resolve("libraries"),
+            arduinoBuilderRunner.getArduinoPathResolver().findBuiltInLibrariesPath( arduinoBuilderRunner.getArduinoInstallPath() )
+        );
+        Map <String,List<Library>> ret = new HashMap<>();
+        LibraryCatalog libraryCatalog = LibraryCatalog.getInstance();
+        for ( Path librariesRootPath : librariesRootPaths ) {
+            if ( librariesRootPath == null || !Files.isDirectory(librariesRootPath) ) continue;
+            for ( Library library : libraryCatalog.getLibraries(librariesRootPath) ) {
+                Set <String> headers = new LinkedHashSet<>();
+                for ( Path includeDirPath : library.getIncludeDirectoryPaths() ) {
+                    headers.addAll( findHeaders( library, includeDirPath ) );
+                }
+                headers.forEach( header -> ret.computeIfAbsent( header, k -> new ArrayList<>() ).add(library) );
+            }
+        }
+        return ret;
+    }
+
+    // Returns the headers as they can be included through the given include directory, e.g. "utility/x.h" as well as "x.h".
+    // The root of a legacy library only provides its own headers and those of its "utility" directory:
+    private static List<String> findHeaders( Library library, Path includeDirPath ) throws IOException {
+        boolean legacyRoot = library.getLayout() == Library.Layout.LEGACY && includeDirPath.equals( library.getRootPath() );
+        Path utilityPath = includeDirPath.resolve(Library.UTILITY_DIR_NAME);
+        List <String> ret = new ArrayList<>();
+        Files.walkFileTree( includeDirPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if ( legacyRoot && !dir.equals(includeDirPath) && !dir.startsWith(utilityPath) ) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if ( attrs.isRegularFile() && HEADER_FILE_MATCHER.matches(file.getFileName()) ) {
+                    ret.add( includeDirPath.relativize(file).toString().replace('\\', '/') );
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                LOGGER.log( Level.FINE, "Unable to visit: " + file, exc );
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return ret;
+    }
+
+    // Prefers a library named after the header, then the library with the highest precedence
+    private static Optional<Library> findLibrary( Map<String,List<Library>> headerIndex, String header, String architecture ) {
+        List <Library> candidates = headerIndex.getOrDefault( header, Collections.emptyList() ).stream()
+            .filter( l -> l.isArchitectureSupported(architecture) )
+            .collect( Collectors.toList() );
+        // "<Lib/sub.h>" is named after its first directory:
+        String headerBaseName = header.contains("/") ? header.substring( 0, header.indexOf('/') )
+            : header.contains(".") ? header.substring( 0, header.lastIndexOf('.') ) : header;
+        Optional <Library> ret = candidates.stream().filter( l -> l.getDirectoryName().equals(headerBaseName) ).findFirst();
+        return ret.isPresent() ? ret : candidates.stream().findFirst();
+    }
+
+    private static List<Path> findSketchSourceFiles( Path sketchPath ) throws IOException {
+        List <Path> ret = new ArrayList<>();
+        try (Stream<Path> s = Files.list(sketchPath)) {
+            s.filter( p -> Files.isRegularFile(p) && SKETCH_SOURCE_FILE_MATCHER.matches(p.getFileName()) ).sorted().forEach( ret::add );
+        }
+        Path srcDirPath = sketchPath.resolve("src");
+        if ( Files.isDirectory(srcDirPath) ) {
+            try (Stream<Path> s = Files.walk(srcDirPath)) {
+                s.filter( p -> Files.isRegularFile(p) && SKETCH_SOURCE_FILE_MATCHER.matches(p.getFileName()) ).sorted().forEach( ret::add );
+            }
+        }
+        return ret;
+    }
+
+}
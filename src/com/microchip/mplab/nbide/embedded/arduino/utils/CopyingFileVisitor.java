@@ -46,6 +46,7 @@ public class CopyingFileVisitor implements FileVisitor<Path> {
     protected final Path target;
     protected final PathMatcher directoryMatcher; 
     protected final PathMatcher fileMatcher;
+    protected volatile FileCopyStrategy copyStrategy = FileCopyStrategy.COPY;
 
     
     public CopyingFileVisitor(Path source, Path target) {
@@ -63,6 +64,17 @@ public class CopyingFileVisitor implements FileVisitor<Path> {
         this.fileMatcher = fileMatcher;
     }
 
+    /**
+     * Sets how the files are put in place (the directories are always created).
+     */
+    public void setCopyStrategy(FileCopyStrategy copyStrategy) {
+        this.copyStrategy = copyStrategy;
+    }
+
+    public FileCopyStrategy getCopyStrategy() {
+        return copyStrategy;
+    }
+
     @Override
     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {        
         // Skip directories that don't match the directory matcher
@@ -132,7 +144,7 @@ public class CopyingFileVisitor implements FileVisitor<Path> {
         }
 
         try {
-            Files.copy(source, target, options);
+            copyStrategy.copyFile(source, target, options);
         } catch (IOException x) {
             LOGGER.log( Level.WARNING, "Unable to copy: " + source, x );
         }
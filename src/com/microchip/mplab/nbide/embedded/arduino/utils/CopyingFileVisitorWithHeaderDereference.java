@@ -36,9 +36,11 @@ public class CopyingFileVisitorWithHeaderDereference extends CopyingFileVisitor
             if (filename.endsWith(".h") || filename.endsWith(".H")) {
                 List<String> allLines = new ArrayList<>();
                 appendLinesFromFile( allLines, source );
+                // The target may still be a link to the header of an earlier import:
+                FileCopyStrategy.breakLink(target);
                 Files.write(target, allLines, new OpenOption[] {StandardOpenOption.CREATE} );
             } else {
-                Files.copy(source, target, options);
+                copyStrategy.copyFile(source, target, options);
             }
         } catch (IOException x) {
             LOGGER.log(Level.WARNING, "Unable to copy: " + source, x);
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.utils;
+
+import java.io.IOException;
+import java.nio.file.CopyOption;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * How a file is put in place by the {@link CopyingFileVisitor}s and the {@link ParallelFileCopier}.
+ * Implementations must be thread-safe, and must copy the bytes when they cannot do better.
+ */
+@FunctionalInterface
+public interface FileCopyStrategy {
+
+    /**
+     * Copies the bytes ({@link Files#copy(Path, Path, CopyOption...)}).
+     */
+    FileCopyStrategy COPY = Files::copy;
+
+    /**
+     * Creates a hard link to the source, or copies it if the link cannot be created (e.g. because the target
+     * is on another file store). A hard link shares the content of the source, so a target that is going to be
+     * modified must be {@link #breakLink unlinked} first.
+     */
+    FileCopyStrategy HARDLINK = (source, target, options) -> {
+        if ( Files.exists(target) ) {
+            if ( !Arrays.asList(options).contains(REPLACE_EXISTING) ) throw new FileAlreadyExistsException( target.toString() );
+            Files.delete(target);
+        }
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException | SecurityException ex) {
+            Logger.getLogger(FileCopyStrategy.class.getName()).log( Level.FINE, "Unable to link " + target + ", copying it", ex );
+            Files.copy(source, target, options);
+        }
+    };
+
+    void copyFile( Path source, Path target, CopyOption... options ) throws IOException;
+
+    /**
+     * Removes the file, so that it can be rewritten without modifying a file it has been linked to.
+     * Writing in place would change the content of every link.
+     */
+    static void breakLink( Path path ) throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.utils;
+
+/**
+ * Helpers for the hand-written JSON reports and manifests.
+ */
+public final class JsonStrings {
+
+    /**
+     * Returns the string value of the given object as a quoted and escaped JSON string, or "null".
+     */
+    public static String quote( Object value ) {
+        if ( value == null ) return "null";
+        String s = value.toString();
+        StringBuilder ret = new StringBuilder("\"");
+        for ( int i=0; i<s.length(); i++ ) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': ret.append("\\\""); break;
+                case '\\': ret.append("\\\\"); break;
+                case '\n': ret.append("\\n"); break;
+                case '\r': ret.append("\\r"); break;
+                case '\t': ret.append("\\t"); break;
+                default:
+                    if ( c < 0x20 ) {
+                        ret.append( String.format("\\u%04x", (int) c) );
+                    } else {
+                        ret.append(c);
+                    }
+            }
+        }
+        return ret.append('"').toString();
+    }
+
+    private JsonStrings() {
+    }
+
+}
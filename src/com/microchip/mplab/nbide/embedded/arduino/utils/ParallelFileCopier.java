@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.CopyOption;
+import java.nio.file.FileVisitResult;
+import static java.nio.file.FileVisitResult.CONTINUE;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies file trees and single files on a bounded pool of threads. The work is enumerated first:
+ * {@link #addTree(Path, CopyingFileVisitor)} walks a tree with the given visitor, creating the directories
+ * right away, and {@link #addFile(Path, Path, CopyOption...)} queues a single file. {@link #copy()} then copies
+ * all files concurrently and finally lets the visitors fix up the directories (deepest first), so the
+ * result is the same as walking the trees one after another.
+ */
+public final class ParallelFileCopier {
+
+
+    private static final Logger LOGGER = Logger.getLogger(ParallelFileCopier.class.getName());
+
+    // Copying is I/O bound, so more threads than cores pay off (above all on network drives):
+    public static final int DEFAULT_THREAD_COUNT = Math.max( 4, Math.min( 16, 2 * Runtime.getRuntime().availableProcessors() ) );
+
+    private final int threadCount;
+    private final FileCopyStrategy copyStrategy;
+    // By target, so that a file added later replaces an earlier one as if they were copied one after another:
+    private final Map <Path,FileCopy> fileCopies = new LinkedHashMap<>();
+    private final List <DirectoryFixup> directoryFixups = new ArrayList<>();
+    private List <Path> targetPaths = new ArrayList<>();
+    private int fileCount;
+    private long byteCount;
+    private long elapsedMillis;
+
+
+    public ParallelFileCopier() {
+        this( FileCopyStrategy.COPY );
+    }
+
+    public ParallelFileCopier( FileCopyStrategy copyStrategy ) {
+        this( DEFAULT_THREAD_COUNT, copyStrategy );
+    }
+
+    public ParallelFileCopier( int threadCount, FileCopyStrategy copyStrategy ) {
+        this.threadCount = Math.max( 1, threadCount );
+        this.copyStrategy = copyStrategy;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public FileCopyStrategy getCopyStrategy() {
+        return copyStrategy;
+    }
+
+    /**
+     * @return the number of files copied by the last {@link #copy()}
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return the number of bytes copied by the last {@link #copy()}
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return the (absolute) target paths of the files copied by the last {@link #copy()}
+     */
+    public List<Path> getTargetPaths() {
+        return Collections.unmodifiableList( targetPaths );
+    }
+
+    /**
+     * Walks the tree the visitor has been created for. Its directories are created (and skipped) by the visitor
+     * right away, its files are copied by {@link #copy()} through {@link CopyingFileVisitor#visitFile}
+     * with the copy strategy of this copier.
+     */
+    public void addTree( Path sourceDirPath, CopyingFileVisitor visitor ) throws IOException {
+        addTree( sourceDirPath, visitor, copyStrategy );
+    }
+
+    /**
+     * Like {@link #addTree(Path, CopyingFileVisitor)}, but copies the files of the tree with the given strategy.
+     */
+    public void addTree( Path sourceDirPath, CopyingFileVisitor visitor, FileCopyStrategy treeCopyStrategy ) throws IOException {
+        visitor.setCopyStrategy( treeCopyStrategy );
+        Files.walkFileTree( sourceDirPath, new FileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs ) throws IOException {
+                return visitor.preVisitDirectory( dir, attrs );
+            }
+
+            @Override
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException {
+                if ( visitor.fileMatcher == null || visitor.fileMatcher.matches( file.getFileName() ) ) {
+                    Path targetPath = visitor.target.resolve( visitor.source.relativize(file) );
+                    queue( targetPath, new FileCopy( attrs.size(), () -> visitor.visitFile( file, attrs ) ) );
+                }
+                return CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed( Path file, IOException exc ) throws IOException {
+                return visitor.visitFileFailed( file, exc );
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory( Path dir, IOException exc ) throws IOException {
+                // Post-order already, so subdirectories come before their parents:
+                directoryFixups.add( new DirectoryFixup( visitor, dir, exc ) );
+                return CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Queues a copy of a single file. The parent directories of the target are created right away.
+     * Unlike the files of a tree, a failed copy makes {@link #copy()} fail.
+     */
+    public void addFile( Path sourcePath, Path targetPath, CopyOption... options ) throws IOException {
+        addFile( sourcePath, targetPath, copyStrategy, options );
+    }
+
+    /**
+     * Like {@link #addFile(Path, Path, CopyOption...)}, but copies the file with the given strategy.
+     */
+    public void addFile( Path sourcePath, Path targetPath, FileCopyStrategy fileCopyStrategy, CopyOption... options ) throws IOException {
+        Files.createDirectories( targetPath.toAbsolutePath().getParent() );
+        queue( targetPath, new FileCopy( Files.size(sourcePath), () -> fileCopyStrategy.copyFile( sourcePath, targetPath, options ) ) );
+    }
+
+    /**
+     * Copies all queued files and fixes up the directories of the trees. All copies are attempted even
+     * if some of them fail; the first failure is thrown afterwards.
+     */
+    public void copy() throws IOException {
+        long startNanos = System.nanoTime();
+        List <FileCopy> copies = new ArrayList<>( fileCopies.values() );
+        targetPaths = new ArrayList<>( fileCopies.keySet() );
+        fileCopies.clear();
+        Throwable failure = null;
+        if ( !copies.isEmpty() ) {
+            ExecutorService executor = Executors.newFixedThreadPool( Math.min( threadCount, copies.size() ) );
+            try {
+                List <Future<Void>> futures = new ArrayList<>();
+                copies.forEach( c -> futures.add( executor.submit( () -> {
+                    c.operation.run();
+                    return null;
+                })));
+                for ( Future<Void> future : futures ) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ex) {
+                        if ( failure == null ) {
+                            failure = ex.getCause();
+                        } else {
+                            failure.addSuppressed( ex.getCause() );
+                        }
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while copying files");
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        for ( DirectoryFixup fixup : directoryFixups ) {
+            fixup.visitor.postVisitDirectory( fixup.dir, fixup.exc );
+        }
+        directoryFixups.clear();
+
+        fileCount = copies.size();
+        byteCount = copies.stream().mapToLong( c -> c.size ).sum();
+        elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        if ( fileCount > 0 ) {
+            LOGGER.log( Level.INFO, "Copied {0}", this );
+        }
+        if ( failure instanceof IOException ) throw (IOException) failure;
+        if ( failure instanceof RuntimeException ) throw (RuntimeException) failure;
+        if ( failure != null ) throw new IOException(failure);
+    }
+
+    @Override
+    public String toString() {
+        double seconds = Math.max( elapsedMillis, 1 ) / 1000.0;
+        return String.format( Locale.ROOT, "%d files (%d bytes) in %d ms on %d threads: %.0f files/s, %.1f MB/s",
+            fileCount, byteCount, elapsedMillis, threadCount, fileCount / seconds, byteCount / seconds / (1024 * 1024) );
+    }
+
+
+    //*************************************************
+    //*************** PRIVATE METHODS *****************
+    //*************************************************
+    private void queue( Path targetPath, FileCopy fileCopy ) {
+        Path key = targetPath.toAbsolutePath().normalize();
+        fileCopies.remove( key );
+        fileCopies.put( key, fileCopy );
+    }
+
+    @FunctionalInterface
+    private interface CopyOperation {
+        void run() throws IOException;
+    }
+
+    private static final class FileCopy {
+
+        private final long size;
+        private final CopyOperation operation;
+
+        FileCopy( long size, CopyOperation operation ) {
+            this.size = size;
+            this.operation = operation;
+        }
+
+    }
+
+    private static final class DirectoryFixup {
+
+        private final CopyingFileVisitor visitor;
+        private final Path dir;
+        private final IOException exc;
+
+        DirectoryFixup( CopyingFileVisitor visitor, Path dir, IOException exc ) {
+            this.visitor = visitor;
+            this.dir = dir;
+            this.exc = exc;
+        }
+
+    }
+
+}
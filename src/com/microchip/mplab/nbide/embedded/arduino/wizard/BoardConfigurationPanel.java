@@ -25,15 +25,21 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.ListSelectionModel;
 import org.openide.util.NbBundle;
 
 class BoardConfigurationPanel extends JPanel {
 
     private BoardConfigurationStep control;
     private final Map<BoardOption,JComboBox<OptionValueItem>> comboBoxLookup;
+    private JCheckBox allOptionCombinationsCheckBox;
+    private JList<String> additionalBoardsList;
 
     BoardConfigurationPanel(BoardConfigurationStep control) {
         this.control = control;
@@ -67,6 +73,31 @@ class BoardConfigurationPanel extends JPanel {
             p0.add(comboBox, c);
         }
 
+        // Matrix import: more configurations of the same board and/or other boards of the same platform
+        allOptionCombinationsCheckBox = new JCheckBox(NbBundle.getMessage(BoardConfigurationPanel.class, "BoardConfigurationPanel.allOptionCombinationsCheckBox.text"));
+        if (board.hasOptions()) {
+            c.gridy = options.size();
+            c.gridx = 0;
+            c.gridwidth = 2;
+            p0.add(allOptionCombinationsCheckBox, c);
+            c.gridwidth = 1;
+        }
+
+        List<String> boardNames = board.getPlatform().getBoardNamesToIDsLookup().entrySet().stream()
+            .filter( e -> !e.getValue().equals(board.getBoardId()) )
+            .map( e -> e.getKey() )
+            .sorted()
+            .collect( Collectors.toList() );
+        additionalBoardsList = new JList<>(boardNames.toArray(new String[boardNames.size()]));
+        additionalBoardsList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        additionalBoardsList.setVisibleRowCount(8);
+        c.gridy = options.size() + 1;
+        c.gridx = 0;
+        c.anchor = GridBagConstraints.FIRST_LINE_END;
+        p0.add(createLabel(NbBundle.getMessage(BoardConfigurationPanel.class, "BoardConfigurationPanel.additionalBoardsLabel.text")), c);
+        c.gridx = 1;
+        p0.add(new JScrollPane(additionalBoardsList), c);
+
         removeAll();
 
         c = new GridBagConstraints();
@@ -80,6 +111,14 @@ class BoardConfigurationPanel extends JPanel {
         return item.optionValue;
     }
 
+    boolean isAllOptionCombinationsSelected() {
+        return allOptionCombinationsCheckBox != null && allOptionCombinationsCheckBox.isSelected();
+    }
+
+    List<String> getSelectedAdditionalBoardNames() {
+        return additionalBoardsList != null ? additionalBoardsList.getSelectedValuesList() : new ArrayList<>();
+    }
+
     private JLabel createLabel(String text) {
         return new JLabel(text + ":");
     }
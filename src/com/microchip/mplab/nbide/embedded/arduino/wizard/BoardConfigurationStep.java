@@ -20,11 +20,14 @@ import com.microchip.mplab.nbide.embedded.arduino.importer.BoardConfiguration;
 import com.microchip.mplab.nbide.embedded.arduino.importer.BoardOption;
 import static com.microchip.mplab.nbide.embedded.arduino.wizard.ImportWizardProperty.BOARD;
 import static com.microchip.mplab.nbide.embedded.arduino.wizard.ImportWizardProperty.BOARD_CONFIGURATION;
+import static com.microchip.mplab.nbide.embedded.arduino.wizard.ImportWizardProperty.BOARD_CONFIGURATIONS;
 import java.awt.Component;
 import java.awt.event.ItemEvent;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import javax.swing.event.ChangeEvent;
@@ -76,6 +79,8 @@ public class BoardConfigurationStep implements WizardDescriptor.Panel<WizardDesc
     @Override
     public void storeSettings(WizardDescriptor wizardDescriptor) {
         wizardDescriptor.putProperty(BOARD_CONFIGURATION.key(), boardConfiguration);
+        List <BoardConfiguration> boardConfigurations = createMatrixBoardConfigurations();
+        wizardDescriptor.putProperty(BOARD_CONFIGURATIONS.key(), boardConfigurations.size() > 1 ? boardConfigurations : null);
         deviceAssistant.storeSettings(wizardDescriptor);
     }
 
@@ -118,12 +123,42 @@ public class BoardConfigurationStep implements WizardDescriptor.Panel<WizardDesc
         return deviceAssistant.isToolchainValid();
     }
     
-    private void updateBoardConfiguration() {
+    // The selected configuration comes first, it is the one used for the board independent part of the import
+    private List<BoardConfiguration> createMatrixBoardConfigurations() {
+        boolean allOptionCombinations = view.isAllOptionCombinationsSelected();
+        List <BoardConfiguration> ret = new ArrayList<>();
+        ret.add( boardConfiguration );
+        if ( allOptionCombinations ) {
+            board.getOptionCombinations().forEach( optionValues -> {
+                BoardConfiguration c = new BoardConfiguration(board, optionValues);
+                if ( !optionValues.equals( getSelectedOptionValues() ) ) {
+                    ret.add(c);
+                }
+            });
+        }
+        Map <String,String> boardIdLookup = board.getPlatform().getBoardNamesToIDsLookup();
+        view.getSelectedAdditionalBoardNames().forEach( boardName -> {
+            board.getPlatform().getBoard( boardIdLookup.get(boardName) ).ifPresent( additionalBoard -> {
+                List <Map<BoardOption,String>> combinations = additionalBoard.getOptionCombinations();
+                if ( !allOptionCombinations ) {
+                    combinations = combinations.subList(0, 1);
+                }
+                combinations.forEach( optionValues -> ret.add( new BoardConfiguration(additionalBoard, optionValues) ) );
+            });
+        });
+        return ret;
+    }
+    
+    private Map<BoardOption,String> getSelectedOptionValues() {
         Map <BoardOption,String> optionValues = new HashMap<>();
         board.getOptions().forEach( option -> {
             optionValues.put(option, view.getSelectedOptionValue(option)); 
         });
-        boardConfiguration = new BoardConfiguration(board, optionValues);
+        return optionValues;
+    }
+    
+    private void updateBoardConfiguration() {
+        boardConfiguration = new BoardConfiguration(board, getSelectedOptionValues());
         deviceAssistant.updateDeviceAndToolchain( boardConfiguration );
     }
 }
@@ -17,7 +17,6 @@ package com.microchip.mplab.nbide.embedded.arduino.wizard;
 
 
 import com.microchip.mplab.nbide.embedded.arduino.importer.ArduinoConfig;
-import com.microchip.mplab.nbide.embedded.arduino.importer.Board;
 import com.microchip.mplab.nbide.embedded.arduino.importer.PlatformFactory;
 import com.microchip.mplab.nbide.embedded.makeproject.api.wizards.WizardProperty;
 import java.util.Set;
@@ -127,17 +126,7 @@ public class ImportWizardIterator implements WizardDescriptor.InstantiatingItera
             throw new NoSuchElementException();
         }
         
-        if ( index == 0 ) {
-            Board board = (Board) wiz.getProperty(ImportWizardProperty.BOARD.key());
-            if ( board.hasOptions() ) {
-                index++;
-            } else {
-                // Skip the "Board Configuration" page                
-                index += 2;
-            }             
-        } else {        
-            index++;
-        }
+        index++;
     }
 
     @Override
@@ -145,17 +134,7 @@ public class ImportWizardIterator implements WizardDescriptor.InstantiatingItera
         if (!hasPrevious()) {
             throw new NoSuchElementException();
         }
-        if ( index == 2 ) {
-            Board board = (Board) wiz.getProperty(ImportWizardProperty.BOARD.key());
-            if ( board.hasOptions() ) {
-                index--;
-            } else {
-                // Skip the "Board Configuration" page
-                index -= 2;
-            }             
-        } else {        
-            index--;
-        }
+        index--;
     }
 
     @Override
@@ -23,11 +23,17 @@ public enum ImportWizardProperty {
     BOARD_NAME("boardName"),
     BOARD("board"),
     BOARD_CONFIGURATION("boardConfiguration"),
+    BOARD_CONFIGURATIONS("boardConfigurations"),
     LAST_SOURCE_PROJECT_LOCATION("lastSourceProjectLocation"),
     LAST_ARDUINO_PLATFORM("lastPlatform"),
     LAST_ARDUINO_PLATFORM_LOCATION("lastPlatformLocation"),
     LAST_ARDUINO_LOCATION("lastArduinoLocation"),
-    COPY_CORE_FILES("copyCoreFiles");
+    COPY_CORE_FILES("copyCoreFiles"),
+    COPY_REACHABLE_LIBRARY_FILES_ONLY("copyReachableLibraryFilesOnly"),
+    CLONE_FILES("cloneFiles"),
+    BUILD_LIBRARY_ARCHIVES("buildLibraryArchives"),
+    SHARE_FILES_BETWEEN_PROJECTS("shareFilesBetweenProjects"),
+    SYNC_EXISTING_PROJECT("syncExistingProject");
 
     private final String key;
 
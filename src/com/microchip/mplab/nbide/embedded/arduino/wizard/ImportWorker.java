@@ -20,8 +20,16 @@ import com.microchip.mplab.nbide.embedded.api.LanguageToolchainManager;
 import com.microchip.mplab.nbide.embedded.arduino.importer.ArduinoBuilderRunner;
 import com.microchip.mplab.nbide.embedded.arduino.importer.ArduinoConfig;
 import com.microchip.mplab.nbide.embedded.arduino.importer.BootloaderPathProvider;
+import com.microchip.mplab.nbide.embedded.arduino.importer.FileCopyMode;
 import com.microchip.mplab.nbide.embedded.arduino.importer.ProjectImporter;
 import com.microchip.mplab.nbide.embedded.arduino.importer.GCCToolFinder;
+import com.microchip.mplab.nbide.embedded.arduino.importer.LibCoreCache;
+import com.microchip.mplab.nbide.embedded.arduino.importer.ObjectCache;
+import com.microchip.mplab.nbide.embedded.arduino.importer.SharedFileStore;
+import com.microchip.mplab.nbide.embedded.arduino.importer.NativeProcessOutputCapture;
+import com.microchip.mplab.nbide.embedded.arduino.importer.NativeProcessExecutor;
+import com.microchip.mplab.nbide.embedded.arduino.importer.NativeProcessRunner;
+import com.microchip.mplab.nbide.embedded.arduino.importer.NativeProcessTimeline;
 import com.microchip.mplab.nbide.embedded.arduino.utils.DeletingFileVisitor;
 import static com.microchip.mplab.nbide.embedded.arduino.wizard.ImportWizardProperty.*;
 import static com.microchip.mplab.nbide.embedded.makeproject.api.wizards.WizardProperty.*;
@@ -57,13 +65,24 @@ import org.openide.WizardDescriptor;
 import org.openide.filesystems.FileObject;
 import org.openide.filesystems.FileUtil;
 import org.openide.modules.InstalledFileLocator;
+import org.openide.modules.Places;
 import org.openide.util.Exceptions;
+import org.openide.util.NbBundle;
+import org.openide.windows.IOProvider;
+import org.openide.windows.InputOutput;
 import static com.microchip.mplab.nbide.embedded.arduino.importer.ProjectImporter.IMPORTED_PROPERTIES_FILENAME;
 import com.microchip.mplab.nbide.embedded.arduino.importer.Board;
 import com.microchip.mplab.nbide.embedded.arduino.importer.BoardConfiguration;
 import com.microchip.mplab.nbide.embedded.arduino.wizard.pic32.PIC32ProjectConfigurationImporter;
+import com.microchip.mplab.nbide.embedded.arduino.importer.MatrixProjectImporter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
 
@@ -71,10 +90,17 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
 
     private static final String DEFAULT_CONF_NAME = "default";
     private static final String DEBUG_CONF_NAME = "debug";
+    private static final String SKETCH_SOURCE_FOLDER_NAME = "sketchSource";
+    private static final String LIB_CORE_CACHE_DIRECTORY = "chipkit-importer/libcore";
+    private static final String OBJECT_CACHE_DIRECTORY = "chipkit-importer/objects";
+    private static final String SHARED_FILE_STORE_DIRECTORY = "chipkit-importer/files";
 
     private Exception exception;
     private final WizardDescriptor wizardDescriptor;
     private volatile boolean multiConfigBoard;
+    private volatile boolean syncingExistingProject;
+    private NativeProcessOutputCapture outputCapture;
+    private InputOutput outputWindow;
 
     public ImportWorker(WizardDescriptor wizardDescriptor) {
         this.wizardDescriptor = wizardDescriptor;
@@ -87,6 +113,10 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
         } catch (IOException ex) {
             this.exception = ex;
             LOGGER.log(Level.SEVERE, "Failed to import project", ex);
+            if (syncingExistingProject) {
+                // The project existed before, so it is left as it is (a later sync completes it)
+                return new HashSet<>();
+            }
             final File projectDir = (File) wizardDescriptor.getProperty(WizardProperty.PROJECT_DIR.key());
             // Delete the project directory after a short delay so that the import process releases all project files.
             Timer t = new Timer(2000, (a) -> {
@@ -114,6 +144,13 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
         return exception;
     }
 
+    /**
+     * @return false where the shared file store could not keep the files of the projects read-only (e.g. on Windows)
+     */
+    public static boolean isSharedFileStoreSupported() {
+        return SharedFileStore.isSupported(Places.getCacheDirectory().toPath().resolve(SHARED_FILE_STORE_DIRECTORY));
+    }
+
     //**********************************************
     //************** PRIVATE METHODS ***************
     //**********************************************    
@@ -125,31 +162,109 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
             overwriteExistingProject = false;
         }
 
+        // Syncing updates an existing project in place instead of deleting it and creating it again:
+        MakeProject existingProject = null;
         if (overwriteExistingProject) {
             File projectDir = (File) wizardDescriptor.getProperty(WizardProperty.PROJECT_DIR.key());
-            deleteExistingProject(projectDir);
+            if (Boolean.TRUE.equals(wizardDescriptor.getProperty(SYNC_EXISTING_PROJECT.key()))) {
+                existingProject = findExistingProject(projectDir);
+            }
+            if (existingProject == null) {
+                deleteExistingProject(projectDir);
+            }
         }
+        syncingExistingProject = existingProject != null;
 
         long t0 = System.currentTimeMillis();
+        // Only the processes of this import, not those of other imports or builds running at the same time:
+        NativeProcessTimeline timeline = new NativeProcessTimeline(this);
+        NativeProcessRunner.addInvocationListener(timeline);
+        NativeProcessRunner.setInvocationTag(this);
         try {
-            resultSet.addAll(createProject());
+            resultSet.addAll(syncingExistingProject ? syncProject(existingProject) : createProject());
         } catch (InterruptedException ex) {
             Exceptions.printStackTrace(ex);
         } finally {
+            NativeProcessRunner.setInvocationTag(null);
+            NativeProcessRunner.removeInvocationListener(timeline);
+            if (outputCapture != null) {
+                // "-- " lines are forwarded to the output window like the messages about the processes:
+                outputCapture.accept("-- " + NativeProcessExecutor.getInstance());
+            } else {
+                LOGGER.log(Level.INFO, "{0}", NativeProcessExecutor.getInstance());
+            }
+            closeOutputCapture();
             LOGGER.log(Level.INFO, "Elapsed time of import operation: {0} ms", System.currentTimeMillis() - t0);
+            writeTimeline(timeline);
         }
 
         return resultSet;
     }
 
-    private void deleteExistingProject(File projectDir) throws IOException {
+    // arduino-builder runs in verbose mode. Its complete output goes to a log file and only a filtered, rate-limited
+    // part of it to the IDE log and the output window so that the process never waits for the logging:
+    private Consumer<String> createNativeProcessMessageConsumer(Path targetProjectDirPath) {
+        Path nbprojectDirPath = targetProjectDirPath.resolve("nbproject");
+        if (Files.isDirectory(nbprojectDirPath)) {
+            try {
+                outputWindow = IOProvider.getDefault().getIO(NbBundle.getMessage(ImportWorker.class, "ImportWorker.outputWindowTitle"), false);
+                outputCapture = new NativeProcessOutputCapture(nbprojectDirPath.resolve(NativeProcessOutputCapture.LOG_FILENAME), (m) -> {
+                    LOGGER.info(m);
+                    outputWindow.getOut().println(m);
+                });
+                return outputCapture;
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Failed to create the native process output log", ex);
+            }
+        }
+        return (m) -> LOGGER.info(m);
+    }
+
+    private void closeOutputCapture() {
+        if (outputCapture != null) {
+            try {
+                outputCapture.close();
+                LOGGER.log(Level.INFO, "Native process output written to: {0}", outputCapture.getLogFilePath());
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Failed to write the native process output log", ex);
+            }
+            outputCapture = null;
+        }
+        if (outputWindow != null) {
+            outputWindow.getOut().close();
+            outputWindow.getErr().close();
+            outputWindow = null;
+        }
+    }
+
+    private void writeTimeline(NativeProcessTimeline timeline) {
+        File projectDir = (File) wizardDescriptor.getProperty(WizardProperty.PROJECT_DIR.key());
+        Path nbprojectDirPath = projectDir.toPath().resolve("nbproject");
+        if (!Files.isDirectory(nbprojectDirPath)) {
+            return;
+        }
+        try {
+            timeline.write(nbprojectDirPath);
+            LOGGER.log(Level.INFO, "Native process timeline written to: {0}", nbprojectDirPath.resolve(NativeProcessTimeline.TIMELINE_FILENAME));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed to write the native process timeline", ex);
+        }
+    }
+
+    private MakeProject findExistingProject(File projectDir) throws IOException {
         if (projectDir != null) {
             projectDir = FileUtil.normalizeFile(projectDir);
             FileObject dirFO = FileUtil.toFileObject(projectDir);
-            MakeProject proj = null;
             if (dirFO != null) {
-                proj = (MakeProject) ProjectManager.getDefault().findProject(dirFO);
+                return (MakeProject) ProjectManager.getDefault().findProject(dirFO);
             }
+        }
+        return null;
+    }
+
+    private void deleteExistingProject(File projectDir) throws IOException {
+        if (projectDir != null) {
+            MakeProject proj = findExistingProject(projectDir);
             if (proj != null) {
                 if (OpenProjects.getDefault().isProjectOpen(proj)) {
                     OpenProjects.getDefault().close(new MakeProject[]{proj});
@@ -165,24 +280,56 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
         Board board = (Board) wizardDescriptor.getProperty(BOARD.key());
 
         MakeConfiguration[] confs;
-        MakeConfiguration defaultConf = createDefaultMakefileConfiguration(projectDirectory);
-        if (ProjectImporter.CUSTOM_LD_SCRIPT_BOARD_IDS.contains(board.getBoardId())) {
-            MakeConfiguration debugConf = createDebugMakefileConfiguration(projectDirectory);
-            confs = new MakeConfiguration[]{defaultConf, debugConf};
+        List<BoardConfiguration> matrixBoardConfigurations = getMatrixBoardConfigurations();
+        if (matrixBoardConfigurations != null) {
+            // One configuration (plus a debug one if necessary) per board configuration:
+            List<MakeConfiguration> confList = new ArrayList<>();
+            matrixBoardConfigurations.forEach(bc -> {
+                String confName = MatrixProjectImporter.createConfigurationName(bc);
+                confList.add(createBoardMakefileConfiguration(projectDirectory, confName, bc));
+                if (ProjectImporter.CUSTOM_LD_SCRIPT_BOARD_IDS.contains(bc.getBoardId())) {
+                    confList.add(createBoardMakefileConfiguration(projectDirectory, confName + "_" + DEBUG_CONF_NAME, bc));
+                }
+            });
+            confs = confList.toArray(new MakeConfiguration[confList.size()]);
         } else {
-            confs = new MakeConfiguration[]{defaultConf};
+            MakeConfiguration defaultConf = createDefaultMakefileConfiguration(projectDirectory);
+            if (ProjectImporter.CUSTOM_LD_SCRIPT_BOARD_IDS.contains(board.getBoardId())) {
+                MakeConfiguration debugConf = createDebugMakefileConfiguration(projectDirectory);
+                confs = new MakeConfiguration[]{defaultConf, debugConf};
+            } else {
+                confs = new MakeConfiguration[]{defaultConf};
+            }
         }
 
         String projectName = (String) wizardDescriptor.getProperty(WizardProperty.PROJECT_NAME.key());
         String makefileName = (String) wizardDescriptor.getProperty(WizardProperty.MAKE_FILENAME.key());
         String hostDir = projectDirectory.getAbsolutePath();
         MakeProject newProject = MakeProjectGenerator.createProject(projectDirectory, hostDir, projectName, makefileName, confs, null, null, null, true, null);
-        importArduinoProjectFiles(newProject);
+        importArduinoProjectFiles(newProject, false);
         setupProjectEncoding(newProject);
         newProject.save();
         return projectRootDirectories;
     }
 
+    // The configurations are kept and their options updated. The logical folders are created again from the new import:
+    private Set<FileObject> syncProject(MakeProject project) throws IOException, InterruptedException {
+        Set<FileObject> projectRootDirectories = new HashSet<>(1);
+        initProjectDirectoryFromWizard(projectRootDirectories);
+        MakeConfigurationBook projectDescriptor = MakeConfigurationBook.getMakeConfigurationDescriptor(project);
+        Folder logicalFolders = projectDescriptor.getLogicalFolders();
+        for (String folderName : Arrays.asList(ProjectImporter.CORE_DIRECTORY_NAME, ProjectImporter.LIBRARIES_DIRECTORY_NAME, ProjectImporter.SOURCE_FILES_DIRECTORY_NAME, SKETCH_SOURCE_FOLDER_NAME)) {
+            Folder folder = logicalFolders.findFolderByName(folderName);
+            if (folder != null) {
+                logicalFolders.removeFolderAction(folder);
+            }
+        }
+        importArduinoProjectFiles(project, true);
+        setupProjectEncoding(project);
+        project.save();
+        return projectRootDirectories;
+    }
+
     private File initProjectDirectoryFromWizard(Set<FileObject> projectRootDirectories) {
         File projectDirectory = (File) wizardDescriptor.getProperty(WizardProperty.PROJECT_DIR.key());
         if (projectDirectory != null) {
@@ -206,6 +353,26 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
         return conf;
     }
 
+    private MakeConfiguration createBoardMakefileConfiguration(File projectDirectory, String confName, BoardConfiguration boardConfiguration) {
+        MakeConfiguration conf = new MakeConfiguration(projectDirectory.getPath(), confName, MakeConfiguration.TYPE_APPLICATION);
+        setupMakefileConfiguration(conf);
+        // Each board may use a different device:
+        MPLABDeviceAssistant deviceAssistant = new MPLABDeviceAssistant();
+        deviceAssistant.updateDeviceAndToolchain(boardConfiguration);
+        if (!deviceAssistant.getDeviceName().isEmpty()) {
+            conf.getDevice().setValue(deviceAssistant.getDeviceName());
+        }
+        return conf;
+    }
+
+    private List<BoardConfiguration> getMatrixBoardConfigurations() {
+        Object boardConfigurations = wizardDescriptor.getProperty(BOARD_CONFIGURATIONS.key());
+        if (boardConfigurations instanceof List && ((List) boardConfigurations).size() > 1) {
+            return (List<BoardConfiguration>) boardConfigurations;
+        }
+        return null;
+    }
+
     private MakeConfiguration setupMakefileConfiguration(MakeConfiguration conf) {
         // Device and Header
         conf.getDevice().setValue((String) wizardDescriptor.getProperty(WizardProperty.DEVICE.key()));
@@ -231,10 +398,14 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
     }
 
     //  TODO: Refactor this method. It is too long and contains too much business logic.
-    private void importArduinoProjectFiles(MakeProject newProject) throws IOException, InterruptedException {
+    private void importArduinoProjectFiles(MakeProject newProject, boolean syncing) throws IOException, InterruptedException {
         MakeConfigurationBook newProjectDescriptor = MakeConfigurationBook.getMakeConfigurationDescriptor(newProject);
 
         boolean copyFiles = (boolean) wizardDescriptor.getProperty(COPY_CORE_FILES.key());
+        Object copyReachableLibraryFilesOnly = wizardDescriptor.getProperty(COPY_REACHABLE_LIBRARY_FILES_ONLY.key());
+        Object cloneFiles = wizardDescriptor.getProperty(CLONE_FILES.key());
+        Object buildLibraryArchives = wizardDescriptor.getProperty(BUILD_LIBRARY_ARCHIVES.key());
+        Object shareFilesBetweenProjects = wizardDescriptor.getProperty(SHARE_FILES_BETWEEN_PROJECTS.key());
         File targetProjectDir = (File) wizardDescriptor.getProperty(PROJECT_DIR.key());
         File sourceProjectDir = (File) wizardDescriptor.getProperty(SOURCE_PROJECT_DIR.key());
         BoardConfiguration boardConfiguration = (BoardConfiguration) wizardDescriptor.getProperty(BOARD_CONFIGURATION.key());
@@ -244,7 +415,7 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
         ArduinoConfig arduinoPathResolver = ArduinoConfig.getInstance();
 
         ArduinoBuilderRunner arduinoBuilderRunner = new ArduinoBuilderRunner(
-                toolFinder, arduinoPathResolver, arduinoInstallDir.toPath(), (m) -> LOGGER.info(m)
+                toolFinder, arduinoPathResolver, arduinoInstallDir.toPath(), createNativeProcessMessageConsumer(targetProjectDir.toPath())
         );
 
         BootloaderPathProvider bootloaderPathProvider = new BootloaderPathProvider((filename) -> {
@@ -255,18 +426,61 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
         File customLinkerScriptsDir = InstalledFileLocator.getDefault().locate("linker_scripts", "com.microchip.mplab.nbide.embedded.arduino", false);
         Path customLdScriptsDirectoryPath = customLinkerScriptsDir.toPath();
 
-        ProjectImporter importer = new ProjectImporter();
-        importer.setCopyingFiles(copyFiles);
-        importer.setBoardConfiguration(boardConfiguration);
-        importer.setSourceProjectDirectoryPath(sourceProjectDir.toPath());
-        importer.setTargetProjectDirectoryPath(targetProjectDir.toPath());
-        importer.setArduinoBuilderRunner(arduinoBuilderRunner);
-        importer.setBootloaderPathProvider(bootloaderPathProvider);
-        importer.setCustomLdScriptsPath(customLdScriptsDirectoryPath);
-        importer.execute();
+        LibCoreCache libCoreCache = new LibCoreCache(Places.getCacheSubdirectory(LIB_CORE_CACHE_DIRECTORY).toPath());
+        ObjectCache objectCache = new ObjectCache(Places.getCacheSubdirectory(OBJECT_CACHE_DIRECTORY).toPath());
+        SharedFileStore sharedFileStore = copyFiles && shareFilesBetweenProjects != null && (boolean) shareFilesBetweenProjects && isSharedFileStoreSupported()
+                ? new SharedFileStore(Places.getCacheSubdirectory(SHARED_FILE_STORE_DIRECTORY).toPath())
+                : null;
+
+        Supplier<ProjectImporter> importerFactory = () -> {
+            ProjectImporter importer = new ProjectImporter();
+            importer.setCopyingFiles(copyFiles);
+            importer.setSyncing(syncing);
+            importer.setCopyingReachableLibraryFilesOnly(copyReachableLibraryFilesOnly != null && (boolean) copyReachableLibraryFilesOnly);
+            // Clones fall back to copies, so the project files never share their contents with the installation:
+            importer.setFileCopyMode(cloneFiles == null || (boolean) cloneFiles ? FileCopyMode.REFLINK : FileCopyMode.COPY);
+            importer.setBuildingLibraryArchives(buildLibraryArchives != null && (boolean) buildLibraryArchives);
+            importer.setPrecompilingCoreHeader(true);
+            importer.setSourceProjectDirectoryPath(sourceProjectDir.toPath());
+            importer.setTargetProjectDirectoryPath(targetProjectDir.toPath());
+            importer.setArduinoBuilderRunner(arduinoBuilderRunner);
+            importer.setBootloaderPathProvider(bootloaderPathProvider);
+            importer.setCustomLdScriptsPath(customLdScriptsDirectoryPath);
+            importer.setLibCoreCache(libCoreCache);
+            importer.setObjectCache(objectCache);
+            importer.setSharedFileStore(sharedFileStore);
+            return importer;
+        };
+
+        // Board configuration importers by the names of the project configurations they set up (null means all):
+        Map<ProjectImporter, List<String>> boardImporters = new LinkedHashMap<>();
+        List<BoardConfiguration> matrixBoardConfigurations = getMatrixBoardConfigurations();
+        ProjectImporter importer;
+        if (matrixBoardConfigurations != null) {
+            MatrixProjectImporter matrixImporter = new MatrixProjectImporter(importerFactory);
+            matrixBoardConfigurations.forEach(bc -> matrixImporter.addBoardConfiguration(MatrixProjectImporter.createConfigurationName(bc), bc));
+            matrixImporter.execute();
+            matrixImporter.getImporters().forEach((confName, i) -> boardImporters.put(i, Arrays.asList(confName, confName + "_" + DEBUG_CONF_NAME)));
+            importer = matrixImporter.getPrimaryImporter();
+        } else {
+            importer = importerFactory.get();
+            importer.setBoardConfiguration(boardConfiguration);
+            importer.execute();
+            boardImporters.put(importer, null);
+        }
+
+        // The files of deleted projects and the ones this import replaced are not linked to anymore:
+        if (sharedFileStore != null) {
+            try {
+                sharedFileStore.prune();
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Failed to prune the shared file store", ex);
+            }
+            LOGGER.log(Level.INFO, "{0}", sharedFileStore);
+        }
 
         // This will be used to display either the short "how-to" guide or the longer one:
-        multiConfigBoard = importer.isCustomLdScriptBoard();
+        multiConfigBoard = boardImporters.keySet().stream().anyMatch(ProjectImporter::isCustomLdScriptBoard);
 
         // Create Imported Core Logical Folder
         Folder importedCoreFolder = newProjectDescriptor.getLogicalFolders().addNewFolder(ProjectImporter.CORE_DIRECTORY_NAME,
@@ -274,21 +488,25 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
                 false,
                 Folder.Kind.SOURCE_LOGICAL_FOLDER
         );
-        importer.getCoreFilePaths().forEach(
-                p -> {
-                    if (copyFiles) {
-                        addFileToFolder(importedCoreFolder, p, importer.getTargetCoreDirectoryPath());
-                    } else {
-                        addFileToFolder(importedCoreFolder, p, boardConfiguration.getCoreDirectoryPath(), boardConfiguration.getVariantPath());
+        Set<Path> addedCoreFilePaths = new HashSet<>();
+        for (ProjectImporter boardImporter : boardImporters.keySet()) {
+            BoardConfiguration bc = boardImporter.getBoardConfiguration();
+            boardImporter.getCoreFilePaths().filter(p -> p == null || addedCoreFilePaths.add(p)).forEach(
+                    p -> {
+                        if (copyFiles) {
+                            addFileToFolder(importedCoreFolder, p, targetProjectDir.toPath().resolve(ProjectImporter.CORE_DIRECTORY_NAME));
+                        } else {
+                            addFileToFolder(importedCoreFolder, p, bc.getCoreDirectoryPath(), bc.getVariantPath());
+                        }
                     }
-                }
-        );
+            );
+        }
 
-        // Create Imported Libraries Logical Folder
+        // Create Imported Libraries Logical Folder (not compiled if the libraries have been built into archives):
         Folder importedLibrariesFolder = newProjectDescriptor.getLogicalFolders().addNewFolder(ProjectImporter.LIBRARIES_DIRECTORY_NAME,
                 "Imported Libraries",
                 true,
-                Folder.Kind.SOURCE_LOGICAL_FOLDER
+                copyFiles && importer.isBuildingLibraryArchives() ? Folder.Kind.IMPORTANT_FILES_FOLDER : Folder.Kind.SOURCE_LOGICAL_FOLDER
         );
         if (copyFiles) {
             importer.getMainLibraryFilePaths().forEach(p -> addFileToFolder(importedLibrariesFolder, p, importer.getTargetLibraryDirectoryPath()));
@@ -310,11 +528,13 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
             });
         }
 
-        newProjectDescriptor.addSourceRoot(copyFiles ? ProjectImporter.SOURCE_FILES_DIRECTORY_NAME : importer.getSourceProjectDirectoryPath().toString());
+        if (!syncing) {
+            newProjectDescriptor.addSourceRoot(copyFiles ? ProjectImporter.SOURCE_FILES_DIRECTORY_NAME : importer.getSourceProjectDirectoryPath().toString());
+        }
 
         if (!copyFiles) {
             Folder sketchSourceFolder = newProjectDescriptor.getLogicalFolders().addNewFolder(
-                    "sketchSource",
+                    SKETCH_SOURCE_FOLDER_NAME,
                     "Sketch Source",
                     false,
                     Folder.Kind.IMPORTANT_FILES_FOLDER
@@ -335,18 +555,45 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
                 addFileToFolder(generatedFolder, p, importer.getPreprocessedSketchDirectoryPath());
             });
 
-            final String arduinoBuilderCommand = importer.getPreprocessingCommand() + " > preprocess.log";  // Redirecting Arduino Builder output to a log file
-
-            newProjectDescriptor.getConfs().getConfigurtions().forEach(c -> {
-                MakeConfiguration mc = (MakeConfiguration) c;
-                mc.getMakeCustomizationConfiguration().setPreBuildStep(arduinoBuilderCommand);
-                mc.getMakeCustomizationConfiguration().setApplyPreBuildStep(true);
-            });
-
+            // Every configuration preprocesses the sketch for its own board:
+            for (Map.Entry<ProjectImporter, List<String>> e : boardImporters.entrySet()) {
+                final String arduinoBuilderCommand = e.getKey().getPreprocessingCommand() + " > preprocess.log";  // Redirecting Arduino Builder output to a log file
+                final List<String> configurationNames = e.getValue();
+                newProjectDescriptor.getConfs().getConfigurtions().forEach(c -> {
+                    if (configurationNames != null && !configurationNames.contains(c.getName())) {
+                        return;
+                    }
+                    MakeConfiguration mc = (MakeConfiguration) c;
+                    mc.getMakeCustomizationConfiguration().setPreBuildStep(arduinoBuilderCommand);
+                    mc.getMakeCustomizationConfiguration().setApplyPreBuildStep(true);
+                });
+            }
+        } else {
+            // Every configuration makes the precompiled core header of its board again when a core header has changed:
+            for (Map.Entry<ProjectImporter, List<String>> e : boardImporters.entrySet()) {
+                Optional<String> updateCommand = e.getKey().getPrecompiledCoreHeaderUpdateCommand();
+                if (!updateCommand.isPresent()) {
+                    continue;
+                }
+                final List<String> configurationNames = e.getValue();
+                newProjectDescriptor.getConfs().getConfigurtions().forEach(c -> {
+                    if (configurationNames != null && !configurationNames.contains(c.getName())) {
+                        return;
+                    }
+                    MakeConfiguration mc = (MakeConfiguration) c;
+                    mc.getMakeCustomizationConfiguration().setPreBuildStep(updateCommand.get());
+                    mc.getMakeCustomizationConfiguration().setApplyPreBuildStep(true);
+                });
+            }
         }
 
         // Add bootloader .hex file: 
-        if (importer.hasBootloaderPath()) {
+        if (boardImporters.size() > 1) {
+            // Loadables are shared by all configurations so they cannot be set up for several boards:
+            LOGGER.log(Level.INFO, "Bootloader files are not added as loadables to a project with several boards");
+        } else if (syncing) {
+            // The loadable has been added by the first import (the bootloader keeps its name in the core directory)
+        } else if (importer.hasBootloaderPath()) {
             String loadableItemPath = importer.getProductionBootloaderPath().toString();
             if (PathPanel.getMode() == PathPanel.REL_OR_ABS) {
                 loadableItemPath = CndPathUtilities.toAbsoluteOrRelativePath(newProjectDescriptor.getBaseDirFileObject(), loadableItemPath);
@@ -361,13 +608,18 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
         }
 
         // Set auxiliary configuration options
-        new PIC32ProjectConfigurationImporter(importer, copyFiles, newProjectDescriptor, targetProjectDir).run();
+        for (Map.Entry<ProjectImporter, List<String>> e : boardImporters.entrySet()) {
+            new PIC32ProjectConfigurationImporter(e.getKey(), copyFiles, newProjectDescriptor, targetProjectDir, e.getValue()).run();
+        }
 
         // Create imported project properties file:
         Properties importedProjectProperties = new Properties();
         importedProjectProperties.setProperty("platform-path", importer.getBoardConfiguration().getPlatform().getRootPath().toString());
         //importedProjectProperties.setProperty("programmer-path", importer.getBoardConfigNavigator().getProgrammerPath().toString());
         Path propsFilePath = Paths.get(newProjectDescriptor.getProjectDir(), "nbproject", IMPORTED_PROPERTIES_FILENAME);
+        if (syncing) {
+            Files.deleteIfExists(propsFilePath);
+        }
         Files.createFile(propsFilePath);
         PrintWriter printWriter = new PrintWriter(propsFilePath.toFile());
         importedProjectProperties.store(printWriter, null);
@@ -402,7 +654,7 @@ public class ImportWorker extends SwingWorker<Set<FileObject>, String> {
                             }
                         }
                         if (!subfolderAlreadyExists) {
-                            folder = folder.addNewFolder(subfolderName, subfolderName, true, Folder.Kind.SOURCE_LOGICAL_FOLDER);
+                            folder = folder.addNewFolder(subfolderName, subfolderName, true, folder.getKind());
                         }
                     }
                     break;
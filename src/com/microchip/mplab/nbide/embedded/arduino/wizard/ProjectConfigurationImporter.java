@@ -18,15 +18,16 @@ package com.microchip.mplab.nbide.embedded.arduino.wizard;
 import com.microchip.mplab.nbide.embedded.api.LanguageToolchainMeta;
 import com.microchip.mplab.nbide.embedded.arduino.importer.ProjectImporter;
 import com.microchip.mplab.nbide.embedded.arduino.importer.BoardConfiguration;
+import com.microchip.mplab.nbide.embedded.arduino.importer.LibraryCatalog;
 import com.microchip.mplab.nbide.embedded.makeproject.api.configurations.MakeConfiguration;
 import com.microchip.mplab.nbide.embedded.makeproject.api.configurations.MakeConfigurationBook;
 import com.microchip.mplab.nbide.embedded.makeproject.api.configurations.OptionConfiguration;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -42,13 +43,22 @@ public abstract class ProjectConfigurationImporter {
     private final boolean copyFiles;
     private final MakeConfigurationBook projectDescriptor;
     private final File targetProjectDir;
+    private final Collection<String> configurationNames;
 
     protected ProjectConfigurationImporter(ProjectImporter importer, boolean copyFiles, MakeConfigurationBook projectDescriptor, File targetProjectDir) {
+        this(importer, copyFiles, projectDescriptor, targetProjectDir, null);
+    }
+
+    /**
+     * @param configurationNames names of the configurations to set up or {@code null} for all configurations of the project
+     */
+    protected ProjectConfigurationImporter(ProjectImporter importer, boolean copyFiles, MakeConfigurationBook projectDescriptor, File targetProjectDir, Collection<String> configurationNames) {
         this.importer = importer;
         this.boardConfiguration = importer.getBoardConfiguration();
         this.copyFiles = copyFiles;
         this.projectDescriptor = projectDescriptor;
         this.targetProjectDir = targetProjectDir;
+        this.configurationNames = configurationNames;
     }
 
     protected BoardConfiguration getBoardConfiguration() {
@@ -73,12 +83,27 @@ public abstract class ProjectConfigurationImporter {
     
     public abstract void run() throws IOException;
     
+    protected List<MakeConfiguration> getTargetConfigurations() {
+        return projectDescriptor.getConfs().getConfigurtions().stream()
+            .filter( c -> configurationNames == null || configurationNames.contains( c.getName() ) )
+            .map( c -> (MakeConfiguration) c )
+            .collect( Collectors.toList() );
+    }
+    
+    /**
+     * Returns the core directory path relative to the project directory (e.g. "imported-core").
+     */
+    protected String getRelativeCoreDirectoryPath() {
+        Path projectPath = Paths.get(targetProjectDir.getAbsolutePath()).normalize();
+        return projectPath.relativize( importer.getTargetCoreDirectoryPath().toAbsolutePath().normalize() ).toString();
+    }
+    
     protected String assembleIncludeDirectories() throws IOException {
-        Path projectPath = Paths.get(targetProjectDir.getAbsolutePath());
+        Path projectPath = Paths.get(targetProjectDir.getAbsolutePath()).normalize();
         Stream<Path> mainLibraryDirPaths = importer.getMainLibraryDirPaths();
         StringBuilder includesBuilder = new StringBuilder();
         if (copyFiles) {
-            includesBuilder.append(ProjectImporter.CORE_DIRECTORY_NAME);
+            includesBuilder.append(getRelativeCoreDirectoryPath());
         } else {
             List <Path> coreDirPaths = boardConfiguration.getCoreDirPaths();
             for ( int i=0; i<coreDirPaths.size(); i++ ) {                
@@ -86,17 +111,11 @@ public abstract class ProjectConfigurationImporter {
                 includesBuilder.append( coreDirPaths.get(i) );
             }
         }
+        LibraryCatalog libraryCatalog = LibraryCatalog.getInstance();
         mainLibraryDirPaths.forEach(path -> {
-            Path srcPath = path.resolve("src");
-            if ( Files.exists(srcPath) ) {
-                includesBuilder.append(";").append(copyFiles ? projectPath.relativize(srcPath) : srcPath.toAbsolutePath());
-            } else {
-                includesBuilder.append(";").append(copyFiles ? projectPath.relativize(path) : path.toAbsolutePath());
-            }
-            Path utilityPath = path.resolve("utility");
-            if ( Files.exists(utilityPath) ) {
-                includesBuilder.append(";").append(copyFiles ? projectPath.relativize(utilityPath) : utilityPath.toAbsolutePath());
-            }
+            libraryCatalog.getIncludeDirectoryPaths(path).forEach( includePath -> {
+                includesBuilder.append(";").append(copyFiles ? projectPath.relativize(includePath) : includePath.toAbsolutePath());
+            });
         });
         
         return includesBuilder.toString();
@@ -54,7 +54,12 @@ class ProjectSetupPanel extends JPanel {
         projectDirectoryField = new javax.swing.JTextField();
         javax.swing.JLabel infoLabel = new javax.swing.JLabel();
         copyDependenciesCheckBox = new javax.swing.JCheckBox();
+        copyReachableLibraryFilesCheckBox = new javax.swing.JCheckBox();
+        cloneFilesCheckBox = new javax.swing.JCheckBox();
+        buildLibraryArchivesCheckBox = new javax.swing.JCheckBox();
+        shareFilesCheckBox = new javax.swing.JCheckBox();
         overwriteCheckBox = new javax.swing.JCheckBox();
+        syncCheckBox = new javax.swing.JCheckBox();
 
         sourceProjectLocationLabel.setHorizontalAlignment(javax.swing.SwingConstants.TRAILING);
         org.openide.awt.Mnemonics.setLocalizedText(sourceProjectLocationLabel, org.openide.util.NbBundle.getMessage(ProjectSetupPanel.class, "ProjectSetupPanel.sourceProjectLocationLabel.text")); // NOI18N
@@ -124,6 +129,19 @@ class ProjectSetupPanel extends JPanel {
         org.openide.awt.Mnemonics.setLocalizedText(infoLabel, org.openide.util.NbBundle.getMessage(ProjectSetupPanel.class, "ProjectSetupPanel.infoLabel.text")); // NOI18N
 
         org.openide.awt.Mnemonics.setLocalizedText(copyDependenciesCheckBox, org.openide.util.NbBundle.getMessage(ProjectSetupPanel.class, "ProjectSetupPanel.copyDependenciesCheckBox.text")); // NOI18N
+        copyDependenciesCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                copyDependenciesCheckBoxActionPerformed(evt);
+            }
+        });
+
+        org.openide.awt.Mnemonics.setLocalizedText(copyReachableLibraryFilesCheckBox, org.openide.util.NbBundle.getMessage(ProjectSetupPanel.class, "ProjectSetupPanel.copyReachableLibraryFilesCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(cloneFilesCheckBox, org.openide.util.NbBundle.getMessage(ProjectSetupPanel.class, "ProjectSetupPanel.cloneFilesCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(buildLibraryArchivesCheckBox, org.openide.util.NbBundle.getMessage(ProjectSetupPanel.class, "ProjectSetupPanel.buildLibraryArchivesCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(shareFilesCheckBox, org.openide.util.NbBundle.getMessage(ProjectSetupPanel.class, "ProjectSetupPanel.shareFilesCheckBox.text")); // NOI18N
 
         org.openide.awt.Mnemonics.setLocalizedText(overwriteCheckBox, org.openide.util.NbBundle.getMessage(ProjectSetupPanel.class, "ProjectSetupPanel.overwriteCheckBox.text")); // NOI18N
         overwriteCheckBox.addActionListener(new java.awt.event.ActionListener() {
@@ -132,6 +150,8 @@ class ProjectSetupPanel extends JPanel {
             }
         });
 
+        org.openide.awt.Mnemonics.setLocalizedText(syncCheckBox, org.openide.util.NbBundle.getMessage(ProjectSetupPanel.class, "ProjectSetupPanel.syncCheckBox.text")); // NOI18N
+
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(this);
         this.setLayout(layout);
         layout.setHorizontalGroup(
@@ -171,7 +191,22 @@ class ProjectSetupPanel extends JPanel {
                             .addGroup(layout.createSequentialGroup()
                                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                                     .addComponent(copyDependenciesCheckBox)
-                                    .addComponent(overwriteCheckBox))
+                                    .addGroup(layout.createSequentialGroup()
+                                        .addGap(21, 21, 21)
+                                        .addComponent(copyReachableLibraryFilesCheckBox))
+                                    .addGroup(layout.createSequentialGroup()
+                                        .addGap(21, 21, 21)
+                                        .addComponent(cloneFilesCheckBox))
+                                    .addGroup(layout.createSequentialGroup()
+                                        .addGap(21, 21, 21)
+                                        .addComponent(buildLibraryArchivesCheckBox))
+                                    .addGroup(layout.createSequentialGroup()
+                                        .addGap(21, 21, 21)
+                                        .addComponent(shareFilesCheckBox))
+                                    .addComponent(overwriteCheckBox)
+                                    .addGroup(layout.createSequentialGroup()
+                                        .addGap(21, 21, 21)
+                                        .addComponent(syncCheckBox)))
                                 .addGap(0, 0, Short.MAX_VALUE)))))
                 .addContainerGap())
         );
@@ -209,8 +244,18 @@ class ProjectSetupPanel extends JPanel {
                 .addGap(18, 18, 18)
                 .addComponent(copyDependenciesCheckBox)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(copyReachableLibraryFilesCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(cloneFilesCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(buildLibraryArchivesCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(shareFilesCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(overwriteCheckBox)
-                .addGap(0, 68, Short.MAX_VALUE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(syncCheckBox)
+                .addGap(0, 18, Short.MAX_VALUE))
         );
     }// </editor-fold>//GEN-END:initComponents
 
@@ -238,18 +283,27 @@ class ProjectSetupPanel extends JPanel {
         control.boardComboItemStateChanged(evt);
     }//GEN-LAST:event_boardComboItemStateChanged
 
+    private void copyDependenciesCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_copyDependenciesCheckBoxActionPerformed
+        control.copyDependenciesCheckBoxActionPerformed(evt);
+    }//GEN-LAST:event_copyDependenciesCheckBoxActionPerformed
+
     private void overwriteCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_overwriteCheckBoxActionPerformed
         control.overwriteCheckBoxActionPerformed(evt);
     }//GEN-LAST:event_overwriteCheckBoxActionPerformed
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     protected javax.swing.JComboBox<String> boardCombo;
+    protected javax.swing.JCheckBox buildLibraryArchivesCheckBox;
+    protected javax.swing.JCheckBox cloneFilesCheckBox;
     protected javax.swing.JCheckBox copyDependenciesCheckBox;
+    protected javax.swing.JCheckBox copyReachableLibraryFilesCheckBox;
     protected javax.swing.JCheckBox overwriteCheckBox;
     protected javax.swing.JTextField platformLocationField;
     protected javax.swing.JTextField projectDirectoryField;
     protected javax.swing.JTextField projectNameField;
+    protected javax.swing.JCheckBox shareFilesCheckBox;
     protected javax.swing.JTextField sourceProjectLocationField;
+    protected javax.swing.JCheckBox syncCheckBox;
     protected javax.swing.JTextField targetProjectLocationField;
     // End of variables declaration//GEN-END:variables
 
@@ -295,6 +295,21 @@ public class ProjectSetupStep implements WizardDescriptor.Panel<WizardDescriptor
         // Copy all dependencies:
         Object copyDependencies = wizardDescriptor.getProperty(COPY_CORE_FILES.key());
         view.copyDependenciesCheckBox.setSelected( copyDependencies != null ? (boolean) copyDependencies : true);
+        Object copyReachableLibraryFilesOnly = wizardDescriptor.getProperty(COPY_REACHABLE_LIBRARY_FILES_ONLY.key());
+        view.copyReachableLibraryFilesCheckBox.setSelected( copyReachableLibraryFilesOnly != null ? (boolean) copyReachableLibraryFilesOnly : false);
+        view.copyReachableLibraryFilesCheckBox.setEnabled( view.copyDependenciesCheckBox.isSelected() );
+        Object cloneFiles = wizardDescriptor.getProperty(CLONE_FILES.key());
+        view.cloneFilesCheckBox.setSelected( cloneFiles != null ? (boolean) cloneFiles : true);
+        view.cloneFilesCheckBox.setEnabled( view.copyDependenciesCheckBox.isSelected() );
+        Object buildLibraryArchives = wizardDescriptor.getProperty(BUILD_LIBRARY_ARCHIVES.key());
+        view.buildLibraryArchivesCheckBox.setSelected( buildLibraryArchives != null ? (boolean) buildLibraryArchives : false);
+        view.buildLibraryArchivesCheckBox.setEnabled( view.copyDependenciesCheckBox.isSelected() );
+        Object shareFilesBetweenProjects = wizardDescriptor.getProperty(SHARE_FILES_BETWEEN_PROJECTS.key());
+        view.shareFilesCheckBox.setSelected( shareFilesBetweenProjects != null ? (boolean) shareFilesBetweenProjects : false);
+        view.shareFilesCheckBox.setEnabled( view.copyDependenciesCheckBox.isSelected() && ImportWorker.isSharedFileStoreSupported() );
+        Object syncExistingProject = wizardDescriptor.getProperty(SYNC_EXISTING_PROJECT.key());
+        view.syncCheckBox.setSelected( syncExistingProject != null ? (boolean) syncExistingProject : false);
+        view.syncCheckBox.setEnabled( view.overwriteCheckBox.isSelected() );
         
         // Target Project Directory:
         setTargetProjectDirectoryField();
@@ -309,6 +324,11 @@ public class ProjectSetupStep implements WizardDescriptor.Panel<WizardDescriptor
         String targetLocation = readLocationStringFromField( view.targetProjectLocationField );
         String targetDir = readLocationStringFromField( view.projectDirectoryField );
         boolean copyCoreFiles = view.copyDependenciesCheckBox.isSelected();
+        boolean copyReachableLibraryFilesOnly = copyCoreFiles && view.copyReachableLibraryFilesCheckBox.isSelected();
+        boolean cloneFiles = copyCoreFiles && view.cloneFilesCheckBox.isSelected();
+        boolean buildLibraryArchives = copyCoreFiles && view.buildLibraryArchivesCheckBox.isSelected();
+        boolean shareFilesBetweenProjects = copyCoreFiles && view.shareFilesCheckBox.isSelected() && ImportWorker.isSharedFileStoreSupported();
+        boolean syncExistingProject = view.overwriteCheckBox.isSelected() && view.syncCheckBox.isSelected();
 
         settings.putProperty(SOURCE_PROJECT_DIR.key(), new File(sourceProjectDir));
         settings.putProperty(ARDUINO_DIR.key(), arduinoConfig.findInstallPath().get().toFile() );
@@ -321,8 +341,15 @@ public class ProjectSetupStep implements WizardDescriptor.Panel<WizardDescriptor
             deviceAssistant.storeSettings(settings);
             settings.putProperty(BOARD_CONFIGURATION.key(), new BoardConfiguration(board));
         }
+        // Set on the "Board Configuration" page:
+        settings.putProperty(BOARD_CONFIGURATIONS.key(), null);
         
         settings.putProperty(COPY_CORE_FILES.key(), copyCoreFiles);
+        settings.putProperty(COPY_REACHABLE_LIBRARY_FILES_ONLY.key(), copyReachableLibraryFilesOnly);
+        settings.putProperty(CLONE_FILES.key(), cloneFiles);
+        settings.putProperty(BUILD_LIBRARY_ARCHIVES.key(), buildLibraryArchives);
+        settings.putProperty(SHARE_FILES_BETWEEN_PROJECTS.key(), shareFilesBetweenProjects);
+        settings.putProperty(SYNC_EXISTING_PROJECT.key(), syncExistingProject);
                 
         settings.putProperty(DEVICE_HEADER_PRESENT.key(), false);
         settings.putProperty(PLUGIN_BOARD_PRESENT.key(), false);
@@ -356,6 +383,13 @@ public class ProjectSetupStep implements WizardDescriptor.Panel<WizardDescriptor
     //**************************************************
     //*************** EVENT LISTENERS ******************
     //**************************************************
+    void copyDependenciesCheckBoxActionPerformed(ActionEvent evt) {
+        view.copyReachableLibraryFilesCheckBox.setEnabled( view.copyDependenciesCheckBox.isSelected() );
+        view.cloneFilesCheckBox.setEnabled( view.copyDependenciesCheckBox.isSelected() );
+        view.buildLibraryArchivesCheckBox.setEnabled( view.copyDependenciesCheckBox.isSelected() );
+        view.shareFilesCheckBox.setEnabled( view.copyDependenciesCheckBox.isSelected() && ImportWorker.isSharedFileStoreSupported() );
+    }
+
     void overwriteCheckBoxActionPerformed(ActionEvent evt) {
         if (view.overwriteCheckBox.isSelected()) {
             MessageMediator mandm = Lookup.getDefault().lookup(MessageMediator.class);
@@ -366,6 +400,7 @@ public class ProjectSetupStep implements WizardDescriptor.Panel<WizardDescriptor
             }
         }
         wizardDescriptor.putProperty(OVERWRITE_EXISTING_PROJECT.key(), view.overwriteCheckBox.isSelected());
+        view.syncCheckBox.setEnabled(view.overwriteCheckBox.isSelected());
         fireChangeEvent();
     }
 
@@ -18,13 +18,15 @@ package com.microchip.mplab.nbide.embedded.arduino.wizard.pic32;
 import com.microchip.mplab.nbide.embedded.arduino.importer.LibCoreBuilder;
 import com.microchip.mplab.nbide.embedded.arduino.importer.ProjectImporter;
 import com.microchip.mplab.nbide.embedded.arduino.wizard.ProjectConfigurationImporter;
-import com.microchip.mplab.nbide.embedded.makeproject.api.configurations.MakeConfiguration;
 import com.microchip.mplab.nbide.embedded.makeproject.api.configurations.MakeConfigurationBook;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 public final class PIC32ProjectConfigurationImporter extends ProjectConfigurationImporter {
     
@@ -34,6 +36,10 @@ public final class PIC32ProjectConfigurationImporter extends ProjectConfiguratio
     public PIC32ProjectConfigurationImporter(ProjectImporter importer, boolean copyFiles, MakeConfigurationBook projectDescriptor, File targetProjectDir) {
         super(importer, copyFiles, projectDescriptor, targetProjectDir);
     }
+    
+    public PIC32ProjectConfigurationImporter(ProjectImporter importer, boolean copyFiles, MakeConfigurationBook projectDescriptor, File targetProjectDir, Collection<String> configurationNames) {
+        super(importer, copyFiles, projectDescriptor, targetProjectDir, configurationNames);
+    }
 
     @Override
     public void run() throws IOException {
@@ -46,16 +52,15 @@ public final class PIC32ProjectConfigurationImporter extends ProjectConfiguratio
         String ldOptions = String.join( " ", getExtraOptionsLD(false, isCopyFiles()) );
         String ldDebugOptions = String.join( " ", getExtraOptionsLD(true, isCopyFiles()) );
         String ldAppendOptions;
-        ldAppendOptions = String.format("-L%s,-l%s -lm -T%s -T%s", 
-            ProjectImporter.CORE_DIRECTORY_NAME,
-            LibCoreBuilder.LIB_CORE_NAME,
+        ldAppendOptions = String.format("-L%s,%s -lm -T%s -T%s", 
+            getRelativeCoreDirectoryPath(),
+            assembleLinkedLibraries(),
             findDeviceLinkerScript(),
             findCommonLinkerScript()
         );
         String cAppendOptions = String.join(" ", getExtraOptionsC());
         
-        getProjectDescriptor().getConfs().getConfigurtions().forEach( c-> {
-            MakeConfiguration mc = (MakeConfiguration) c;            
+        getTargetConfigurations().forEach( mc -> {
             setAuxOptionValue(mc, "C32Global", "common-include-directories", includeDirectories);
             setAuxOptionValue(mc, "C32Global", "legacy-libc", "false");
             setAuxOptionValue(mc, "C32", "preprocessor-macros", preprocessorMacros);
@@ -63,7 +68,7 @@ public final class PIC32ProjectConfigurationImporter extends ProjectConfiguratio
             setAuxOptionValue(mc, "C32CPP", "preprocessor-macros", preprocessorMacros);
             setAuxOptionValue(mc, "C32CPP", "optimization-level", DEFAULT_OPTIMIZATION_OPTION );
             setAuxOptionValue(mc, "C32CPP", "exceptions", Boolean.toString(cppExceptions));
-            setAuxOptionValue(mc, "C32-LD", "oXC32ld-extra-opts", c.getName().equals(DEBUG_CONF_NAME) ? ldDebugOptions : ldOptions );
+            setAuxOptionValue(mc, "C32-LD", "oXC32ld-extra-opts", isDebugConfiguration(mc.getName()) ? ldDebugOptions : ldOptions );
             setAuxOptionValue(mc, "C32-LD", "remove-unused-sections", "true");
             setAppendixValue(mc, "C32", cAppendOptions);
             setAppendixValue(mc, "C32CPP", cppAppendOptions);
@@ -71,6 +76,10 @@ public final class PIC32ProjectConfigurationImporter extends ProjectConfiguratio
         });
     }
 
+    private boolean isDebugConfiguration( String configurationName ) {
+        return configurationName.equals(DEBUG_CONF_NAME) || configurationName.endsWith("_" + DEBUG_CONF_NAME);
+    }
+    
     private String findDeviceLinkerScript() throws IOException {
         return findLinkerScript( p -> !p.getFileName().toString().endsWith("COMMON.ld") );
     }
@@ -89,4 +98,25 @@ public final class PIC32ProjectConfigurationImporter extends ProjectConfiguratio
             .orElse("");
     }
     
+    // The library archives built by the import are linked in full, like the library sources they replace (an interrupt
+    // handler or a static constructor is not referenced by anything and would be dropped from an archive), except for
+    // the "dot_a_linkage" ones. Those may depend on each other and all of them on the core library:
+    private String assembleLinkedLibraries() {
+        String libCoreOption = "-l" + LibCoreBuilder.LIB_CORE_NAME;
+        List<String> libraryArchiveNames = getImporter().getLibraryArchiveNames();
+        if ( libraryArchiveNames.isEmpty() ) {
+            return libCoreOption;
+        }
+        StringBuilder ret = new StringBuilder();
+        List<String> wholeArchiveNames = libraryArchiveNames.stream().filter( n -> !getImporter().isDotALinkageArchive(n) ).collect( Collectors.toList() );
+        if ( !wholeArchiveNames.isEmpty() ) {
+            ret.append("--whole-archive,");
+            wholeArchiveNames.forEach( n -> ret.append("-l").append(n).append(",") );
+            ret.append("--no-whole-archive,");
+        }
+        ret.append("--start-group,");
+        libraryArchiveNames.stream().filter( n -> getImporter().isDotALinkageArchive(n) ).forEach( n -> ret.append("-l").append(n).append(",") );
+        return ret.append( libCoreOption ).append(",--end-group").toString();
+    }
+    
 }
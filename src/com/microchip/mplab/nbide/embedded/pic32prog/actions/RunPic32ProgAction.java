@@ -16,6 +16,7 @@
 package com.microchip.mplab.nbide.embedded.pic32prog.actions;
 
 import com.microchip.mplab.nbide.embedded.serialmonitor.SerialPortComboModel;
+import com.microchip.mplab.nbide.embedded.arduino.importer.NativeProcessExecutor;
 import com.microchip.mplab.nbide.embedded.arduino.importer.NativeProcessRunner;
 import com.microchip.mplab.nbide.embedded.arduino.importer.ProjectImporter;
 import com.microchip.mplab.nbide.embedded.makeproject.HotProject;
@@ -42,11 +43,16 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.AbstractAction;
+import javax.swing.Action;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JPanel;
@@ -83,6 +89,8 @@ public final class RunPic32ProgAction extends AbstractAction implements Property
 
     @StaticResource
     private static final String ICON = "com/microchip/mplab/nbide/embedded/pic32prog/actions/cK_24.png";
+    @StaticResource
+    private static final String STOP_ICON = "com/microchip/mplab/nbide/embedded/pic32prog/actions/stop.png";
     private static final String[] PROJECT_EVENTS = new String[]{"Load"};
 
     private final JComboBox<String> serialPortsCombo;
@@ -170,17 +178,21 @@ public final class RunPic32ProgAction extends AbstractAction implements Property
     private void runProgrammer( final MakeProject makeProject ) {        
         RP.post(() -> {
             ProjectActionSupport.getInstance().removeProjectActionEventListener( projectActionEventListener, PROJECT_EVENTS );
-            InputOutput io = IOProvider.getDefault().getIO(actionName, false);
+            // Programming a large image over a slow bootloader can take a while, so it has no timeout but can be stopped:
+            StopAction stopAction = new StopAction();
+            InputOutput io = IOProvider.getDefault().getIO(actionName, new Action[] { stopAction });
             io.setFocusTaken(true);
-            try {
-                SerialMonitorTopComponent serialMonitor = null;
-                for (TopComponent tc : TopComponent.getRegistry().getOpened()) {
-                    if (tc instanceof SerialMonitorTopComponent) {
-                        serialMonitor = (SerialMonitorTopComponent) tc;
-                        break;
-                    }
+            SerialMonitorTopComponent serialMonitor = null;
+            for (TopComponent tc : TopComponent.getRegistry().getOpened()) {
+                if (tc instanceof SerialMonitorTopComponent) {
+                    serialMonitor = (SerialMonitorTopComponent) tc;
+                    break;
                 }
-                disconnectSerialMonitor(serialMonitor);
+            }
+            final SerialMonitorTopComponent disconnectedSerialMonitor = serialMonitor;
+            CompletableFuture<Integer> programming = null;
+            try {
+                disconnectSerialMonitor(disconnectedSerialMonitor);
 
                 String selectedPortName = serialPortsCombo.getSelectedItem().toString();
 
@@ -192,30 +204,81 @@ public final class RunPic32ProgAction extends AbstractAction implements Property
                 String pic32progLocation = importedProjectProperties.get("pic32prog") != null ? importedProjectProperties.get("pic32prog").toString() : null;
 
                 if (pic32progLocation != null) {
-                    NativeProcessRunner nativeProcessRunner = new NativeProcessRunner(m -> io.getOut().println(m));
-                    nativeProcessRunner.runNativeProcess(
-                            pic32progLocation,
-                            "-d",
-                            selectedPortName,
-                            "-b",
-                            "115200",
-                            hexFileLocation
+                    NativeProcessRunner nativeProcessRunner = new NativeProcessRunner(m -> io.getOut().println(m), m -> io.getErr().println(m));
+                    nativeProcessRunner.setPriority(NativeProcessExecutor.Priority.INTERACTIVE);
+                    programming = nativeProcessRunner.runNativeProcessAsync(
+                            null,
+                            Arrays.asList(
+                                pic32progLocation,
+                                "-d",
+                                selectedPortName,
+                                "-b",
+                                "115200",
+                                hexFileLocation
+                            ),
+                            0,
+                            TimeUnit.MILLISECONDS
                     );
+                    stopAction.setProgramming(programming);
                 } else {
                     // Move the message to Bundle
                     io.getErr().println("Failed to locate pic32prog!");
                 }
-
-                reconnectSerialMonitor(serialMonitor);
-            } catch (IOException | InterruptedException ex) {
+            } catch (IOException ex) {
                 Exceptions.printStackTrace(ex);
             } finally {
-                io.getOut().close();
-                io.getErr().close();                
+                if ( programming == null ) {
+                    reconnectSerialMonitor(disconnectedSerialMonitor);
+                    io.getOut().close();
+                    io.getErr().close();                
+                }
+            }
+            
+            // Don't hold the request processor thread while the programmer runs:
+            if ( programming != null ) {
+                programming.whenComplete( (exitCode, ex) -> {
+                    stopAction.setProgramming(null);
+                    if ( ex instanceof CancellationException ) {
+                        // Move the message to Bundle
+                        io.getErr().println("pic32prog was stopped");
+                    } else if ( ex != null ) {
+                        LOGGER.log(Level.WARNING, "Failed to run pic32prog", ex);
+                    }
+                    reconnectSerialMonitor(disconnectedSerialMonitor);
+                    io.getOut().close();
+                    io.getErr().close();
+                });
             }
         });
     }
 
+    // Stops pic32prog from the toolbar of the output window:
+    private static final class StopAction extends AbstractAction {
+
+        private volatile CompletableFuture<Integer> programming;
+
+        StopAction() {
+            putValue(SMALL_ICON, ImageUtilities.loadImageIcon(STOP_ICON, false));
+            putValue(SHORT_DESCRIPTION, NbBundle.getMessage(RunPic32ProgAction.class, "CTL_RunPic32ProgAction.stop"));
+            setEnabled(false);
+        }
+
+        void setProgramming(CompletableFuture<Integer> programming) {
+            this.programming = programming;
+            SwingUtilities.invokeLater(() -> setEnabled(this.programming != null));
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            CompletableFuture<Integer> p = programming;
+            if (p != null) {
+                // Destroys the process (see NativeProcessRunner)
+                p.cancel(true);
+            }
+        }
+
+    }
+
     private boolean isProgrammingPossible() {
         Project project = HotProject.getProject();
         if (project == null || !(project instanceof MakeProject)) {
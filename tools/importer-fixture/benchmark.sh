@@ -0,0 +1,41 @@
+#!/bin/sh
+#
+# Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# You may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and limitations under the License.
+#
+# Compiles ImportBenchmark and runs it against a fixture created by generate_fixture.py.
+#
+# Usage: IMPORTER_CLASSPATH=<classpath> benchmark.sh <fixture directory> [iterations] [copy|link]
+#
+# IMPORTER_CLASSPATH must contain the compiled module (build/classes) and the MPLAB X / NetBeans platform
+# jars it depends on.
+
+set -e
+
+if [ -z "$1" ] || [ -z "$IMPORTER_CLASSPATH" ]; then
+    echo "Usage: IMPORTER_CLASSPATH=<classpath> $0 <fixture directory> [iterations] [copy|link]" >&2
+    exit 2
+fi
+
+SCRIPT_DIR=$(cd "$(dirname "$0")" && pwd)
+FIXTURE_DIR=$(cd "$1" && pwd)
+shift
+OUT_DIR="$FIXTURE_DIR/benchmark-classes"
+
+. "$FIXTURE_DIR/fixture.env"
+USER_HOME=$(sed -n 's/^user.home=//p' "$FIXTURE_DIR/fixture.properties")
+
+mkdir -p "$OUT_DIR"
+javac -nowarn -d "$OUT_DIR" -cp "$IMPORTER_CLASSPATH" $(find "$SCRIPT_DIR/src" -name '*.java')
+exec java -Duser.home="$USER_HOME" -cp "$OUT_DIR:$IMPORTER_CLASSPATH" \
+    com.microchip.mplab.nbide.embedded.arduino.fixture.ImportBenchmark "$FIXTURE_DIR" "$@"
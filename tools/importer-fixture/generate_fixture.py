@@ -0,0 +1,226 @@
+#!/usr/bin/env python3
+#
+# Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# You may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and limitations under the License.
+#
+"""
+Generates a hermetic Arduino/chipKIT installation for end-to-end import runs without the real tools:
+
+  <out>/arduino-1.8.5/             Arduino IDE: stand-in arduino-builder, root platform, built-in libraries
+  <out>/home/.arduino15/           preferences.txt and the chipKIT package (platform, boards, core, variants,
+                                   platform libraries and the stand-in pic32-tools)
+  <out>/home/Arduino/              sketchbook: sketches and user libraries
+  <out>/bin/                       stand-in make and pic32prog
+  <out>/fixture.env                environment for the stand-ins (source it before running the IDE or benchmark)
+  <out>/fixture.properties         locations for ImportBenchmark
+
+The generated libraries include each other in a random (but reproducible, see --seed) acyclic pattern so that
+the dependency resolution has real work to do. Run with --help for the size parameters.
+"""
+
+import argparse
+import os
+import random
+import shutil
+import stat
+import sys
+
+ARDUINO_VERSION = '1.8.5'
+CHIPKIT_VERSION = '2.1.0'
+PIC32_TOOLS_VERSION = '1.43'
+MCU = '32MX795F512L'
+TOOLS = ('arduino-builder', 'gcc', 'ar', 'make', 'pic32prog')
+
+
+def write(path, content, executable=False):
+    os.makedirs(os.path.dirname(path), exist_ok=True)
+    with open(path, 'w') as f:
+        f.write(content)
+    if executable:
+        os.chmod(path, os.stat(path).st_mode | stat.S_IXUSR | stat.S_IXGRP | stat.S_IXOTH)
+
+
+def write_wrapper(path, standins_path, tool, latency_ms):
+    env_name = 'FIXTURE_%s_LATENCY_MS' % tool.upper().replace('-', '_')
+    write(path, '#!/bin/sh\n'
+                ': "${%s:=%s}"\n'
+                'export %s\n'
+                'exec python3 "%s" %s "$@"\n' % (env_name, latency_ms.get(tool, 0), env_name, standins_path, tool), True)
+
+
+def library_sources(name, dependencies, extra_files):
+    header = ['#ifndef %s_H' % name.upper(), '#define %s_H' % name.upper(), '', '#include <Arduino.h>']
+    header += ['#include <%s.h>' % d for d in dependencies]
+    header += ['', 'class %s {' % name, 'public:', '    void begin();', '    int read();', '};', '', '#endif', '']
+    files = {name + '.h': '\n'.join(header)}
+    files[name + '.cpp'] = '#include "%s.h"\n\nvoid %s::begin() {\n}\n\nint %s::read() {\n    return 0;\n}\n' % (name, name, name)
+    for i in range(extra_files):
+        files['%s_part%d.cpp' % (name, i)] = '#include "%s.h"\n\nint %s_part%d() {\n    return %d;\n}\n' % (name, name, i, i)
+    return files
+
+
+def generate(args):
+    out = os.path.abspath(args.output)
+    if os.path.exists(out):
+        if not args.force:
+            sys.exit('%s exists, use --force to replace it' % out)
+        shutil.rmtree(out)
+    rnd = random.Random(args.seed)
+    latency = dict(kv.split('=') for kv in args.latency_ms.split(',') if kv) if args.latency_ms else {}
+    standins_path = os.path.join(out, 'standins.py')
+    os.makedirs(out)
+    shutil.copy(os.path.join(os.path.dirname(os.path.abspath(__file__)), 'standins.py'), standins_path)
+
+    install = os.path.join(out, 'arduino-' + ARDUINO_VERSION)
+    home = os.path.join(out, 'home')
+    settings = os.path.join(home, '.arduino15')
+    sketchbook = os.path.join(home, 'Arduino')
+    platform_root = os.path.join(settings, 'packages', 'chipKIT', 'hardware', 'pic32', CHIPKIT_VERSION)
+    tools_root = os.path.join(settings, 'packages', 'chipKIT', 'tools', 'pic32-tools', PIC32_TOOLS_VERSION)
+    system_include = os.path.join(tools_root, 'pic32mx', 'include')
+    bin_dir = os.path.join(out, 'bin')
+
+    # Arduino IDE with the root (arduino:avr) platform:
+    write_wrapper(os.path.join(install, 'arduino-builder'), standins_path, 'arduino-builder', latency)
+    os.makedirs(os.path.join(install, 'tools-builder'))
+    os.makedirs(os.path.join(install, 'hardware', 'tools', 'avr'))
+    write(os.path.join(install, 'hardware', 'arduino', 'avr', 'platform.txt'), 'name=Arduino AVR Boards\nversion=1.6.20\n')
+    write(os.path.join(install, 'hardware', 'arduino', 'avr', 'boards.txt'), '')
+    write(os.path.join(settings, 'preferences.txt'),
+          'last.ide.%s.hardwarepath=%s\nsketchbook.path=%s\n' % (ARDUINO_VERSION, os.path.join(install, 'hardware'), sketchbook))
+
+    # Toolchain (the importer rewrites the recipes to the xc32- names used by MPLAB X):
+    for name, tool in (('pic32-gcc', 'gcc'), ('pic32-g++', 'gcc'), ('pic32-as', 'gcc'), ('pic32-ar', 'ar'),
+                       ('xc32-gcc', 'gcc'), ('xc32-g++', 'gcc'), ('xc32-ar', 'ar')):
+        write_wrapper(os.path.join(tools_root, 'bin', name), standins_path, tool, latency)
+    for h in ('stdint.h', 'stdlib.h', 'string.h', 'stdio.h', 'math.h', 'p32xxxx.h'):
+        write(os.path.join(system_include, h), '/* fixture system header */\n')
+    write_wrapper(os.path.join(bin_dir, 'make'), standins_path, 'make', latency)
+    write_wrapper(os.path.join(bin_dir, 'pic32prog'), standins_path, 'pic32prog', latency)
+
+    # chipKIT platform:
+    write(os.path.join(platform_root, 'platform.txt'), '\n'.join([
+        'name=chipKIT (fixture)',
+        'version=' + CHIPKIT_VERSION,
+        'compiler.path={runtime.tools.pic32-tools.path}/bin/',
+        'compiler.c.cmd=pic32-gcc',
+        'compiler.cpp.cmd=pic32-g++',
+        'compiler.ar.cmd=pic32-ar',
+        'compiler.c.flags=-c -O2 -Wall -ffunction-sections -fdata-sections -mno-smart-io -w',
+        'compiler.cpp.flags=-c -O2 -Wall -fno-exceptions -ffunction-sections -fdata-sections -mno-smart-io -w',
+        'compiler.S.flags=-c -O2 -x assembler-with-cpp',
+        'compiler.c.extra_flags=',
+        'compiler.cpp.extra_flags=',
+        'compiler.c.elf.flags=-Wl,--gc-sections -mprocessor={build.mcu}',
+        'compiler.warning_flags.all=-Wall -Wextra',
+        'build.extra_flags=',
+        'recipe.c.o.pattern="{compiler.path}{compiler.c.cmd}" {compiler.c.flags} -mprocessor={build.mcu} -DF_CPU={build.f_cpu} -DARDUINO={runtime.ide.version} -D{build.board} -DARDUINO_ARCH_{build.arch} {compiler.c.extra_flags} {build.extra_flags} {includes} "{source_file}" -o "{object_file}"',
+        'recipe.cpp.o.pattern="{compiler.path}{compiler.cpp.cmd}" {compiler.cpp.flags} -mprocessor={build.mcu} -DF_CPU={build.f_cpu} -DARDUINO={runtime.ide.version} -D{build.board} -DARDUINO_ARCH_{build.arch} {compiler.cpp.extra_flags} {build.extra_flags} {includes} "{source_file}" -o "{object_file}"',
+        'recipe.S.o.pattern="{compiler.path}{compiler.c.cmd}" {compiler.S.flags} -mprocessor={build.mcu} -DF_CPU={build.f_cpu} -DARDUINO={runtime.ide.version} -D{build.board} -DARDUINO_ARCH_{build.arch} {compiler.c.extra_flags} {build.extra_flags} {includes} "{source_file}" -o "{object_file}"',
+        'recipe.ar.pattern="{compiler.path}{compiler.ar.cmd}" rcs "{archive_file_path}" "{object_file}"',
+        'tools.pic32prog.cmd.path=' + os.path.join(bin_dir, 'pic32prog'),
+        '']))
+    boards = ['menu.cpu=Processor']
+    for b in range(args.boards):
+        board_id = 'fixture_board_%d' % b
+        boards += [
+            '%s.name=Fixture Board %d' % (board_id, b),
+            '%s.build.board=_BOARD_FIXTURE_%d_' % (board_id, b),
+            '%s.build.mcu=%s' % (board_id, MCU),
+            '%s.build.core=pic32' % board_id,
+            '%s.build.variant=Fixture_%d' % (board_id, b),
+            '%s.build.f_cpu=80000000L' % board_id,
+            '%s.ldscript=chipKIT-application-%s.ld' % (board_id, MCU),
+            '%s.ldcommon=chipKIT-application-COMMON.ld' % board_id,
+            '%s.upload.tool=pic32prog' % board_id,
+        ]
+        if b == 0:
+            boards += [
+                '%s.menu.cpu.mx795=PIC32MX795F512L' % board_id,
+                '%s.menu.cpu.mx795.build.mcu=%s' % (board_id, MCU),
+                '%s.menu.cpu.mx695=PIC32MX695F512L' % board_id,
+                '%s.menu.cpu.mx695.build.mcu=32MX695F512L' % board_id,
+            ]
+        variant = os.path.join(platform_root, 'variants', 'Fixture_%d' % b)
+        write(os.path.join(variant, 'Board_Defs.h'), '#define NUM_DIGITAL_PINS %d\n' % (20 + b))
+        write(os.path.join(variant, 'Board_Data.c'), '#include <Arduino.h>\n#include "Board_Defs.h"\n\nint fixture_board_%d_pins = NUM_DIGITAL_PINS;\n' % b)
+    write(os.path.join(platform_root, 'boards.txt'), '\n'.join(boards) + '\n')
+
+    core = os.path.join(platform_root, 'cores', 'pic32')
+    write(os.path.join(core, 'Arduino.h'), '#ifndef ARDUINO_H\n#define ARDUINO_H\n#include <stdint.h>\n#include <string.h>\n#include "WProgram.h"\n#endif\n')
+    write(os.path.join(core, 'WProgram.h'), '#include "wiring.h"\n#include "pins_arduino.h"\n#include <p32xxxx.h>\n')
+    write(os.path.join(core, 'wiring.h'), 'void pinMode(unsigned char pin, unsigned char mode);\n')
+    write(os.path.join(core, 'pins_arduino.h'), '#include <Board_Defs.h>\n')
+    write(os.path.join(core, 'chipKIT-application-COMMON.ld'), '/* fixture linker script */\n')
+    write(os.path.join(core, 'chipKIT-application-%s.ld' % MCU), '/* fixture linker script */\n')
+    write(os.path.join(core, 'chipKIT-application-%s-debug.ld' % MCU), '/* fixture linker script */\n')
+    for i in range(args.core_files):
+        extension = '.c' if i % 3 == 0 else '.cpp'
+        write(os.path.join(core, 'core_%03d%s' % (i, extension)), '#include "Arduino.h"\n\nint core_%03d() {\n    return %d;\n}\n' % (i, i))
+    write(os.path.join(core, 'crt0.S'), '#include <p32xxxx.h>\n')
+
+    # Libraries, spread over the sketchbook, the platform and the IDE. Every library may include up to
+    # two libraries with a lower number so there are no cycles:
+    library_dirs = [os.path.join(sketchbook, 'libraries'), os.path.join(platform_root, 'libraries'), os.path.join(install, 'libraries')]
+    library_names = ['FixtureLib%03d' % i for i in range(args.libraries)]
+    for i, name in enumerate(library_names):
+        dependencies = rnd.sample(library_names[:i], min(i, rnd.randint(0, 2)))
+        root = os.path.join(library_dirs[i % len(library_dirs)], name)
+        src = os.path.join(root, 'src') if i % 2 == 0 else root
+        for filename, content in library_sources(name, dependencies, args.library_files).items():
+            write(os.path.join(src, filename), content)
+        write(os.path.join(root, 'library.properties'),
+              'name=%s\nversion=1.0.%d\narchitectures=%s\n' % (name, i, 'pic32' if i % 5 else '*'))
+
+    # Sketches:
+    sketches = []
+    for s in range(args.sketches):
+        name = 'FixtureSketch%02d' % s
+        used = rnd.sample(library_names, min(len(library_names), args.sketch_libraries))
+        sketch_dir = os.path.join(sketchbook, name)
+        write(os.path.join(sketch_dir, name + '.ino'),
+              ''.join('#include <%s.h>\n' % u for u in used) +
+              '\nvoid setup() {\n    pinMode(13, 1);\n}\n\nvoid loop() {\n}\n')
+        write(os.path.join(sketch_dir, 'helpers.cpp'), '#include <Arduino.h>\n\nint helper() {\n    return 1;\n}\n')
+        sketches.append(os.path.join(sketch_dir, name + '.ino'))
+
+    write(os.path.join(out, 'fixture.env'), '\n'.join([
+        'export PATH="%s:$PATH"' % bin_dir,
+        'export FIXTURE_SYSTEM_INCLUDE_DIRS="%s"' % system_include,
+        'export FIXTURE_SYSTEM_MAKE="%s"' % (shutil.which('make') or ''),
+        '']))
+    write(os.path.join(out, 'fixture.properties'), '\n'.join([
+        'user.home=' + home,
+        'arduino.install.dir=' + install,
+        'tools.dir=' + os.path.join(tools_root, 'bin'),
+        'boards=' + ','.join('fixture_board_%d' % b for b in range(args.boards)),
+        'sketches=' + ','.join(sketches),
+        '']))
+    print('Fixture written to %s' % out)
+    print('  source %s before running the importer against it' % os.path.join(out, 'fixture.env'))
+
+
+if __name__ == '__main__':
+    parser = argparse.ArgumentParser(description='Generates a stand-in Arduino/chipKIT installation for import benchmarks.')
+    parser.add_argument('output', help='directory to create')
+    parser.add_argument('--force', action='store_true', help='replace the output directory if it exists')
+    parser.add_argument('--seed', type=int, default=1, help='seed of the library dependency pattern')
+    parser.add_argument('--boards', type=int, default=3)
+    parser.add_argument('--core-files', type=int, default=60, help='number of core translation units')
+    parser.add_argument('--libraries', type=int, default=30)
+    parser.add_argument('--library-files', type=int, default=3, help='additional translation units per library')
+    parser.add_argument('--sketches', type=int, default=5)
+    parser.add_argument('--sketch-libraries', type=int, default=4, help='libraries included by every sketch')
+    parser.add_argument('--latency-ms', default='', help='default latencies baked into the stand-ins, e.g. "gcc=20,arduino-builder=500"; '
+                        'tools: ' + ', '.join(TOOLS))
+    generate(parser.parse_args())
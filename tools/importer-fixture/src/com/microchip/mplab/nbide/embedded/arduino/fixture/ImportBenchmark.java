@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package com.microchip.mplab.nbide.embedded.arduino.fixture;
+
+import com.microchip.mplab.nbide.embedded.arduino.importer.ArduinoBuilderRunner;
+import com.microchip.mplab.nbide.embedded.arduino.importer.ArduinoConfig;
+import com.microchip.mplab.nbide.embedded.arduino.importer.BoardConfiguration;
+import com.microchip.mplab.nbide.embedded.arduino.importer.BootloaderPathProvider;
+import com.microchip.mplab.nbide.embedded.arduino.importer.FileCopyMode;
+import com.microchip.mplab.nbide.embedded.arduino.importer.GCCToolFinder;
+import com.microchip.mplab.nbide.embedded.arduino.importer.ImportPlan;
+import com.microchip.mplab.nbide.embedded.arduino.importer.NativeProcessExecutor;
+import com.microchip.mplab.nbide.embedded.arduino.importer.NativeProcessRunner;
+import com.microchip.mplab.nbide.embedded.arduino.importer.NativeProcessTimeline;
+import com.microchip.mplab.nbide.embedded.arduino.importer.Platform;
+import com.microchip.mplab.nbide.embedded.arduino.importer.PlatformFactory;
+import com.microchip.mplab.nbide.embedded.arduino.importer.ProjectImporter;
+import com.microchip.mplab.nbide.embedded.arduino.importer.SharedFileStore;
+import com.microchip.mplab.nbide.embedded.arduino.importer.SketchbookScanReport;
+import com.microchip.mplab.nbide.embedded.arduino.importer.SketchbookScanner;
+import com.microchip.mplab.nbide.embedded.arduino.utils.DeletingFileVisitor;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Imports the sketches of a fixture generated by generate_fixture.py with {@link ProjectImporter#execute()}
+ * and prints the wall time of every import plus the median per sketch. Run it through benchmark.sh, which
+ * sets up the environment of the stand-in tools.
+ * <p>
+ * Arguments: fixture directory, number of iterations per sketch (default 3), "copy" or "link" (default copy),
+ * then "unity" to build the core library in unity mode, "pch" to precompile the core header and "hardlink",
+ * "reflink" or "auto" to put the copied files in place with that {@link FileCopyMode} and "store" to share the
+ * core and library files through a {@link SharedFileStore} in the fixture directory, "sync" to import every sketch
+ * into the same project again, {@link ProjectImporter#setSyncing syncing} it after the first run, and "plan" to write
+ * the {@link ImportPlan} of every sketch ("import-plan-&lt;sketch&gt;.json" in the fixture directory) with the importer
+ * of its first run, before that importer runs, and "scan" to run the {@link SketchbookScanner} over the sketchbook
+ * for every board of the fixture and write its {@link SketchbookScanReport} ("sketchbook-scan.json" in the fixture
+ * directory) before the imports.
+ * The timeline of the last import is written to the fixture directory.
+ */
+public final class ImportBenchmark {
+
+
+    public static void main(String[] args) throws Exception {
+        if ( args.length < 1 ) {
+            System.err.println("Usage: ImportBenchmark <fixture directory> [iterations] [copy|link] [unity] [pch] [hardlink|reflink|auto] [store] [sync] [plan] [scan]");
+            System.exit(2);
+        }
+        Path fixturePath = Paths.get(args[0]).toAbsolutePath();
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        boolean copyingFiles = args.length < 3 || !"link".equals(args[2]);
+        List <String> options = args.length > 3 ? Arrays.asList(args).subList( 3, args.length ) : Collections.emptyList();
+        boolean unityBuildingCore = options.contains("unity");
+        boolean precompilingCoreHeader = options.contains("pch");
+        FileCopyMode fileCopyMode = FileCopyMode.COPY;
+        for ( FileCopyMode mode : FileCopyMode.values() ) {
+            if ( options.contains( mode.name().toLowerCase(Locale.ROOT) ) ) fileCopyMode = mode;
+        }
+        boolean syncing = options.contains("sync");
+        boolean planning = options.contains("plan");
+        boolean scanning = options.contains("scan");
+        SharedFileStore sharedFileStore = options.contains("store") ? new SharedFileStore( fixturePath.resolve("shared-store") ) : null;
+
+        Properties fixture = new Properties();
+        try (Reader reader = Files.newBufferedReader( fixturePath.resolve("fixture.properties") )) {
+            fixture.load(reader);
+        }
+        if ( !fixture.getProperty("user.home").equals( System.getProperty("user.home") ) ) {
+            System.err.println("Run with -Duser.home=" + fixture.getProperty("user.home") + " (benchmark.sh does this)");
+            System.exit(2);
+        }
+        Logger.getLogger("com.microchip.mplab.nbide.embedded.arduino").setLevel( Level.WARNING );
+
+        ArduinoConfig arduinoConfig = ArduinoConfig.getInstance();
+        Platform platform = new PlatformFactory().createPlatform( arduinoConfig.getSettingsPath(), "chipKIT", "pic32" );
+        BoardConfiguration boardConfiguration = new BoardConfiguration( platform.getBoard( fixture.getProperty("boards").split(",")[0] ).get() );
+        GCCToolFinder toolFinder = new GCCToolFinder( Paths.get( fixture.getProperty("tools.dir") ) );
+        Path arduinoInstallPath = Paths.get( fixture.getProperty("arduino.install.dir") );
+        List <Path> sketchPaths = new ArrayList<>();
+        Arrays.stream( fixture.getProperty("sketches").split(",") ).map( Paths::get ).forEach( sketchPaths::add );
+
+        if ( scanning ) {
+            List <BoardConfiguration> boardConfigurations = new ArrayList<>();
+            for ( String boardId : fixture.getProperty("boards").split(",") ) {
+                boardConfigurations.add( new BoardConfiguration( platform.getBoard(boardId).get() ) );
+            }
+            SketchbookScanner scanner = new SketchbookScanner( new ArduinoBuilderRunner( toolFinder, arduinoConfig, arduinoInstallPath, m -> {} ) );
+            SketchbookScanReport report = scanner.scan( arduinoConfig.getSketchPath(), boardConfigurations );
+            Path reportPath = fixturePath.resolve("sketchbook-scan.json");
+            report.write( reportPath );
+            System.out.println( report );
+            System.out.println( "Sketchbook scan: " + reportPath );
+        }
+
+        System.out.println( String.format( Locale.ROOT, "%-24s %5s %10s %10s", "sketch", "run", "wall [ms]", "processes" ) );
+        NativeProcessTimeline lastTimeline = null;
+        List <Long> allMillis = new ArrayList<>();
+        for ( Path sketchPath : sketchPaths ) {
+            List <Long> sketchMillis = new ArrayList<>();
+            Path syncTargetPath = syncing ? Files.createTempDirectory("import-benchmark") : null;
+            for ( int i=0; i<iterations; i++ ) {
+                Path targetPath = syncing ? syncTargetPath : Files.createTempDirectory("import-benchmark");
+                NativeProcessTimeline timeline = new NativeProcessTimeline();
+                NativeProcessRunner.addInvocationListener(timeline);
+                long t0 = System.nanoTime();
+                try {
+                    ProjectImporter importer = new ProjectImporter();
+                    importer.setCopyingFiles(copyingFiles);
+                    importer.setSyncing(syncing && i > 0);
+                    importer.setBuildingLibraryArchives(true);
+                    importer.setUnityBuildingCore(unityBuildingCore);
+                    importer.setPrecompilingCoreHeader(precompilingCoreHeader);
+                    importer.setFileCopyMode(fileCopyMode);
+                    importer.setSharedFileStore(sharedFileStore);
+                    importer.setSourceProjectDirectoryPath( sketchPath.getParent() );
+                    importer.setTargetProjectDirectoryPath( targetPath );
+                    importer.setArduinoBuilderRunner( new ArduinoBuilderRunner( toolFinder, arduinoConfig, arduinoInstallPath, m -> {} ) );
+                    importer.setBootloaderPathProvider( new BootloaderPathProvider( n -> null ) );
+                    importer.setCustomLdScriptsPath( targetPath );
+                    importer.setBoardConfiguration( boardConfiguration );
+                    if ( planning && i == 0 ) {
+                        Path planPath = fixturePath.resolve( "import-plan-" + sketchPath.getParent().getFileName() + ".json" );
+                        importer.plan().writeManifest( planPath );
+                        System.out.println( "Import plan: " + planPath );
+                    }
+                    importer.execute();
+                } finally {
+                    NativeProcessRunner.removeInvocationListener(timeline);
+                    if ( !syncing || i == iterations-1 ) {
+                        Files.walkFileTree( targetPath, new DeletingFileVisitor() );
+                    }
+                }
+                long millis = (System.nanoTime() - t0) / 1_000_000;
+                sketchMillis.add(millis);
+                allMillis.add(millis);
+                lastTimeline = timeline;
+                System.out.println( String.format( Locale.ROOT, "%-24s %5d %10d %10d", sketchPath.getParent().getFileName(), i+1, millis, timeline.getInvocations().size() ) );
+            }
+            System.out.println( String.format( Locale.ROOT, "%-24s %5s %10d", sketchPath.getParent().getFileName(), "median", median(sketchMillis) ) );
+        }
+        System.out.println( String.format( Locale.ROOT, "%-24s %5s %10d", "all", "median", median(allMillis) ) );
+        System.out.println( NativeProcessExecutor.getInstance() );
+        if ( sharedFileStore != null ) {
+            System.out.println( sharedFileStore );
+        }
+        if ( lastTimeline != null ) {
+            lastTimeline.write( fixturePath );
+            System.out.println( "Timeline of the last import: " + fixturePath.resolve( NativeProcessTimeline.TIMELINE_FILENAME ) );
+        }
+        System.exit(0);  // The IDE classes may have left non-daemon threads behind
+    }
+
+    private static long median( List<Long> values ) {
+        List <Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get( sorted.size() / 2 );
+    }
+
+}
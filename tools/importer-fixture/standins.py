@@ -0,0 +1,460 @@
+#!/usr/bin/env python3
+#
+# Copyright (c) 2017 Microchip Technology Inc. and its subsidiaries (Microchip). All rights reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# You may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and limitations under the License.
+#
+"""
+Stand-ins for the native tools the importer runs: arduino-builder, gcc/g++, ar, make and pic32prog.
+
+Each tool does just enough for the importer to get through a complete import (the files written and the
+output printed have the same shape as those of the real tools) and then sleeps for a configurable latency.
+The tool is selected by the first argument (the wrapper scripts written by generate_fixture.py pass it).
+
+Latencies in milliseconds are read from FIXTURE_<TOOL>_LATENCY_MS (e.g. FIXTURE_GCC_LATENCY_MS), falling back
+to FIXTURE_LATENCY_MS and then to 0. The number of extra verbose lines arduino-builder prints is read from
+FIXTURE_BUILDER_OUTPUT_LINES.
+"""
+
+import hashlib
+import json
+import os
+import re
+import shutil
+import subprocess
+import sys
+import time
+
+INCLUDE_PATTERN = re.compile(r'^\s*#\s*include\s*([<"])([^>"]+)[>"]', re.MULTILINE)
+SOURCE_EXTENSIONS = ('.c', '.cpp', '.S', '.s', '.ino', '.pde')
+
+
+def sleep_latency(tool):
+    value = os.environ.get('FIXTURE_%s_LATENCY_MS' % tool.upper().replace('-', '_'), os.environ.get('FIXTURE_LATENCY_MS', '0'))
+    millis = float(value or 0)
+    if millis > 0:
+        time.sleep(millis / 1000.0)
+
+
+def system_include_dirs():
+    value = os.environ.get('FIXTURE_SYSTEM_INCLUDE_DIRS', '')
+    return [d for d in value.split(os.pathsep) if d]
+
+
+#*************************************************
+#************ DEPENDENCY RESOLUTION **************
+#*************************************************
+class IncludeResolver:
+
+    def __init__(self, include_dirs, system_dirs):
+        self.include_dirs = include_dirs
+        self.system_dirs = system_dirs
+        self.cache = {}
+
+    def includes_of(self, path):
+        if path not in self.cache:
+            try:
+                with open(path, encoding='utf-8', errors='replace') as f:
+                    content = f.read()
+            except OSError:
+                content = ''
+            self.cache[path] = [(m.group(1), m.group(2), content.count('\n', 0, m.start()) + 1) for m in INCLUDE_PATTERN.finditer(content)]
+        return self.cache[path]
+
+    def find(self, including_file, kind, name):
+        """Returns (path, is_system) or (None, None) if the header cannot be found"""
+        dirs = ([os.path.dirname(including_file)] if kind == '"' else []) + self.include_dirs
+        for d in dirs:
+            candidate = os.path.join(d, name)
+            if os.path.isfile(candidate):
+                return os.path.normpath(candidate), False
+        for d in self.system_dirs:
+            candidate = os.path.join(d, name)
+            if os.path.isfile(candidate):
+                return os.path.normpath(candidate), True
+        return None, None
+
+    def resolve(self, source, skip_system, missing_ok):
+        """Returns the dependencies in the order gcc would list them, and the missing headers"""
+        deps = []
+        missing = []
+        seen = set()
+        stack = [source]
+        while stack:
+            current = stack.pop(0)
+            for kind, name, line in self.includes_of(current):
+                path, is_system = self.find(current, kind, name)
+                if path is None:
+                    if not missing_ok:
+                        return None, [(current, line, name)]
+                    # Like gcc, -MM leaves out missing <...> headers since they are taken for system headers:
+                    if not (skip_system and kind == '<') and name not in seen:
+                        seen.add(name)
+                        deps.append(name)
+                    missing.append((current, line, name))
+                    continue
+                if path in seen:
+                    continue
+                seen.add(path)
+                if is_system and skip_system:
+                    continue
+                deps.append(path)
+                stack.append(path)
+        return deps, missing
+
+
+def format_rule(target, source, deps, phony):
+    lines = ['%s: %s' % (target, ' '.join([source] + deps))]
+    text = ' \\\n '.join(wrap(lines[0]))
+    if phony:
+        text += '\n' + '\n'.join('\n%s:' % d for d in deps)
+    return text + '\n'
+
+
+def wrap(rule, width=78):
+    parts = rule.split(' ')
+    ret = []
+    current = ''
+    for p in parts:
+        if current and len(current) + len(p) + 1 > width:
+            ret.append(current)
+            current = p
+        else:
+            current = (current + ' ' + p) if current else p
+    ret.append(current)
+    return ret
+
+
+#*************************************************
+#****************** GCC / G++ ********************
+#*************************************************
+def gcc(args):
+    include_dirs = []
+    sources = []
+    output = None
+    dep_file = None
+    dep_target = None
+    forced_includes = []
+    flags = set()
+    i = 0
+    while i < len(args):
+        a = args[i]
+        if a == '-I' or a == '-o' or a == '-MF' or a == '-MT' or a == '-x' or a == '-include':
+            value = args[i + 1]
+            i += 1
+            if a == '-I':
+                include_dirs.append(value)
+            elif a == '-o':
+                output = value
+            elif a == '-MF':
+                dep_file = value
+            elif a == '-MT':
+                dep_target = value
+            elif a == '-include':
+                forced_includes.append(value)
+        elif a.startswith('-I'):
+            include_dirs.append(a[2:])
+        elif a.startswith('-o') and len(a) > 2:
+            output = a[2:]
+        elif a.startswith('-'):
+            flags.add(a)
+        elif a.endswith(SOURCE_EXTENSIONS) or os.path.isfile(a):
+            sources.append(a)
+        i += 1
+
+    sleep_latency('gcc')
+    resolver = IncludeResolver(include_dirs, system_include_dirs())
+    dependency_only = ('-M' in flags or '-MM' in flags) and '-c' not in flags
+    skip_system = '-MM' in flags or '-MMD' in flags
+    missing_ok = '-MG' in flags
+
+    if dependency_only:
+        for source in sources:
+            deps, missing = resolver.resolve(source, skip_system, missing_ok)
+            if deps is None:
+                return report_missing(missing[0])
+            target = dep_target or os.path.splitext(os.path.basename(source))[0] + '.o'
+            text = format_rule(target, source, deps, '-MP' in flags)
+            if dep_file:
+                with open(dep_file, 'w') as f:
+                    f.write(text)
+            else:
+                sys.stdout.write(text)
+        return 0
+
+    if '-c' in flags:
+        for source in sources:
+            # Like gcc, the -include files come first, as if included at the top of the source:
+            deps = []
+            for unit_file in forced_includes + [source]:
+                unit_deps, missing = resolver.resolve(unit_file, skip_system, False)
+                if unit_deps is None:
+                    return report_missing(missing[0])
+                for dep in ([unit_file] if unit_file != source else []) + unit_deps:
+                    if dep not in deps:
+                        deps.append(dep)
+            object_file = output or os.path.splitext(os.path.basename(source))[0] + '.o'
+            digest = hashlib.sha1()
+            for unit_file in forced_includes + [source]:
+                with open(unit_file, 'rb') as f:
+                    digest.update(f.read())
+            digest = digest.hexdigest()
+            with open(object_file, 'w') as f:
+                f.write('FIXTURE-OBJECT %s %s\n' % (os.path.abspath(source), digest))
+            if '-MMD' in flags or '-MD' in flags:
+                target = dep_target or object_file
+                with open(dep_file or os.path.splitext(object_file)[0] + '.d', 'w') as f:
+                    f.write(format_rule(target, source, deps, '-MP' in flags))
+        return 0
+
+    # Linking:
+    with open(output or 'a.out', 'w') as f:
+        f.write('FIXTURE-ELF\n')
+        for source in sources:
+            f.write('%s\n' % os.path.abspath(source))
+    return 0
+
+
+def report_missing(missing):
+    including_file, line, name = missing
+    sys.stderr.write('%s:%d:%s: fatal error: %s: No such file or directory\n' % (including_file, line, 1 + len('#include '), name))
+    sys.stderr.write('compilation terminated.\n')
+    return 1
+
+
+#*************************************************
+#********************* AR ************************
+#*************************************************
+def expand_response_files(args):
+    # Like binutils, reads the arguments of "@file" from the file (one or more per line)
+    ret = []
+    for arg in args:
+        if arg.startswith('@') and os.path.isfile(arg[1:]):
+            with open(arg[1:]) as f:
+                ret.extend(f.read().split())
+        else:
+            ret.append(arg)
+    return ret
+
+
+def ar(args):
+    sleep_latency('ar')
+    args = expand_response_files(args)
+    if len(args) < 2:
+        sys.stderr.write('ar: no archive given\n')
+        return 1
+    mode = args[0].lstrip('-')
+    archive = args[1]
+    members = []
+    if os.path.exists(archive):
+        with open(archive) as f:
+            members = [line.rstrip('\n').split('\t') for line in f if '\t' in line]
+    if 't' in mode:
+        for name, _ in members:
+            print(name)
+        return 0
+    by_name = dict(members)
+    order = [name for name, _ in members]
+    for obj in args[2:]:
+        if not os.path.exists(obj):
+            sys.stderr.write('ar: %s: No such file or directory\n' % obj)
+            return 1
+        with open(obj, 'rb') as f:
+            digest = hashlib.sha1(f.read()).hexdigest()
+        name = os.path.basename(obj)
+        if name not in by_name:
+            order.append(name)
+        by_name[name] = digest
+    with open(archive, 'w') as f:
+        f.write('!<arch>\n')
+        for name in order:
+            f.write('%s\t%s\n' % (name, by_name[name]))
+    return 0
+
+
+#*************************************************
+#******************** MAKE ***********************
+#*************************************************
+def make(args):
+    sleep_latency('make')
+    system_make = os.environ.get('FIXTURE_SYSTEM_MAKE')
+    if system_make and os.path.exists(system_make):
+        return subprocess.call([system_make] + args)
+    # No real make available: run the recipe of the first target, line by line
+    makefile = 'Makefile'
+    i = 0
+    while i < len(args):
+        if args[i] == '-f':
+            makefile = args[i + 1]
+            i += 1
+        elif args[i] == '-C':
+            os.chdir(args[i + 1])
+            i += 1
+        i += 1
+    target = None
+    recipe = []
+    with open(makefile) as f:
+        for line in f:
+            if line.startswith('\t'):
+                if target is not None:
+                    recipe.append(line[1:].rstrip('\n'))
+            elif ':' in line and not line.startswith('#') and '=' not in line.split(':')[0]:
+                if target is not None:
+                    break
+                target = line.split(':')[0].strip()
+    for command in recipe:
+        print(command)
+        sys.stdout.flush()
+        code = subprocess.call(command, shell=True)
+        if code != 0:
+            print('make: *** [%s] Error %d' % (target, code))
+            return 2
+    return 0
+
+
+#*************************************************
+#**************** ARDUINO-BUILDER ****************
+#*************************************************
+def arduino_builder(args):
+    options = {'-hardware': [], '-tools': [], '-built-in-libraries': [], '-libraries': []}
+    build_path = '.'
+    fqbn = ''
+    sketch = None
+    i = 0
+    while i < len(args):
+        a = args[i]
+        if a in options:
+            options[a].append(args[i + 1])
+            i += 1
+        elif a == '-build-path':
+            build_path = args[i + 1]
+            i += 1
+        elif a.startswith('-fqbn='):
+            fqbn = a[len('-fqbn='):]
+        elif not a.startswith('-'):
+            sketch = a
+        i += 1
+    if sketch is None:
+        sys.stderr.write('arduino-builder: no sketch given\n')
+        return 1
+
+    sleep_latency('arduino-builder')
+    vendor, arch = (fqbn.split(':') + ['', ''])[:2]
+    sketch_dir = os.path.dirname(os.path.abspath(sketch))
+    sketch_name = os.path.basename(sketch_dir)
+    out_sketch_dir = os.path.join(build_path, 'sketch')
+    os.makedirs(out_sketch_dir, exist_ok=True)
+
+    # Merge the .ino files like arduino-builder does, main file first:
+    ino_files = sorted(f for f in os.listdir(sketch_dir) if f.endswith(('.ino', '.pde')))
+    main_ino = os.path.basename(sketch)
+    ino_files.sort(key=lambda f: f != main_ino)
+    merged = ['#include <Arduino.h>']
+    for f in ino_files:
+        path = os.path.join(sketch_dir, f)
+        merged.append('#line 1 "%s"' % path)
+        with open(path, encoding='utf-8', errors='replace') as src:
+            merged.append(src.read())
+    merged_text = '\n'.join(merged) + '\n'
+    with open(os.path.join(out_sketch_dir, main_ino + '.cpp'), 'w') as f:
+        f.write(merged_text)
+    for f in os.listdir(sketch_dir):
+        if f.endswith(('.c', '.cpp', '.h', '.S')):
+            shutil.copy(os.path.join(sketch_dir, f), out_sketch_dir)
+
+    # Library lookup order of arduino-builder: sketchbook, platform, built-in:
+    library_dirs = list(options['-libraries'])
+    for hardware in options['-hardware']:
+        library_dirs.append(os.path.join(hardware, vendor, arch, 'libraries'))
+        platform_dir = os.path.join(hardware, vendor, 'hardware', arch)
+        if os.path.isdir(platform_dir):
+            for version in sorted(os.listdir(platform_dir)):
+                library_dirs.append(os.path.join(platform_dir, version, 'libraries'))
+    library_dirs += options['-built-in-libraries']
+    headers = {}
+    for d in library_dirs:
+        if not os.path.isdir(d):
+            continue
+        for lib in sorted(os.listdir(d)):
+            root = os.path.join(d, lib)
+            src = os.path.join(root, 'src')
+            include_path = src if os.path.isdir(src) else root
+            if not os.path.isdir(include_path):
+                continue
+            for h in os.listdir(include_path):
+                if h.endswith('.h') and h not in headers:
+                    headers[h] = include_path
+
+    verbose = '-verbose' in args
+    cache = [{'Sourcefile': '', 'Include': '', 'Includepath': os.path.join(out_sketch_dir)}]
+    used = []
+    pending = [os.path.join(out_sketch_dir, main_ino + '.cpp')]
+    done = set()
+    while pending:
+        source = pending.pop(0)
+        if source in done:
+            continue
+        done.add(source)
+        try:
+            with open(source, encoding='utf-8', errors='replace') as f:
+                content = f.read()
+        except OSError:
+            continue
+        for m in INCLUDE_PATTERN.finditer(content):
+            header = m.group(2)
+            include_path = headers.get(header)
+            if include_path is None or include_path in used:
+                continue
+            used.append(include_path)
+            cache.append({'Sourcefile': source, 'Include': header, 'Includepath': include_path})
+            if verbose:
+                library_root = os.path.dirname(include_path) if os.path.basename(include_path) == 'src' else include_path
+                print('Using library %s in folder: %s' % (os.path.basename(library_root), library_root))
+            for f in sorted(os.listdir(include_path)):
+                if f.endswith(('.c', '.cpp', '.h')):
+                    pending.append(os.path.join(include_path, f))
+
+    with open(os.path.join(build_path, 'includes.cache'), 'w') as f:
+        json.dump(cache, f, indent=1)
+
+    if verbose:
+        for n in range(int(os.environ.get('FIXTURE_BUILDER_OUTPUT_LINES', '200'))):
+            print('Detecting libraries used... pass %d: %s' % (n, sketch))
+    sys.stdout.write(merged_text)
+    return 0
+
+
+#*************************************************
+#****************** PIC32PROG ********************
+#*************************************************
+def pic32prog(args):
+    print('Programmer for Microchip PIC32 microcontrollers (fixture)')
+    for step in ('Erase', 'Program', 'Verify'):
+        print('      %s: done' % step)
+        sys.stdout.flush()
+    sleep_latency('pic32prog')
+    return int(os.environ.get('FIXTURE_PIC32PROG_EXIT', '0'))
+
+
+TOOLS = {
+    'gcc': gcc,
+    'ar': ar,
+    'make': make,
+    'arduino-builder': arduino_builder,
+    'pic32prog': pic32prog,
+}
+
+if __name__ == '__main__':
+    if len(sys.argv) < 2 or sys.argv[1] not in TOOLS:
+        sys.stderr.write('usage: standins.py {%s} [args...]\n' % ','.join(sorted(TOOLS)))
+        sys.exit(2)
+    sys.exit(TOOLS[sys.argv[1]](sys.argv[2:]))